@@ -5,8 +5,8 @@ include $(CLEAR_VARS)
 LOCAL_MODULE    := media1_jni
 LOCAL_CFLAGS    := 
 LOCAL_SRC_FILES := media1_jni.c
-LOCAL_SHARED_LIBRARIES := libavformat libavutil libavdevice
+LOCAL_SHARED_LIBRARIES := libavcodec libavformat libavutil libavdevice
 LOCAL_EXPORT_C_INCLUDES := $(LOCAL_PATH)/../ffmpeg/ffmpeg/$(TARGET_ARCH_ABI)/include
-LOCAL_LDLIBS    := -L$(LOCAL_PATH)/../ffmpeg/ffmpeg/$(TARGET_ARCH_ABI)/lib -llog -lavformat -lavutil -lavdevice
+LOCAL_LDLIBS    := -L$(LOCAL_PATH)/../ffmpeg/ffmpeg/$(TARGET_ARCH_ABI)/lib -llog -lavcodec -lavformat -lavutil -lavdevice
 
 include $(BUILD_SHARED_LIBRARY)
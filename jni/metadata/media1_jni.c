@@ -16,32 +16,180 @@
  */
 
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
 #include <jni.h>
 #include <android/log.h>
-//#include <string.h>
-//#include <strings.h>
+#include <libavcodec/avcodec.h>
 #include <libavformat/avformat.h>
 #include <libavdevice/avdevice.h>
 
 #define AV_DICT_IGNORE_SUFFIX   2
 const char DURATION[] = "duration";
 
+#define PROBE_BUFFER_SIZE 4096
+// AV_TIME_BASE units, the duration is estimated from the first frames
+#define PROBE_ANALYZE_DURATION 1000000
+
+static const char *TAG = "Java_net_sourceforge_servestream_media_MediaMetadataRetriever";
+
+/*
+ * The state of one MediaMetadataRetriever. A pointer to it is kept in the
+ * mNativeContext field of the Java object, so every retriever works on its
+ * own input and several of them can run at the same time.
+ */
 typedef struct {
-    char *key;
-    char *value;
-} AVDictionaryEntry;
+    AVFormatContext *fmt_ctx;
+    long int duration;
+
+    // set if the input is the head and the tail of a file, see
+    // _setProbeDataSource
+    ByteIOContext *pb;
+    uint8_t *head;
+    int head_size;
+    uint8_t *tail;
+    int tail_size;
+    int64_t length;
+    int64_t pos;
+} State;
+
+static jfieldID native_context = NULL;
+
+/*
+ * Serializes the codec opening done by av_find_stream_info(), libavcodec
+ * is not thread safe there without a lock manager.
+ */
+static int lock_manager(void **mutex, enum AVLockOp op) {
+	switch (op) {
+		case AV_LOCK_CREATE:
+			*mutex = malloc(sizeof(pthread_mutex_t));
+			if (!*mutex) {
+				return 1;
+			}
+			return pthread_mutex_init((pthread_mutex_t *) *mutex, NULL) != 0;
+		case AV_LOCK_OBTAIN:
+			return pthread_mutex_lock((pthread_mutex_t *) *mutex) != 0;
+		case AV_LOCK_RELEASE:
+			return pthread_mutex_unlock((pthread_mutex_t *) *mutex) != 0;
+		case AV_LOCK_DESTROY:
+			pthread_mutex_destroy((pthread_mutex_t *) *mutex);
+			free(*mutex);
+			*mutex = NULL;
+			return 0;
+	}
+
+	return 1;
+}
+
+static State *getState(JNIEnv *env, jobject thiz) {
+	return (State *) (*env)->GetIntField(env, thiz, native_context);
+}
+
+static void closeInput(State *state) {
+	if (state->pb) {
+		if (state->fmt_ctx) {
+			av_close_input_stream(state->fmt_ctx);
+		}
+
+		av_free(state->pb->buffer);
+		av_free(state->pb);
+		state->pb = NULL;
+	} else if (state->fmt_ctx) {
+		av_close_input_file(state->fmt_ctx);
+	}
+
+	state->fmt_ctx = NULL;
+	state->duration = 0;
+
+	av_freep(&state->head);
+	av_freep(&state->tail);
+	state->head_size = 0;
+	state->tail_size = 0;
+	state->length = 0;
+	state->pos = 0;
+}
 
-static AVMetadata *metadata = NULL;
-static long int duration = 0;
+/*
+ * Reads from the head or the tail of the file. Everything in between is
+ * missing and reads as the end of the file, which stops the demuxer from
+ * looking any further.
+ */
+static int probe_read(void *opaque, uint8_t *buf, int buf_size) {
+	State *state = (State *) opaque;
+	int64_t tail_start = state->length - state->tail_size;
+	int size = 0;
+
+	if (state->pos < state->head_size) {
+		size = FFMIN(buf_size, state->head_size - state->pos);
+		memcpy(buf, state->head + state->pos, size);
+	} else if (state->tail_size > 0 && state->pos >= tail_start && state->pos < state->length) {
+		size = FFMIN(buf_size, state->length - state->pos);
+		memcpy(buf, state->tail + (state->pos - tail_start), size);
+	}
+
+	state->pos += size;
+	return size;
+}
+
+static int64_t probe_seek(void *opaque, int64_t offset, int whence) {
+	State *state = (State *) opaque;
+
+	switch (whence) {
+		case AVSEEK_SIZE:
+			return state->length > 0 ? state->length : -1;
+		case SEEK_SET:
+			break;
+		case SEEK_CUR:
+			offset += state->pos;
+			break;
+		case SEEK_END:
+			if (state->length <= 0) {
+				return -1;
+			}
+			offset += state->length;
+			break;
+		default:
+			return -1;
+	}
+
+	if (offset < 0) {
+		return -1;
+	}
+
+	state->pos = offset;
+	return offset;
+}
 
 JNIEXPORT void JNICALL
-Java_net_sourceforge_servestream_media_MediaMetadataRetriever_native_1init(JNIEnv * env, jclass obj) {
-    __android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", "native_init called");
+Java_net_sourceforge_servestream_media_MediaMetadataRetriever_native_1init(JNIEnv * env, jclass clazz) {
+    __android_log_write(ANDROID_LOG_INFO, TAG, "native_init called");
+
+    native_context = (*env)->GetFieldID(env, clazz, "mNativeContext", "I");
+
+    if (native_context == NULL) {
+    	return;
+    }
+
+    av_lockmgr_register(lock_manager);
 
     // Initialize libavformat and register all the muxers, demuxers and protocols.
     av_register_all();
 }
 
+JNIEXPORT void JNICALL
+Java_net_sourceforge_servestream_media_MediaMetadataRetriever_native_1setup(JNIEnv * env, jobject thiz) {
+	State *state = (State *) calloc(1, sizeof(State));
+
+	if (!state) {
+		jclass exception = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+		(*env)->ThrowNew(env, exception, "could not allocate the native state");
+		return;
+	}
+
+	(*env)->SetIntField(env, thiz, native_context, (int) state);
+}
+
 long int getDuration(AVFormatContext *fmt_ctx) {
 	int i = 0;
 	int audioStream = -1;
@@ -67,51 +215,142 @@ long int getDuration(AVFormatContext *fmt_ctx) {
 		}
 	}
 
-	return duration;
+	return 0;
 }
 
-JNIEXPORT void JNICALL
-Java_net_sourceforge_servestream_media_MediaMetadataRetriever__1setDataSource(JNIEnv * env, jclass obj, jstring jpath) {
-	//__android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", "setDataSource called");
+JNIEXPORT jint JNICALL
+Java_net_sourceforge_servestream_media_MediaMetadataRetriever__1setDataSource(JNIEnv * env, jobject thiz, jstring jpath) {
+	//__android_log_write(ANDROID_LOG_INFO, TAG, "setDataSource called");
+
+	State *state = getState(env, thiz);
+
+	if (!state) {
+		return -1;
+	}
 
-	metadata = NULL;
-	duration = 0;
+	closeInput(state);
 
     AVFormatContext *fmt_ctx = NULL;
     const char * path;
 
     path = (*env)->GetStringUTFChars(env, jpath, NULL);
 
-    //__android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", path);
+    if (!path) {
+    	return -1;
+    }
+
+    //__android_log_write(ANDROID_LOG_INFO, TAG, path);
 
     if (av_open_input_file(&fmt_ctx, path, NULL, 0, NULL)) {
-	    __android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", "Metadata could not be retrieved");
-        av_free(fmt_ctx);
-    	fmt_ctx = NULL;
-    	return;
+	    __android_log_write(ANDROID_LOG_INFO, TAG, "Metadata could not be retrieved");
+	    (*env)->ReleaseStringUTFChars(env, jpath, path);
+    	return -1;
     }
 
-    metadata = fmt_ctx->metadata;
-    duration = getDuration(fmt_ctx);
+    (*env)->ReleaseStringUTFChars(env, jpath, path);
+
+    // the metadata belongs to the context, so it stays open until the next
+    // call or release()
+    state->fmt_ctx = fmt_ctx;
+    state->duration = getDuration(fmt_ctx);
 
-	__android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", "Found metadata");
+	__android_log_write(ANDROID_LOG_INFO, TAG, "Found metadata");
 	//AVMetadataTag *tag = NULL;
-	//while ((tag = av_metadata_get(metadata, "", tag, AV_DICT_IGNORE_SUFFIX))) {
-    //	__android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", tag->key);
-    //	__android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", tag->value);
+	//while ((tag = av_metadata_get(fmt_ctx->metadata, "", tag, AV_DICT_IGNORE_SUFFIX))) {
+    //	__android_log_write(ANDROID_LOG_INFO, TAG, tag->key);
+    //	__android_log_write(ANDROID_LOG_INFO, TAG, tag->value);
     //}
 
-    av_free(fmt_ctx);
-    fmt_ctx = NULL;
+    return 0;
+}
+
+static uint8_t *copyBytes(JNIEnv *env, jbyteArray jbytes, int *size) {
+	*size = jbytes ? (*env)->GetArrayLength(env, jbytes) : 0;
+
+	// the probe buffer must be followed by zeros
+	uint8_t *bytes = av_mallocz(*size + AVPROBE_PADDING_SIZE);
+
+	if (bytes && *size > 0) {
+		(*env)->GetByteArrayRegion(env, jbytes, 0, *size, (jbyte *) bytes);
+	}
+
+	return bytes;
+}
+
+JNIEXPORT jint JNICALL
+Java_net_sourceforge_servestream_media_MediaMetadataRetriever__1setProbeDataSource(JNIEnv * env, jobject thiz, jbyteArray jhead, jbyteArray jtail, jlong length) {
+	State *state = getState(env, thiz);
+
+	if (!state) {
+		return -1;
+	}
+
+	closeInput(state);
+
+	state->head = copyBytes(env, jhead, &state->head_size);
+	state->tail = copyBytes(env, jtail, &state->tail_size);
+	state->length = length;
+
+	if (!state->head || !state->tail || state->head_size == 0) {
+		closeInput(state);
+		return -1;
+	}
+
+	// a tail that overlaps the head or lies outside the file is useless
+	if (length <= 0 || length - state->tail_size < state->head_size) {
+		state->tail_size = 0;
+	}
+
+	AVProbeData pd;
+	pd.filename = "";
+	pd.buf = state->head;
+	pd.buf_size = state->head_size;
+
+	AVInputFormat *fmt = av_probe_input_format(&pd, 1);
+
+	if (!fmt) {
+		__android_log_write(ANDROID_LOG_INFO, TAG, "Unknown format");
+		closeInput(state);
+		return -1;
+	}
+
+	unsigned char *buffer = av_malloc(PROBE_BUFFER_SIZE);
+	state->pb = buffer ? av_alloc_put_byte(buffer, PROBE_BUFFER_SIZE, 0, state, probe_read, NULL, probe_seek) : NULL;
+
+	if (!state->pb) {
+		av_free(buffer);
+		closeInput(state);
+		return -1;
+	}
+
+	if (av_open_input_stream(&state->fmt_ctx, state->pb, "", fmt, NULL)) {
+	    __android_log_write(ANDROID_LOG_INFO, TAG, "Metadata could not be retrieved");
+	    state->fmt_ctx = NULL;
+	    closeInput(state);
+    	return -1;
+	}
+
+	// only look at what was fetched
+	state->fmt_ctx->probesize = state->head_size;
+	state->fmt_ctx->max_analyze_duration = PROBE_ANALYZE_DURATION;
+	state->duration = getDuration(state->fmt_ctx);
+
+	return 0;
 }
 
 JNIEXPORT jstring JNICALL
-Java_net_sourceforge_servestream_media_MediaMetadataRetriever_extractMetadata(JNIEnv * env, jclass obj, jstring jkey) {
-	//__android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", "extractMetadata called");
+Java_net_sourceforge_servestream_media_MediaMetadataRetriever_extractMetadata(JNIEnv * env, jobject thiz, jstring jkey) {
+	//__android_log_write(ANDROID_LOG_INFO, TAG, "extractMetadata called");
 
+	State *state = getState(env, thiz);
 	AVMetadataTag *tag = NULL;
+	jstring value = NULL;
     const char * key;
 
+    if (!state || !state->fmt_ctx || !jkey) {
+    	return NULL;
+    }
+
     key = (*env)->GetStringUTFChars(env, jkey, NULL) ;
 
 	if (!key) {
@@ -120,27 +359,37 @@ Java_net_sourceforge_servestream_media_MediaMetadataRetriever_extractMetadata(JN
 
 	if (strcmp(key, DURATION) == 0) {
 		char stringDuration[30];
-		sprintf(stringDuration, "%lu", duration);
-    	jstring jstrBuf = (*env)->NewStringUTF(env, stringDuration);
-    	return jstrBuf;
+		sprintf(stringDuration, "%lu", state->duration);
+		value = (*env)->NewStringUTF(env, stringDuration);
 	} else {
-	    tag = av_metadata_get(metadata, key, NULL, AV_DICT_IGNORE_SUFFIX);
+	    tag = av_metadata_get(state->fmt_ctx->metadata, key, NULL, AV_DICT_IGNORE_SUFFIX);
 
 	    if (tag) {
-	    	jstring jstrBuf = (*env)->NewStringUTF(env, tag->value);
-	    	return jstrBuf;
-	    } else {
-	    	return NULL;
+	    	value = (*env)->NewStringUTF(env, tag->value);
 	    }
 	}
+
+	(*env)->ReleaseStringUTFChars(env, jkey, key);
+
+	return value;
 }
 
 JNIEXPORT void JNICALL
-Java_net_sourceforge_servestream_media_MediaMetadataRetriever_release(JNIEnv * env, jclass obj) {
-	__android_log_write(ANDROID_LOG_INFO, "Java_net_sourceforge_servestream_media_MediaMetadataRetriever", "release called");
+Java_net_sourceforge_servestream_media_MediaMetadataRetriever_release(JNIEnv * env, jobject thiz) {
+	__android_log_write(ANDROID_LOG_INFO, TAG, "release called");
 
-    if (metadata) {
-        metadata = NULL;
-        //av_free(metadata);
-    }
+	State *state = getState(env, thiz);
+
+	if (!state) {
+		return;
+	}
+
+	(*env)->SetIntField(env, thiz, native_context, 0);
+	closeInput(state);
+	free(state);
+}
+
+JNIEXPORT void JNICALL
+Java_net_sourceforge_servestream_media_MediaMetadataRetriever_native_1finalize(JNIEnv * env, jobject thiz) {
+	Java_net_sourceforge_servestream_media_MediaMetadataRetriever_release(env, thiz);
 }
@@ -22,7 +22,9 @@ import net.sourceforge.servestream.button.RepeatingImageButton;
 import net.sourceforge.servestream.player.MultiPlayer;
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.service.IMediaPlaybackService;
+import net.sourceforge.servestream.service.IPlaybackCallback;
 import net.sourceforge.servestream.service.MediaPlaybackService;
+import net.sourceforge.servestream.service.PlaybackSnapshot;
 import net.sourceforge.servestream.utils.MusicUtils;
 import net.sourceforge.servestream.utils.PreferenceConstants;
 import net.sourceforge.servestream.utils.MusicUtils.ServiceToken;
@@ -385,7 +387,15 @@ public class MediaPlaybackActivity extends Activity implements SurfaceHolder.Cal
     	Log.v(TAG, "onStop called");
     	
         paused = true;
+        if (mService != null) {
+            try {
+                mService.unregisterCallback(mCallback);
+            } catch (RemoteException ex) {
+            }
+        }
         mHandler.removeMessages(REFRESH);
+        mHandler.removeMessages(STATE_CHANGED);
+        mHandler.removeMessages(PROGRESS);
         unregisterReceiver(mStatusListener);
         MusicUtils.unbindFromService(mToken);
         mService = null;
@@ -917,6 +927,8 @@ public class MediaPlaybackActivity extends Activity implements SurfaceHolder.Cal
                 
                 startPlayback();
                 try {
+                    mService.registerCallback(mCallback, PROGRESS_INTERVAL);
+                    
                     // Assume something is playing when the service says it is,
                     // but also if the audio ID is valid but the service is paused.
                     if (mService.getAudioId() >= 0 || mService.isPlaying() ||
@@ -1012,11 +1024,21 @@ public class MediaPlaybackActivity extends Activity implements SurfaceHolder.Cal
     private long mPosOverride = -1;
     private boolean mFromTouch = false;
     private long mDuration;
+    // the PlaybackSnapshot version the track information was shown for
+    private long mTrackInfoVersion = -1;
     private int seekmethod;
     private boolean paused;
 
     private static final int REFRESH = 1;
     private static final int QUIT = 2;
+    private static final int STATE_CHANGED = 3;
+    private static final int PROGRESS = 4;
+    
+    // the playback time between two progress updates
+    private static final int PROGRESS_INTERVAL = 1000;
+    
+    // the latest state, used to blink the counter while paused
+    private PlaybackSnapshot mSnapshot;
 
     private void queueNextRefresh(long delay) {
         if (!paused) {
@@ -1030,55 +1052,86 @@ public class MediaPlaybackActivity extends Activity implements SurfaceHolder.Cal
         if(mService == null)
             return 500;
         try {
-        	if (!mService.isStreaming()) {
-        		if (!mService.isCompleteFileAvailable()) {
-                	mProgress.setSecondaryProgress((int) (mService.getPercentDownloaded() * 1000));
-        			mPrevButton.setRepeatListener(null, -1);
-        			mNextButton.setRepeatListener(null, -1);
-        			mProgress.setEnabled(false);
-        		} else {
-        			mDuration = mService.getCompleteFileDuration();
-                	mTotalTime.setText(MusicUtils.makeTimeString(this, mDuration / 1000));
-                	mPrevButton.setRepeatListener(mRewListener, 260);
-                	mNextButton.setRepeatListener(mFfwdListener, 260);
-                	mProgress.setEnabled(true);
-        		}
+            return refreshNow(mService.getPlaybackSnapshot());
+        } catch (RemoteException ex) {
+        }
+        return 500;
+    }
+    
+    private long refreshNow(PlaybackSnapshot snapshot) {
+        mSnapshot = snapshot;
+
+        if (!snapshot.isStreaming()) {
+        	if (!snapshot.isCompleteFileAvailable()) {
+            	mProgress.setSecondaryProgress((int) (snapshot.getPercentDownloaded() * 1000));
+        		mPrevButton.setRepeatListener(null, -1);
+        		mNextButton.setRepeatListener(null, -1);
+        		mProgress.setEnabled(false);
+        	} else {
+        		mDuration = snapshot.getCompleteFileDuration();
+            	mTotalTime.setText(MusicUtils.makeTimeString(this, mDuration / 1000));
+            	mPrevButton.setRepeatListener(mRewListener, 260);
+            	mNextButton.setRepeatListener(mFfwdListener, 260);
+            	mProgress.setEnabled(true);
         	}
-        	
-            long pos = mPosOverride < 0 ? mService.position() : mPosOverride;
-            long remaining = 1000 - (pos % 1000);
-            if ((pos >= 0) && (mDuration > 0)) {
-                mCurrentTime.setText(MusicUtils.makeTimeString(this, pos / 1000));
-                
-                if (mService.isPlaying()) {
-                    mCurrentTime.setVisibility(View.VISIBLE);
-                } else {
-                    // blink the counter
-                    int vis = mCurrentTime.getVisibility();
-                    mCurrentTime.setVisibility(vis == View.INVISIBLE ? View.VISIBLE : View.INVISIBLE);
-                    remaining = 500;
-                }
+        }
 
-                mProgress.setProgress((int) (1000 * pos / mDuration));
+        long pos = mPosOverride < 0 ? snapshot.getPosition() : mPosOverride;
+        long remaining = 1000 - (pos % 1000);
+        if ((pos >= 0) && (mDuration > 0)) {
+            mCurrentTime.setText(MusicUtils.makeTimeString(this, pos / 1000));
+
+            if (snapshot.isPlaying()) {
+                mCurrentTime.setVisibility(View.VISIBLE);
             } else {
-                mCurrentTime.setText("--:--");
-                mProgress.setProgress(1000);
+                // blink the counter
+                int vis = mCurrentTime.getVisibility();
+                mCurrentTime.setVisibility(vis == View.INVISIBLE ? View.VISIBLE : View.INVISIBLE);
+                remaining = 500;
             }
-            // return the number of milliseconds until the next full second, so
-            // the counter can be updated at just the right time
-            return remaining;
-        } catch (RemoteException ex) {
+
+            mProgress.setProgress((int) (1000 * pos / mDuration));
+        } else {
+            mCurrentTime.setText("--:--");
+            mProgress.setProgress(1000);
         }
-        return 500;
+        // return the number of milliseconds until the next full second, so
+        // the counter can be updated at just the right time
+        return remaining;
     }
     
+    /**
+     * Receives the state the service pushes, on a binder thread.
+     */
+    private final IPlaybackCallback mCallback = new IPlaybackCallback.Stub() {
+        public void onStateChanged(PlaybackSnapshot snapshot) {
+            mHandler.obtainMessage(STATE_CHANGED, snapshot).sendToTarget();
+        }
+        
+        public void onProgress(PlaybackSnapshot snapshot) {
+            mHandler.obtainMessage(PROGRESS, snapshot).sendToTarget();
+        }
+    };
+    
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case REFRESH:
-                    long next = refreshNow();
-                    queueNextRefresh(next);
+                    // the service pushes the progress while playing, this
+                    // only blinks the counter while paused
+                    if (mSnapshot != null && !mSnapshot.isPlaying()) {
+                        queueNextRefresh(refreshNow(mSnapshot));
+                    }
+                    break;
+                    
+                case STATE_CHANGED:
+                    updateTrackInfo((PlaybackSnapshot) msg.obj);
+                    queueNextRefresh(refreshNow((PlaybackSnapshot) msg.obj));
+                    break;
+                    
+                case PROGRESS:
+                    queueNextRefresh(refreshNow((PlaybackSnapshot) msg.obj));
                     break;
                     
                 case QUIT:
@@ -1110,10 +1163,8 @@ public class MediaPlaybackActivity extends Activity implements SurfaceHolder.Cal
             if (action.equals(MediaPlaybackService.META_CHANGED)) {
                 // redraw the artist/title info and
                 // set new max for progress bar
-                updateTrackInfo();
                 setSeekControls();
                 setPauseButtonImage();
-                queueNextRefresh(1);
         		
                 if (mMediaControls.getVisibility() != View.VISIBLE) {
                 	mMediaControls.startAnimation(media_controls_fade_in);
@@ -1146,39 +1197,49 @@ public class MediaPlaybackActivity extends Activity implements SurfaceHolder.Cal
             return;
         }
         try {
-            String path = mService.getPath();
-            if (path == null) {
-                finish();
-                return;
-            }
-            
-            mTrackNumber.setText(mService.getTrackNumber());
-            
-            ((View) mArtistName.getParent()).setVisibility(View.VISIBLE);
-            ((View) mAlbumName.getParent()).setVisibility(View.VISIBLE);
-                
-            String trackName = mService.getTrackName();
-            if (trackName == null || trackName.equals(Media.UNKNOWN_STRING)) {
-            	trackName = mService.getMediaUri();
-            }
-                
-            mTrackName.setText(trackName);
-            mArtistName.setText(mService.getArtistName());
-            mAlbumName.setText(mService.getAlbumName());
-                
-            if (mService.isStreaming()) {
-            	mDuration = mService.duration();
-            	mProgress.setSecondaryProgress(0);
-            } else {
-            	if (mService.isCompleteFileAvailable()) {
-            		mDuration = mService.getCompleteFileDuration();
-            	} else {
-            		mDuration = 0;
-            	}
-            }
-            mTotalTime.setText(MusicUtils.makeTimeString(this, mDuration / 1000));
+            updateTrackInfo(mService.getPlaybackSnapshot());
         } catch (RemoteException ex) {
             finish();
         }
     }
+    
+    private void updateTrackInfo(PlaybackSnapshot snapshot) {
+        if (snapshot.getVersion() == mTrackInfoVersion) {
+            // nothing changed since the views were last updated
+            return;
+        }
+        
+        String path = snapshot.getPath();
+        if (path == null) {
+            finish();
+            return;
+        }
+        mTrackInfoVersion = snapshot.getVersion();
+        
+        mTrackNumber.setText(snapshot.getTrackNumber());
+        
+        ((View) mArtistName.getParent()).setVisibility(View.VISIBLE);
+        ((View) mAlbumName.getParent()).setVisibility(View.VISIBLE);
+            
+        String trackName = snapshot.getTrackName();
+        if (trackName == null || trackName.equals(Media.UNKNOWN_STRING)) {
+        	trackName = snapshot.getMediaUri();
+        }
+            
+        mTrackName.setText(trackName);
+        mArtistName.setText(snapshot.getArtistName());
+        mAlbumName.setText(snapshot.getAlbumName());
+            
+        if (snapshot.isStreaming()) {
+        	mDuration = snapshot.getDuration();
+        	mProgress.setSecondaryProgress(0);
+        } else {
+        	if (snapshot.isCompleteFileAvailable()) {
+        		mDuration = snapshot.getCompleteFileDuration();
+        	} else {
+        		mDuration = 0;
+        	}
+        }
+        mTotalTime.setText(MusicUtils.makeTimeString(this, mDuration / 1000));
+    }
 }
\ No newline at end of file
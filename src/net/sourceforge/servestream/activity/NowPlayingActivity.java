@@ -18,6 +18,7 @@
 package net.sourceforge.servestream.activity;
 
 import net.sourceforge.servestream.R;
+import net.sourceforge.servestream.media.MetadataRetriever;
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.service.IMediaPlaybackService;
 import net.sourceforge.servestream.service.MediaPlaybackService;
@@ -52,6 +53,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.MenuItem.OnMenuItemClickListener;
+import android.widget.AbsListView;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
@@ -72,6 +74,8 @@ public class NowPlayingActivity extends ListActivity implements View.OnCreateCon
     private boolean mAdapterSent = false;
     private int mSelectedPosition;
     private ServiceToken mToken;
+    private int mFirstVisible = -1;
+    private int mVisibleCount = 0;
 
     String[] mCursorCols = new String[] {
             Media.MediaColumns._ID,             // index must match IDCOLIDX below
@@ -103,6 +107,7 @@ public class NowPlayingActivity extends ListActivity implements View.OnCreateCon
         mTrackList.setCacheColorHint(0);
         ((TouchInterceptor) mTrackList).setDropListener(mDropListener);
         ((TouchInterceptor) mTrackList).setRemoveListener(mRemoveListener);
+        mTrackList.setOnScrollListener(mScrollListener);
         mTrackList.setDivider(null);
         mTrackList.setSelector(R.drawable.list_selector_background);
         mAdapter = (TrackListAdapter) getLastNonConfigurationInstance();
@@ -163,6 +168,7 @@ public class NowPlayingActivity extends ListActivity implements View.OnCreateCon
             // clear the listeners so we won't get any more callbacks
             ((TouchInterceptor) lv).setDropListener(null);
             ((TouchInterceptor) lv).setRemoveListener(null);
+            lv.setOnScrollListener(null);
         }
 
         MusicUtils.unbindFromService(mToken);
@@ -195,6 +201,45 @@ public class NowPlayingActivity extends ListActivity implements View.OnCreateCon
         if (mTrackCursor != null) {
             getListView().invalidateViews();
         }
+        
+        ListView lv = getListView();
+        setVisibleTracks(lv.getFirstVisiblePosition(), lv.getChildCount());
+    }
+    
+    @Override
+    public void onPause() {
+        // the rows are no longer seen, they wait for their turn in the queue
+        setVisibleTracks(-1, 0);
+        super.onPause();
+    }
+    
+    private AbsListView.OnScrollListener mScrollListener = new AbsListView.OnScrollListener() {
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        public void onScroll(AbsListView view, int firstVisibleItem,
+                int visibleItemCount, int totalItemCount) {
+            setVisibleTracks(firstVisibleItem, visibleItemCount);
+        }
+    };
+    
+    /**
+     * Lets the metadata of the tracks on the screen be retrieved before the
+     * rest of the queue, so that their titles show up first.
+     */
+    private void setVisibleTracks(int first, int count) {
+        if (first == mFirstVisible && count == mVisibleCount) {
+            return;
+        }
+        
+        mFirstVisible = first;
+        mVisibleCount = count;
+        
+        if (first >= 0 && mTrackCursor instanceof NowPlayingCursor) {
+            MetadataRetriever.setVisible(((NowPlayingCursor) mTrackCursor).getQueueIds(first, count));
+        } else {
+            MetadataRetriever.setVisible(new long[0]);
+        }
     }
     
     public void init(Cursor newCursor, boolean isLimited) {
@@ -588,6 +633,19 @@ public class NowPlayingActivity extends ListActivity implements View.OnCreateCon
             return true;
         }
         
+        /**
+         * @return the ids of the tracks at the given rows.
+         */
+        public long [] getQueueIds(int first, int count) {
+            if (mNowPlaying == null || first >= mSize) {
+                return new long[0];
+            }
+            count = Math.min(count, mSize - first);
+            long [] ids = new long[count];
+            System.arraycopy(mNowPlaying, first, ids, 0, count);
+            return ids;
+        }
+        
         public void moveItem(int from, int to) {
             try {
                 mService.moveQueueItem(from, to);
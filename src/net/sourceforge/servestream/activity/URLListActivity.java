@@ -357,7 +357,8 @@ public class URLListActivity extends ListActivity implements ServiceConnection,
     	outState.putBoolean(STATE_MAKING_SHORTCUT, mMakingShortcut);
     	
         final DetermineActionTask task = mDetermineActionTask;
-        if (task != null && task.getStatus() != AsyncTask.Status.FINISHED) {
+        // a task that already started playback finishes loading the playlist on its own
+        if (task != null && task.getStatus() != AsyncTask.Status.FINISHED && !task.isPrepared()) {
             final String uri = task.getUri().toString();
             task.cancel(true);
 			try {
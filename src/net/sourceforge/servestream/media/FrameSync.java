@@ -0,0 +1,198 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+/**
+ * Locates MPEG audio (MP3) and AAC ADTS frame boundaries in a raw byte
+ * stream. Used to join a live stream that was reconnected in the middle of
+ * a frame.
+ */
+public class FrameSync {
+
+	private static final int [][] MPEG_BITRATES = {
+		// MPEG 1, layer I
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		// MPEG 1, layer II
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		// MPEG 1, layer III
+		{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+		// MPEG 2/2.5, layer I
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+		// MPEG 2/2.5, layer II and III
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }
+	};
+
+	private static final int [] MPEG_SAMPLE_RATES = { 44100, 48000, 32000 };
+
+	private static final int [] ADTS_SAMPLE_RATES = {
+		96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+	};
+
+	private static final int ADTS_HEADER_SIZE = 7;
+	private static final int ADTS_SAMPLES_PER_FRAME = 1024;
+
+	private FrameSync() {
+
+	}
+
+	/**
+	 * Finds the first frame whose header is followed by another valid header
+	 * exactly one frame length later, which rules out most false syncs in
+	 * the middle of audio data.
+	 *
+	 * @return the offset of the frame, or -1 if no frame was found yet and
+	 * more data is needed.
+	 */
+	public static int findFrame(byte [] buffer, int offset, int length) {
+		int end = offset + length;
+
+		for (int i = offset; i < end - 1; i++) {
+			if ((buffer[i] & 0xff) != 0xff || (buffer[i + 1] & 0xe0) != 0xe0) {
+				continue;
+			}
+
+			int frameLength = getFrameLength(buffer, i, end);
+
+			if (frameLength == 0) {
+				continue;
+			}
+
+			if (frameLength == -1 || i + frameLength >= end - 1) {
+				// the header or the following frame is incomplete
+				return -1;
+			}
+
+			int next = i + frameLength;
+
+			if ((buffer[next] & 0xff) == 0xff && (buffer[next + 1] & 0xe0) == 0xe0
+					&& getFrameLength(buffer, next, end) != 0) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Estimates the bitrate of a stream from its first frame. Variable
+	 * bitrate files only give the bitrate of that frame.
+	 *
+	 * @return the bitrate in bits per second, or -1 if no frame was found.
+	 */
+	public static int getBitrate(byte [] buffer, int offset, int length) {
+		int frame = findFrame(buffer, offset, length);
+
+		if (frame == -1) {
+			return -1;
+		}
+
+		int layer = (buffer[frame + 1] >> 1) & 0x03;
+
+		if (layer == 0) {
+			// ADTS headers carry no bitrate, derive it from the frame length
+			int sampleRate = ADTS_SAMPLE_RATES[(buffer[frame + 2] >> 2) & 0x0f];
+			long frameLength = getAdtsFrameLength(buffer, frame, offset + length);
+			return (int) (frameLength * 8 * sampleRate / ADTS_SAMPLES_PER_FRAME);
+		}
+
+		int b1 = buffer[frame + 1] & 0xff;
+		int version = (b1 >> 3) & 0x03;
+		return MPEG_BITRATES[getBitrateTable(version, 4 - layer)][(buffer[frame + 2] & 0xff) >> 4] * 1000;
+	}
+
+	/**
+	 * @return the length of the frame starting at offset, 0 if there is no
+	 * valid header there, or -1 if the header is incomplete.
+	 */
+	static int getFrameLength(byte [] buffer, int offset, int end) {
+		int layer = (buffer[offset + 1] >> 1) & 0x03;
+
+		if (layer == 0) {
+			return getAdtsFrameLength(buffer, offset, end);
+		}
+
+		return getMpegFrameLength(buffer, offset, end);
+	}
+
+	private static int getMpegFrameLength(byte [] buffer, int offset, int end) {
+		if (end - offset < 4) {
+			return -1;
+		}
+
+		int b1 = buffer[offset + 1] & 0xff;
+		int b2 = buffer[offset + 2] & 0xff;
+
+		int version = (b1 >> 3) & 0x03; // 0 = 2.5, 2 = 2, 3 = 1
+		int layer = 4 - ((b1 >> 1) & 0x03); // 1 = I, 2 = II, 3 = III
+		int bitrateIndex = b2 >> 4;
+		int sampleRateIndex = (b2 >> 2) & 0x03;
+		int padding = (b2 >> 1) & 0x01;
+
+		if (version == 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+			return 0;
+		}
+
+		int bitrate = MPEG_BITRATES[getBitrateTable(version, layer)][bitrateIndex] * 1000;
+		int sampleRate = MPEG_SAMPLE_RATES[sampleRateIndex];
+
+		if (version == 2) {
+			sampleRate /= 2;
+		} else if (version == 0) {
+			sampleRate /= 4;
+		}
+
+		if (layer == 1) {
+			return (12 * bitrate / sampleRate + padding) * 4;
+		} else if (layer == 3 && version != 3) {
+			return 72 * bitrate / sampleRate + padding;
+		}
+
+		return 144 * bitrate / sampleRate + padding;
+	}
+
+	private static int getBitrateTable(int version, int layer) {
+		if (version == 3) {
+			return layer - 1;
+		}
+
+		return layer == 1 ? 3 : 4;
+	}
+
+	private static int getAdtsFrameLength(byte [] buffer, int offset, int end) {
+		if (end - offset < ADTS_HEADER_SIZE) {
+			return -1;
+		}
+
+		// the sync word is 12 bits for ADTS
+		if ((buffer[offset + 1] & 0xf0) != 0xf0) {
+			return 0;
+		}
+
+		int sampleRateIndex = (buffer[offset + 2] >> 2) & 0x0f;
+
+		if (sampleRateIndex > 12) {
+			return 0;
+		}
+
+		int frameLength = ((buffer[offset + 3] & 0x03) << 11)
+				| ((buffer[offset + 4] & 0xff) << 3)
+				| ((buffer[offset + 5] & 0xe0) >> 5);
+
+		return frameLength < ADTS_HEADER_SIZE ? 0 : frameLength;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Demuxes a SHOUTcast/Icecast stream that was requested with the
+ * "Icy-MetaData: 1" header. Every "icy-metaint" bytes of audio the server
+ * inserts a metadata block; this stream removes those blocks so only audio is
+ * returned to the reader and hands each block to a listener as it arrives.
+ */
+public class IcyInputStream extends FilterInputStream {
+
+	/**
+	 * The length byte is multiplied by 16, so a block is at most 4080 bytes.
+	 */
+	public static final int MAX_METADATA_LENGTH = 255 * 16;
+
+	private final int mMetadataInterval;
+	private final OnMetadataListener mListener;
+	private final byte [] mMetadata = new byte[MAX_METADATA_LENGTH];
+	private int mAudioRemaining;
+
+	/**
+	 * @param in The stream positioned at the first audio byte after the
+	 * response headers.
+	 * @param metadataInterval The value of the "icy-metaint" header.
+	 * @param listener Notified of every non empty metadata block, may be null.
+	 */
+	public IcyInputStream(InputStream in, int metadataInterval, OnMetadataListener listener) {
+		super(in);
+
+		if (metadataInterval <= 0) {
+			throw new IllegalArgumentException("metadataInterval must be positive");
+		}
+
+		mMetadataInterval = metadataInterval;
+		mListener = listener;
+		mAudioRemaining = metadataInterval;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (mAudioRemaining == 0 && !readMetadata()) {
+			return -1;
+		}
+
+		int b = in.read();
+
+		if (b != -1) {
+			mAudioRemaining--;
+		}
+
+		return b;
+	}
+
+	@Override
+	public int read(byte [] buffer, int offset, int count) throws IOException {
+		if (count == 0) {
+			return 0;
+		}
+
+		if (mAudioRemaining == 0 && !readMetadata()) {
+			return -1;
+		}
+
+		int read = in.read(buffer, offset, Math.min(count, mAudioRemaining));
+
+		if (read > 0) {
+			mAudioRemaining -= read;
+		}
+
+		return read;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		long skipped = 0;
+		byte [] buffer = new byte[(int) Math.min(count, 4096)];
+
+		while (skipped < count) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+
+			if (read == -1) {
+				break;
+			}
+
+			skipped += read;
+		}
+
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return Math.min(in.available(), mAudioRemaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Reads the metadata block that follows a complete audio block.
+	 *
+	 * @return false if the stream ended cleanly before the block.
+	 */
+	private boolean readMetadata() throws IOException {
+		int length = in.read();
+
+		if (length == -1) {
+			return false;
+		}
+
+		length *= 16;
+
+		int offset = 0;
+		while (offset < length) {
+			int read = in.read(mMetadata, offset, length - offset);
+
+			if (read == -1) {
+				throw new EOFException("stream ended inside a metadata block");
+			}
+
+			offset += read;
+		}
+
+		mAudioRemaining = mMetadataInterval;
+
+		if (length > 0 && mListener != null) {
+			mListener.onMetadata(mMetadata, 0, length);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Receives the raw metadata blocks, e.g. "StreamTitle='...';", padded with
+	 * zero bytes. The buffer is reused for the next block.
+	 */
+	public interface OnMetadataListener {
+		public void onMetadata(byte [] buffer, int offset, int length);
+	}
+}
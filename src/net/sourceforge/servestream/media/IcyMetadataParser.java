@@ -0,0 +1,311 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Extracts the stream title from ICY metadata blocks, e.g.
+ * "StreamTitle='Artist - Title';StreamUrl='';". The parser works directly on
+ * the raw bytes and keeps all of its buffers between calls, a String is only
+ * created when the title actually changes. An instance is not thread safe.
+ */
+public class IcyMetadataParser {
+
+	private static final int SKIP_BUFFER_SIZE = 8192;
+
+	private static final byte [] STREAM_TITLE = toAscii("StreamTitle");
+	private static final byte [] STREAM_TITLE_REPLAY = toAscii("StreamTitleReplay");
+
+	private final byte [] mBlock = new byte[IcyInputStream.MAX_METADATA_LENGTH];
+	private final byte [] mSkipBuffer = new byte[SKIP_BUFFER_SIZE];
+	private final byte [] mTitle = new byte[IcyInputStream.MAX_METADATA_LENGTH];
+	private int mTitleLength = -1;
+	private String mStreamTitle = null;
+
+	// set by findValue()
+	private int mValueStart;
+	private int mValueEnd;
+
+	/**
+	 * Reads the first metadata block of a stream that was requested with the
+	 * "Icy-MetaData: 1" header. The audio block in front of it is skipped in
+	 * bulk reads.
+	 *
+	 * @param in The stream positioned at the first audio byte.
+	 * @param metadataInterval The value of the "icy-metaint" header.
+	 * @return true if the block contained a non empty stream title.
+	 */
+	public boolean readMetadata(InputStream in, int metadataInterval) throws IOException {
+		int remaining = metadataInterval;
+
+		while (remaining > 0) {
+			int read = in.read(mSkipBuffer, 0, Math.min(remaining, mSkipBuffer.length));
+
+			if (read == -1) {
+				return false;
+			}
+
+			remaining -= read;
+		}
+
+		int length = in.read();
+
+		if (length == -1) {
+			return false;
+		}
+
+		length *= 16;
+
+		int offset = 0;
+		while (offset < length) {
+			int read = in.read(mBlock, offset, length - offset);
+
+			if (read == -1) {
+				return false;
+			}
+
+			offset += read;
+		}
+
+		return parse(mBlock, 0, length);
+	}
+
+	/**
+	 * @see #parse(byte[], int, int)
+	 */
+	public boolean parse(ByteBuffer buffer) {
+		int length = buffer.remaining();
+
+		if (buffer.hasArray()) {
+			return parse(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		}
+
+		length = Math.min(length, mBlock.length);
+		buffer.duplicate().get(mBlock, 0, length);
+		return parse(mBlock, 0, length);
+	}
+
+	/**
+	 * Parses a raw metadata block. "StreamTitle" is preferred, "StreamTitleReplay"
+	 * is used if the former is missing or empty.
+	 *
+	 * @return true if the block contained a non empty stream title, the title
+	 * is then available through {@link #getStreamTitle()}.
+	 */
+	public boolean parse(byte [] buffer, int offset, int length) {
+		int end = offset + length;
+
+		// blocks are padded to a multiple of 16 with zero bytes
+		while (end > offset && buffer[end - 1] == 0) {
+			end--;
+		}
+
+		if (!findValue(buffer, offset, end, STREAM_TITLE)
+				&& !findValue(buffer, offset, end, STREAM_TITLE_REPLAY)) {
+			return false;
+		}
+
+		setTitle(buffer, mValueStart, mValueEnd - mValueStart);
+		return true;
+	}
+
+	/**
+	 * @return the title found by the last successful parse, or null.
+	 */
+	public String getStreamTitle() {
+		return mStreamTitle;
+	}
+
+	public void reset() {
+		mTitleLength = -1;
+		mStreamTitle = null;
+	}
+
+	/**
+	 * Locates the trimmed, non empty value of key='value' and stores its
+	 * bounds in mValueStart and mValueEnd.
+	 */
+	private boolean findValue(byte [] buffer, int offset, int end, byte [] key) {
+		int i = offset;
+
+		while (i < end) {
+			// skip whitespace in front of the key
+			while (i < end && isWhitespace(buffer[i])) {
+				i++;
+			}
+
+			if (matches(buffer, i, end, key)) {
+				int start = i + key.length + 2;
+				int valueEnd = findValueEnd(buffer, start, end);
+
+				while (start < valueEnd && isWhitespace(buffer[start])) {
+					start++;
+				}
+
+				while (valueEnd > start && isWhitespace(buffer[valueEnd - 1])) {
+					valueEnd--;
+				}
+
+				if (valueEnd > start) {
+					mValueStart = start;
+					mValueEnd = valueEnd;
+					return true;
+				}
+
+				return false;
+			}
+
+			// move on to the next key
+			int next = findValueEnd(buffer, i, end);
+
+			while (next < end && buffer[next] != ';') {
+				next++;
+			}
+
+			i = next + 1;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Titles may contain quotes themselves, so a value ends at the first
+	 * "';" or, failing that, at the last quote of the block.
+	 */
+	private static int findValueEnd(byte [] buffer, int start, int end) {
+		int lastQuote = -1;
+
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == '\'') {
+				if (i + 1 == end || buffer[i + 1] == ';') {
+					return i;
+				}
+
+				lastQuote = i;
+			}
+		}
+
+		return lastQuote != -1 ? lastQuote : end;
+	}
+
+	/**
+	 * @return true if key=' starts at offset.
+	 */
+	private static boolean matches(byte [] buffer, int offset, int end, byte [] key) {
+		if (end - offset < key.length + 2) {
+			return false;
+		}
+
+		for (int i = 0; i < key.length; i++) {
+			if (buffer[offset + i] != key[i]) {
+				return false;
+			}
+		}
+
+		return buffer[offset + key.length] == '=' && buffer[offset + key.length + 1] == '\'';
+	}
+
+	private void setTitle(byte [] buffer, int offset, int length) {
+		if (length == mTitleLength) {
+			boolean equal = true;
+
+			for (int i = 0; i < length; i++) {
+				if (mTitle[i] != buffer[offset + i]) {
+					equal = false;
+					break;
+				}
+			}
+
+			if (equal) {
+				return;
+			}
+		}
+
+		System.arraycopy(buffer, offset, mTitle, 0, length);
+		mTitleLength = length;
+
+		// servers send whatever the source client sent, which is either
+		// UTF-8 or, mostly with older encoders, Latin-1
+		String charsetName = isUtf8(mTitle, 0, length) ? "UTF-8" : "ISO-8859-1";
+
+		try {
+			mStreamTitle = new String(mTitle, 0, length, charsetName);
+		} catch (UnsupportedEncodingException e) {
+			// both charsets are always supported
+			mStreamTitle = null;
+		}
+	}
+
+	/**
+	 * @return true if the bytes are well formed UTF-8.
+	 */
+	static boolean isUtf8(byte [] buffer, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+
+		while (i < end) {
+			int b = buffer[i] & 0xff;
+			int continuation;
+
+			if (b < 0x80) {
+				i++;
+				continue;
+			} else if (b >= 0xc2 && b <= 0xdf) {
+				continuation = 1;
+			} else if (b >= 0xe0 && b <= 0xef) {
+				continuation = 2;
+			} else if (b >= 0xf0 && b <= 0xf4) {
+				continuation = 3;
+			} else {
+				return false;
+			}
+
+			if (i + continuation >= end) {
+				return false;
+			}
+
+			for (int j = 1; j <= continuation; j++) {
+				if ((buffer[i + j] & 0xc0) != 0x80) {
+					return false;
+				}
+			}
+
+			i += continuation + 1;
+		}
+
+		return true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static byte [] toAscii(String s) {
+		byte [] bytes = new byte[s.length()];
+
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+
+		return bytes;
+	}
+}
@@ -22,6 +22,9 @@ import android.graphics.Bitmap;
 /**
  * MediaMetadataRetriever class provides a unified interface for retrieving
  * frame and meta data from an input media file.
+ * 
+ * Every instance keeps its own native state, so several instances can be
+ * used on different threads at the same time.
  */
 public class MediaMetadataRetriever
 {
@@ -36,7 +39,7 @@ public class MediaMetadataRetriever
     private static final int EMBEDDED_PICTURE_TYPE_ANY = 0xFFFF;
 
     public MediaMetadataRetriever() {
-        //native_setup();
+        native_setup();
     }
 
     /**
@@ -55,7 +58,29 @@ public class MediaMetadataRetriever
     	_setDataSource(path);
     }
 
-    public native int _setDataSource(String path);
+    public synchronized native int _setDataSource(String path);
+    
+    /**
+     * Sets the data source to the head and the tail of a file, e.g. as
+     * fetched by {@link MetadataProbe}. Only these bytes are examined and
+     * the duration is estimated from the first audio frames, so this is
+     * much cheaper than opening a remote file with
+     * {@link #setDataSource(String)}.
+     * 
+     * @param head The first bytes of the file.
+     * @param tail The last bytes of the file, they must not overlap the head.
+     * @param length The length of the whole file, or -1 if not known.
+     * @throws IllegalArgumentException If the head is empty.
+     */
+    public void setDataSource(byte [] head, byte [] tail, long length) throws IllegalArgumentException {
+    	if (head == null || head.length == 0) {
+    		throw new IllegalArgumentException();
+    	}
+    	
+    	_setProbeDataSource(head, tail == null ? new byte[0] : tail, length);
+    }
+    
+    private synchronized native int _setProbeDataSource(byte [] head, byte [] tail, long length);
     
     /**
      * Call this method after setDataSource(). This method retrieves the 
@@ -68,7 +93,7 @@ public class MediaMetadataRetriever
      * @return The meta data value associate with the given keyCode on success; 
      * null on failure.
      */
-    public native String extractMetadata(String key);
+    public synchronized native String extractMetadata(String key);
 
     /**
      * Call this method after setDataSource(). This method finds a
@@ -170,20 +195,20 @@ public class MediaMetadataRetriever
      * Call it when one is done with the object. This method releases the memory
      * allocated internally.
      */
-    public native void release();
-    //private native void native_setup();
+    public synchronized native void release();
+    private native void native_setup();
     private static native void native_init();
 
-    //private native final void native_finalize();
+    private native final void native_finalize();
 
-    /*@Override
+    @Override
     protected void finalize() throws Throwable {
         try {
             native_finalize();
         } finally {
             super.finalize();
         }
-    }*/
+    }
 
     /**
      * Option used in method {@link #getFrameAtTime(long, int)} to get a
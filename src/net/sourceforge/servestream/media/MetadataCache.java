@@ -0,0 +1,254 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * Remembers the metadata retrieved for a file together with the validators
+ * of the file at that time, so that a track is not probed again while the
+ * file is unchanged. Entries are keyed by the normalized URI, which outlives
+ * the rows of the media provider, and the least recently used ones are
+ * dropped once there are too many. The cache is saved to a file on a
+ * background thread a while after it changed.
+ */
+class MetadataCache {
+	private static final String TAG = MetadataCache.class.getName();
+
+	private static final String FILE_NAME = "metadata.cache";
+	private static final int VERSION = 1;
+
+	private static final int MAX_ENTRIES = 10000;
+
+	// writeUTF() takes at most 64K bytes, tags and URIs are far shorter
+	private static final int MAX_VALUE_LENGTH = 1024;
+	private static final int MAX_KEY_LENGTH = 8192;
+
+	// coalesces the saves of the tracks retrieved in a burst
+	private static final long SAVE_DELAY = 5000;
+
+	private final File mFile;
+	private final Handler mHandler;
+
+	// in access order, the least recently used entry comes first, guarded by this
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private boolean mLoaded = false;
+
+	private final Runnable mSaver = new Runnable() {
+		public void run() {
+			save();
+		}
+	};
+
+	/**
+	 * The metadata of a file and the validators it was retrieved with. A
+	 * value that is not known is null.
+	 */
+	static class Entry {
+		String mETag;
+		String mLastModified;
+		long mLength = -1;
+		String mTitle;
+		String mAlbum;
+		String mArtist;
+		String mDuration;
+		String mTrack;
+		String mYear;
+		String mArtwork;
+
+		/**
+		 * @return true if the entry can be validated against the file. The
+		 * length alone can not tell whether a file was retagged.
+		 */
+		boolean hasValidators() {
+			return mETag != null || mLastModified != null;
+		}
+	}
+
+	/**
+	 * @param directory The directory the file is kept in.
+	 */
+	MetadataCache(File directory) {
+		mFile = new File(directory, FILE_NAME);
+
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * @return the entry for a URI, or null if there is none. The entry must
+	 * be validated before it is used.
+	 */
+	synchronized Entry get(String uri) {
+		load();
+		return mEntries.get(Utils.normalizeUri(uri));
+	}
+
+	/**
+	 * Adds or replaces the entry for a URI. An entry without validators is
+	 * not kept since it could never be trusted again. The entry must not be
+	 * modified afterwards.
+	 */
+	synchronized void put(String uri, Entry entry) {
+		String key = Utils.normalizeUri(uri);
+
+		if (!entry.hasValidators() || key.length() > MAX_KEY_LENGTH) {
+			return;
+		}
+
+		load();
+		mEntries.put(key, entry);
+
+		mHandler.removeCallbacks(mSaver);
+		mHandler.postDelayed(mSaver, SAVE_DELAY);
+	}
+
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+
+		mLoaded = true;
+
+		if (!mFile.exists()) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+
+			if (in.readInt() != VERSION) {
+				return;
+			}
+
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				Entry entry = new Entry();
+				entry.mETag = readString(in);
+				entry.mLastModified = readString(in);
+				entry.mLength = in.readLong();
+				entry.mTitle = readString(in);
+				entry.mAlbum = readString(in);
+				entry.mArtist = readString(in);
+				entry.mDuration = readString(in);
+				entry.mTrack = readString(in);
+				entry.mYear = readString(in);
+				entry.mArtwork = readString(in);
+				mEntries.put(key, entry);
+			}
+		} catch (IOException e) {
+			Log.v(TAG, "could not read the metadata cache: " + e.getMessage());
+			mEntries.clear();
+		} finally {
+			Utils.closeInputStream(in);
+		}
+
+		Log.v(TAG, "loaded " + mEntries.size() + " entries in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void save() {
+		List<String> keys;
+		List<Entry> entries;
+
+		synchronized (this) {
+			keys = new ArrayList<String>(mEntries.keySet());
+			entries = new ArrayList<Entry>(mEntries.values());
+		}
+
+		File tempFile = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+
+			for (int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				out.writeUTF(keys.get(i));
+				writeString(out, entry.mETag);
+				writeString(out, entry.mLastModified);
+				out.writeLong(entry.mLength);
+				writeString(out, entry.mTitle);
+				writeString(out, entry.mAlbum);
+				writeString(out, entry.mArtist);
+				writeString(out, entry.mDuration);
+				writeString(out, entry.mTrack);
+				writeString(out, entry.mYear);
+				writeString(out, entry.mArtwork);
+			}
+
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(mFile)) {
+				Log.v(TAG, "could not write the metadata cache");
+			}
+		} catch (IOException e) {
+			Log.v(TAG, "could not write the metadata cache: " + e.getMessage());
+		} finally {
+			Utils.closeOutputStream(out);
+			Utils.deleteFile(tempFile);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		String value = in.readUTF();
+		return value.length() == 0 ? null : value;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value != null && value.length() > MAX_VALUE_LENGTH) {
+			value = value.substring(0, MAX_VALUE_LENGTH);
+		}
+
+		out.writeUTF(value == null ? "" : value);
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * Fetches the parts of a remote file that hold its metadata with byte range
+ * requests: the head, with an ID3v2 tag and the first audio frames, and the
+ * tail, with an ID3v1 or APEv2 tag. Probing a track this way costs a few
+ * kilobytes instead of the whole file.
+ * <p>
+ * If the server ignores the range, only the head is read and the
+ * connection is dropped. Local files are read the same way so that
+ * {@link TagReader} sees the same bytes for both.
+ * <p>
+ * The validators of the file are kept, so that a later probe can first ask
+ * whether the file changed since and skip the fetch if it did not.
+ */
+public class MetadataProbe {
+
+	// enough for the container header and the first audio frames
+	private static final int HEAD_SIZE = 32 * 1024;
+
+	// the head is extended to hold a larger ID3v2 tag, e.g. one with cover
+	// art, up to this size
+	private static final int MAX_HEAD_SIZE = 256 * 1024;
+
+	// an ID3v1 tag and an APEv2 tag with a few items
+	private static final int TAIL_SIZE = 4 * 1024;
+	private static final int MAX_TAIL_SIZE = 64 * 1024;
+
+	private static final int ID3V1_SIZE = 128;
+	private static final int ID3V2_HEADER_SIZE = 10;
+	private static final int APE_FOOTER_SIZE = 32;
+
+	private final URL mURL;
+	private final File mFile;
+
+	private byte [] mHead = new byte[0];
+	private byte [] mTail = new byte[0];
+	private long mLength = -1;
+	private String mETag = null;
+	private String mLastModified = null;
+	private long mBytesTransferred = 0;
+
+	public MetadataProbe(URL url) {
+		mURL = url;
+		mFile = null;
+	}
+
+	public MetadataProbe(File file) {
+		mURL = null;
+		mFile = file;
+	}
+
+	/**
+	 * Fetches the head and, for a local file or a server that supports byte
+	 * ranges, the tail of the file.
+	 *
+	 * @throws IOException if the head could not be fetched.
+	 */
+	public void fetch() throws IOException {
+		if (mFile != null) {
+			mLength = mFile.length();
+			mLastModified = String.valueOf(mFile.lastModified());
+			mHead = fetchRange(0, (int) Math.min(HEAD_SIZE, mLength));
+			fetchTags();
+			return;
+		}
+
+		HttpResponse response = execute(0, HEAD_SIZE);
+		boolean partial;
+
+		try {
+			int statusCode = response.getStatusCode();
+
+			if (statusCode != HttpURLConnection.HTTP_OK
+					&& statusCode != HttpURLConnection.HTTP_PARTIAL) {
+				throw new IOException("unexpected status " + statusCode);
+			}
+
+			partial = statusCode == HttpURLConnection.HTTP_PARTIAL;
+			mLength = partial ? response.getInstanceLength() : response.getContentLength();
+			mETag = response.getHeader("etag");
+			mLastModified = response.getHeader("last-modified");
+			mHead = read(response, HEAD_SIZE);
+		} finally {
+			// drops the connection if the server sends the whole file
+			Utils.closeHttpResponse(response);
+		}
+
+		if (partial && mLength > 0) {
+			fetchTags();
+		}
+	}
+
+	/**
+	 * Checks whether the file still has the given validators, with a
+	 * conditional HEAD request for a remote file. Nothing else is fetched.
+	 *
+	 * @param eTag The ETag the file was probed with, or null.
+	 * @param lastModified The modification time the file was probed with,
+	 * or null.
+	 * @param length The length the file was probed with, or -1. It is only
+	 * checked in addition, a file that is edited in place keeps its length.
+	 * @return true if the file is unchanged, false if it changed or there is
+	 * neither an ETag nor a modification time to tell.
+	 * @throws IOException if the server could not be asked.
+	 */
+	public boolean isUnchanged(String eTag, String lastModified, long length) throws IOException {
+		if (eTag == null && lastModified == null) {
+			return false;
+		}
+
+		if (mFile != null) {
+			return matches(eTag, lastModified, length, null,
+					String.valueOf(mFile.lastModified()), mFile.length());
+		}
+
+		HttpRequest request = new HttpRequest(mURL);
+		request.setBackground(true);
+		request.setMethod(HttpRequest.HEAD);
+
+		if (eTag != null) {
+			request.setHeader("If-None-Match", eTag);
+		}
+
+		if (lastModified != null) {
+			request.setHeader("If-Modified-Since", lastModified);
+		}
+
+		HttpResponse response = HttpConnectionPool.getInstance().execute(request);
+
+		try {
+			int statusCode = response.getStatusCode();
+
+			if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return true;
+			}
+
+			return statusCode == HttpURLConnection.HTTP_OK
+					&& matches(eTag, lastModified, length, response.getHeader("etag"),
+							response.getHeader("last-modified"), response.getContentLength());
+		} finally {
+			Utils.closeHttpResponse(response);
+		}
+	}
+
+	/**
+	 * Every validator that was known must be unchanged.
+	 */
+	private static boolean matches(String eTag, String lastModified, long length,
+			String currentETag, String currentLastModified, long currentLength) {
+		if (eTag != null && !eTag.equals(currentETag)) {
+			return false;
+		}
+
+		if (lastModified != null && !lastModified.equals(currentLastModified)) {
+			return false;
+		}
+
+		return length < 0 || length == currentLength;
+	}
+
+	/**
+	 * Extends the head to hold the ID3v2 tag and fetches the tail.
+	 */
+	private void fetchTags() throws IOException {
+		int headSize = (int) Math.min(getId3v2Size(mHead) + HEAD_SIZE, MAX_HEAD_SIZE);
+
+		if (headSize > mHead.length && mHead.length < mLength) {
+			mHead = concat(mHead, fetchRange(mHead.length,
+					(int) Math.min(headSize, mLength) - mHead.length));
+		}
+
+		long tailStart = Math.max(mHead.length, mLength - TAIL_SIZE);
+
+		if (tailStart >= mLength) {
+			return;
+		}
+
+		mTail = fetchRange(tailStart, (int) (mLength - tailStart));
+
+		int tailSize = (int) Math.min(getApeSize(mTail), MAX_TAIL_SIZE);
+
+		if (tailSize > mTail.length && mLength - mTail.length > mHead.length) {
+			tailStart = Math.max(mHead.length, mLength - tailSize);
+			mTail = concat(fetchRange(tailStart, (int) (mLength - mTail.length - tailStart)), mTail);
+		}
+	}
+
+	/**
+	 * @return the first bytes of the file.
+	 */
+	public byte [] getHead() {
+		return mHead;
+	}
+
+	/**
+	 * @return the last bytes of the file, they do not overlap the head.
+	 * Empty if the server does not support byte ranges.
+	 */
+	public byte [] getTail() {
+		return mTail;
+	}
+
+	/**
+	 * @return the length of the whole file, or -1 if it is not known.
+	 */
+	public long getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return the ETag of the file, or null.
+	 */
+	public String getETag() {
+		return mETag;
+	}
+
+	/**
+	 * @return the Last-Modified header of the file, or for a local file its
+	 * modification time, or null.
+	 */
+	public String getLastModified() {
+		return mLastModified;
+	}
+
+	/**
+	 * @return the number of body bytes read from the server or the file.
+	 */
+	public long getBytesTransferred() {
+		return mBytesTransferred;
+	}
+
+	private HttpResponse execute(long start, int count) throws IOException {
+		HttpRequest request = new HttpRequest(mURL);
+		request.setBackground(true);
+		request.setHeader("Range", "bytes=" + start + "-" + (start + count - 1));
+		return HttpConnectionPool.getInstance().execute(request);
+	}
+
+	private byte [] fetchRange(long start, int count) throws IOException {
+		if (mFile != null) {
+			return readFile(start, count);
+		}
+
+		HttpResponse response = execute(start, count);
+
+		try {
+			if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+				throw new IOException("range not satisfied: " + response.getStatusCode());
+			}
+
+			return read(response, count);
+		} finally {
+			Utils.closeHttpResponse(response);
+		}
+	}
+
+	/**
+	 * Reads up to count bytes of the body, less if it ends before.
+	 */
+	private byte [] read(HttpResponse response, int count) throws IOException {
+		InputStream in = response.getInputStream();
+		byte [] buffer = new byte[count];
+		int length = 0;
+		int read;
+
+		while (length < count && (read = in.read(buffer, length, count - length)) != -1) {
+			length += read;
+		}
+
+		mBytesTransferred += length;
+
+		if (length == count) {
+			return buffer;
+		}
+
+		byte [] bytes = new byte[length];
+		System.arraycopy(buffer, 0, bytes, 0, length);
+		return bytes;
+	}
+
+	private byte [] readFile(long start, int count) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mFile, "r");
+
+		try {
+			byte [] bytes = new byte[count];
+			file.seek(start);
+			file.readFully(bytes);
+			mBytesTransferred += count;
+			return bytes;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the size of the ID3v2 tag at the start of the head, or 0.
+	 */
+	private static long getId3v2Size(byte [] head) {
+		if (head.length < ID3V2_HEADER_SIZE
+				|| head[0] != 'I' || head[1] != 'D' || head[2] != '3') {
+			return 0;
+		}
+
+		// a synchsafe integer, 7 bits per byte
+		long size = ((head[6] & 0x7f) << 21) | ((head[7] & 0x7f) << 14)
+				| ((head[8] & 0x7f) << 7) | (head[9] & 0x7f);
+
+		// a footer follows the tag
+		if ((head[5] & 0x10) != 0) {
+			size += ID3V2_HEADER_SIZE;
+		}
+
+		return size + ID3V2_HEADER_SIZE;
+	}
+
+	/**
+	 * @return the size of the APEv2 tag and a following ID3v1 tag at the end
+	 * of the tail, or 0.
+	 */
+	private static long getApeSize(byte [] tail) {
+		int footer = tail.length - APE_FOOTER_SIZE;
+
+		if (!isApeFooter(tail, footer)) {
+			footer -= ID3V1_SIZE;
+
+			if (!isApeFooter(tail, footer)) {
+				return 0;
+			}
+		}
+
+		// the size counts the items and the footer, not the header
+		long size = (tail[footer + 12] & 0xff) | ((tail[footer + 13] & 0xff) << 8)
+				| ((tail[footer + 14] & 0xff) << 16) | ((long) (tail[footer + 15] & 0xff) << 24);
+
+		if ((tail[footer + 23] & 0x80) != 0) {
+			size += APE_FOOTER_SIZE;
+		}
+
+		return size + tail.length - footer - APE_FOOTER_SIZE;
+	}
+
+	private static boolean isApeFooter(byte [] tail, int offset) {
+		if (offset < 0) {
+			return false;
+		}
+
+		String preamble = "APETAGEX";
+
+		for (int i = 0; i < preamble.length(); i++) {
+			if (tail[offset + i] != preamble.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static byte [] concat(byte [] first, byte [] second) {
+		byte [] bytes = new byte[first.length + second.length];
+		System.arraycopy(first, 0, bytes, 0, first.length);
+		System.arraycopy(second, 0, bytes, first.length, second.length);
+		return bytes;
+	}
+}
@@ -20,13 +20,49 @@ package net.sourceforge.servestream.media;
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.service.MediaPlaybackService;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Process;
+import android.util.Log;
 
 public class MetadataRetriever {
+	private static final String TAG = MetadataRetriever.class.getName();
+	
+	/*
+	 * Every worker opens its own MediaMetadataRetriever, so the tracks are
+	 * retrieved in parallel, one per CPU core.
+	 */
+	private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+	
+	private static final ExecutorService sExecutor = Executors.newFixedThreadPool(
+			WORKERS, new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+		
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "MetadataRetriever #" + mCount.getAndIncrement());
+		}
+	});
+	
+	private static final MetadataScheduler sScheduler = new MetadataScheduler(sExecutor, WORKERS);
+	
+	private static MetadataWriter sWriter = null;
+	private static MetadataCache sCache = null;
 	
 	// This class cannot be instantiated
 	private MetadataRetriever() {
@@ -34,55 +70,191 @@ public class MetadataRetriever {
 	}
 	
 	/*
-	 * Retrieves metadata for an audio file and stores the information in the
-	 * corresponding media table row.
+	 * Retrieves metadata for a set of audio files and stores the information in the
+	 * corresponding media table rows. Tracks that are already being retrieved
+	 * are skipped.
+	 */
+	public static void retrieve(Context context, long [] list) {
+		for (int i = 0; i < list.length; i++) {
+			sScheduler.schedule(list[i], new RetrieveMetadataTask(context, list[i]));
+		}
+	}
+	
+	/*
+	 * Retrieves the current track first and the tracks that play after it
+	 * next, in this order.
 	 */
-	public static void retrieve(Context context, long id, int position) {
-		//new RetrieveMetadataAsyncTask(context, position).execute(id);
+	public static void setPlayhead(long currentId, long [] upcomingIds) {
+		sScheduler.setPlayhead(currentId, upcomingIds);
 	}
 	
 	/*
-	 * Retrieves metadata for a set of audio files and stores the information in the
-	 * corresponding media table rows.
+	 * Retrieves the tracks that are shown on the screen before the rest of
+	 * the queue.
+	 */
+	public static void setVisible(long [] ids) {
+		sScheduler.setVisible(ids);
+	}
+	
+	/*
+	 * Stops the retrieval of tracks that were removed from the queue.
+	 */
+	public static void cancel(long [] ids) {
+		sScheduler.cancel(ids);
+	}
+	
+	/*
+	 * Stops the retrieval of all tracks that did not start yet.
 	 */
-	public static void retrieve(Context context, long [] list, int position) {
-		new RetrieveMetadataAsyncTask(context, position).execute(list);
+	public static void cancelAll() {
+		sScheduler.cancelAll();
 	}
 	
-	private static class RetrieveMetadataAsyncTask extends AsyncTask<long [], Void, Boolean> {
+	private static class RetrieveMetadataTask implements MetadataScheduler.Task {
 	    
 		private Context mContext = null;
-		int mPosition = -1;
+		private long mId = -1;
+		private boolean mNotify = false;
 		
-		public RetrieveMetadataAsyncTask(Context context, int position) {
-	        super();
+		public RetrieveMetadataTask(Context context, long id) {
 	        mContext = context;
-	        mPosition = position;
+	        mId = id;
 	    }
 	    
-		@Override
-		protected Boolean doInBackground(long [] ... list) {
-			MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+		public void run(boolean current) {
+			mNotify = current;
+			
+			String uri = getUri(mContext, mId);
 			
-			for (int i = 0; i < list[0].length; i++) {
+			if (uri == null) {
+				return;
+			}
 			
-				String uri = getUri(mContext, list[0][i]);
+			MetadataProbe probe = null;
 			
-				if (uri != null) {
-					mmr.setDataSource(uri.toString());
+			if (uri.startsWith("http://") || uri.startsWith("https://")) {
+				try {
+					probe = new MetadataProbe(new URL(uri));
+				} catch (IOException e) {
+					Log.v(TAG, "invalid uri " + uri);
+					return;
+				}
+			} else if (uri.startsWith("file://")) {
+				probe = new MetadataProbe(new File(uri.substring("file://".length())));
+			}
+			
+			MetadataCache.Entry metadata = probe != null ? getCached(uri, probe) : null;
+			
+			if (metadata == null) {
+				if (probe != null) {
+					try {
+						// only the parts of the file that hold the tags
+						probe.fetch();
+					} catch (IOException e) {
+						Log.v(TAG, "could not probe " + uri + ": " + e.getMessage());
+						return;
+					}
+					
+					Log.v(TAG, "probed " + uri + ", " + probe.getBytesTransferred() + " bytes");
+					metadata = readTags(uri, probe);
+				}
+				
+				if (metadata == null) {
+					metadata = retrieveNative(uri, probe);
+				}
 				
-					updateMetadata(mContext, list[0][i], mmr);
+				if (probe != null) {
+					metadata.mETag = probe.getETag();
+					metadata.mLastModified = probe.getLastModified();
+					metadata.mLength = probe.getLength();
+					getCache(mContext).put(uri, metadata);
+				}
+			}
+			
+			updateMetadata(mContext, mId, metadata, mNotify);
 					
-					if (i == mPosition) {
-						// send a broadcast so our activities can use the updated metadata 
-						((MediaPlaybackService) mContext).updateMetadata();
-					}
+			if (mNotify) {
+				// send a broadcast so our activities can use the updated metadata 
+				((MediaPlaybackService) mContext).updateMetadata();
+			}
+		}
+		
+		/**
+		 * @return the cached metadata of the file if it did not change since,
+		 * or null if it has to be probed.
+		 */
+		private MetadataCache.Entry getCached(String uri, MetadataProbe probe) {
+			MetadataCache.Entry entry = getCache(mContext).get(uri);
+			
+			if (entry == null) {
+				return null;
+			}
+			
+			try {
+				if (!probe.isUnchanged(entry.mETag, entry.mLastModified, entry.mLength)) {
+					Log.v(TAG, uri + " changed, probing it again");
+					return null;
+				}
+			} catch (IOException e) {
+				// offline, the cached metadata is the best we have
+				Log.v(TAG, "could not validate " + uri + ": " + e.getMessage());
+			}
+			
+			return entry;
+		}
+		
+		/**
+		 * Reads the tags in Java, which is enough for the common formats.
+		 * 
+		 * @return null if the format is not supported or the file is damaged
+		 * in a way the reader does not expect.
+		 */
+		private MetadataCache.Entry readTags(String uri, MetadataProbe probe) {
+			TagReader reader = new TagReader();
+			
+			try {
+				if (!reader.read(ByteBuffer.wrap(probe.getHead()),
+						ByteBuffer.wrap(probe.getTail()), probe.getLength())) {
+					return null;
 				}
+			} catch (RuntimeException e) {
+				// the native retriever gets a chance at it
+				Log.v(TAG, "could not read the tags of " + uri + ": " + e.getMessage());
+				return null;
 			}
 			
-			mmr.release();
+			MetadataCache.Entry metadata = new MetadataCache.Entry();
+			metadata.mTitle = reader.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+			metadata.mAlbum = reader.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+			metadata.mArtist = reader.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+			metadata.mDuration = reader.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+			metadata.mTrack = reader.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TRACK);
+			metadata.mYear = getYear(reader.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DATE));
+			metadata.mArtwork = reader.extractMetadata(TagReader.METADATA_KEY_ARTWORK);
+			return metadata;
+		}
+		
+		private MetadataCache.Entry retrieveNative(String uri, MetadataProbe probe) {
+			MediaMetadataRetriever mmr = new MediaMetadataRetriever();
 			
-    		return true;
+			try {
+				if (probe != null) {
+					mmr.setDataSource(probe.getHead(), probe.getTail(), probe.getLength());
+				} else {
+					mmr.setDataSource(uri);
+				}
+				
+				MetadataCache.Entry metadata = new MetadataCache.Entry();
+				metadata.mTitle = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+				metadata.mAlbum = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+				metadata.mArtist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+				metadata.mDuration = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+				metadata.mTrack = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TRACK);
+				metadata.mYear = getYear(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DATE));
+				return metadata;
+			} finally {
+				mmr.release();
+			}
 		}
     }
 	
@@ -112,42 +284,67 @@ public class MetadataRetriever {
 		return uri;
 	}
 	
-	private static int updateMetadata(Context context, long id, MediaMetadataRetriever mmr) {
-		int rows = 0;
-		
-		String title =  mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
-		String album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
-		String artist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
-		String duration = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-		
-		System.out.println("Duration: " + duration);
-		
+	/*
+	 * Stores the metadata of a track. The current track is written right
+	 * away, the others in batches.
+	 */
+	private static void updateMetadata(Context context, long id,
+			MetadataCache.Entry metadata, boolean now) {
 		// if we didn't obtain at least the title, album or artist then don't store
 		// the metadata since it's pretty useless
-		if (title == null && 
-				album == null && 
-				artist == null) {
-			return 0;
+		if (metadata.mTitle == null && 
+				metadata.mAlbum == null && 
+				metadata.mArtist == null) {
+			return;
 		}
 		
 		// Form an array specifying which columns to return. 
 		ContentValues values = new ContentValues();
-		values.put(Media.MediaColumns.TITLE, validateAttribute(title));
-		values.put(Media.MediaColumns.ALBUM, validateAttribute(album));
-		values.put(Media.MediaColumns.ARTIST, validateAttribute(artist));
-		values.put(Media.MediaColumns.DURATION, convertToInteger(duration));
-
-		// Get the base URI for the Media Files table in the Media content provider.
-		Uri mediaFile =  Media.MediaColumns.CONTENT_URI;
+		values.put(Media.MediaColumns.TITLE, validateAttribute(metadata.mTitle));
+		values.put(Media.MediaColumns.ALBUM, validateAttribute(metadata.mAlbum));
+		values.put(Media.MediaColumns.ARTIST, validateAttribute(metadata.mArtist));
+		values.put(Media.MediaColumns.DURATION, convertToInteger(metadata.mDuration));
+		values.put(Media.MediaColumns.TRACK, validateAttribute(metadata.mTrack));
+		values.put(Media.MediaColumns.YEAR, convertToInteger(metadata.mYear));
 
-		// Execute the update.
-		rows = context.getContentResolver().update(mediaFile, 
-				values, 
-				Media.MediaColumns._ID + "= ? ", 
-				new String [] { String.valueOf(id) } );
-	
-		// return the number of rows updated.
-		return rows;
+		if (now) {
+			getWriter(context).updateNow(id, values);
+		} else {
+			getWriter(context).update(id, values);
+		}
+	}
+	
+	private static synchronized MetadataCache getCache(Context context) {
+		if (sCache == null) {
+			sCache = new MetadataCache(context.getFilesDir());
+		}
+		
+		return sCache;
+	}
+	
+	private static synchronized MetadataWriter getWriter(Context context) {
+		if (sWriter == null) {
+			sWriter = new MetadataWriter(context.getApplicationContext());
+		}
+		
+		return sWriter;
+	}
+	
+	/*
+	 * Returns the year of a date such as "2012" or "2012-05-01", or null.
+	 */
+	private static String getYear(String date) {
+		if (date == null || date.length() < 4) {
+			return null;
+		}
+		
+		for (int i = 0; i < 4; i++) {
+			if (!Character.isDigit(date.charAt(i))) {
+				return null;
+			}
+		}
+		
+		return date.substring(0, 4);
 	}
 	
 	private static String validateAttribute(String attribute) {
@@ -0,0 +1,280 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Orders the pending metadata retrievals so that the current track is
+ * retrieved first, then the tracks that play next, then the tracks the user
+ * is looking at and then the rest of the queue in the order it was added.
+ * <p>
+ * There is at most one request per track: a track that is already pending
+ * or being retrieved is not added again. The priorities follow the playhead
+ * and the visible rows as they change, and requests of tracks that left the
+ * queue are dropped before they run.
+ */
+class MetadataScheduler {
+	private static final String TAG = MetadataScheduler.class.getName();
+
+	static final int PRIORITY_CURRENT = 0;
+	static final int PRIORITY_UPCOMING = 1;
+	static final int PRIORITY_VISIBLE = 2;
+	static final int PRIORITY_QUEUED = 3;
+
+	/**
+	 * Retrieves the metadata of one track.
+	 */
+	interface Task {
+		/**
+		 * @param current true if the track is the current one, its
+		 * metadata should then be written and shown right away.
+		 */
+		void run(boolean current);
+	}
+
+	private static class Request implements Comparable<Request> {
+		final long mId;
+		final long mSequence;
+		final Task mTask;
+		int mPriority;
+
+		Request(long id, long sequence, Task task) {
+			mId = id;
+			mSequence = sequence;
+			mTask = task;
+		}
+
+		public int compareTo(Request another) {
+			if (mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+
+			if (mSequence != another.mSequence) {
+				return mSequence < another.mSequence ? -1 : 1;
+			}
+
+			return 0;
+		}
+	}
+
+	private final Executor mExecutor;
+	private final int mMaxWorkers;
+
+	// all guarded by this
+	private final HashMap<Long, Request> mPending = new HashMap<Long, Request>();
+	private final TreeSet<Request> mQueue = new TreeSet<Request>();
+	private final HashSet<Long> mRunning = new HashSet<Long>();
+	private long mCurrentId = -1;
+	private HashSet<Long> mUpcoming = new HashSet<Long>();
+	private HashSet<Long> mVisible = new HashSet<Long>();
+	private long mSequence = 0;
+	private int mWorkers = 0;
+
+	private final Runnable mWorker = new Runnable() {
+		public void run() {
+			boolean done = false;
+
+			try {
+				Request request;
+
+				while ((request = take()) != null) {
+					try {
+						request.mTask.run(isCurrent(request.mId));
+					} catch (RuntimeException e) {
+						// a file the retriever fails on must not stop the worker
+						Log.v(TAG, "could not retrieve " + request.mId + ": " + e.getMessage());
+					} finally {
+						synchronized (MetadataScheduler.this) {
+							mRunning.remove(request.mId);
+						}
+					}
+				}
+
+				done = true;
+			} finally {
+				if (!done) {
+					// an Error ends this worker, another one takes its place
+					workerDied();
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param executor Runs the workers.
+	 * @param maxWorkers The number of tracks that are retrieved at once.
+	 */
+	MetadataScheduler(Executor executor, int maxWorkers) {
+		mExecutor = executor;
+		mMaxWorkers = maxWorkers;
+	}
+
+	/**
+	 * Adds a request for a track unless one is already pending or running.
+	 */
+	synchronized void schedule(long id, Task task) {
+		if (mPending.containsKey(id) || mRunning.contains(id)) {
+			return;
+		}
+
+		Request request = new Request(id, mSequence++, task);
+		request.mPriority = priorityOf(id);
+		mPending.put(id, request);
+		mQueue.add(request);
+
+		while (mWorkers < mMaxWorkers && mWorkers < mQueue.size()) {
+			mWorkers++;
+			mExecutor.execute(mWorker);
+		}
+	}
+
+	/**
+	 * Moves the current track and the ones that play after it to the front.
+	 *
+	 * @param currentId The id of the current track, or -1.
+	 * @param upcomingIds The ids of the tracks that play next.
+	 */
+	synchronized void setPlayhead(long currentId, long [] upcomingIds) {
+		long previousId = mCurrentId;
+		HashSet<Long> previous = mUpcoming;
+
+		mCurrentId = currentId;
+		mUpcoming = toSet(upcomingIds);
+
+		reprioritize(previousId);
+		reprioritize(currentId);
+		reprioritize(previous);
+		reprioritize(mUpcoming);
+	}
+
+	/**
+	 * Moves the tracks shown on the screen ahead of the rest of the queue.
+	 */
+	synchronized void setVisible(long [] ids) {
+		HashSet<Long> previous = mVisible;
+
+		mVisible = toSet(ids);
+
+		reprioritize(previous);
+		reprioritize(mVisible);
+	}
+
+	/**
+	 * Drops the pending requests of tracks, e.g. ones that were removed from
+	 * the queue. A request that already runs is completed.
+	 */
+	synchronized void cancel(long [] ids) {
+		for (int i = 0; i < ids.length; i++) {
+			Request request = mPending.remove(ids[i]);
+
+			if (request != null) {
+				mQueue.remove(request);
+			}
+		}
+	}
+
+	/**
+	 * Drops all pending requests, e.g. when the queue is replaced.
+	 */
+	synchronized void cancelAll() {
+		mPending.clear();
+		mQueue.clear();
+	}
+
+	private synchronized Request take() {
+		if (mQueue.isEmpty()) {
+			mWorkers--;
+			return null;
+		}
+
+		Request request = mQueue.first();
+		mQueue.remove(request);
+		mPending.remove(request.mId);
+		mRunning.add(request.mId);
+		return request;
+	}
+
+	private synchronized void workerDied() {
+		mWorkers--;
+
+		if (!mQueue.isEmpty()) {
+			mWorkers++;
+			mExecutor.execute(mWorker);
+		}
+	}
+
+	private synchronized boolean isCurrent(long id) {
+		return id == mCurrentId;
+	}
+
+	private int priorityOf(long id) {
+		if (id == mCurrentId) {
+			return PRIORITY_CURRENT;
+		} else if (mUpcoming.contains(id)) {
+			return PRIORITY_UPCOMING;
+		} else if (mVisible.contains(id)) {
+			return PRIORITY_VISIBLE;
+		}
+
+		return PRIORITY_QUEUED;
+	}
+
+	private void reprioritize(HashSet<Long> ids) {
+		for (Long id : ids) {
+			reprioritize(id);
+		}
+	}
+
+	/**
+	 * Moves a pending request to the place its priority asks for now. It
+	 * keeps its sequence, so a track that is no longer boosted goes back to
+	 * where it was added.
+	 */
+	private void reprioritize(long id) {
+		Request request = mPending.get(id);
+
+		if (request == null) {
+			return;
+		}
+
+		int priority = priorityOf(id);
+
+		if (priority != request.mPriority) {
+			// the order of the set depends on the priority
+			mQueue.remove(request);
+			request.mPriority = priority;
+			mQueue.add(request);
+		}
+	}
+
+	private static HashSet<Long> toSet(long [] ids) {
+		HashSet<Long> set = new HashSet<Long>();
+
+		for (int i = 0; i < ids.length; i++) {
+			set.add(ids[i]);
+		}
+
+		return set;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.util.ArrayList;
+
+import net.sourceforge.servestream.provider.Media;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Collects the metadata of retrieved tracks and writes it to the media
+ * provider in batches, each in one transaction with a single change
+ * notification, so that tagging a large queue does not requery every
+ * observing cursor once per track. A batch is written once it is full or a
+ * short while after its first update, whichever comes first.
+ */
+class MetadataWriter {
+	private static final String TAG = MetadataWriter.class.getName();
+
+	private static final int BATCH_SIZE = 50;
+	private static final long FLUSH_DELAY = 1000;
+
+	private final ContentResolver mResolver;
+	private final Handler mHandler;
+
+	// guarded by this
+	private ArrayList<ContentProviderOperation> mPending = new ArrayList<ContentProviderOperation>();
+
+	private final Runnable mFlusher = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	MetadataWriter(Context context) {
+		mResolver = context.getContentResolver();
+
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Queues an update of a row for the next batch.
+	 */
+	void update(long id, ContentValues values) {
+		synchronized (this) {
+			mPending.add(newUpdate(id, values));
+
+			if (mPending.size() >= BATCH_SIZE) {
+				mHandler.removeCallbacks(mFlusher);
+				mHandler.post(mFlusher);
+			} else if (mPending.size() == 1) {
+				mHandler.postDelayed(mFlusher, FLUSH_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Writes an update of a row, e.g. of the current track, together with
+	 * the pending ones before returning.
+	 */
+	void updateNow(long id, ContentValues values) {
+		synchronized (this) {
+			mPending.add(newUpdate(id, values));
+		}
+
+		flush();
+	}
+
+	/**
+	 * Writes the pending updates on the calling thread.
+	 */
+	void flush() {
+		ArrayList<ContentProviderOperation> operations;
+
+		synchronized (this) {
+			mHandler.removeCallbacks(mFlusher);
+
+			if (mPending.isEmpty()) {
+				return;
+			}
+
+			operations = mPending;
+			mPending = new ArrayList<ContentProviderOperation>();
+		}
+
+		try {
+			mResolver.applyBatch(Media.AUTHORITY, operations);
+		} catch (RemoteException e) {
+			Log.v(TAG, "could not write " + operations.size() + " updates: " + e.getMessage());
+		} catch (OperationApplicationException e) {
+			Log.v(TAG, "could not write " + operations.size() + " updates: " + e.getMessage());
+		}
+	}
+
+	private static ContentProviderOperation newUpdate(long id, ContentValues values) {
+		return ContentProviderOperation.newUpdate(
+				ContentUris.withAppendedId(Media.MediaColumns.CONTENT_URI, id))
+				.withValues(values)
+				.build();
+	}
+}
@@ -23,17 +23,8 @@
 package net.sourceforge.servestream.media;
 
 import java.io.InputStream;
-import java.net.Authenticator;
-import java.net.HttpURLConnection;
-import java.net.PasswordAuthentication;
-import java.net.URL;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.net.ssl.HttpsURLConnection;
 
 import android.content.BroadcastReceiver;
 import android.content.ContentValues;
@@ -45,6 +36,9 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
 import net.sourceforge.servestream.transport.TransportFactory;
 import net.sourceforge.servestream.bean.UriBean;
 import net.sourceforge.servestream.provider.Media;
@@ -58,18 +52,21 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
 	
 	private static final String ARTIST = "artist";
 	private static final String TITLE = "title";  
-	private static final String STREAM_TITLE = "StreamTitle";
-	private static final String STREAM_TITLE_REPLAY = "StreamTitleReplay";
 	
 	private final MediaPlaybackService mMediaPlaybackService;
 	private boolean mRetrieveSHOUTcastMetadata;
-    private Map<String, String> mMetadata = null;
+    // guarded by itself, it is written by the poller and the playback stream
+    private final Map<String, String> mMetadata;
+    private String mStreamTitle = null;
     
     private long mId = -1;
+    private long mInBandId = -1;
 	private UriBean mUri = null;
 	private boolean mContainsMetadata = false;	
 	
 	private PollingAsyncTask mPollingAsyncTask = null;
+	private final IcyMetadataParser mPollingParser = new IcyMetadataParser();
+	private final IcyMetadataParser mInBandParser = new IcyMetadataParser();
 	
 	private Object[] mLock = new Object[0];
 	
@@ -147,6 +144,13 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
 		
 		if (uriBean != null) {
 			mUri = uriBean;
+			
+			if (mId != id) {
+				synchronized (mMetadata) {
+					mStreamTitle = null;
+				}
+			}
+			
 			mId = id;
 		}
 	}
@@ -154,168 +158,90 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
     /**
      * Establishes a connection to the specified Url and, if available, obtains and
      * parses the SHOUTcast metadata returned.
+     * 
+     * @return true if the stream title changed.
      */
-    private void retrieveMetadata() {
-    	URL url = null;
+    private boolean retrieveMetadata() {
     	int metaDataOffset = 0;
-    	HttpURLConnection conn = null;
+    	HttpResponse response = null;
     	InputStream stream = null;
-    	int bytesRead = 0;
     	mContainsMetadata = false;
 	  
     	if (mUri == null) {
-    		return;
+    		return false;
     	}
     	
     	try {
-        	final String username = mUri.getUsername();
-        	final String password = mUri.getPassword();
-        		
-        	if (username != null && password != null) {
-        		Authenticator.setDefault(new Authenticator() {
-        			protected PasswordAuthentication getPasswordAuthentication() {
-        				return new PasswordAuthentication(username, password.toCharArray()); 
-        			};
-        		});
-            	
-        		url = mUri.getScrubbedURL();
-        	} else {
-        		url = mUri.getURL();
-        	}
-    	
-    		if (url.getProtocol().equalsIgnoreCase("http")) {
-    			conn = (HttpURLConnection) url.openConnection();
-    		} else if (url.getProtocol().equalsIgnoreCase("https")) {
-    			conn = (HttpsURLConnection) url.openConnection();        		
+    		HttpRequest request = new HttpRequest(mUri.getScrubbedURL());
+    		
+    		if (mUri.getUsername() != null && mUri.getPassword() != null) {
+    			request.setCredentials(mUri.getUsername(), mUri.getPassword());
     		}
-    	
-    		conn.setRequestProperty("User-Agent", "ServeStream");
-    	    conn.setRequestProperty("Icy-MetaData", "1");
-    	    conn.setRequestProperty("Connection", "close");
-    	    conn.setRequestProperty("Accept", null);
-    		conn.setConnectTimeout(6000);
-    		conn.setReadTimeout(6000);
-    	    conn.connect();
-		
-    	    Map<String, List<String>> headers = conn.getHeaderFields();
-    	    stream = conn.getInputStream();
-
-    	    if (headers.containsKey("icy-metaint")) {
-    	    	metaDataOffset = Integer.parseInt(headers.get("icy-metaint").get(0));
-    	    } else {
-    	    	StringBuffer strHeaders = new StringBuffer();
-    	    	char c;
-    	    	while ((c = (char)stream.read()) != -1) {
-    	    		bytesRead++;
-    	    		strHeaders.append(c);
-    	    		if ((strHeaders.length() > 5 && (strHeaders.substring((strHeaders.length() - 4), strHeaders.length()).equals("\r\n\r\n")) || bytesRead > 200)) {
-    	    			// end of headers
-    	    			break;
-    	    		}
-    		    }
+    		
+    	    request.setHeader("Icy-MetaData", "1");
+    	    response = HttpConnectionPool.getInstance().execute(request);
+    	    stream = response.getInputStream();
 
-    		    // Match headers to get metadata offset within a stream
-    		    Pattern p = Pattern.compile("\\r\\n(icy-metaint):\\s*(.*)\\r\\n");
-    		    Matcher m = p.matcher(strHeaders.toString());
-    		    if (m.find()) {
-    		    	metaDataOffset = Integer.parseInt(m.group(2));
-    		    }
+    	    String metaInt = response.getHeader("icy-metaint");
+    	    
+    	    if (metaInt != null) {
+    	    	metaDataOffset = Integer.parseInt(metaInt.trim());
     	    }
 
     	    // In case no data was sent
     	    if (metaDataOffset == 0) {
-			    return;
+			    return false;
     	    }
 
-		    // Read metadata
-		    int b;
-		    int count = 0;
-		    int metaDataLength = 4080; // 4080 is the max length
-		    boolean inData = false;
-		    StringBuilder metaData = new StringBuilder();
-		    // Stream position should be either at the beginning or right after headers
-		    // Read the data stream as you normally would, keeping a byte count as you go. 
-		    // When the number of bytes equals the metadata interval, you will get a metadata 
-		    // block. The first part of the block is a length specifier, which is the next 
-		    // byte in the stream. This byte will equal the metadata length / 16. Multiply by 16
-		    // to get the actual metadata length. (Max byte size = 255 so metadata max length = 4080.)
-		    // Now read that many bytes and you will have a string containing the metadata. Restart your
-		    // byte count, and repeat. Success!
-		    while ((b = stream.read()) != -1) {
-		    	count++;
-
-			    // Length of the metadata
-			    if (count == metaDataOffset + 1) {
-			    	metaDataLength = b * 16;
-			    }
-
-			    if (count > metaDataOffset + 1 && count < (metaDataOffset + metaDataLength)) { 				
-			    	inData = true;
-			    } else { 				
-			    	inData = false; 			
-			    } 	 			
-			    if (inData) { 				
-			    	if (b != 0) { 					
-			    		metaData.append((char)b); 				
-				    } 			
-			    } 	 			
-			    if (count > (metaDataOffset + metaDataLength)) {
-			    	break;
-			    }
-
+		    synchronized (mPollingParser) {
+		    	if (mPollingParser.readMetadata(stream, metaDataOffset)) {
+		    		return setStreamTitle(mPollingParser.getStreamTitle());
+		    	}
 		    }
-
-		    // parse the returned metadata
-		    parseMetadata(metaData.toString());
         } catch (Exception ex) {
         	ex.printStackTrace();
         } finally {
 			Utils.closeInputStream(stream);
-		    Utils.closeHttpConnection(conn);
+		    Utils.closeHttpResponse(response);
         }
+    	
+    	return false;
     }
 
     /**
-     * Parses a string of SHOUTcast metadata.
+     * Stores the artist and title contained in a SHOUTcast stream title.
      * 
-     * @param metaString The metadata to parse.
+     * @param streamTitle The stream title to split up.
+     * @return true if the stream title differs from the one stored before.
      */
-	private void parseMetadata(String metadataString) {		
-		String streamTitle = null;
-		Map<String, String> metadata = new HashMap<String, String>();
-		String[] metaParts = metadataString.split(";");
-		Pattern p = Pattern.compile("^([a-zA-Z]+)=\\'([^\\']*)\\'$");
-		Matcher m;
-		
-		for (int i = 0; i < metaParts.length; i++) {
-			m = p.matcher(metaParts[i]);
-			if (m.find()) {
-				metadata.put((String)m.group(1), (String)m.group(2));				
-			}
+	private boolean setStreamTitle(String streamTitle) {
+		if (streamTitle == null) {
+			return false;
 		}
-
-		streamTitle = metadata.get(STREAM_TITLE);
 		
-		if (streamTitle == null || streamTitle.trim().equals("")) {
-			streamTitle = metadata.get(STREAM_TITLE_REPLAY);
-			
-			if (streamTitle == null || streamTitle.trim().equals("")) {
-				return;
-			}	
-		}
+		mContainsMetadata = true;
 		
-		// check if the stream title contain a "-" character. This is usually done
-		// to indicate "artist - title". If not, don't try to parse up the string
-		// just store it
-		if (streamTitle.indexOf("-") != -1) {
-			add(ARTIST, streamTitle.substring(0, streamTitle.indexOf("-")).trim());
-			add(TITLE, streamTitle.substring(streamTitle.indexOf("-") + 1).trim());
-		} else {
-			add(ARTIST, streamTitle.trim());
-			add(TITLE, "");
+		synchronized (mMetadata) {
+			// most stations repeat the title in every block
+			if (streamTitle.equals(mStreamTitle)) {
+				return false;
+			}
+			
+			mStreamTitle = streamTitle;
+			
+			// check if the stream title contain a "-" character. This is usually done
+			// to indicate "artist - title". If not, don't try to parse up the string
+			// just store it
+			if (streamTitle.indexOf("-") != -1) {
+				add(ARTIST, streamTitle.substring(0, streamTitle.indexOf("-")).trim());
+				add(TITLE, streamTitle.substring(streamTitle.indexOf("-") + 1).trim());
+			} else {
+				add(ARTIST, streamTitle.trim());
+				add(TITLE, "");
+			}
 		}
 		
-		mContainsMetadata = true;
+		return true;
 	}
 	
     /**
@@ -354,6 +280,13 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
     		cancel();
     	}
     	
+    	// the metadata is demuxed from the playback stream, there is no need
+    	// to open a second connection
+    	if (mId == mInBandId) {
+    		Log.v(TAG, "Not starting thread because metadata is read in-band");
+    		return;
+    	}
+    	
     	mPollingAsyncTask = new PollingAsyncTask();
     	mPollingAsyncTask.execute();
     }
@@ -385,6 +318,70 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
 		}
 	}
     
+	/**
+	 * Marks the playback stream of a track as carrying ICY metadata that is
+	 * read by the application itself (see {@link IcyInputStream}). Polling is
+	 * stopped for that track and titles are delivered through
+	 * {@link #onInBandMetadata(long, byte[], int, int)} instead.
+	 * 
+	 * @param id The id of the track being streamed.
+	 */
+	public void setInBandSource(long id) {
+		synchronized (mLock) {
+			mInBandId = id;
+			
+			if (mId == id) {
+				cancel();
+			}
+		}
+	}
+	
+	/**
+	 * Called when the in-band playback stream of a track is closed.
+	 * 
+	 * @param id The id of the track that was being streamed.
+	 */
+	public void clearInBandSource(long id) {
+		synchronized (mLock) {
+			if (mInBandId == id) {
+				mInBandId = -1;
+			}
+		}
+	}
+	
+	/**
+	 * Parses a metadata block demuxed from the playback stream and updates the
+	 * track right away.
+	 * 
+	 * @param id The id of the track the block belongs to.
+	 * @param buffer The raw metadata block.
+	 * @param offset The offset of the block in buffer.
+	 * @param length The length of the block.
+	 */
+	public void onInBandMetadata(long id, byte [] buffer, int offset, int length) {
+		boolean changed = false;
+		
+		synchronized (mLock) {
+			if (!mRetrieveSHOUTcastMetadata || id != mInBandId) {
+				return;
+			}
+			
+			if (mInBandParser.parse(buffer, offset, length)) {
+				changed = setStreamTitle(mInBandParser.getStreamTitle());
+			}
+		}
+		
+		if (!changed) {
+			return;
+		}
+		
+		updateMetadata(id);
+		
+		if (id == mMediaPlaybackService.getAudioId()) {
+			mMediaPlaybackService.updateMetadata();
+		}
+	}
+	
 	/**
 	 * Cancels any running polling task and unregisters the receiver.
 	 */
@@ -407,17 +404,19 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
 			Log.v(TAG, "Starting polling thread");
 			try {
 				while (retries < 2 && !isCancelled()) {
-					retrieveMetadata();
+					boolean changed = retrieveMetadata();
 					metadataFound = mContainsMetadata;
 					retries++;
 					
 					if (metadataFound) {
 						retries = 0;
-						updateMetadata();
-
+						
 						Log.v(TAG, "Metadata found");
 						
-						mMediaPlaybackService.updateMetadata();
+						if (changed) {
+							updateMetadata(mId);
+							mMediaPlaybackService.updateMetadata();
+						}
 					} else {
 						Log.v(TAG, "Metadata not found");
 					}
@@ -461,13 +460,16 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
 		return uri;
 	}
     
-	private int updateMetadata() {
+	private int updateMetadata(long id) {
 		int rows = 0;
 		
 		// Form an array specifying which columns to return. 
 		ContentValues values = new ContentValues();
-		values.put(Media.MediaColumns.ARTIST, get(ARTIST));
-		values.put(Media.MediaColumns.TITLE, get(TITLE));
+		
+		synchronized (mMetadata) {
+			values.put(Media.MediaColumns.ARTIST, get(ARTIST));
+			values.put(Media.MediaColumns.TITLE, get(TITLE));
+		}
 
 		// Get the base URI for the Media Files table in the Media content provider.
 		Uri mediaFile =  Media.MediaColumns.CONTENT_URI;
@@ -476,7 +478,7 @@ public class SHOUTcastMetadata extends BroadcastReceiver {
 		rows = mMediaPlaybackService.getContentResolver().update(mediaFile, 
 				values, 
 				Media.MediaColumns._ID + "= ? ", 
-				new String [] { String.valueOf(mId) } );
+				new String [] { String.valueOf(id) } );
 	
 		// return the number of rows updated.
 		return rows;
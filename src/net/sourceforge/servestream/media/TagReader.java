@@ -0,0 +1,970 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the tags and the duration of a track from the head and the tail of
+ * its file, as fetched by {@link MetadataProbe}, without going through the
+ * native demuxer. Supported are ID3v1 and ID3v2.2 to 2.4 tags on MP3 files,
+ * the Vorbis comments of FLAC and Ogg Vorbis or Opus files and the ilst
+ * atoms of MP4 files. Anything else is left to
+ * {@link MediaMetadataRetriever}.
+ * <p>
+ * The values are returned under the METADATA_KEY constants of
+ * {@link MediaMetadataRetriever}, the duration in milliseconds. An instance
+ * is not thread safe.
+ */
+public class TagReader {
+
+	/**
+	 * The size and the CRC32 of the embedded picture, which tells whether
+	 * the cover art changed without keeping the picture.
+	 */
+	public static final String METADATA_KEY_ARTWORK = "artwork";
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_16 = Charset.forName("UTF-16");
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int ID3V1_SIZE = 128;
+	private static final int ID3V2_HEADER_SIZE = 10;
+
+	// how far after the ID3v2 tag the first MP3 frame is looked for
+	private static final int MAX_SYNC_SEARCH = 4096;
+
+	private static final int [][] MP3_BITRATES = {
+		// MPEG 1, layer I, II and III
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+		// MPEG 2 and 2.5, layer I, II and III
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }
+	};
+
+	private static final int [][] MP3_SAMPLE_RATES = {
+		{ 11025, 12000, 8000 }, // MPEG 2.5
+		{ 0, 0, 0 },
+		{ 22050, 24000, 16000 }, // MPEG 2
+		{ 44100, 48000, 32000 } // MPEG 1
+	};
+
+	private static final Map<String, String> ID3V2_FRAMES = new HashMap<String, String>();
+	private static final Map<String, String> VORBIS_FIELDS = new HashMap<String, String>();
+	private static final Map<Integer, String> MP4_ATOMS = new HashMap<Integer, String>();
+
+	static {
+		String [][] id3v2Frames = {
+			{ "TT2", "TIT2", MediaMetadataRetriever.METADATA_KEY_TITLE },
+			{ "TP1", "TPE1", MediaMetadataRetriever.METADATA_KEY_ARTIST },
+			{ "TAL", "TALB", MediaMetadataRetriever.METADATA_KEY_ALBUM },
+			{ "TP2", "TPE2", MediaMetadataRetriever.METADATA_KEY_ALBUM_ARTIST },
+			{ "TCM", "TCOM", MediaMetadataRetriever.METADATA_KEY_COMPOSER },
+			{ "TCO", "TCON", MediaMetadataRetriever.METADATA_KEY_GENRE },
+			{ "TRK", "TRCK", MediaMetadataRetriever.METADATA_KEY_TRACK },
+			{ "TPA", "TPOS", MediaMetadataRetriever.METADATA_KEY_DISC },
+			{ "TYE", "TYER", MediaMetadataRetriever.METADATA_KEY_DATE },
+			{ null, "TDRC", MediaMetadataRetriever.METADATA_KEY_DATE },
+			{ "TLE", "TLEN", MediaMetadataRetriever.METADATA_KEY_DURATION }
+		};
+
+		for (int i = 0; i < id3v2Frames.length; i++) {
+			if (id3v2Frames[i][0] != null) {
+				ID3V2_FRAMES.put(id3v2Frames[i][0], id3v2Frames[i][2]);
+			}
+
+			ID3V2_FRAMES.put(id3v2Frames[i][1], id3v2Frames[i][2]);
+		}
+
+		VORBIS_FIELDS.put("TITLE", MediaMetadataRetriever.METADATA_KEY_TITLE);
+		VORBIS_FIELDS.put("ARTIST", MediaMetadataRetriever.METADATA_KEY_ARTIST);
+		VORBIS_FIELDS.put("ALBUM", MediaMetadataRetriever.METADATA_KEY_ALBUM);
+		VORBIS_FIELDS.put("ALBUMARTIST", MediaMetadataRetriever.METADATA_KEY_ALBUM_ARTIST);
+		VORBIS_FIELDS.put("ALBUM ARTIST", MediaMetadataRetriever.METADATA_KEY_ALBUM_ARTIST);
+		VORBIS_FIELDS.put("COMPOSER", MediaMetadataRetriever.METADATA_KEY_COMPOSER);
+		VORBIS_FIELDS.put("GENRE", MediaMetadataRetriever.METADATA_KEY_GENRE);
+		VORBIS_FIELDS.put("TRACKNUMBER", MediaMetadataRetriever.METADATA_KEY_TRACK);
+		VORBIS_FIELDS.put("DISCNUMBER", MediaMetadataRetriever.METADATA_KEY_DISC);
+		VORBIS_FIELDS.put("DATE", MediaMetadataRetriever.METADATA_KEY_DATE);
+
+		MP4_ATOMS.put(fourcc("\u00a9nam"), MediaMetadataRetriever.METADATA_KEY_TITLE);
+		MP4_ATOMS.put(fourcc("\u00a9ART"), MediaMetadataRetriever.METADATA_KEY_ARTIST);
+		MP4_ATOMS.put(fourcc("\u00a9alb"), MediaMetadataRetriever.METADATA_KEY_ALBUM);
+		MP4_ATOMS.put(fourcc("aART"), MediaMetadataRetriever.METADATA_KEY_ALBUM_ARTIST);
+		MP4_ATOMS.put(fourcc("\u00a9wrt"), MediaMetadataRetriever.METADATA_KEY_COMPOSER);
+		MP4_ATOMS.put(fourcc("\u00a9gen"), MediaMetadataRetriever.METADATA_KEY_GENRE);
+		MP4_ATOMS.put(fourcc("trkn"), MediaMetadataRetriever.METADATA_KEY_TRACK);
+		MP4_ATOMS.put(fourcc("disk"), MediaMetadataRetriever.METADATA_KEY_DISC);
+		MP4_ATOMS.put(fourcc("\u00a9day"), MediaMetadataRetriever.METADATA_KEY_DATE);
+	}
+
+	private static final int ATOM_MOOV = fourcc("moov");
+	private static final int ATOM_MVHD = fourcc("mvhd");
+	private static final int ATOM_UDTA = fourcc("udta");
+	private static final int ATOM_META = fourcc("meta");
+	private static final int ATOM_HDLR = fourcc("hdlr");
+	private static final int ATOM_ILST = fourcc("ilst");
+	private static final int ATOM_DATA = fourcc("data");
+	private static final int ATOM_TRKN = fourcc("trkn");
+	private static final int ATOM_DISK = fourcc("disk");
+	private static final int ATOM_COVR = fourcc("covr");
+
+	private static final int FLAC_PICTURE = 6;
+
+	private final Map<String, String> mMetadata = new HashMap<String, String>();
+
+	private ByteBuffer mHead;
+	private ByteBuffer mTail;
+	private long mLength;
+
+	// the offset of the tail in the file, valid if the tail is not empty
+	private long mTailStart;
+
+	/**
+	 * Reads the tags of a file.
+	 *
+	 * @param head The first bytes of the file, from its position to its limit.
+	 * @param tail The last bytes of the file, they must not overlap the head.
+	 * May be empty.
+	 * @param length The length of the whole file, or -1 if it is not known.
+	 * @return true if the file is in a supported format, even if it has no
+	 * tags, false if it has to be left to {@link MediaMetadataRetriever}.
+	 */
+	public boolean read(ByteBuffer head, ByteBuffer tail, long length) {
+		mMetadata.clear();
+		mHead = head.slice();
+		mLength = length;
+		mTail = length > 0 ? tail.slice() : ByteBuffer.allocate(0);
+		mTailStart = length - mTail.limit();
+
+		if (mHead.limit() == length) {
+			// the head is the whole file
+			mTail = ByteBuffer.allocate(0);
+			mTailStart = length;
+		}
+
+		int audioStart = 0;
+
+		if (startsWith(mHead, 0, "ID3")) {
+			audioStart = readId3v2();
+		}
+
+		boolean supported;
+
+		if (startsWith(mHead, audioStart, "fLaC")) {
+			supported = readFlac(audioStart + 4);
+		} else if (startsWith(mHead, 0, "OggS")) {
+			supported = readOgg();
+		} else if (startsWith(mHead, 4, "ftyp")) {
+			supported = readMp4();
+		} else {
+			supported = readMp3(audioStart);
+		}
+
+		if (supported) {
+			readId3v1();
+		}
+
+		return supported;
+	}
+
+	/**
+	 * @param key One of the METADATA_KEY constants of
+	 * {@link MediaMetadataRetriever}.
+	 * @return the value read by the last call to
+	 * {@link #read(ByteBuffer, ByteBuffer, long)}, or null.
+	 */
+	public String extractMetadata(String key) {
+		return mMetadata.get(key);
+	}
+
+	private void put(String key, String value) {
+		if (key == null || value == null || mMetadata.containsKey(key)) {
+			return;
+		}
+
+		value = value.trim();
+
+		if (value.length() > 0) {
+			mMetadata.put(key, value);
+		}
+	}
+
+	/**
+	 * Keeps the fingerprint of the first picture found.
+	 */
+	private void putArtwork(ByteBuffer buffer, int offset, int length) {
+		if (length <= 0 || mMetadata.containsKey(METADATA_KEY_ARTWORK)) {
+			return;
+		}
+
+		CRC32 crc = new CRC32();
+
+		if (buffer.hasArray()) {
+			crc.update(buffer.array(), buffer.arrayOffset() + offset, length);
+		} else {
+			byte [] bytes = new byte[length];
+			ByteBuffer picture = buffer.duplicate();
+			picture.position(offset);
+			picture.get(bytes);
+			crc.update(bytes);
+		}
+
+		mMetadata.put(METADATA_KEY_ARTWORK, length + ":" + Long.toHexString(crc.getValue()));
+	}
+
+	/*
+	 * ID3v1 and ID3v2
+	 */
+
+	/**
+	 * @return the offset of the first byte after the tag, it may lie beyond
+	 * the head.
+	 */
+	private int readId3v2() {
+		if (mHead.limit() < ID3V2_HEADER_SIZE) {
+			return 0;
+		}
+
+		int version = mHead.get(3) & 0xff;
+		int flags = mHead.get(5) & 0xff;
+		int end = ID3V2_HEADER_SIZE + synchsafe(mHead, 6);
+		int size = (flags & 0x10) != 0 ? end + ID3V2_HEADER_SIZE : end;
+
+		if (version < 2 || version > 4) {
+			return size;
+		}
+
+		byte [] tag = new byte[Math.max(0, Math.min(end, mHead.limit()) - ID3V2_HEADER_SIZE)];
+		ByteBuffer buffer = mHead.duplicate();
+		buffer.position(ID3V2_HEADER_SIZE);
+		buffer.get(tag);
+
+		int length = tag.length;
+
+		if (version < 4 && (flags & 0x80) != 0) {
+			length = removeUnsynchronisation(tag, 0, length);
+		}
+
+		ByteBuffer frames = ByteBuffer.wrap(tag, 0, length);
+		int position = 0;
+
+		if (version > 2 && (flags & 0x40) != 0 && length >= 4) {
+			// skip the extended header, in 2.3 its size does not count itself,
+			// a size past the tag must not wrap around
+			long extendedSize = version == 3 ? (frames.getInt(0) & 0xffffffffL) + 4 : synchsafe(frames, 0);
+
+			if (extendedSize > length) {
+				return size;
+			}
+
+			position = (int) extendedSize;
+		}
+
+		int headerSize = version == 2 ? 6 : 10;
+
+		while (position >= 0 && position + headerSize <= length) {
+			if (tag[position] == 0) {
+				// padding
+				break;
+			}
+
+			String id = decode(tag, position, version == 2 ? 3 : 4, ISO_8859_1);
+			int frameSize;
+			int frameFlags = 0;
+
+			if (version == 2) {
+				frameSize = ((tag[position + 3] & 0xff) << 16) | ((tag[position + 4] & 0xff) << 8)
+						| (tag[position + 5] & 0xff);
+			} else {
+				frameSize = version == 3 ? frames.getInt(position + 4) : synchsafe(frames, position + 4);
+				frameFlags = frames.getShort(position + 8) & 0xffff;
+			}
+
+			int start = position + headerSize;
+
+			if (frameSize <= 0 || frameSize > length - start) {
+				// the rest of the tag was not fetched
+				break;
+			}
+
+			String key = ID3V2_FRAMES.get(id);
+			boolean picture = id.equals("APIC") || id.equals("PIC");
+
+			if ((key != null || picture) && !isCompressedOrEncrypted(version, frameFlags)) {
+				int frameLength = frameSize;
+				byte [] data = tag;
+				int offset = start;
+
+				if (version == 4 && (frameFlags & 0x0002) != 0) {
+					data = new byte[frameSize];
+					System.arraycopy(tag, start, data, 0, frameSize);
+					offset = 0;
+					frameLength = removeUnsynchronisation(data, 0, frameSize);
+				}
+
+				if (version == 4 && (frameFlags & 0x0001) != 0) {
+					// a data length indicator
+					offset += 4;
+					frameLength -= 4;
+				}
+
+				if (picture) {
+					putArtwork(ByteBuffer.wrap(data), offset, frameLength);
+				} else {
+					put(key, decodeText(data, offset, frameLength));
+				}
+			}
+
+			position = start + frameSize;
+		}
+
+		return size;
+	}
+
+	private static boolean isCompressedOrEncrypted(int version, int flags) {
+		if (version == 3) {
+			return (flags & 0x00c0) != 0;
+		} else if (version == 4) {
+			return (flags & 0x000c) != 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Replaces every 0xff 0x00 with 0xff.
+	 *
+	 * @return the new length.
+	 */
+	private static int removeUnsynchronisation(byte [] data, int offset, int length) {
+		int to = offset;
+
+		for (int from = offset; from < offset + length; from++) {
+			data[to++] = data[from];
+
+			if (data[from] == (byte) 0xff && from + 1 < offset + length && data[from + 1] == 0) {
+				from++;
+			}
+		}
+
+		return to - offset;
+	}
+
+	/**
+	 * Decodes a text frame. Only the first of several values is returned.
+	 */
+	private static String decodeText(byte [] data, int offset, int length) {
+		if (length < 2) {
+			return null;
+		}
+
+		Charset charset;
+		boolean wide = true;
+
+		switch (data[offset]) {
+			case 1:
+				charset = UTF_16;
+				break;
+			case 2:
+				charset = UTF_16BE;
+				break;
+			case 3:
+				charset = UTF_8;
+				wide = false;
+				break;
+			default:
+				charset = ISO_8859_1;
+				wide = false;
+				break;
+		}
+
+		int start = offset + 1;
+		int end = offset + length;
+		int terminator = start;
+
+		if (wide) {
+			while (terminator + 1 < end && (data[terminator] != 0 || data[terminator + 1] != 0)) {
+				terminator += 2;
+			}
+
+			terminator = Math.min(terminator, end);
+		} else {
+			while (terminator < end && data[terminator] != 0) {
+				terminator++;
+			}
+		}
+
+		return decode(data, start, terminator - start, charset);
+	}
+
+	private void readId3v1() {
+		ByteBuffer tag = range(mLength - ID3V1_SIZE, ID3V1_SIZE);
+
+		if (tag == null || !startsWith(tag, 0, "TAG")) {
+			return;
+		}
+
+		put(MediaMetadataRetriever.METADATA_KEY_TITLE, readLatin1(tag, 3, 30));
+		put(MediaMetadataRetriever.METADATA_KEY_ARTIST, readLatin1(tag, 33, 30));
+		put(MediaMetadataRetriever.METADATA_KEY_ALBUM, readLatin1(tag, 63, 30));
+		put(MediaMetadataRetriever.METADATA_KEY_DATE, readLatin1(tag, 93, 4));
+
+		// ID3v1.1 keeps the track number in the last byte of the comment
+		if (tag.get(125) == 0 && tag.get(126) != 0) {
+			put(MediaMetadataRetriever.METADATA_KEY_TRACK, String.valueOf(tag.get(126) & 0xff));
+		}
+	}
+
+	private static String readLatin1(ByteBuffer buffer, int offset, int length) {
+		int end = offset;
+
+		while (end < offset + length && buffer.get(end) != 0) {
+			end++;
+		}
+
+		byte [] bytes = new byte[end - offset];
+		ByteBuffer field = buffer.duplicate();
+		field.position(offset);
+		field.get(bytes);
+		return decode(bytes, 0, bytes.length, ISO_8859_1);
+	}
+
+	/*
+	 * MP3
+	 */
+
+	private boolean readMp3(int audioStart) {
+		boolean tagged = audioStart > 0;
+		int limit = mHead.limit();
+		int frame = -1;
+		int header = 0;
+
+		for (int i = audioStart; i + 4 <= limit && i < audioStart + MAX_SYNC_SEARCH; i++) {
+			header = mHead.getInt(i);
+			int frameSize = getMp3FrameSize(header);
+
+			if (frameSize <= 0) {
+				continue;
+			}
+
+			// a second frame of the same stream makes a false sync unlikely
+			if (i + frameSize + 4 <= limit) {
+				int next = mHead.getInt(i + frameSize);
+
+				if (getMp3FrameSize(next) <= 0 || (next & 0xfffe0c00) != (header & 0xfffe0c00)) {
+					continue;
+				}
+			} else if (!tagged) {
+				continue;
+			}
+
+			frame = i;
+			break;
+		}
+
+		if (frame == -1) {
+			return tagged;
+		}
+
+		int version = (header >>> 19) & 3;
+		int layer = (header >>> 17) & 3;
+		int sampleRate = MP3_SAMPLE_RATES[version][(header >>> 10) & 3];
+		int bitrate = MP3_BITRATES[(version == 3 ? 0 : 3) + 3 - layer][(header >>> 12) & 0xf];
+		boolean mono = ((header >>> 6) & 3) == 3;
+		int samplesPerFrame = layer == 3 ? 384 : (layer == 1 && version != 3 ? 576 : 1152);
+
+		// a Xing or Info frame follows the side information, a VBRI frame
+		// always starts 32 bytes after the header
+		int xing = frame + 4 + (version == 3 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+		int vbri = frame + 4 + 32;
+		long frames = -1;
+
+		if (xing + 12 <= limit && (startsWith(mHead, xing, "Xing") || startsWith(mHead, xing, "Info"))
+				&& (mHead.getInt(xing + 4) & 1) != 0) {
+			frames = mHead.getInt(xing + 8) & 0xffffffffL;
+		} else if (vbri + 18 <= limit && startsWith(mHead, vbri, "VBRI")) {
+			frames = mHead.getInt(vbri + 14) & 0xffffffffL;
+		}
+
+		if (frames > 0) {
+			mMetadata.put(MediaMetadataRetriever.METADATA_KEY_DURATION,
+					String.valueOf(frames * samplesPerFrame * 1000 / sampleRate));
+		} else if (!mMetadata.containsKey(MediaMetadataRetriever.METADATA_KEY_DURATION) && mLength > 0) {
+			// assume a constant bitrate
+			long audioLength = mLength - frame;
+			ByteBuffer id3v1 = range(mLength - ID3V1_SIZE, ID3V1_SIZE);
+
+			if (id3v1 != null && startsWith(id3v1, 0, "TAG")) {
+				audioLength -= ID3V1_SIZE;
+			}
+
+			mMetadata.put(MediaMetadataRetriever.METADATA_KEY_DURATION,
+					String.valueOf(audioLength * 8 / bitrate));
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the size of the frame with this header, or 0 if the header is
+	 * not valid.
+	 */
+	private static int getMp3FrameSize(int header) {
+		if ((header & 0xffe00000) != 0xffe00000) {
+			return 0;
+		}
+
+		int version = (header >>> 19) & 3;
+		int layer = (header >>> 17) & 3;
+		int bitrateIndex = (header >>> 12) & 0xf;
+		int sampleRateIndex = (header >>> 10) & 3;
+		int padding = (header >>> 9) & 1;
+
+		// free format streams are not supported
+		if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15
+				|| sampleRateIndex == 3) {
+			return 0;
+		}
+
+		int bitrate = MP3_BITRATES[(version == 3 ? 0 : 3) + 3 - layer][bitrateIndex] * 1000;
+		int sampleRate = MP3_SAMPLE_RATES[version][sampleRateIndex];
+
+		if (layer == 3) {
+			return (12 * bitrate / sampleRate + padding) * 4;
+		} else if (layer == 1 && version != 3) {
+			return 72 * bitrate / sampleRate + padding;
+		}
+
+		return 144 * bitrate / sampleRate + padding;
+	}
+
+	/*
+	 * FLAC and Ogg
+	 */
+
+	private boolean readFlac(int offset) {
+		int limit = mHead.limit();
+
+		while (offset + 4 <= limit) {
+			int header = mHead.getInt(offset);
+			int type = (header >>> 24) & 0x7f;
+			int size = header & 0xffffff;
+			int start = offset + 4;
+
+			if (type == 0 && start + 18 <= limit) {
+				// STREAMINFO, a 20 bit sample rate and 36 bits of samples
+				int sampleRate = (mHead.getInt(start + 10) >>> 12) & 0xfffff;
+				long samples = ((mHead.get(start + 13) & 0x0fL) << 32)
+						| (mHead.getInt(start + 14) & 0xffffffffL);
+
+				if (sampleRate > 0 && samples > 0) {
+					mMetadata.put(MediaMetadataRetriever.METADATA_KEY_DURATION,
+							String.valueOf(samples * 1000 / sampleRate));
+				}
+			} else if (type == 4) {
+				readVorbisComment(mHead, start, Math.min(start + size, limit));
+			} else if (type == FLAC_PICTURE && size <= limit - start) {
+				putArtwork(mHead, start, size);
+			}
+
+			if ((header & 0x80000000) != 0) {
+				break;
+			}
+
+			offset = start + size;
+		}
+
+		return true;
+	}
+
+	private boolean readOgg() {
+		int limit = mHead.limit();
+
+		if (limit < 27) {
+			return false;
+		}
+
+		int position = 0;
+		int serial = mHead.getInt(14);
+		int packets = 0;
+		boolean opus = false;
+		long sampleRate = 0;
+		long preSkip = 0;
+		byte [] packet = new byte[0];
+		int packetLength = 0;
+
+		// the identification and the comment header are the first two packets,
+		// the comment header may span several pages
+		while (packets < 2 && position + 27 <= limit && startsWith(mHead, position, "OggS")) {
+			int segments = mHead.get(position + 26) & 0xff;
+			int data = position + 27 + segments;
+
+			if (data > limit) {
+				break;
+			}
+
+			boolean sameStream = mHead.getInt(position + 14) == serial;
+
+			for (int i = 0; i < segments && packets < 2; i++) {
+				int lacing = mHead.get(position + 27 + i) & 0xff;
+
+				if (data + lacing > limit) {
+					packets = 2;
+					break;
+				}
+
+				if (sameStream) {
+					if (packetLength + lacing > packet.length) {
+						byte [] grown = new byte[Math.max(packet.length * 2, packetLength + lacing)];
+						System.arraycopy(packet, 0, grown, 0, packetLength);
+						packet = grown;
+					}
+
+					ByteBuffer segment = mHead.duplicate();
+					segment.position(data);
+					segment.get(packet, packetLength, lacing);
+					packetLength += lacing;
+
+					if (lacing < 255) {
+						ByteBuffer buffer = ByteBuffer.wrap(packet, 0, packetLength);
+
+						if (packets == 0) {
+							if (startsWith(buffer, 0, "\u0001vorbis") && packetLength >= 16) {
+								sampleRate = Integer.reverseBytes(buffer.getInt(12)) & 0xffffffffL;
+							} else if (startsWith(buffer, 0, "OpusHead") && packetLength >= 12) {
+								opus = true;
+								sampleRate = 48000;
+								preSkip = Short.reverseBytes(buffer.getShort(10)) & 0xffff;
+							} else {
+								// e.g. Speex or FLAC in Ogg
+								return false;
+							}
+						} else if (!opus && startsWith(buffer, 0, "\u0003vorbis")) {
+							readVorbisComment(buffer, 7, packetLength);
+						} else if (opus && startsWith(buffer, 0, "OpusTags")) {
+							readVorbisComment(buffer, 8, packetLength);
+						}
+
+						packets++;
+						packetLength = 0;
+					}
+				}
+
+				data += lacing;
+			}
+
+			position = data;
+		}
+
+		if (sampleRate == 0) {
+			return false;
+		}
+
+		// the granule position of the last page counts the samples
+		ByteBuffer last = mTail.limit() > 0 ? mTail : (mHead.limit() == mLength ? mHead : null);
+
+		for (int i = last == null ? -1 : last.limit() - 27; i >= 0; i--) {
+			if (startsWith(last, i, "OggS") && last.getInt(i + 14) == serial) {
+				long granule = Long.reverseBytes(last.getLong(i + 6));
+
+				if (granule > preSkip) {
+					mMetadata.put(MediaMetadataRetriever.METADATA_KEY_DURATION,
+							String.valueOf((granule - preSkip) * 1000 / sampleRate));
+				}
+
+				break;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads a Vorbis comment, its numbers are little endian.
+	 */
+	private void readVorbisComment(ByteBuffer buffer, int offset, int end) {
+		if (offset + 4 > end) {
+			return;
+		}
+
+		// the vendor string, a corrupt length must not wrap the offset
+		long vendorEnd = offset + 4L + (Integer.reverseBytes(buffer.getInt(offset)) & 0xffffffffL);
+
+		if (vendorEnd + 4 > end) {
+			return;
+		}
+
+		offset = (int) vendorEnd;
+
+		long count = Integer.reverseBytes(buffer.getInt(offset)) & 0xffffffffL;
+		offset += 4;
+
+		for (long i = 0; i < count && offset + 4 <= end; i++) {
+			int length = Integer.reverseBytes(buffer.getInt(offset));
+			offset += 4;
+
+			if (length < 0 || length > end - offset) {
+				break;
+			}
+
+			byte [] bytes = new byte[length];
+			ByteBuffer comment = buffer.duplicate();
+			comment.position(offset);
+			comment.get(bytes);
+			offset += length;
+
+			String field = decode(bytes, 0, length, UTF_8);
+			int equals = field.indexOf('=');
+
+			if (equals > 0) {
+				String name = field.substring(0, equals).toUpperCase(Locale.US);
+
+				if (name.equals("METADATA_BLOCK_PICTURE")) {
+					// base64, so the characters are the bytes
+					putArtwork(ByteBuffer.wrap(bytes), equals + 1, length - equals - 1);
+				} else {
+					put(VORBIS_FIELDS.get(name), field.substring(equals + 1));
+				}
+			}
+		}
+	}
+
+	/*
+	 * MP4
+	 */
+
+	private boolean readMp4() {
+		long offset = 0;
+		long end = mLength > 0 ? mLength : mHead.limit();
+
+		// the moov atom is either in the head or, after the media data, in the
+		// tail
+		while (offset + 8 <= end) {
+			ByteBuffer header = range(offset, 16);
+
+			if (header == null) {
+				header = range(offset, 8);
+			}
+
+			if (header == null) {
+				return false;
+			}
+
+			long size = header.getInt(0) & 0xffffffffL;
+			int type = header.getInt(4);
+			int headerSize = 8;
+
+			if (size == 1) {
+				if (header.limit() < 16) {
+					return false;
+				}
+
+				size = header.getLong(8);
+				headerSize = 16;
+			} else if (size == 0) {
+				size = end - offset;
+			}
+
+			if (size < headerSize) {
+				return false;
+			}
+
+			if (type == ATOM_MOOV) {
+				ByteBuffer moov = range(offset, size);
+
+				if (moov == null) {
+					return false;
+				}
+
+				readMoov(moov, headerSize);
+				return true;
+			}
+
+			offset += size;
+		}
+
+		return false;
+	}
+
+	private void readMoov(ByteBuffer moov, int offset) {
+		for (int child = offset; child + 8 <= moov.limit(); child += atomSize(moov, child)) {
+			int type = moov.getInt(child + 4);
+
+			if (type == ATOM_MVHD && child + 32 <= moov.limit()) {
+				int start = child + 8;
+				long timescale;
+				long duration;
+
+				if (moov.get(start) == 1) {
+					timescale = moov.getInt(start + 20) & 0xffffffffL;
+					duration = child + 40 <= moov.limit() ? moov.getLong(start + 24) : 0;
+				} else {
+					timescale = moov.getInt(start + 12) & 0xffffffffL;
+					duration = moov.getInt(start + 16) & 0xffffffffL;
+				}
+
+				if (timescale > 0 && duration > 0) {
+					mMetadata.put(MediaMetadataRetriever.METADATA_KEY_DURATION,
+							String.valueOf(duration * 1000 / timescale));
+				}
+			} else if (type == ATOM_UDTA) {
+				ByteBuffer udta = atom(moov, child);
+
+				for (int meta = 8; meta + 8 <= udta.limit(); meta += atomSize(udta, meta)) {
+					if (udta.getInt(meta + 4) == ATOM_META) {
+						readMeta(atom(udta, meta));
+					}
+				}
+			}
+		}
+	}
+
+	private void readMeta(ByteBuffer meta) {
+		// a full atom, except in some QuickTime files
+		int offset = meta.limit() >= 16 && meta.getInt(12) == ATOM_HDLR ? 8 : 12;
+
+		for (int child = offset; child + 8 <= meta.limit(); child += atomSize(meta, child)) {
+			if (meta.getInt(child + 4) != ATOM_ILST) {
+				continue;
+			}
+
+			ByteBuffer ilst = atom(meta, child);
+
+			for (int item = 8; item + 8 <= ilst.limit(); item += atomSize(ilst, item)) {
+				int type = ilst.getInt(item + 4);
+				String key = MP4_ATOMS.get(type);
+
+				if (key == null && type != ATOM_COVR) {
+					continue;
+				}
+
+				ByteBuffer value = atom(ilst, item);
+
+				// the value is in a data atom with a type and a locale
+				if (value.limit() < 24 || value.getInt(12) != ATOM_DATA) {
+					continue;
+				}
+
+				int start = 24;
+				int length = Math.min(atomSize(value, 8) + 8, value.limit()) - start;
+
+				if (length <= 0) {
+					continue;
+				}
+
+				if (type == ATOM_COVR) {
+					putArtwork(value, start, length);
+				} else if (type == ATOM_TRKN || type == ATOM_DISK) {
+					if (length >= 4) {
+						put(key, String.valueOf(value.getShort(start + 2) & 0xffff));
+					}
+				} else {
+					byte [] bytes = new byte[length];
+					ByteBuffer text = value.duplicate();
+					text.position(start);
+					text.get(bytes);
+					put(key, decode(bytes, 0, length, UTF_8));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the atom at offset, at least 8 so that loops over
+	 * damaged atoms end and at most the rest of the buffer so that adding it
+	 * to offset can not overflow.
+	 */
+	private static int atomSize(ByteBuffer buffer, int offset) {
+		return Math.min(Math.max(8, buffer.getInt(offset)), buffer.limit() - offset);
+	}
+
+	/**
+	 * @return the atom at offset, cut off at the end of the buffer.
+	 */
+	private static ByteBuffer atom(ByteBuffer buffer, int offset) {
+		ByteBuffer atom = buffer.duplicate();
+		atom.position(offset);
+		atom.limit((int) Math.min((long) offset + atomSize(buffer, offset), buffer.limit()));
+		return atom.slice();
+	}
+
+	private static int fourcc(String type) {
+		return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+	}
+
+	/*
+	 * Helpers
+	 */
+
+	/**
+	 * @return the bytes of the file from offset, if they are all in the head
+	 * or in the tail, or null.
+	 */
+	private ByteBuffer range(long offset, long count) {
+		ByteBuffer source;
+		long start;
+
+		if (offset >= 0 && offset + count <= mHead.limit()) {
+			source = mHead;
+			start = offset;
+		} else if (mTail.limit() > 0 && offset >= mTailStart && offset + count <= mLength) {
+			source = mTail;
+			start = offset - mTailStart;
+		} else {
+			return null;
+		}
+
+		ByteBuffer range = source.duplicate();
+		range.position((int) start);
+		range.limit((int) (start + count));
+		return range.slice();
+	}
+
+	private static boolean startsWith(ByteBuffer buffer, int offset, String prefix) {
+		if (offset < 0 || offset + prefix.length() > buffer.limit()) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer.get(offset + i) != (byte) prefix.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int synchsafe(ByteBuffer buffer, int offset) {
+		return ((buffer.get(offset) & 0x7f) << 21) | ((buffer.get(offset + 1) & 0x7f) << 14)
+				| ((buffer.get(offset + 2) & 0x7f) << 7) | (buffer.get(offset + 3) & 0x7f);
+	}
+
+	private static String decode(byte [] bytes, int offset, int length, Charset charset) {
+		return charset.decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+	}
+}
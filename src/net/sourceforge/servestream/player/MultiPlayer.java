@@ -25,6 +25,8 @@ import android.util.Log;
 import android.view.SurfaceHolder;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 import net.sourceforge.servestream.utils.URLUtils;
 import net.sourceforge.servestream.service.MediaPlaybackService;
@@ -32,11 +34,27 @@ import net.sourceforge.servestream.service.MediaPlaybackService;
 
 /**
  * Provides a unified interface for dealing with midi files and
- * other media files.
+ * other media files. The messages a player sends carry the player in
+ * {@link android.os.Message#obj}, so that a handler serving two players can
+ * tell them apart.
  */
 public class MultiPlayer implements Parcelable {
 	private static final String TAG = MultiPlayer.class.getName();
 	
+	// MediaPlayer.setNextMediaPlayer, available since Jelly Bean
+	private static Method sSetNextMediaPlayerMethod;
+	
+	static {
+		try {
+			sSetNextMediaPlayerMethod = MediaPlayer.class.getMethod(
+					"setNextMediaPlayer", new Class[] { MediaPlayer.class });
+		} catch (NoSuchMethodException e) {
+			// Silently fail when running on an OS before Jelly Bean.
+		} catch (SecurityException e) {
+			// Silently fail when running on an OS before Jelly Bean.
+		}
+	}
+	
 	private MediaPlayer mMediaPlayer = new MediaPlayer();
     private Handler mHandler;
     private boolean mIsInitialized = false;
@@ -66,11 +84,11 @@ public class MultiPlayer implements Parcelable {
         } catch (IOException ex) {
         	Log.v(TAG, "Error initializing");
             mIsInitialized = false;
-            mHandler.sendMessageDelayed(mHandler.obtainMessage(MediaPlaybackService.PLAYER_ERROR), 2000);
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MediaPlaybackService.PLAYER_ERROR, this), 2000);
         } catch (IllegalArgumentException ex) {
         	Log.v(TAG, "Error initializing");
             mIsInitialized = false;
-            mHandler.sendMessageDelayed(mHandler.obtainMessage(MediaPlaybackService.PLAYER_ERROR), 2000);
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MediaPlaybackService.PLAYER_ERROR, this), 2000);
         }
     }
         
@@ -99,6 +117,35 @@ public class MultiPlayer implements Parcelable {
     public void pause() {
         mMediaPlayer.pause();
     }
+    
+    public boolean isPlaying() {
+        return mMediaPlayer.isPlaying();
+    }
+    
+    /**
+     * Makes the platform start the next player the moment this one
+     * completes, without a gap. Both players must be prepared.
+     * 
+     * @param next The player to start, or null to undo the chaining.
+     * @return true if the platform supports chaining players.
+     */
+    public boolean setNextPlayer(MultiPlayer next) {
+    	if (sSetNextMediaPlayerMethod == null) {
+    		return false;
+    	}
+    	
+    	try {
+    		sSetNextMediaPlayerMethod.invoke(mMediaPlayer, next != null ? next.mMediaPlayer : null);
+    		return true;
+    	} catch (IllegalAccessException e) {
+    		Log.e(TAG, e.getMessage(), e);
+    	} catch (InvocationTargetException e) {
+    		// the player is not in a state that allows chaining
+    		Log.v(TAG, "could not chain players: " + e.getCause());
+    	}
+    	
+    	return false;
+    }
         
     public void setHandler(Handler handler) {
         mHandler = handler;
@@ -109,7 +156,7 @@ public class MultiPlayer implements Parcelable {
 			
 			Log.v(TAG, "media player is prepared");
 	        mIsInitialized = true;
-			mHandler.sendEmptyMessage(MediaPlaybackService.PLAYER_PREPARED);
+			mHandler.sendMessage(mHandler.obtainMessage(MediaPlaybackService.PLAYER_PREPARED, MultiPlayer.this));
 		}
     };
     
@@ -124,7 +171,7 @@ public class MultiPlayer implements Parcelable {
             // This temporary wakelock is released when the RELEASE_WAKELOCK
             // message is processed, but just in case, put a timeout on it.
             if (mIsInitialized) {
-            	mHandler.sendEmptyMessage(MediaPlaybackService.TRACK_ENDED);
+            	mHandler.sendMessage(mHandler.obtainMessage(MediaPlaybackService.TRACK_ENDED, MultiPlayer.this));
             }
         }
     };
@@ -138,11 +185,11 @@ public class MultiPlayer implements Parcelable {
                 mIsInitialized = false;
                 mMediaPlayer.release();
                 mMediaPlayer = new MediaPlayer(); 
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MediaPlaybackService.SERVER_DIED), 2000);
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MediaPlaybackService.SERVER_DIED, MultiPlayer.this), 2000);
                 return true;
             default:
                 mIsInitialized = false;
-                mHandler.sendEmptyMessage(MediaPlaybackService.PLAYER_ERROR);
+                mHandler.sendMessage(mHandler.obtainMessage(MediaPlaybackService.PLAYER_ERROR, MultiPlayer.this));
                 break;
             }
             return false;
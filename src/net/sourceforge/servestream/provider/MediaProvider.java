@@ -21,9 +21,12 @@ import net.sourceforge.servestream.player.MultiPlayer;
 import net.sourceforge.servestream.provider.Media.MediaColumns;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -35,6 +38,7 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -46,8 +50,9 @@ public class MediaProvider extends ContentProvider {
     private static final String TAG = MultiPlayer.class.getName();
 
     private static final String DATABASE_NAME = "media.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String MEDIA_TABLE_NAME = "media_files";
+    private static final String URI_INDEX_NAME = "media_files_uri";
 
     private static HashMap<String, String> sMediaProjectionMap;
 
@@ -77,18 +82,43 @@ public class MediaProvider extends ContentProvider {
                     + MediaColumns.TRACK + " TEXT,"
                     + MediaColumns.YEAR + " INTEGER"
                     + ");");
+            createUriIndex(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 1) {
+                // keep the newest row of every URI, lookups by URI used to
+                // resolve duplicates to it, so the saved queue refers to it
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will remove duplicate uris");
+                db.execSQL("DELETE FROM " + MEDIA_TABLE_NAME + " WHERE " + MediaColumns._ID
+                        + " NOT IN (SELECT MAX(" + MediaColumns._ID + ") FROM " + MEDIA_TABLE_NAME
+                        + " GROUP BY " + MediaColumns.URI + ");");
+                createUriIndex(db);
+                return;
+            }
+            
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS " + MEDIA_TABLE_NAME);
             onCreate(db);
         }
+        
+        /**
+         * Every URI is stored once, so it can be looked up without scanning
+         * the table.
+         */
+        private void createUriIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + URI_INDEX_NAME + " ON "
+                    + MEDIA_TABLE_NAME + " (" + MediaColumns.URI + ");");
+        }
     }
 
     private DatabaseHelper mOpenHelper;
+    
+    // set while applyBatch() runs, the change is announced once at the end
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
 
     @Override
     public boolean onCreate() {
@@ -191,15 +221,66 @@ public class MediaProvider extends ContentProvider {
         }
         
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(MEDIA_TABLE_NAME, MediaColumns.URI, values);
+        
+        // a URI that is already stored keeps its row and the metadata that
+        // may have been retrieved for it
+        long rowId = getRowId(db, values.getAsString(MediaColumns.URI));
+        if (rowId > 0) {
+            return ContentUris.withAppendedId(MediaColumns.CONTENT_URI, rowId);
+        }
+        
+        rowId = db.insert(MEDIA_TABLE_NAME, MediaColumns.URI, values);
         if (rowId > 0) {
             Uri audioUri = ContentUris.withAppendedId(MediaColumns.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(audioUri, null);
+            if (mApplyingBatch.get() == null) {
+                getContext().getContentResolver().notifyChange(audioUri, null);
+            }
             return audioUri;
         }
 
         throw new SQLException("Failed to insert row into " + uri);
     }
+    
+    /**
+     * Applies the operations in a single transaction. Inserts return the URI
+     * of the row of their media URI whether it was inserted or already
+     * stored, so a whole playlist can be added and its ids read back in one
+     * call.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        
+        mApplyingBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.remove();
+        }
+        
+        getContext().getContentResolver().notifyChange(MediaColumns.CONTENT_URI, null);
+        return results;
+    }
+    
+    /**
+     * @return the id of the row of a media URI, or -1 if it is not stored.
+     */
+    private long getRowId(SQLiteDatabase db, String mediaUri) {
+        Cursor cursor = db.query(MEDIA_TABLE_NAME, new String [] { MediaColumns._ID },
+                MediaColumns.URI + "=?", new String [] { mediaUri }, null, null, null);
+        
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
@@ -216,7 +297,7 @@ public class MediaProvider extends ContentProvider {
         try {
         	//standard SQL insert statement, that can be reused
             SQLiteStatement insert = 
-            		db.compileStatement("insert into " + MEDIA_TABLE_NAME 
+            		db.compileStatement("insert or ignore into " + MEDIA_TABLE_NAME 
             				+ " (" + MediaColumns.URI + ","
         	                + MediaColumns.TITLE + ","
         	                + MediaColumns.ALBUM + ","
@@ -263,8 +344,10 @@ public class MediaProvider extends ContentProvider {
         	    insert.bindLong(5, value.getAsInteger(MediaColumns.DURATION));
         	    insert.bindString(6, value.getAsString(MediaColumns.TRACK));
         	    insert.bindLong(7, value.getAsInteger(MediaColumns.YEAR));
-        	    insert.execute();
-        	    numInserted++;
+        	    // the uri may already be stored
+        	    if (insert.executeInsert() != -1) {
+        	    	numInserted++;
+        	    }
         	}
             
         	db.setTransactionSuccessful();
@@ -317,7 +400,9 @@ public class MediaProvider extends ContentProvider {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
         return count;
     }
 
@@ -0,0 +1,195 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import android.util.Log;
+
+/**
+ * Decides how much of a progressive download has to be on disk before
+ * playback starts. The threshold covers a number of seconds of audio at the
+ * bitrate of the track and, when the download is slower than playback, the
+ * part of the file playback would otherwise catch up with. The download
+ * rate is estimated conservatively from the rates measured so far, so that
+ * playback completes without rebuffering with the target probability.
+ */
+class BufferPolicy {
+	private static final String TAG = BufferPolicy.class.getName();
+
+	static final int MIN_BUFFER = 16 * 1024;
+
+	static final int DEFAULT_BUFFER_SECONDS = 5;
+
+	static final double DEFAULT_NO_REBUFFER_PROBABILITY = 0.95;
+
+	// assumed until the bitrate of the track is known
+	private static final int DEFAULT_BITRATE = 128000;
+
+	private static final long MIN_SAMPLE_INTERVAL = 100;
+
+	// the current track
+	private int mBufferSeconds = DEFAULT_BUFFER_SECONDS;
+	private double mNoRebufferZ = quantile(DEFAULT_NO_REBUFFER_PROBABILITY);
+	private long mStartTime = 0;
+	private long mLength = -1;
+	private int mBitrate = -1;
+
+	// download rate samples of the current track, bytes per second
+	private long mLastSampleTime = 0;
+	private long mLastSamplePosition = 0;
+	private int mSampleCount = 0;
+	private double mRateMean = 0;
+	private double mRateM2 = 0;
+
+	// across all tracks
+	private int mTrackCount = 0;
+	private long mTotalStartupMillis = 0;
+	private int mUnderrunCount = 0;
+
+	/**
+	 * Starts measuring a new track, called when its download starts.
+	 *
+	 * @param bufferSeconds The seconds of audio to buffer at least.
+	 * @param noRebufferProbability The probability, between 0.5 and 1, with
+	 * which playback should complete without rebuffering.
+	 */
+	synchronized void start(int bufferSeconds, double noRebufferProbability) {
+		mBufferSeconds = bufferSeconds;
+		mNoRebufferZ = quantile(noRebufferProbability);
+		mStartTime = System.currentTimeMillis();
+		mLength = -1;
+		mBitrate = -1;
+		mLastSampleTime = mStartTime;
+		mLastSamplePosition = 0;
+		mSampleCount = 0;
+		mRateMean = 0;
+		mRateM2 = 0;
+	}
+
+	synchronized void setLength(long length) {
+		mLength = length;
+	}
+
+	/**
+	 * Sets the bitrate of the track in bits per second. The first source
+	 * wins, so callers should report the most reliable one first.
+	 */
+	synchronized void setBitrate(int bitrate) {
+		if (mBitrate <= 0 && bitrate > 0) {
+			mBitrate = bitrate;
+			Log.v(TAG, "bitrate is " + bitrate);
+		}
+	}
+
+	synchronized boolean hasBitrate() {
+		return mBitrate > 0;
+	}
+
+	/**
+	 * Records how much of the file was downloaded by now.
+	 */
+	synchronized void addSample(long position) {
+		long now = System.currentTimeMillis();
+		long elapsed = now - mLastSampleTime;
+
+		if (position == 0 || position < mLastSamplePosition) {
+			// the connection latency says nothing about the download rate,
+			// neither does a download that started over
+			mLastSampleTime = now;
+			mLastSamplePosition = position;
+			return;
+		}
+
+		if (elapsed < MIN_SAMPLE_INTERVAL) {
+			return;
+		}
+
+		double rate = (position - mLastSamplePosition) * 1000.0 / elapsed;
+		mLastSampleTime = now;
+		mLastSamplePosition = position;
+
+		// Welford's running mean and variance
+		mSampleCount++;
+		double delta = rate - mRateMean;
+		mRateMean += delta / mSampleCount;
+		mRateM2 += delta * (rate - mRateMean);
+	}
+
+	/**
+	 * @return the number of bytes to buffer before playback starts.
+	 */
+	synchronized long getThreshold() {
+		double playbackRate = (mBitrate > 0 ? mBitrate : DEFAULT_BITRATE) / 8.0;
+		double threshold = playbackRate * mBufferSeconds;
+
+		if (mSampleCount > 0 && mLength > 0) {
+			double deviation = mSampleCount > 1 ? Math.sqrt(mRateM2 / (mSampleCount - 1)) : 0;
+			// the download rate is at least mean - z * deviation with the
+			// target probability
+			double downloadRate = Math.max(0, mRateMean - mNoRebufferZ * deviation);
+
+			// playback starting at a buffer B catches up with the download
+			// unless B >= length * (1 - downloadRate / playbackRate)
+			if (downloadRate < playbackRate) {
+				threshold = Math.max(threshold, mLength * (1 - downloadRate / playbackRate));
+			}
+		}
+
+		long bytes = Math.max(MIN_BUFFER, (long) threshold);
+
+		return mLength > 0 ? Math.min(bytes, mLength) : bytes;
+	}
+
+	/**
+	 * Called when the player started playing the current track.
+	 */
+	synchronized void onStarted() {
+		long startup = System.currentTimeMillis() - mStartTime;
+
+		mTrackCount++;
+		mTotalStartupMillis += startup;
+		Log.v(TAG, "playback started after " + startup + " ms, bitrate " + mBitrate
+				+ ", threshold " + getThreshold());
+	}
+
+	/**
+	 * Called when playback caught up with the download.
+	 */
+	synchronized void onUnderrun(int count) {
+		mUnderrunCount += count;
+	}
+
+	/**
+	 * @return the one sided quantile of the standard normal distribution,
+	 * e.g. 1.645 for 0.95. Abramowitz and Stegun 26.2.23, the error is below
+	 * 4.5e-4.
+	 */
+	static double quantile(double probability) {
+		double p = Math.min(Math.max(probability, 0.5), 0.9999);
+		double t = Math.sqrt(-2 * Math.log(1 - p));
+
+		return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+				/ (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BufferPolicy[tracks=" + mTrackCount
+				+ ", averageStartup=" + (mTrackCount > 0 ? mTotalStartupMillis / mTrackCount : 0)
+				+ "ms, underruns=" + mUnderrunCount + "]";
+	}
+}
@@ -35,12 +35,17 @@ import android.util.Log;
 public class ConnectivityReceiver extends BroadcastReceiver {
 	private static final String TAG = ConnectivityReceiver.class.getName();
 
+	// ConnectivityManager.TYPE_ETHERNET, added in API level 13
+	private static final int TYPE_ETHERNET = 9;
+
 	private boolean mIsConnected = false;
 
 	final private MediaPlaybackService mMediaPlaybackService;
 
 	final private WifiLock mWifiLock;
 
+	final private ConnectivityManager mConnectivityManager;
+
 	private int mNetworkRef = 0;
 
 	private boolean mLockingWifi;
@@ -52,6 +57,7 @@ public class ConnectivityReceiver extends BroadcastReceiver {
 
 		final ConnectivityManager cm =
 				(ConnectivityManager) MediaPlaybackService.getSystemService(Context.CONNECTIVITY_SERVICE);
+		mConnectivityManager = cm;
 
 		final WifiManager wm = (WifiManager) MediaPlaybackService.getSystemService(Context.WIFI_SERVICE);
 		mWifiLock = wm.createWifiLock(TAG);
@@ -159,6 +165,20 @@ public class ConnectivityReceiver extends BroadcastReceiver {
 		}
 	}
 
+	/**
+	 * @return whether the active network is likely billed by volume, i.e.
+	 * anything but Wi-Fi or Ethernet
+	 */
+	public boolean isMetered() {
+		final NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+
+		if (info == null) {
+			return false;
+		}
+
+		return info.getType() != ConnectivityManager.TYPE_WIFI && info.getType() != TYPE_ETHERNET;
+	}
+
 	/**
 	 * @return whether we're connected to a network
 	 */
@@ -0,0 +1,447 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * Keeps completely downloaded tracks on disk so that they can be played
+ * again without downloading them. Entries are keyed by a hash of the
+ * normalized URI, so the index on the shared storage holds neither the URIs
+ * nor any credentials in them, and remember the validators the server sent.
+ * The least recently played entries are evicted once the cache exceeds its
+ * size. The index is stored next to the files and survives restarts of the
+ * service, it is written on a background thread a while after it changed.
+ */
+class DownloadCache {
+	private static final String TAG = DownloadCache.class.getName();
+
+	private static final String INDEX_FILE_NAME = "cache.index";
+	private static final String CACHE_FILE_EXTENSION = ".cache";
+	private static final int INDEX_VERSION = 2;
+
+	// coalesces the writes of the lookups and changes made in a burst
+	private static final long SAVE_DELAY = 5000;
+
+	private final File mDirectory;
+	private final File mIndexFile;
+	private final Handler mHandler;
+
+	// in access order, the least recently used entry comes first, all
+	// guarded by this
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long mSize = 0;
+	private long mMaxSize = 0;
+	private boolean mLoaded = false;
+	private boolean mDirty = false;
+
+	private final Runnable mSaver = new Runnable() {
+		public void run() {
+			save();
+		}
+	};
+
+	/**
+	 * @param directory The directory that holds the cached files, or null if
+	 * there is none (e.g. the external storage is not mounted), which
+	 * disables the cache.
+	 */
+	DownloadCache(File directory) {
+		mDirectory = directory;
+		mIndexFile = directory != null ? new File(directory, INDEX_FILE_NAME) : null;
+
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Writes the index if it changed and stops the background thread. The
+	 * cache must not be used afterwards.
+	 */
+	void close() {
+		mHandler.removeCallbacks(mSaver);
+		mHandler.getLooper().quit();
+		save();
+	}
+
+	/**
+	 * Sets the size of the cache in bytes, entries are evicted if it
+	 * shrinks. A size of 0 disables the cache.
+	 */
+	synchronized void setMaxSize(long maxSize) {
+		load();
+
+		mMaxSize = mDirectory != null ? maxSize : 0;
+
+		if (trim(null)) {
+			scheduleSave();
+		}
+	}
+
+	synchronized long getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return the entry for a URI, or null if it is not cached. The entry
+	 * becomes the most recently used one.
+	 */
+	synchronized Entry get(String uri) {
+		load();
+
+		String key = key(uri);
+		Entry entry = mEntries.get(key);
+
+		if (entry == null) {
+			return null;
+		}
+
+		if (entry.getFile().length() != entry.getLength()) {
+			// removed or truncated behind our back
+			mEntries.remove(key);
+			mSize -= entry.getLength();
+			Utils.deleteFile(entry.getFile());
+			scheduleSave();
+			return null;
+		}
+
+		// the access order changed
+		scheduleSave();
+		return entry;
+	}
+
+	/**
+	 * @return the file a URI is stored in once it is cached.
+	 */
+	File getFile(String uri) {
+		return new File(mDirectory, key(uri) + CACHE_FILE_EXTENSION);
+	}
+
+	/**
+	 * Adds a completely downloaded file, which must have been written to
+	 * {@link #getFile(String)}. A file without validators is not kept since
+	 * it could never be revalidated.
+	 *
+	 * @param eTag The ETag header of the response, or null.
+	 * @param lastModified The Last-Modified header of the response, or null.
+	 * @return true if the file was cached.
+	 */
+	synchronized boolean put(String uri, String eTag, String lastModified) {
+		load();
+
+		String key = key(uri);
+		Entry entry = new Entry(getFile(uri), eTag, lastModified, getFile(uri).length());
+
+		Entry previous = mEntries.remove(key);
+
+		if (previous != null) {
+			mSize -= previous.getLength();
+		}
+
+		if ((eTag == null && lastModified == null)
+				|| entry.getLength() <= 0 || entry.getLength() > mMaxSize) {
+			scheduleSave();
+			return false;
+		}
+
+		mEntries.put(key, entry);
+		mSize += entry.getLength();
+
+		trim(key);
+		scheduleSave();
+		return true;
+	}
+
+	/**
+	 * Drops the entry for a URI, e.g. because it changed on the server. The
+	 * file itself is deleted later since it may still be playing.
+	 */
+	synchronized void remove(String uri) {
+		load();
+
+		Entry entry = mEntries.remove(key(uri));
+
+		if (entry != null) {
+			mSize -= entry.getLength();
+			scheduleSave();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache fits.
+	 *
+	 * @param keep The key of an entry that must not be evicted, or null.
+	 * @return true if an entry was evicted.
+	 */
+	private boolean trim(String keep) {
+		boolean evicted = false;
+		Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+
+		while (mSize > mMaxSize && iterator.hasNext()) {
+			Map.Entry<String, Entry> eldest = iterator.next();
+
+			if (eldest.getKey().equals(keep)) {
+				continue;
+			}
+
+			Log.v(TAG, "evicting " + eldest.getKey());
+			iterator.remove();
+			mSize -= eldest.getValue().getLength();
+			Utils.deleteFile(eldest.getValue().getFile());
+			evicted = true;
+		}
+
+		return evicted;
+	}
+
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+
+		mLoaded = true;
+
+		if (mDirectory == null) {
+			return;
+		}
+
+		if (mIndexFile.exists()) {
+			DataInputStream in = null;
+
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+
+				if (in.readInt() == INDEX_VERSION) {
+					int count = in.readInt();
+
+					for (int i = 0; i < count; i++) {
+						String key = in.readUTF();
+						Entry entry = new Entry(new File(mDirectory, in.readUTF()),
+								readString(in), readString(in), in.readLong());
+
+						// the file may have been removed while we were not running
+						if (entry.getFile().length() == entry.getLength()) {
+							mEntries.put(key, entry);
+							mSize += entry.getLength();
+						}
+					}
+				} else {
+					// an older index kept the URIs in plain text
+					Utils.deleteFile(mIndexFile);
+				}
+			} catch (IOException e) {
+				Log.v(TAG, "could not read the cache index: " + e.getMessage());
+				mEntries.clear();
+				mSize = 0;
+			} finally {
+				Utils.closeInputStream(in);
+			}
+		}
+
+		deleteOrphans();
+	}
+
+	private void scheduleSave() {
+		if (mDirectory == null) {
+			return;
+		}
+
+		mDirty = true;
+		mHandler.removeCallbacks(mSaver);
+		mHandler.postDelayed(mSaver, SAVE_DELAY);
+	}
+
+	private void save() {
+		List<String> keys;
+		List<Entry> entries;
+
+		synchronized (this) {
+			if (!mDirty) {
+				return;
+			}
+
+			mDirty = false;
+			keys = new ArrayList<String>(mEntries.keySet());
+			entries = new ArrayList<Entry>(mEntries.values());
+		}
+
+		File tempFile = new File(mIndexFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(entries.size());
+
+			for (int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				out.writeUTF(keys.get(i));
+				out.writeUTF(entry.getFile().getName());
+				writeString(out, entry.getETag());
+				writeString(out, entry.getLastModified());
+				out.writeLong(entry.getLength());
+			}
+
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(mIndexFile)) {
+				Log.v(TAG, "could not write the cache index");
+			}
+		} catch (IOException e) {
+			Log.v(TAG, "could not write the cache index: " + e.getMessage());
+		} finally {
+			Utils.closeOutputStream(out);
+			Utils.deleteFile(tempFile);
+		}
+	}
+
+	/**
+	 * Deletes cached files that are no longer in the index.
+	 */
+	synchronized void deleteOrphans() {
+		load();
+
+		if (mDirectory == null) {
+			return;
+		}
+
+		File [] files = mDirectory.listFiles();
+
+		if (files == null) {
+			return;
+		}
+
+		List<File> referenced = new ArrayList<File>();
+
+		for (Entry entry : mEntries.values()) {
+			referenced.add(entry.getFile());
+		}
+
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(CACHE_FILE_EXTENSION) && !referenced.contains(files[i])) {
+				Utils.deleteFile(files[i]);
+			}
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		String value = in.readUTF();
+		return value.length() == 0 ? null : value;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeUTF(value == null ? "" : value);
+	}
+
+	private static String key(String uri) {
+		return hash(Utils.normalizeUri(uri));
+	}
+
+	private static String hash(String key) {
+		try {
+			byte [] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+
+			for (int i = 0; i < digest.length; i++) {
+				hex.append(Character.forDigit((digest[i] >> 4) & 0x0f, 16));
+				hex.append(Character.forDigit(digest[i] & 0x0f, 16));
+			}
+
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// MD5 is always available
+			return String.valueOf(key.hashCode());
+		} catch (UnsupportedEncodingException e) {
+			return String.valueOf(key.hashCode());
+		}
+	}
+
+	/**
+	 * A cached file and the validators of the response it was downloaded
+	 * from.
+	 */
+	static class Entry {
+
+		private final File mFile;
+		private final String mETag;
+		private final String mLastModified;
+		private final long mLength;
+
+		Entry(File file, String eTag, String lastModified, long length) {
+			mFile = file;
+			mETag = eTag;
+			mLastModified = lastModified;
+			mLength = length;
+		}
+
+		File getFile() {
+			return mFile;
+		}
+
+		String getETag() {
+			return mETag;
+		}
+
+		String getLastModified() {
+			return mLastModified;
+		}
+
+		long getLength() {
+			return mLength;
+		}
+
+		/**
+		 * @return false if any validator the server sent now differs.
+		 */
+		boolean matches(String eTag, String lastModified, long length) {
+			if (mETag != null && eTag != null && !mETag.equals(eTag)) {
+				return false;
+			}
+
+			if (mLastModified != null && lastModified != null && !mLastModified.equals(lastModified)) {
+				return false;
+			}
+
+			return length <= 0 || mLength == length;
+		}
+	}
+}
@@ -4,23 +4,62 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
-import javax.net.ssl.HttpsURLConnection;
-
+import net.sourceforge.servestream.media.FrameSync;
+import net.sourceforge.servestream.media.IcyInputStream;
 import net.sourceforge.servestream.provider.Media;
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
+import net.sourceforge.servestream.utils.PreferenceConstants;
 import net.sourceforge.servestream.utils.Utils;
 import android.content.Context;
 import android.database.Cursor;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class DownloadManager {
 	private static final String TAG = DownloadManager.class.getName();
+	
+	private static final int SEGMENTED_DOWNLOAD_CONNECTIONS = 4;
+	
+	private static final int DEFAULT_CACHE_SIZE_MB = 100;
+	
+	// AsyncTask.executeOnExecutor and THREAD_POOL_EXECUTOR, available since
+	// Honeycomb, where execute() runs the tasks one after the other
+	private static Method sExecuteOnExecutorMethod;
+	private static Executor sThreadPoolExecutor;
+	
+	static {
+		try {
+			sExecuteOnExecutorMethod = AsyncTask.class.getMethod(
+					"executeOnExecutor", new Class[] { Executor.class, Object[].class });
+			sThreadPoolExecutor = (Executor) AsyncTask.class.getField("THREAD_POOL_EXECUTOR").get(null);
+		} catch (NoSuchMethodException e) {
+			// Silently fail when running on an OS before Honeycomb.
+		} catch (NoSuchFieldException e) {
+			// Silently fail when running on an OS before Honeycomb.
+		} catch (IllegalAccessException e) {
+			sExecuteOnExecutorMethod = null;
+		} catch (SecurityException e) {
+			sExecuteOnExecutorMethod = null;
+		}
+	}
 
 	private MediaPlaybackService mMediaPlaybackService = null;
 
@@ -31,12 +70,47 @@ public class DownloadManager {
 	private File mCompleteFile = null;
 	private DownloadTask mDownloadTask = null;
 	private PollingAsyncTask mPollingAsyncTask = null;
+	private long mId = -1;
+	private volatile SegmentedDownload mSegmentedDownload = null;
+	private DownloadProgress mProgress = new DownloadProgress();
+	private final BufferPolicy mBufferPolicy = new BufferPolicy();
+	private int mDuration = -1;
+	private DownloadCache mCache = null;
+	private Prefetcher mPrefetcher = null;
 	
 	public DownloadManager(MediaPlaybackService mediaPlaybackService) {
 		mMediaPlaybackService = mediaPlaybackService;
 	}
 	
 	public void download(long id) {
+		download(id, true);
+	}
+	
+	/**
+	 * Takes over a track another player already opened from the cache, the
+	 * media player is left alone.
+	 */
+	public void attach(long id) {
+		download(id, false);
+	}
+	
+	/**
+	 * @return the path of the cached file of a track, or null if the track
+	 * has to be downloaded first.
+	 */
+	public String getCachedPath(long id) {
+		String uri = getUri(mMediaPlaybackService, id);
+		
+		if (uri == null) {
+			return null;
+		}
+		
+		DownloadCache.Entry entry = getCache().get(uri);
+		
+		return entry != null ? entry.getFile().getPath() : null;
+	}
+	
+	private void download(long id, boolean setDataSource) {
 		URL url = null;
 		String uri = getUri(mMediaPlaybackService, id);
 		
@@ -49,18 +123,70 @@ public class DownloadManager {
 			}
 		}
 
+		mId = id;
 		mTotalSizeInBytes = -1;
 		mLength = -1;
+		mSegmentedDownload = null;
+		mProgress = new DownloadProgress();
+		mDuration = mMediaPlaybackService.getDuration();
+		mBufferPolicy.start(getBufferSeconds(), getNoRebufferProbability());
 		mPartialFile = new File(Utils.getDownloadDirectory(), "mediafile" + id + ".partial.dat");
-        mCompleteFile = new File(Utils.getDownloadDirectory(), "mediafile" + id + ".complete.dat");
         Utils.deleteFile(mPartialFile);
-        Utils.deleteFile(mCompleteFile);
         
-        Log.v(TAG, "=============> " + mPartialFile.toString());
-		mDownloadTask = new DownloadTask(mPartialFile, mCompleteFile);
-        mDownloadTask.execute(url);
-        mPollingAsyncTask = new PollingAsyncTask();
-        mPollingAsyncTask.execute();
+        // prefetching would compete with the track the player waits for
+        getPrefetcher().setForeground(mProgress);
+        
+        DownloadCache cache = getCache();
+        DownloadCache.Entry entry = null;
+        
+        if (uri != null) {
+        	mCompleteFile = cache.getFile(uri);
+        	entry = cache.get(uri);
+        } else {
+        	mCompleteFile = new File(Utils.getDownloadDirectory(), "mediafile" + id + ".complete.dat");
+        }
+        
+        if (entry != null) {
+        	// replays start from disk right away, the server is only asked
+        	// whether the file changed so that the next replay is up to date
+        	Log.v(TAG, "playing " + uri + " from the cache");
+        	mTotalSizeInBytes = entry.getLength();
+        	mBufferPolicy.setLength(entry.getLength());
+        	mProgress.setPosition(entry.getLength());
+        	mProgress.finish();
+        	executeInParallel(new ValidationTask(uri, entry), url);
+        } else {
+        	Utils.deleteFile(mCompleteFile);
+        	
+        	Log.v(TAG, "=============> " + mPartialFile.toString());
+        	mDownloadTask = new DownloadTask(id, uri, mPartialFile, mCompleteFile, mProgress);
+        	executeInParallel(mDownloadTask, url);
+        }
+        
+        if (setDataSource) {
+        	mPollingAsyncTask = new PollingAsyncTask(mPartialFile, mProgress);
+        	executeInParallel(mPollingAsyncTask);
+        }
+	}
+	
+	/**
+	 * Runs a task next to the others, the polling task must not wait for the
+	 * download task it polls.
+	 */
+	private static <Params> void executeInParallel(AsyncTask<Params, ?, ?> task, Params... params) {
+		if (sExecuteOnExecutorMethod != null && sThreadPoolExecutor != null) {
+			try {
+				sExecuteOnExecutorMethod.invoke(task, sThreadPoolExecutor, params);
+				return;
+			} catch (IllegalAccessException e) {
+				Log.e(TAG, e.getMessage(), e);
+			} catch (InvocationTargetException e) {
+				Log.e(TAG, e.getMessage(), e);
+				return;
+			}
+		}
+		
+		task.execute(params);
 	}
 	
 	public void cancelDownload() {
@@ -69,6 +195,75 @@ public class DownloadManager {
 	    	downloadTask.cancel(false);
 	    	mDownloadTask = null;
 		}
+		
+		SegmentedDownload segmentedDownload = mSegmentedDownload;
+		if (segmentedDownload != null) {
+			segmentedDownload.cancel();
+			mMediaPlaybackService.getStreamProxy().removeDownload(mId, segmentedDownload);
+			mBufferPolicy.onUnderrun(segmentedDownload.getStallCount());
+			mSegmentedDownload = null;
+		}
+		
+		// a polling task still waiting for this download must not start playback
+		cancelPollingTask();
+		mProgress.finish();
+	}
+	
+	/**
+	 * Deletes partial downloads and files the cache no longer uses, the
+	 * cached tracks are kept.
+	 */
+	public void cleanup() {
+		cancelDownload();
+		
+		synchronized (this) {
+			if (mPrefetcher != null) {
+				mPrefetcher.stop();
+				mPrefetcher = null;
+			}
+		}
+		
+		File directory = Utils.getDownloadDirectory();
+		File [] files = directory != null ? directory.listFiles() : null;
+		
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				if (files[i].getName().startsWith("mediafile")) {
+					Utils.deleteFile(files[i]);
+				}
+			}
+		}
+		
+		getCache().deleteOrphans();
+		
+		synchronized (this) {
+			mCache.close();
+			mCache = null;
+		}
+	}
+	
+	/**
+	 * Downloads tracks into the cache in the background while the current
+	 * one plays, replacing the tracks requested before.
+	 * 
+	 * @param ids The tracks in the order they play.
+	 */
+	public void prefetch(long [] ids) {
+		List<String> uris = new ArrayList<String>();
+		
+		if (ids.length > 0 && getCache().getMaxSize() > 0) {
+			Map<Long, String> uriMap = getUris(mMediaPlaybackService, ids);
+			
+			for (int i = 0; i < ids.length; i++) {
+				String uri = uriMap.get(ids[i]);
+				
+				if (uri != null && !uris.contains(uri)) {
+					uris.add(uri);
+				}
+			}
+		}
+		
+		getPrefetcher().schedule(uris);
 	}
 	
 	public void cancelPollingTask() {
@@ -118,7 +313,126 @@ public class DownloadManager {
 			return 1.0;
 		}
 
-		return (double) mPartialFile.length() / (double) mTotalSizeInBytes;
+		return (double) getDownloadedLength() / (double) mTotalSizeInBytes;
+	}
+	
+	/**
+	 * @return the number of bytes that can be played from the start of the
+	 * file without waiting for the download.
+	 */
+	private long getDownloadedLength() {
+		return mProgress.getPosition();
+	}
+	
+	/**
+	 * Blocks until the current download has written offset bytes from the
+	 * start of the file, e.g. before seeking ahead or probing metadata.
+	 * 
+	 * @return true if the data is available, false if the download ended
+	 * or was cancelled first, or the timeout elapsed.
+	 */
+	public boolean waitForData(long offset, long timeout) throws InterruptedException {
+		return mProgress.await(offset, timeout);
+	}
+	
+	/**
+	 * Called when the player started playing the downloaded track.
+	 */
+	public void onPlaybackStarted() {
+		mBufferPolicy.onStarted();
+	}
+	
+	/**
+	 * Called when the player reached the end of the data it was given.
+	 */
+	public void onPlaybackEnded() {
+		if (!isCompleteFileAvailable()) {
+			// the player caught up with the download
+			mBufferPolicy.onUnderrun(1);
+		}
+	}
+	
+	/**
+	 * @return the startup times and underruns of the downloads so far.
+	 */
+	public String getStatistics() {
+		return mBufferPolicy.toString();
+	}
+	
+	private int getBufferSeconds() {
+		String bufferSeconds = PreferenceManager.getDefaultSharedPreferences(mMediaPlaybackService)
+				.getString(PreferenceConstants.BUFFER_SECONDS, String.valueOf(BufferPolicy.DEFAULT_BUFFER_SECONDS));
+		
+		try {
+			return Integer.parseInt(bufferSeconds);
+		} catch (NumberFormatException e) {
+			return BufferPolicy.DEFAULT_BUFFER_SECONDS;
+		}
+	}
+	
+	private double getNoRebufferProbability() {
+		String probability = PreferenceManager.getDefaultSharedPreferences(mMediaPlaybackService)
+				.getString(PreferenceConstants.NO_REBUFFER_PROBABILITY,
+						String.valueOf(BufferPolicy.DEFAULT_NO_REBUFFER_PROBABILITY));
+		
+		try {
+			return Double.parseDouble(probability);
+		} catch (NumberFormatException e) {
+			return BufferPolicy.DEFAULT_NO_REBUFFER_PROBABILITY;
+		}
+	}
+	
+	private synchronized DownloadCache getCache() {
+		if (mCache == null) {
+			// without a download directory the cache is disabled until the
+			// next cleanup()
+			mCache = new DownloadCache(Utils.getDownloadDirectory());
+			mCache.setMaxSize(getCacheSize());
+		}
+		
+		return mCache;
+	}
+	
+	/**
+	 * Called when the cache size preference changed, entries are evicted if
+	 * the cache shrinks.
+	 */
+	public void onCacheSizeChanged() {
+		getCache().setMaxSize(getCacheSize());
+	}
+	
+	private long getCacheSize() {
+		String cacheSize = PreferenceManager.getDefaultSharedPreferences(mMediaPlaybackService)
+				.getString(PreferenceConstants.CACHE_SIZE, String.valueOf(DEFAULT_CACHE_SIZE_MB));
+		
+		try {
+			return Long.parseLong(cacheSize) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			return DEFAULT_CACHE_SIZE_MB * 1024L * 1024L;
+		}
+	}
+	
+	private synchronized Prefetcher getPrefetcher() {
+		if (mPrefetcher == null) {
+			mPrefetcher = new Prefetcher(getCache(), new Prefetcher.OnPrefetchListener() {
+				
+				public boolean isNetworkMetered() {
+					return mMediaPlaybackService.isNetworkMetered();
+				}
+				
+				public void onPrefetched(String uri) {
+					mMediaPlaybackService.onTrackPrefetched();
+				}
+			});
+		}
+		
+		return mPrefetcher;
+	}
+	
+	private boolean isSegmentedDownloadEnabled() {
+		return PreferenceManager.getDefaultSharedPreferences(mMediaPlaybackService)
+				.getBoolean(PreferenceConstants.SEGMENTED_DOWNLOAD, true)
+				&& mMediaPlaybackService.getStreamProxy().isRunning();
 	}
 
 	public synchronized boolean isDownloadCancelled() {
@@ -129,7 +443,6 @@ public class DownloadManager {
 		cancelDownload();
 		cancelPollingTask();
 		Utils.deleteFile(mPartialFile);
-		Utils.deleteFile(mCompleteFile);
 	}
 	
 	/**
@@ -149,19 +462,29 @@ public class DownloadManager {
 		return length;
 	}
 	
-	private class DownloadTask extends AsyncTask<URL, Void, Void> {
+	private class DownloadTask extends AsyncTask<URL, Void, Void> implements IcyInputStream.OnMetadataListener {
 		
+		private long mId = -1;
+		private String mUri = null;
+		private String mETag = null;
+		private String mLastModified = null;
+		private boolean mLive = false;
 		private File mPartialFile = null;
 		private File mCompleteFile = null;
+		private boolean mSegmented = isSegmentedDownloadEnabled();
+		private DownloadProgress mProgress = null;
 		
-		public DownloadTask(File partialFile, File completeFile) {
+		public DownloadTask(long id, String uri, File partialFile, File completeFile, DownloadProgress progress) {
+			mId = id;
+			mUri = uri;
 			mPartialFile = partialFile;
 			mCompleteFile = completeFile;
+			mProgress = progress;
 		}
 		
 		@Override
 		protected Void doInBackground(URL... url) {
-        	HttpURLConnection conn = null;
+        	HttpResponse response = null;
         	BufferedInputStream in = null;
             FileOutputStream out = null;
             boolean appendToFile = false;
@@ -172,96 +495,396 @@ public class DownloadManager {
 			Log.v(TAG, "starting download task");
             while (!mCompleteFile.exists() && !isCancelled()) {
             	try {
-                	conn = determineRange(url[0], mPartialFile.length());
+                	response = determineRange(url[0], mPartialFile.length());
+                	int statusCode = response.getStatusCode();
+                	
+                	if (statusCode < 200 || statusCode >= 300) {
+                		// an error page is not media, it must neither be
+                		// played nor promoted to the complete file
+                		Log.v(TAG, "download failed: HTTP " + statusCode + " " + response.getStatusMessage());
+                		Utils.deleteFile(mPartialFile);
+                		break;
+                	}
             
-                	if (conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                	if (statusCode == HttpURLConnection.HTTP_PARTIAL) {
                 		appendToFile = true;
+                		
+                		if (mTotalSizeInBytes == -1) {
+                			mTotalSizeInBytes = response.getInstanceLength();
+                		}
                 	} else {
-                		mTotalSizeInBytes = conn.getContentLength();
+                		// the server ignored the Range header, the file is
+                		// written again from the start
+                		appendToFile = false;
+                		mProgress.reset();
+                		mTotalSizeInBytes = response.getContentLength();
                 	}
-            
-                	in = new BufferedInputStream(conn.getInputStream());
-                	out = new FileOutputStream(mPartialFile, appendToFile);
+                	
+                	setBitrate(response);
+                	
+                	if (response.getHeader("icy-metaint") != null || response.getHeader("icy-name") != null) {
+                		mLive = true;
+                	}
+                	
+                	if (mETag == null && mLastModified == null) {
+                		mETag = response.getHeader("etag");
+                		mLastModified = response.getHeader("last-modified");
+                	}
+                	
+                	SegmentedDownload segmentedDownload = null;
+                	
+                	if (mSegmented && mPartialFile.length() == 0 && canSegment(response)) {
+                		String contentType = response.getContentType();
+                		Utils.closeHttpResponse(response);
+                		response = null;
+                		
+                		segmentedDownload = downloadSegmented(url[0], contentType);
+                	} else {
+                		long position = appendToFile ? mPartialFile.length() : 0;
+                		in = new BufferedInputStream(demux(response));
+                		out = new FileOutputStream(mPartialFile, appendToFile);
 
-                	int i;
-                	while (((i = in.read(buffer)) != -1) && !isCancelled()) {
-                		out.write(buffer, 0, i);
-                		//count += i;
+                		int i;
+                		while (((i = in.read(buffer)) != -1) && !isCancelled()) {
+                			out.write(buffer, 0, i);
+                			position += i;
+                			mProgress.setPosition(position);
+                		}
+                		out.flush();
+                		out.close();
                 	}
-                	out.flush();
-                	out.close();
                 
-                	Utils.copyFile(mPartialFile, mCompleteFile);
-        			Log.v(TAG, "download task is complete");
+                	if (!isCancelled()) {
+                		moveToCompleteFile(segmentedDownload);
+                		Log.v(TAG, "download task is complete");
+                	}
             	} catch (IOException e) {
             		e.printStackTrace();
             	} finally {
             		Utils.closeInputStream(in);
-            		Utils.closeHttpConnection(conn);
+            		Utils.closeHttpResponse(response);
             		Utils.closeOutputStream(out);
+            		mMediaPlaybackService.getSHOUTcastMetadata().clearInBandSource(mId);
             	}
             }
             
+            mProgress.finish();
             return null;
         }
 	
-        private HttpURLConnection determineRange(URL url, long bytesProcessed) {
-        	HttpURLConnection conn = null;
+        private HttpResponse determineRange(URL url, long bytesProcessed) throws IOException {
+        	HttpRequest request = new HttpRequest(url);
+        	request.setHeader("Range", "bytes=" + bytesProcessed + "-");
+        	request.setHeader("Icy-MetaData", "1");
 		
+        	return HttpConnectionPool.getInstance().execute(request);
+        }
+        
+        /**
+         * Passes the length and, if the server or the media provider know
+         * it, the bitrate of the track to the buffer policy.
+         */
+        private void setBitrate(HttpResponse response) {
+        	mBufferPolicy.setLength(mTotalSizeInBytes);
+        	
+        	String bitrate = response.getHeader("icy-br");
+        	
+        	if (bitrate != null) {
+        		try {
+        			// kbit/s, some servers send a list like "128,128"
+        			int comma = bitrate.indexOf(',');
+        			mBufferPolicy.setBitrate(1000 * Integer.parseInt(
+        					(comma == -1 ? bitrate : bitrate.substring(0, comma)).trim()));
+        		} catch (NumberFormatException e) {
+        			Log.v(TAG, "invalid icy-br header: " + bitrate);
+        		}
+        	}
+        	
+        	if (mTotalSizeInBytes > 0 && mDuration > 0) {
+        		mBufferPolicy.setBitrate((int) (mTotalSizeInBytes * 8 * 1000 / mDuration));
+        	}
+        }
+        
+        /**
+         * @return true if the file is large enough to be split up and the
+         * server supports byte ranges.
+         */
+        private boolean canSegment(HttpResponse response) {
+        	return mTotalSizeInBytes >= 2 * SegmentedDownload.CHUNK_SIZE
+        			&& (response.getStatusCode() == HttpURLConnection.HTTP_PARTIAL
+        			|| "bytes".equalsIgnoreCase(response.getHeader("accept-ranges")));
+        }
+        
+        /**
+         * Downloads the file over several connections. The player reads it
+         * through the stream proxy since the file is allocated up front and
+         * its length no longer tells how much was downloaded.
+         */
+        private SegmentedDownload downloadSegmented(URL url, String contentType) throws IOException {
+        	SegmentedDownload download = new SegmentedDownload(url, mTotalSizeInBytes,
+        			contentType, mPartialFile, SEGMENTED_DOWNLOAD_CONNECTIONS, mProgress);
+        	mSegmentedDownload = download;
+        	
+        	Log.v(TAG, "starting segmented download of " + mTotalSizeInBytes + " bytes");
+        	
         	try {
-        		if (url.getProtocol().equalsIgnoreCase("http")) {
-        			conn = (HttpURLConnection) url.openConnection();
-        		} else if (url.getProtocol().equalsIgnoreCase("https")) {
-        			conn = (HttpsURLConnection) url.openConnection();        		
+        		download.run();
+        	} catch (IOException e) {
+        		// fall back to a single connection on the next attempt
+        		mSegmented = false;
+        		
+        		if (!isCancelled()) {
+        			mSegmentedDownload = null;
+        			mMediaPlaybackService.getStreamProxy().removeDownload(mId, download);
+        			Utils.deleteFile(mPartialFile);
         		}
-    	
-        		if (conn == null) {
-        			return null;
+        		
+        		throw e;
+        	}
+        	
+        	return download;
+        }
+        
+        /**
+         * Renames the partial file, the player may keep reading it while it
+         * is moved. Locks the download manager so that the polling task does
+         * not open the partial file at the same time.
+         */
+        private void moveToCompleteFile(SegmentedDownload segmentedDownload) throws IOException {
+        	synchronized (DownloadManager.this) {
+        		boolean moved;
+        		
+        		if (segmentedDownload != null) {
+        			moved = segmentedDownload.moveTo(mCompleteFile);
+        		} else {
+        			moved = Utils.moveFile(mPartialFile, mCompleteFile);
+        		}
+        		
+        		if (!moved) {
+        			throw new IOException("could not move " + mPartialFile + " to " + mCompleteFile);
+        		}
+        		
+        		if (mUri != null && isCacheable()) {
+        			getCache().put(mUri, mETag, mLastModified);
         		}
-		
-        		conn.setRequestProperty("User-Agent", "ServeStream");
-        		conn.setConnectTimeout(6000);
-        		conn.setReadTimeout(6000);
-        		conn.setRequestProperty("Range", "bytes=" + bytesProcessed + "-");
-        		conn.setRequestMethod("GET");
-        		conn.connect();
-        	} catch (IOException e) {
-        		e.printStackTrace();
         	}
-		
-        	return conn;
         }
+        
+        /**
+         * @return true if the complete file is the whole track and can be
+         * validated later. A live stream that ended or a response of unknown
+         * length may be only part of it, and without validators a stale copy
+         * could never be told apart.
+         */
+        private boolean isCacheable() {
+        	return !mLive
+        			&& (mETag != null || mLastModified != null)
+        			&& mTotalSizeInBytes > 0
+        			&& mCompleteFile.length() == mTotalSizeInBytes;
+        }
+        
+        /**
+         * Strips the ICY metadata blocks from a SHOUTcast/Icecast response so
+         * that only audio is written to disk, the titles are passed straight
+         * to the SHOUTcast metadata handler instead of being polled for.
+         */
+        private InputStream demux(HttpResponse response) {
+        	String metaInt = response.getHeader("icy-metaint");
+        	
+        	if (metaInt != null) {
+        		try {
+        			int metadataInterval = Integer.parseInt(metaInt.trim());
+        			
+        			if (metadataInterval > 0) {
+        				mMediaPlaybackService.getSHOUTcastMetadata().setInBandSource(mId);
+        				return new IcyInputStream(response.getInputStream(), metadataInterval, this);
+        			}
+        		} catch (NumberFormatException e) {
+        			Log.v(TAG, "invalid icy-metaint header: " + metaInt);
+        		}
+        	}
+        	
+        	return response.getInputStream();
+        }
+
+		public void onMetadata(byte [] buffer, int offset, int length) {
+			mMediaPlaybackService.getSHOUTcastMetadata().onInBandMetadata(mId, buffer, offset, length);
+		}
 	}
         
+	/**
+	 * Asks the server whether a cached file changed with a conditional
+	 * request and drops it from the cache if so. The file keeps playing,
+	 * only the next replay downloads it again.
+	 */
+	private class ValidationTask extends AsyncTask<URL, Void, Void> {
+		
+		private String mUri = null;
+		private DownloadCache.Entry mEntry = null;
+		
+		public ValidationTask(String uri, DownloadCache.Entry entry) {
+			mUri = uri;
+			mEntry = entry;
+		}
+		
+		@Override
+		protected Void doInBackground(URL... url) {
+			HttpRequest request = new HttpRequest(url[0]);
+			request.setBackground(true);
+			// the body is not needed, a single byte keeps the connection reusable
+			request.setHeader("Range", "bytes=0-0");
+			
+			if (mEntry.getETag() != null) {
+				request.setHeader("If-None-Match", mEntry.getETag());
+			}
+			
+			if (mEntry.getLastModified() != null) {
+				request.setHeader("If-Modified-Since", mEntry.getLastModified());
+			}
+			
+			HttpResponse response = null;
+			
+			try {
+				response = HttpConnectionPool.getInstance().execute(request);
+				int statusCode = response.getStatusCode();
+				
+				if (statusCode == HttpURLConnection.HTTP_NOT_FOUND || statusCode == HttpURLConnection.HTTP_GONE) {
+					Log.v(TAG, mUri + " is gone from the server, removing it from the cache");
+					getCache().remove(mUri);
+				} else if (statusCode == HttpURLConnection.HTTP_OK || statusCode == HttpURLConnection.HTTP_PARTIAL) {
+					long length = statusCode == HttpURLConnection.HTTP_PARTIAL ?
+							response.getInstanceLength() : response.getContentLength();
+					
+					if (!mEntry.matches(response.getHeader("etag"), response.getHeader("last-modified"), length)) {
+						Log.v(TAG, mUri + " changed on the server, removing it from the cache");
+						getCache().remove(mUri);
+					}
+				}
+			} catch (IOException e) {
+				// offline, keep playing from the cache
+				Log.v(TAG, "could not validate " + mUri + ": " + e.getMessage());
+			} finally {
+				Utils.closeHttpResponse(response);
+			}
+			
+			return null;
+		}
+	}
+	
 	private class PollingAsyncTask extends AsyncTask<Void, Void, Void> {
 		
-		//int INITIAL_BUFFER = Math.max(100000, 160 * 1024 / 8 * 5);
-		int INITIAL_BUFFER = 81920;
+		private static final int ID3_HEADER_SIZE = 10;
+		
+		// how often the threshold is recomputed from the download rate
+		private static final long SAMPLE_INTERVAL = 250;
 		
-	    public PollingAsyncTask() {
+		private File mPartialFile = null;
+		private DownloadProgress mProgress = null;
+		
+	    public PollingAsyncTask(File partialFile, DownloadProgress progress) {
 	        super();
+	        mPartialFile = partialFile;
+	        mProgress = progress;
 	    }
 	    
 		@Override
 		protected Void doInBackground(Void... stream) {  
 			Log.v(TAG, "polling task started");
 			
-			while (!bufferingComplete() && !isCancelled()) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+			// woken by the download task as soon as the data is on disk, the
+			// timeout only refines the threshold with the measured download rate
+			try {
+				probeBitrate();
+				
+				while (!mProgress.await(mBufferPolicy.getThreshold(), SAMPLE_INTERVAL)
+						&& !mProgress.isFinished() && !isCancelled()) {
+					mBufferPolicy.addSample(mProgress.getPosition());
 				}
+			} catch (InterruptedException e) {
+				return null;
+			}
+			
+			if (isCancelled() || (mProgress.isFinished() && !isCompleteFileAvailable())) {
+				return null;
 			}
 			
 			Log.v(TAG, "setDataSource called");
-			mMediaPlaybackService.getMediaPlayer().setDataSource(getPartialFile().getPath(), true);
+			
+			// the partial file is renamed when the download completes, which
+			// must not happen between choosing the file and opening it
+			synchronized (DownloadManager.this) {
+				SegmentedDownload segmentedDownload = mSegmentedDownload;
+				String proxyUrl = null;
+				
+				if (segmentedDownload != null && !isCompleteFileAvailable()) {
+					proxyUrl = mMediaPlaybackService.getStreamProxy().getProxyUrl(mId, segmentedDownload);
+				}
+				
+				if (proxyUrl != null) {
+					mMediaPlaybackService.getMediaPlayer().setDataSource(proxyUrl, false);
+				} else if (isCompleteFileAvailable()) {
+					mMediaPlaybackService.getMediaPlayer().setDataSource(getCompleteFile().getPath(), true);
+				} else {
+					mMediaPlaybackService.getMediaPlayer().setDataSource(mPartialFile.getPath(), true);
+				}
+			}
 			
 			return null;
 		}
 		
-		private boolean bufferingComplete() {
-			return getPartialFile().length() >= INITIAL_BUFFER;
+		/**
+		 * Reads the bitrate from the first frame of the file if neither the
+		 * server nor the media provider reported it, an ID3v2 tag in front of
+		 * the audio is skipped.
+		 */
+		private void probeBitrate() throws InterruptedException {
+			if (mBufferPolicy.hasBitrate() || isCompleteFileAvailable() || !mProgress.await(ID3_HEADER_SIZE)) {
+				return;
+			}
+			
+			byte [] buffer = new byte[BufferPolicy.MIN_BUFFER];
+			RandomAccessFile file = null;
+			
+			try {
+				file = new RandomAccessFile(mPartialFile, "r");
+				file.readFully(buffer, 0, ID3_HEADER_SIZE);
+				
+				long start = getId3TagSize(buffer);
+				mProgress.await(start + buffer.length);
+				
+				int count = (int) Math.min(buffer.length, mProgress.getPosition() - start);
+				
+				if (count > 0) {
+					file.seek(start);
+					file.readFully(buffer, 0, count);
+					mBufferPolicy.setBitrate(FrameSync.getBitrate(buffer, 0, count));
+				}
+			} catch (IOException e) {
+				Log.v(TAG, "could not probe the bitrate: " + e.getMessage());
+			} finally {
+				if (file != null) {
+					try {
+						file.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+		
+		/**
+		 * @return the size of the ID3v2 tag the header belongs to, or 0.
+		 */
+		private long getId3TagSize(byte [] header) {
+			if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+				return 0;
+			}
+			
+			// the size is a 28 bit synchsafe integer without the header
+			long size = ((header[6] & 0x7f) << 21) | ((header[7] & 0x7f) << 14)
+					| ((header[8] & 0x7f) << 7) | (header[9] & 0x7f);
+			
+			// a footer follows the tag if the flag is set
+			return ID3_HEADER_SIZE + size + ((header[5] & 0x10) != 0 ? ID3_HEADER_SIZE : 0);
 		}
 	}
 	
@@ -290,4 +913,37 @@ public class DownloadManager {
 		
 		return uri;
 	}
-}    
\ No newline at end of file
+	
+	private Map<Long, String> getUris(Context context, long [] ids) {
+		Map<Long, String> uris = new HashMap<Long, String>();
+		
+		StringBuilder selection = new StringBuilder();
+		selection.append(Media.MediaColumns._ID + " IN (");
+		for (int i = 0; i < ids.length; i++) {
+			if (i > 0) {
+				selection.append(",");
+			}
+			selection.append(ids[i]);
+		}
+		selection.append(")");
+		
+		Cursor cursor = context.getContentResolver().query(Media.MediaColumns.CONTENT_URI, 
+				new String [] { Media.MediaColumns._ID, Media.MediaColumns.URI },
+				selection.toString(),
+				null,
+				null);
+		
+		if (cursor != null) {
+			int idColumn = cursor.getColumnIndex(Media.MediaColumns._ID);
+			int uriColumn = cursor.getColumnIndex(Media.MediaColumns.URI);
+			
+			while (cursor.moveToNext()) {
+				uris.put(cursor.getLong(idColumn), cursor.getString(uriColumn));
+			}
+			
+			cursor.close();
+		}
+		
+		return uris;
+	}
+}
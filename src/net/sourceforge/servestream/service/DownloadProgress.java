@@ -0,0 +1,156 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how many bytes of a download are on disk without a gap from the
+ * start of the file. Threads can wait for any offset to be reached, each
+ * one is woken by the writer exactly when its offset is crossed instead of
+ * polling the file length.
+ */
+class DownloadProgress {
+
+	private long mPosition = 0;
+	private boolean mFinished = false;
+
+	// ordered by offset, so the writer only looks at waiters it releases
+	private final PriorityQueue<Waiter> mWaiters = new PriorityQueue<Waiter>();
+
+	/**
+	 * @return the number of bytes that can be read from the start of the file.
+	 */
+	synchronized long getPosition() {
+		return mPosition;
+	}
+
+	synchronized boolean isFinished() {
+		return mFinished;
+	}
+
+	/**
+	 * Called by the writer, releases every waiter whose offset was reached.
+	 */
+	synchronized void setPosition(long position) {
+		if (position <= mPosition) {
+			return;
+		}
+
+		mPosition = position;
+
+		while (!mWaiters.isEmpty() && mWaiters.peek().mOffset <= position) {
+			mWaiters.poll().mLatch.countDown();
+		}
+	}
+
+	/**
+	 * Called by the writer when the download starts over from the beginning
+	 * of the file. The waiters keep waiting for their offsets.
+	 */
+	synchronized void reset() {
+		mPosition = 0;
+	}
+
+	/**
+	 * Marks the download as ended, either because it is complete or because
+	 * it was cancelled. All waiters are released.
+	 */
+	synchronized void finish() {
+		mFinished = true;
+
+		while (!mWaiters.isEmpty()) {
+			mWaiters.poll().mLatch.countDown();
+		}
+	}
+
+	/**
+	 * Blocks until offset bytes are on disk or the download ended.
+	 *
+	 * @return true if the offset was reached.
+	 */
+	boolean await(long offset) throws InterruptedException {
+		Waiter waiter = addWaiter(offset);
+
+		if (waiter != null) {
+			try {
+				waiter.mLatch.await();
+			} catch (InterruptedException e) {
+				removeWaiter(waiter);
+				throw e;
+			}
+		}
+
+		return getPosition() >= offset;
+	}
+
+	/**
+	 * Like {@link #await(long)} but gives up after timeout milliseconds.
+	 *
+	 * @return true if the offset was reached.
+	 */
+	boolean await(long offset, long timeout) throws InterruptedException {
+		Waiter waiter = addWaiter(offset);
+
+		if (waiter != null) {
+			try {
+				if (!waiter.mLatch.await(timeout, TimeUnit.MILLISECONDS)) {
+					removeWaiter(waiter);
+				}
+			} catch (InterruptedException e) {
+				removeWaiter(waiter);
+				throw e;
+			}
+		}
+
+		return getPosition() >= offset;
+	}
+
+	/**
+	 * @return the waiter to block on, or null if there is no need to wait.
+	 */
+	private synchronized Waiter addWaiter(long offset) {
+		if (mPosition >= offset || mFinished) {
+			return null;
+		}
+
+		Waiter waiter = new Waiter(offset);
+		mWaiters.add(waiter);
+		return waiter;
+	}
+
+	private synchronized void removeWaiter(Waiter waiter) {
+		mWaiters.remove(waiter);
+	}
+
+	private static class Waiter implements Comparable<Waiter> {
+
+		private final long mOffset;
+		private final CountDownLatch mLatch = new CountDownLatch(1);
+
+		public Waiter(long offset) {
+			mOffset = offset;
+		}
+
+		public int compareTo(Waiter another) {
+			return mOffset < another.mOffset ? -1 : (mOffset == another.mOffset ? 0 : 1);
+		}
+	}
+}
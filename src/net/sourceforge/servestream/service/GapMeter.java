@@ -0,0 +1,90 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures the silence between a track that ended and the next one. The
+ * start of the next track is derived from its playback position, so a track
+ * the platform started on its own is measured as well as one started by
+ * the service. All times are in {@link SystemClock#uptimeMillis()}.
+ */
+class GapMeter {
+	private static final String TAG = GapMeter.class.getName();
+
+	private long mEndTime = -1;
+
+	private int mTransitionCount = 0;
+	private int mPreparedCount = 0;
+	private long mTotalGapMillis = 0;
+	private long mMaxGapMillis = 0;
+
+	/**
+	 * Called when the current track played to its end.
+	 *
+	 * @param endTime The time the track ended.
+	 */
+	synchronized void onTrackEnded(long endTime) {
+		mEndTime = endTime;
+	}
+
+	/**
+	 * Called once the track after an ended one plays.
+	 *
+	 * @param position The playback position of the new track in milliseconds.
+	 * @param prepared Whether the track was prepared while the previous one
+	 * played.
+	 */
+	synchronized void onTrackStarted(long position, boolean prepared) {
+		if (mEndTime < 0) {
+			// the user changed the track, there is nothing to measure
+			return;
+		}
+
+		long startTime = SystemClock.uptimeMillis() - position;
+		long gap = Math.max(0, startTime - mEndTime);
+		mEndTime = -1;
+
+		mTransitionCount++;
+		mTotalGapMillis += gap;
+		mMaxGapMillis = Math.max(mMaxGapMillis, gap);
+
+		if (prepared) {
+			mPreparedCount++;
+		}
+
+		Log.v(TAG, "gap between tracks " + gap + " ms" + (prepared ? ", next track was prepared" : ""));
+	}
+
+	/**
+	 * Forgets an ended track, e.g. because playback stopped after it.
+	 */
+	synchronized void cancel() {
+		mEndTime = -1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "GapMeter[transitions=" + mTransitionCount
+				+ ", prepared=" + mPreparedCount
+				+ ", averageGap=" + (mTransitionCount > 0 ? mTotalGapMillis / mTransitionCount : 0)
+				+ "ms, maxGap=" + mMaxGapMillis + "ms]";
+	}
+}
@@ -36,6 +36,8 @@ import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.PowerManager;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
@@ -44,8 +46,8 @@ import android.util.Log;
 import android.widget.Toast;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Vector;
 
 import net.sourceforge.servestream.R;
 import net.sourceforge.servestream.activity.MediaPlaybackActivity;
@@ -54,6 +56,7 @@ import net.sourceforge.servestream.media.MetadataRetriever;
 import net.sourceforge.servestream.media.SHOUTcastMetadata;
 import net.sourceforge.servestream.player.MultiPlayer;
 import net.sourceforge.servestream.provider.Media;
+import net.sourceforge.servestream.transport.HttpConnectionPool;
 import net.sourceforge.servestream.utils.PreferenceConstants;
 import net.sourceforge.servestream.utils.Utils;
 import net.sourceforge.servestream.widget.ServeStreamAppWidgetOneProvider;
@@ -115,18 +118,43 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     private static final int FOCUSCHANGE = 3;
     public static final int PLAYER_PREPARED = 6;
     public static final int PLAYER_ERROR = 7;
+    private static final int PREPARE_NEXT = 8;
+    // how long before the end of the current track the next one is opened
+    private static final long PREPARE_NEXT_AHEAD = 30000;
     private static final int MAX_HISTORY_SIZE = 100;
+    // the tracks after the current one whose metadata is retrieved first
+    private static final int METADATA_LOOKAHEAD = 5;
+    
+    private static final int DISPATCH_STATE = 1;
+    private static final int DISPATCH_PROGRESS = 2;
+    private static final int MIN_PROGRESS_INTERVAL = 250;
     
     protected StreamDatabase mStreamdb = null;
     
     private MultiPlayer mPlayer;
+    // the track after the current one, prepared while the current one plays
+    private MultiPlayer mNextPlayer;
+    private int mNextPlayPos = -1;
+    private long mNextPlayId = -1;
+    private boolean mNextIsStreaming = true;
+    private boolean mNextPlayerChained = false;
+    private final GapMeter mGapMeter = new GapMeter();
     private String mFileToPlay;
     private int mShuffleMode = SHUFFLE_NONE;
     private int mRepeatMode = REPEAT_NONE;
     private int mSleepTimerMode = SLEEP_TIMER_OFF;
-    private long [] mPlayList = null;
-    private int mPlayListLen = 0;
-    private Vector<Integer> mHistory = new Vector<Integer>(MAX_HISTORY_SIZE);
+    private final PlayQueue mPlayList = new PlayQueue();
+    private final ShuffleOrder mShuffleOrder = new ShuffleOrder(MAX_HISTORY_SIZE);
+    private QueueStore mQueueStore;
+    // where a track of a restored queue continues once it is opened
+    private long mResumeId = -1;
+    private long mResumePosition = 0;
+    // grows with every change a PlaybackSnapshot reports, guarded by this
+    private long mStateVersion = 0;
+    // the clients that are pushed the state, each with its ProgressSchedule
+    private final RemoteCallbackList<IPlaybackCallback> mCallbacks = new RemoteCallbackList<IPlaybackCallback>();
+    private boolean mScreenOn = true;
+    private boolean mStatePending = false;
     private Cursor mCursor;
     private int mPlayPos = -1;
     private final Shuffler mRand = new Shuffler();
@@ -155,6 +183,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     private ConnectivityReceiver mConnectivityManager;
     private SHOUTcastMetadata mSHOUTcastMetadata;
     private DownloadManager mDownloadManager;
+    private StreamProxy mStreamProxy;
     private SimpleLastfmScrobblerManager mSimpleLastfmScrobblerManager;
     private boolean mIsStreaming = true;
     
@@ -176,6 +205,13 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         @Override
         public void handleMessage(Message msg) {
             Log.v(TAG, "mMediaplayerHandler.handleMessage " + msg.what);
+            if (msg.obj instanceof MultiPlayer && msg.obj != mPlayer) {
+                if (msg.obj == mNextPlayer) {
+                    onNextPlayerMessage(msg.what);
+                }
+                // otherwise the player was replaced since it sent the message
+                return;
+            }
             switch (msg.what) {
                 case SERVER_DIED:
                 	Log.v(TAG, "server died!");
@@ -190,21 +226,44 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
                     }
                     break;
                 case TRACK_ENDED:
+                	mGapMeter.onTrackEnded(msg.getWhen());
+                	
+                	if (!mIsStreaming) {
+                		mDownloadManager.onPlaybackEnded();
+                	}
+                	
                 	notifyChange(PLAYBACK_COMPLETE);
                 	
                     if (mRepeatMode == REPEAT_CURRENT) {
                         seek(0);
                         play();
-                    } else {
+                        mGapMeter.onTrackStarted(mPlayer.position(), true);
+                    } else if (!switchToNextPlayer()) {
                         next(false);
                     }
                     break;
                 case PLAYER_PREPARED:
+                	if (!mIsStreaming) {
+                		mDownloadManager.onPlaybackStarted();
+                	}
+                	
                 	removeStickyBroadcast(new Intent(START_DIALOG));
                     sendBroadcast(new Intent(STOP_DIALOG));
+                    if (mResumeId >= 0) {
+                        if (mResumePosition > 0 && getAudioId() == mResumeId) {
+                            mPlayer.seek(mResumePosition);
+                        }
+                        mResumeId = -1;
+                        mResumePosition = 0;
+                    }
                     play();
+                    mGapMeter.onTrackStarted(mPlayer.position(), false);
                     notifyChange(META_CHANGED);
                     notifyChange(PLAYBACK_STARTED);
+                    prepareNextPlayer();
+                	break;
+                case PREPARE_NEXT:
+                	prepareNextPlayer();
                 	break;
                 case PLAYER_ERROR:
                 	handleError();
@@ -265,6 +324,8 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
   	    } else if (key.equals(PreferenceConstants.SEND_SCROBBLER_INFO)) {
 			final boolean sendShoutcastInfo = mPreferences.getBoolean(PreferenceConstants.SEND_SCROBBLER_INFO, false);
 			mSimpleLastfmScrobblerManager.setShouldSendScrobblerInfo(sendShoutcastInfo);
+  	    } else if (key.equals(PreferenceConstants.CACHE_SIZE)) {
+  	    	mDownloadManager.onCacheSizeChanged();
   	    }
   	}
     
@@ -319,6 +380,23 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         }
     };
     
+    private BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mScreenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            if (mScreenOn) {
+                // catch up on what changed while the screen was off
+                if (mStatePending) {
+                    mCallbackHandler.sendEmptyMessage(DISPATCH_STATE);
+                } else {
+                    mCallbackHandler.sendEmptyMessage(DISPATCH_PROGRESS);
+                }
+            } else {
+                mCallbackHandler.removeMessages(DISPATCH_PROGRESS);
+            }
+        }
+    };
+    
     private OnAudioFocusChangeListener mAudioFocusListener = new OnAudioFocusChangeListener() {
         public void onAudioFocusChange(int focusChange) {
             mMediaplayerHandler.obtainMessage(FOCUSCHANGE, focusChange, 0).sendToTarget();
@@ -339,6 +417,8 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
 		final boolean retrieveSHOUTcastMetadata = mPreferences.getBoolean(PreferenceConstants.RETRIEVE_SHOUTCAST_METADATA, false);
 		mSHOUTcastMetadata = new SHOUTcastMetadata(this, retrieveSHOUTcastMetadata);
 		mDownloadManager = new DownloadManager(this);
+		mStreamProxy = new StreamProxy(this);
+		mStreamProxy.start();
 		final boolean sendScrobblerInfo = mPreferences.getBoolean(PreferenceConstants.SEND_SCROBBLER_INFO, false);
 		mSimpleLastfmScrobblerManager = new SimpleLastfmScrobblerManager(this, sendScrobblerInfo);
 		
@@ -347,6 +427,12 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         
         mStreamdb = new StreamDatabase(this);
         
+        mQueueStore = new QueueStore(getFilesDir(), new QueueStore.Source() {
+            public QueueStore.Snapshot takeSnapshot() {
+                return takeQueueSnapshot();
+            }
+        });
+        
 		TelephonyManager tm = (TelephonyManager)getSystemService(TELEPHONY_SERVICE);
 		tm.listen(mPhoneListener, PhoneStateListener.LISTEN_CALL_STATE);
         
@@ -355,6 +441,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         mPlayer.setHandler(mMediaplayerHandler);
         
         reloadSettings();
+        reloadQueue();
         
         IntentFilter commandFilter = new IntentFilter();
         commandFilter.addAction(SERVICECMD);
@@ -367,6 +454,12 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         commandFilter.addAction(Intent.ACTION_DOCK_EVENT);
         registerReceiver(mDockReceiver,commandFilter);
         
+        mScreenOn = ((PowerManager) getSystemService(Context.POWER_SERVICE)).isScreenOn();
+        commandFilter = new IntentFilter();
+        commandFilter.addAction(Intent.ACTION_SCREEN_ON);
+        commandFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenReceiver, commandFilter);
+        
         // If the service was idle, but got killed before it stopped itself, the
         // system will relaunch it. Make sure it gets stopped again in that case.
         Message msg = mDelayedStopHandler.obtainMessage();
@@ -387,9 +480,13 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
             Log.e(TAG, "Service being destroyed while still playing.");
         }
         
+        saveQueue();
+        mQueueStore.close();
+        
         notifyChange(PLAYER_CLOSED);
         
         // release all MediaPlayer resources
+        releaseNextPlayer();
         mPlayer.release();
         mPlayer = null;
 
@@ -399,6 +496,8 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mMediaplayerHandler.removeCallbacksAndMessages(null);
         mSleepTimerHandler.removeCallbacksAndMessages(null);
+        mCallbackHandler.removeCallbacksAndMessages(null);
+        mCallbacks.kill();
 
         if (mCursor != null) {
             mCursor.close();
@@ -407,12 +506,20 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         
         unregisterReceiver(mIntentReceiver);
         unregisterReceiver(mDockReceiver);
+        unregisterReceiver(mScreenReceiver);
         
         mConnectivityManager.cleanup();
         mSHOUTcastMetadata.cleanup();
     	mDownloadManager.cancelDownload();
-    	Utils.deleteAllFiles();
+    	Log.v(TAG, "stream proxy statistics: " + mStreamProxy);
+    	Log.v(TAG, "download statistics: " + mDownloadManager.getStatistics());
+    	Log.v(TAG, "gap statistics: " + mGapMeter);
+    	mStreamProxy.stop();
+    	mDownloadManager.cleanup();
     	mSimpleLastfmScrobblerManager.cleanup();
+    	
+    	Log.v(TAG, "connection pool statistics: " + HttpConnectionPool.getInstance());
+    	HttpConnectionPool.getInstance().evictAll();
         
 		stopForeground(true);
 		
@@ -426,6 +533,76 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         ed.commit();
     }
     
+    /**
+     * Asks the queue store to save the queue, the shuffle order and the
+     * playback position once the calls stop for a moment.
+     */
+    private void saveQueue() {
+        mQueueStore.save();
+    }
+    
+    /**
+     * Called by the queue store on its background thread, so that a burst
+     * of changes copies the shuffle order and the history only once.
+     */
+    private QueueStore.Snapshot takeQueueSnapshot() {
+        synchronized (this) {
+            QueueStore.Snapshot snapshot = new QueueStore.Snapshot();
+            // the array is replaced, not modified, when the queue changes
+            snapshot.mIds = mPlayList.toArray();
+            snapshot.mShuffleOrder = mShuffleOrder.getOrder();
+            snapshot.mShufflePlayed = mShuffleOrder.getPlayedCount();
+            snapshot.mShuffleHistory = mShuffleOrder.getHistory();
+            snapshot.mPlayPos = mPlayPos;
+            if (mPlayer != null && mPlayer.isInitialized() && mPlayer.duration() > 0) {
+                snapshot.mSeekPosition = mPlayer.position();
+            } else if (mPlayPos >= 0 && mPlayList.get(mPlayPos) == mResumeId) {
+                snapshot.mSeekPosition = mResumePosition;
+            }
+            return snapshot;
+        }
+    }
+    
+    /**
+     * Restores the queue saved before the service was last destroyed. The
+     * current track is not opened until playback starts, it then continues
+     * at the saved position.
+     */
+    private void reloadQueue() {
+        long start = System.currentTimeMillis();
+        QueueStore.Snapshot snapshot = mQueueStore.load();
+        
+        if (snapshot == null || snapshot.mPlayPos < 0 || snapshot.mPlayPos >= snapshot.mIds.length) {
+            return;
+        }
+        
+        mPlayList.insert(0, snapshot.mIds);
+        mShuffleOrder.restore(snapshot.mIds.length, snapshot.mShuffleOrder,
+                snapshot.mShufflePlayed, snapshot.mShuffleHistory);
+        mPlayPos = snapshot.mPlayPos;
+        
+        mCursor = getContentResolver().query(
+                Media.MediaColumns.CONTENT_URI,
+                mCursorCols, "_id=" + mPlayList.get(mPlayPos), null, null);
+        if (mCursor == null || !mCursor.moveToFirst()) {
+            // the track was removed from the media provider meanwhile
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+            }
+            mPlayList.clear();
+            mShuffleOrder.clear();
+            mPlayPos = -1;
+            return;
+        }
+        mFileToPlay = mCursor.getString(mCursor.getColumnIndex(Media.MediaColumns.URI));
+        mResumeId = mPlayList.get(mPlayPos);
+        mResumePosition = snapshot.mSeekPosition;
+        
+        Log.v(TAG, "restored " + snapshot.mIds.length + " tracks in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+    
     private void reloadSettings() {
     	int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
         if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
@@ -438,6 +615,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         	shufmode = SHUFFLE_NONE;
         }
         mShuffleMode = shufmode;
+        mShuffleOrder.setEnabled(mShuffleMode == SHUFFLE_ON);
     }
     
     @Override
@@ -519,7 +697,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
 		
         // Take a snapshot of the current settings
         saveSettings();
-        //saveQueue(true);
+        saveQueue();
 
         if (isPlaying() || mPausedByTransientLossOfFocus) {
             // something is currently playing, or will be playing once 
@@ -530,7 +708,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         // If there is a playlist but playback is paused, then wait a while
         // before stopping the service, so that pause/resume isn't slow.
         // Also delay stopping the service if we're transitioning between tracks.
-        if (mPlayListLen > 0  || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
+        if (mPlayList.size() > 0  || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
             Message msg = mDelayedStopHandler.obtainMessage();
             mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
             return true;
@@ -571,6 +749,21 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     	return mPlayer;
     }
     
+    public SHOUTcastMetadata getSHOUTcastMetadata() {
+    	return mSHOUTcastMetadata;
+    }
+    
+    /**
+     * @return whether the active network is likely billed by volume
+     */
+    public boolean isNetworkMetered() {
+    	return mConnectivityManager.isMetered();
+    }
+    
+    public StreamProxy getStreamProxy() {
+    	return mStreamProxy;
+    }
+    
     /**
      * Notify the change-receivers that something has changed.
      * The intent that is sent contains the following data
@@ -592,6 +785,14 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
      */
     private void notifyChange(String what) {
     	
+        synchronized (this) {
+            mStateVersion++;
+        }
+        
+        if (what.equals(QUEUE_CHANGED) || what.equals(META_CHANGED) || what.equals(PLAYSTATE_CHANGED)) {
+            saveQueue();
+        }
+        
         Intent i = new Intent(what);
         i.putExtra("id", Long.valueOf(getAudioId()));
         i.putExtra("artist", getArtistName());
@@ -603,60 +804,161 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         
         // Share this notification directly with our widgets
         mAppWidgetProvider.notifyChange(this, what);
+        
+        // callbacks are only dispatched on the main thread, this coalesces
+        // the changes that arrive in a burst as well
+        mCallbackHandler.removeMessages(DISPATCH_STATE);
+        mCallbackHandler.sendEmptyMessage(DISPATCH_STATE);
+    }
+    
+    /**
+     * The position at which a callback gets its next progress update.
+     */
+    private static class ProgressSchedule {
+        private final int mInterval;
+        private long mNextPosition = 0;
+        
+        ProgressSchedule(int interval) {
+            mInterval = interval;
+        }
+        
+        /**
+         * @return true if the position reached the next multiple of the
+         * interval, or moved back because of a seek.
+         */
+        boolean isDue(long position) {
+            return position >= mNextPosition || position < mNextPosition - mInterval;
+        }
+        
+        void advance(long position) {
+            mNextPosition = (position / mInterval + 1) * mInterval;
+        }
     }
     
-    private void ensurePlayListCapacity(int size) {
-        if (mPlayList == null || size > mPlayList.length) {
-            // reallocate at 2x requested size so we don't
-            // need to grow and copy the array for every
-            // insert
-            long [] newlist = new long[size * 2];
-            int len = mPlayList != null ? mPlayList.length : mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                newlist[i] = mPlayList[i];
+    private Handler mCallbackHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case DISPATCH_STATE:
+                    dispatchState();
+                    break;
+                case DISPATCH_PROGRESS:
+                    dispatchProgress();
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+    
+    /**
+     * Pushes the current state to every callback, or, while the screen is
+     * off, remembers to do so once it is on again.
+     */
+    private void dispatchState() {
+        if (!mScreenOn) {
+            mStatePending = true;
+            return;
+        }
+        mStatePending = false;
+        
+        PlaybackSnapshot snapshot = getPlaybackSnapshot();
+        long position = Math.max(0, snapshot.getPosition());
+        int count = mCallbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            ((ProgressSchedule) mCallbacks.getBroadcastCookie(i)).advance(position);
+            try {
+                mCallbacks.getBroadcastItem(i).onStateChanged(snapshot);
+            } catch (RemoteException e) {
+                // the list drops the dead callback
+            }
+        }
+        mCallbacks.finishBroadcast();
+        
+        dispatchProgress();
+    }
+    
+    /**
+     * Pushes the state to the callbacks whose next progress update is due
+     * and schedules the following one, so that each update lands right on a
+     * multiple of the callback's interval. Nothing is scheduled while
+     * paused, while the screen is off or without callbacks.
+     */
+    private void dispatchProgress() {
+        mCallbackHandler.removeMessages(DISPATCH_PROGRESS);
+        if (!mScreenOn || !isPlaying() || !mPlayer.isInitialized()) {
+            return;
+        }
+        
+        long position = position();
+        PlaybackSnapshot snapshot = null;
+        long delay = Long.MAX_VALUE;
+        int count = mCallbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            ProgressSchedule schedule = (ProgressSchedule) mCallbacks.getBroadcastCookie(i);
+            if (schedule.isDue(position)) {
+                if (snapshot == null) {
+                    snapshot = getPlaybackSnapshot();
+                }
+                try {
+                    mCallbacks.getBroadcastItem(i).onProgress(snapshot);
+                } catch (RemoteException e) {
+                    // the list drops the dead callback
+                }
+                schedule.advance(position);
             }
-            mPlayList = newlist;
+            delay = Math.min(delay, schedule.mNextPosition - position);
+        }
+        mCallbacks.finishBroadcast();
+        
+        if (count > 0) {
+            mCallbackHandler.sendEmptyMessageDelayed(DISPATCH_PROGRESS, Math.max(1, delay));
+        }
+    }
+    
+    /**
+     * Starts pushing the state to a client.
+     * 
+     * @param progressInterval How often the client wants progress updates
+     * while playing, in milliseconds of playback.
+     */
+    public void registerCallback(IPlaybackCallback callback, int progressInterval) {
+        if (callback == null) {
+            return;
+        }
+        mCallbacks.register(callback, new ProgressSchedule(Math.max(progressInterval, MIN_PROGRESS_INTERVAL)));
+        mCallbackHandler.removeMessages(DISPATCH_STATE);
+        mCallbackHandler.sendEmptyMessage(DISPATCH_STATE);
+    }
+    
+    public void unregisterCallback(IPlaybackCallback callback) {
+        if (callback != null) {
+            mCallbacks.unregister(callback);
         }
-        // FIXME: shrink the array when the needed size is much smaller
-        // than the allocated size
     }
     
     // insert the list of songs at the specified position in the playlist
     private void addToPlayList(long [] list, int position) {
-        int addlen = list.length;
+        invalidateUpcoming();
         if (position < 0) { // overwrite
-            mPlayListLen = 0;
+            mPlayList.clear();
+            mShuffleOrder.clear();
+            MetadataRetriever.cancelAll();
             position = 0;
         }
-        ensurePlayListCapacity(mPlayListLen + addlen);
-        if (position > mPlayListLen) {
-            position = mPlayListLen;
-        }
-        
-        // move part of list after insertion point
-        int tailsize = mPlayListLen - position;
-        for (int i = tailsize ; i > 0 ; i--) {
-            mPlayList[position + i] = mPlayList[position + i - addlen]; 
+        if (position > mPlayList.size()) {
+            position = mPlayList.size();
         }
         
-        // copy list into playlist
-        for (int i = 0; i < addlen; i++) {
-            mPlayList[position + i] = list[i];
-        }
-        mPlayListLen += addlen;
-        if (mPlayListLen == 0) {
+        mPlayList.insert(position, list);
+        mShuffleOrder.insert(position, list.length);
+        if (mPlayList.size() == 0) {
             mCursor.close();
             mCursor = null;
             notifyChange(META_CHANGED);
         } else {
     		if (mPreferences.getBoolean(PreferenceConstants.RETRIEVE_METADATA, false)) {
-    			int playPos = 0;
-    			
-    			if (mPlayPos > 0) {
-    				playPos = mPlayPos;
-    			}
-    			
-    			MetadataRetriever.retrieve(MediaPlaybackService.this, list, playPos);
+    			MetadataRetriever.retrieve(MediaPlaybackService.this, list);
         	}
         }
     }
@@ -672,15 +974,15 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
      */
     public void enqueue(long [] list, int action) {
         synchronized(this) {
-            if (action == NEXT && mPlayPos + 1 < mPlayListLen) {
+            if (action == NEXT && mPlayPos + 1 < mPlayList.size()) {
                 addToPlayList(list, mPlayPos + 1);
                 notifyChange(QUEUE_CHANGED);
             } else {
-                // action == LAST || action == NOW || mPlayPos + 1 == mPlayListLen
+                // action == LAST || action == NOW || mPlayPos + 1 == mPlayList.size()
                 addToPlayList(list, Integer.MAX_VALUE);
                 notifyChange(QUEUE_CHANGED);
                 if (action == NOW) {
-                    mPlayPos = mPlayListLen - list.length;
+                    mPlayPos = mPlayList.size() - list.length;
                     openCurrent();
                     play();
                     notifyChange(META_CHANGED);
@@ -706,18 +1008,8 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     public void open(long [] list, int position) {
         synchronized (this) {
             long oldId = getAudioId();
-            int listlength = list.length;
-            boolean newlist = true;
-            if (mPlayListLen == listlength) {
-                // possible fast path: list might be the same
-                newlist = false;
-                for (int i = 0; i < listlength; i++) {
-                    if (list[i] != mPlayList[i]) {
-                        newlist = true;
-                        break;
-                    }
-                }
-            }
+            // possible fast path: list might be the same
+            boolean newlist = !Arrays.equals(list, mPlayList.toArray());
             if (newlist) {
                 addToPlayList(list, -1);
                 notifyChange(QUEUE_CHANGED);
@@ -725,9 +1017,10 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
             if (position >= 0) {
                 mPlayPos = position;
             } else {
-                mPlayPos = mRand.nextInt(mPlayListLen);
+                mPlayPos = mRand.nextInt(mPlayList.size());
             }
-            mHistory.clear();
+            mShuffleOrder.clearHistory();
+            invalidateUpcoming();
 
             openCurrent();
             if (oldId != getAudioId()) {
@@ -743,29 +1036,24 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
      */
     public void moveQueueItem(int index1, int index2) {
         synchronized (this) {
-            if (index1 >= mPlayListLen) {
-                index1 = mPlayListLen - 1;
+            invalidateUpcoming();
+            if (index1 >= mPlayList.size()) {
+                index1 = mPlayList.size() - 1;
             }
-            if (index2 >= mPlayListLen) {
-                index2 = mPlayListLen - 1;
+            if (index2 >= mPlayList.size()) {
+                index2 = mPlayList.size() - 1;
             }
             if (index1 < index2) {
-                long tmp = mPlayList[index1];
-                for (int i = index1; i < index2; i++) {
-                    mPlayList[i] = mPlayList[i+1];
-                }
-                mPlayList[index2] = tmp;
+                mPlayList.move(index1, index2);
+                mShuffleOrder.move(index1, index2);
                 if (mPlayPos == index1) {
                     mPlayPos = index2;
                 } else if (mPlayPos >= index1 && mPlayPos <= index2) {
                         mPlayPos--;
                 }
             } else if (index2 < index1) {
-                long tmp = mPlayList[index1];
-                for (int i = index1; i > index2; i--) {
-                    mPlayList[i] = mPlayList[i-1];
-                }
-                mPlayList[index2] = tmp;
+                mPlayList.move(index1, index2);
+                mShuffleOrder.move(index1, index2);
                 if (mPlayPos == index1) {
                     mPlayPos = index2;
                 } else if (mPlayPos >= index2 && mPlayPos <= index1) {
@@ -782,12 +1070,16 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
      */
     public long [] getQueue() {
         synchronized (this) {
-            int len = mPlayListLen;
-            long [] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                list[i] = mPlayList[i];
-            }
-            return list;
+            return mPlayList.toArray().clone();
+        }
+    }
+    
+    /**
+     * @return a number that changes whenever the play list changes.
+     */
+    public int getQueueVersion() {
+        synchronized (this) {
+            return mPlayList.getVersion();
         }
     }
 
@@ -798,12 +1090,14 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
                 mCursor = null;
             }
 
-            if (mPlayListLen == 0) {
+            if (mPlayList.size() == 0) {
                 return;
             }
             stop(false);
+            mShuffleOrder.setCurrent(mPlayPos);
+            prioritizeMetadata();
 
-            String id = String.valueOf(mPlayList[mPlayPos]);
+            String id = String.valueOf(mPlayList.get(mPlayPos));
             
             mCursor = getContentResolver().query(
                     Media.MediaColumns.CONTENT_URI,
@@ -846,17 +1140,38 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
             } else { 
             	if (mPreferences.getBoolean(PreferenceConstants.PROGRESSIVE_DOWNLOAD, false)) {
             		mIsStreaming = false;
-            		mDownloadManager.download(mPlayList[mPlayPos]);
+            		mDownloadManager.download(mPlayList.get(mPlayPos));
+            		prefetchUpcomingTracks();
             	} else {
             		mIsStreaming = true;
-            		mPlayer.setDataSource(mFileToPlay, false);
+            		mPlayer.setDataSource(getDataSource(), false);
             	}
             }
         }
     }
 
     private void setDataSource(boolean progressiveDownload) {    	
-    	mPlayer.setDataSource(mFileToPlay, false);
+    	mPlayer.setDataSource(getDataSource(), false);
+    }
+    
+    /**
+     * @return the URL the media player should stream the current track
+     * from, the loopback URL of the stream proxy if it is enabled.
+     */
+    private String getDataSource() {
+    	return getDataSource(mPlayList.get(mPlayPos), mFileToPlay);
+    }
+    
+    private String getDataSource(long id, String uri) {
+    	if (mPreferences.getBoolean(PreferenceConstants.STREAM_PROXY, true)) {
+    		String proxyUrl = mStreamProxy.getProxyUrl(id, uri);
+    		
+    		if (proxyUrl != null) {
+    			return proxyUrl;
+    		}
+    	}
+    	
+    	return uri;
     }
     
     /**
@@ -921,6 +1236,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     }
     
     private void stop(boolean remove_status_icon) {
+        releaseNextPlayer();
         if (mPlayer.isInitialized()) {
             mPlayer.stop();
             // TODO: Modify this code?
@@ -1004,7 +1320,8 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         the final play order might be 1-2-3-4-5-8-10-6-9-7.
         When hitting 'prev' 8 times while playing track 7 in this example, the
         user will go to tracks 9-6-10-8-5-4-3-2. If the user then hits 'next',
-        a random track will be picked again. If at any time user disables shuffling
+        tracks 3-4-5-8-10-6-9-7 will play again in that order before the tracks
+        that were not played yet are picked. If at any time user disables shuffling
         the next/previous track will be picked in sequential order again.
      */
 
@@ -1012,18 +1329,17 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         synchronized (this) {        	
             if (mShuffleMode == SHUFFLE_ON) {
                 // go to previously-played track and remove it from the history
-                int histsize = mHistory.size();
-                if (histsize == 0) {
+                int pos = mShuffleOrder.previous(mPlayPos);
+                if (pos < 0) {
                     // prev is a no-op
                     return;
                 }
-                Integer pos = mHistory.remove(histsize - 1);
-                mPlayPos = pos.intValue();
+                mPlayPos = pos;
             } else {
                 if (mPlayPos > 0) {
                     mPlayPos--;
                 } else {
-                    mPlayPos = mPlayListLen - 1;
+                    mPlayPos = mPlayList.size() - 1;
                 }
             }
             stop(false);
@@ -1033,73 +1349,25 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
 
     public void next(boolean force) {
         synchronized (this) {
-            if (mPlayListLen <= 0) {
+            if (mPlayList.size() <= 0) {
                 Log.d(TAG, "No media in playlist queue");
                 return;
             }
             if (mShuffleMode == SHUFFLE_ON) {
-                // Pick random next track from the not-yet-played ones
-                // TODO: make it work right after adding/removing items in the queue.
-
-                // Store the current file in the history, but keep the history at a
-                // reasonable size
-                if (mPlayPos >= 0) {
-                    mHistory.add(mPlayPos);
-                }
-                if (mHistory.size() > MAX_HISTORY_SIZE) {
-                    mHistory.removeElementAt(0);
-                }
-
-                int numTracks = mPlayListLen;
-                int[] tracks = new int[numTracks];
-                for (int i=0;i < numTracks; i++) {
-                    tracks[i] = i;
-                }
-
-                int numHistory = mHistory.size();
-                int numUnplayed = numTracks;
-                for (int i=0;i < numHistory; i++) {
-                    int idx = mHistory.get(i).intValue();
-                    if (idx < numTracks && tracks[idx] >= 0) {
-                        numUnplayed--;
-                        tracks[idx] = -1;
-                    }
-                }
-
-                // 'numUnplayed' now indicates how many tracks have not yet
-                // been played, and 'tracks' contains the indices of those
-                // tracks.
-                if (numUnplayed <=0) {
-                    // everything's already been played
-                    if (mRepeatMode == REPEAT_ALL || force) {
-                        //pick from full set
-                        numUnplayed = numTracks;
-                        for (int i=0;i < numTracks; i++) {
-                            tracks[i] = i;
-                        }
-                    } else {
-                        // all done
-                        gotoIdleState();
-                        if (mIsSupposedToBePlaying) {
-                            mIsSupposedToBePlaying = false;
-                            notifyChange(PLAYSTATE_CHANGED);
-                        }
-                        return;
-                    }
-                }
-                int skip = mRand.nextInt(numUnplayed);
-                int cnt = -1;
-                while (true) {
-                    while (tracks[++cnt] < 0)
-                        ;
-                    skip--;
-                    if (skip < 0) {
-                        break;
+                // the shuffle order stores the current file in the history
+                int pos = mShuffleOrder.next(mPlayPos, mRepeatMode == REPEAT_ALL || force);
+                if (pos < 0) {
+                    // all done
+                    gotoIdleState();
+                    if (mIsSupposedToBePlaying) {
+                        mIsSupposedToBePlaying = false;
+                        notifyChange(PLAYSTATE_CHANGED);
                     }
+                    return;
                 }
-                mPlayPos = cnt;
+                mPlayPos = pos;
             } else {
-                if (mPlayPos >= mPlayListLen - 1) {
+                if (mPlayPos >= mPlayList.size() - 1) {
                     // we're at the end of the list
                     if (mRepeatMode == REPEAT_NONE && !force) {
                         // all done
@@ -1120,7 +1388,291 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         }
     }
 
+    /**
+     * @return the positions of the tracks that play after the current one,
+     * at most count or, if count is negative, the rest of the queue.
+     */
+    private int [] getUpcomingPositions(int count) {
+        if (mPlayPos < 0 || mPlayList.size() <= 1 || mRepeatMode == REPEAT_CURRENT) {
+            return new int[0];
+        }
+
+        if (count < 0 || count > mPlayList.size() - 1) {
+            count = mPlayList.size() - 1;
+        }
+
+        if (mShuffleMode == SHUFFLE_ON) {
+            return mShuffleOrder.upcoming(mPlayPos, count, mRepeatMode == REPEAT_ALL);
+        }
+
+        int [] positions = new int[count];
+        int found = 0;
+
+        for (; found < count; found++) {
+            int pos = mPlayPos + found + 1;
+            if (pos >= mPlayList.size()) {
+                if (mRepeatMode != REPEAT_ALL) {
+                    break;
+                }
+                pos -= mPlayList.size();
+            }
+            positions[found] = pos;
+        }
+
+        int [] upcoming = new int[found];
+        System.arraycopy(positions, 0, upcoming, 0, found);
+        return upcoming;
+    }
+
+    /**
+     * Lets the metadata retriever fetch the current track and the ones that
+     * play after it before the rest of the queue.
+     */
+    private void prioritizeMetadata() {
+        if (mPlayPos < 0 || mPlayPos >= mPlayList.size()) {
+            MetadataRetriever.setPlayhead(-1, new long[0]);
+            return;
+        }
+
+        int [] positions = getUpcomingPositions(METADATA_LOOKAHEAD);
+        long [] ids = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            ids[i] = mPlayList.get(positions[i]);
+        }
+
+        MetadataRetriever.setPlayhead(mPlayList.get(mPlayPos), ids);
+    }
+
+    /**
+     * Lets the download manager fetch the tracks that play next into its
+     * cache, as many as the prefetch preference asks for.
+     */
+    private void prefetchUpcomingTracks() {
+        int count;
+        try {
+            count = Integer.parseInt(mPreferences.getString(PreferenceConstants.PREFETCH_TRACKS, "1"));
+        } catch (NumberFormatException e) {
+            count = 1;
+        }
+
+        int [] positions = count != 0 ? getUpcomingPositions(count) : new int[0];
+        long [] ids = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            ids[i] = mPlayList.get(positions[i]);
+        }
+
+        mDownloadManager.prefetch(ids);
+    }
+
+    /**
+     * Checks again what was prepared for the tracks after the current one,
+     * called when the queue or the play order changed. The prepared player
+     * is kept if its track still plays next.
+     */
+    private void invalidateUpcoming() {
+        // a chained player would start by itself, it is chained again once
+        // it turns out to still be the next track
+        if (mNextPlayerChained && mPlayer != null) {
+            mPlayer.setNextPlayer(null);
+            mNextPlayerChained = false;
+        }
+        mMediaplayerHandler.removeMessages(PREPARE_NEXT);
+        mMediaplayerHandler.sendEmptyMessage(PREPARE_NEXT);
+    }
+    
+    /**
+     * Opens the track that plays after the current one in a second player,
+     * so that it starts without a gap once the current one ends. With
+     * progressive download only a track that is in the download cache is
+     * opened, the others would need a second download. The second player
+     * holds a connection of its own, so it is only opened once the current
+     * track is about to end and never next to a live stream.
+     */
+    private void prepareNextPlayer() {
+        synchronized (this) {
+            prioritizeMetadata();
+            
+            if (mPlayer == null || !mPlayer.isInitialized() || mPlayPos < 0 || playingVideo()
+                    || !mPreferences.getBoolean(PreferenceConstants.GAPLESS_PLAYBACK, true)) {
+                releaseNextPlayer();
+                return;
+            }
+            
+            int [] upcoming = getUpcomingPositions(1);
+            int pos = upcoming.length > 0 ? upcoming[0] : -1;
+            
+            if (mNextPlayer != null && pos >= 0 && mPlayList.get(pos) == mNextPlayId) {
+                // already prepared or being prepared, tracks may have been
+                // added or removed before it
+                mNextPlayPos = pos;
+                if (!mNextPlayerChained && mNextPlayer.isInitialized()) {
+                    mNextPlayerChained = mPlayer.setNextPlayer(mNextPlayer);
+                }
+                return;
+            }
+            
+            releaseNextPlayer();
+            
+            if (pos < 0 || mPlayList.get(pos) == mPlayList.get(mPlayPos)) {
+                return;
+            }
+            
+            long duration = mPlayer.duration();
+            
+            if (duration <= 0) {
+                // a live stream, it does not end
+                return;
+            }
+            
+            long remaining = duration - mPlayer.position();
+            
+            if (remaining > PREPARE_NEXT_AHEAD) {
+                mMediaplayerHandler.removeMessages(PREPARE_NEXT);
+                mMediaplayerHandler.sendEmptyMessageDelayed(PREPARE_NEXT,
+                        remaining - PREPARE_NEXT_AHEAD);
+                return;
+            }
+            
+            long id = mPlayList.get(pos);
+            String uri = null;
+            
+            Cursor cursor = getContentResolver().query(
+                    Media.MediaColumns.CONTENT_URI,
+                    new String [] { Media.MediaColumns.URI }, "_id=" + id , null, null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    uri = cursor.getString(0);
+                }
+                cursor.close();
+            }
+            
+            if (uri == null || isVideo(uri)) {
+                return;
+            }
+            
+            boolean isStreaming = !mPreferences.getBoolean(PreferenceConstants.PROGRESSIVE_DOWNLOAD, false);
+            String path = isStreaming ? getDataSource(id, uri) : mDownloadManager.getCachedPath(id);
+            
+            if (path == null) {
+                // the prefetcher will tell us once the track is cached
+                return;
+            }
+            
+            Log.v(TAG, "preparing next track: " + uri);
+            
+            mNextPlayer = new MultiPlayer();
+            mNextPlayer.setHandler(mMediaplayerHandler);
+            mNextPlayPos = pos;
+            mNextPlayId = id;
+            mNextIsStreaming = isStreaming;
+            mNextPlayer.setDataSource(path, !isStreaming);
+        }
+    }
+    
+    private void onNextPlayerMessage(int what) {
+        synchronized (this) {
+            if (what == PLAYER_PREPARED) {
+                // on Jelly Bean and later the platform starts it without any gap
+                mNextPlayerChained = mPlayer.isInitialized() && mPlayer.setNextPlayer(mNextPlayer);
+                Log.v(TAG, "next track prepared" + (mNextPlayerChained ? " and chained" : ""));
+            } else {
+                releaseNextPlayer();
+            }
+        }
+    }
+    
+    /**
+     * Moves on to the track that was prepared in the second player.
+     * 
+     * @return false if it is not ready or no longer the next track, the
+     * caller then opens the next track the usual way.
+     */
+    private boolean switchToNextPlayer() {
+        synchronized (this) {
+            int [] upcoming = getUpcomingPositions(1);
+            
+            if (mNextPlayer == null || !mNextPlayer.isInitialized() || upcoming.length == 0
+                    || mPlayList.get(upcoming[0]) != mNextPlayId) {
+                releaseNextPlayer();
+                return false;
+            }
+            mNextPlayPos = upcoming[0];
+            
+            // the same bookkeeping as next()
+            if (mShuffleMode == SHUFFLE_ON) {
+                mShuffleOrder.next(mPlayPos, mRepeatMode == REPEAT_ALL);
+            }
+            mPlayPos = mNextPlayPos;
+            
+            MultiPlayer previous = mPlayer;
+            boolean chained = mNextPlayerChained;
+            mPlayer = mNextPlayer;
+            mNextPlayer = null;
+            mNextPlayPos = -1;
+            mNextPlayId = -1;
+            mNextPlayerChained = false;
+            previous.release();
+            
+            mDownloadManager.cancelDownload();
+            mIsStreaming = mNextIsStreaming;
+            
+            if (mCursor != null) {
+                mCursor.close();
+            }
+            mCursor = getContentResolver().query(
+                    Media.MediaColumns.CONTENT_URI,
+                    mCursorCols, "_id=" + mPlayList.get(mPlayPos) , null, null);
+            if (mCursor != null) {
+                mCursor.moveToFirst();
+                mFileToPlay = mCursor.getString(mCursor.getColumnIndex(Media.MediaColumns.URI));
+            }
+            
+            if (!mIsStreaming) {
+                mDownloadManager.attach(mPlayList.get(mPlayPos));
+                prefetchUpcomingTracks();
+            }
+            
+            // a chained player is already playing, play() updates the
+            // notification and the remote controls either way
+            play();
+            mGapMeter.onTrackStarted(mPlayer.position(), true);
+            Log.v(TAG, "switched to the prepared track" + (chained ? ", it was chained" : ""));
+            
+            notifyChange(META_CHANGED);
+            notifyChange(PLAYBACK_STARTED);
+            
+            prepareNextPlayer();
+            return true;
+        }
+    }
+    
+    private void releaseNextPlayer() {
+        if (mNextPlayer == null) {
+            return;
+        }
+        
+        if (mNextPlayerChained && mPlayer != null) {
+            mPlayer.setNextPlayer(null);
+        }
+        
+        mNextPlayer.release();
+        mNextPlayer = null;
+        mNextPlayPos = -1;
+        mNextPlayId = -1;
+        mNextPlayerChained = false;
+    }
+    
+    /**
+     * Called by the download manager once a track was prefetched, it may be
+     * the one to prepare next.
+     */
+    void onTrackPrefetched() {
+        mMediaplayerHandler.removeMessages(PREPARE_NEXT);
+        mMediaplayerHandler.sendEmptyMessage(PREPARE_NEXT);
+    }
+    
     private void gotoIdleState() {
+        mGapMeter.cancel();
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         Message msg = mDelayedStopHandler.obtainMessage();
         mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
@@ -1162,8 +1714,10 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     private int removeTracksInternal(int first, int last) {
         synchronized (this) {
             if (last < first) return 0;
+            invalidateUpcoming();
             if (first < 0) first = 0;
-            if (last >= mPlayListLen) last = mPlayListLen - 1;
+            if (last >= mPlayList.size()) last = mPlayList.size() - 1;
+            if (last < first) return 0;
 
             boolean gotonext = false;
             if (first <= mPlayPos && mPlayPos <= last) {
@@ -1172,14 +1726,16 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
             } else if (mPlayPos > last) {
                 mPlayPos -= (last - first + 1);
             }
-            int num = mPlayListLen - last - 1;
-            for (int i = 0; i < num; i++) {
-                mPlayList[first + i] = mPlayList[last + 1 + i];
+            long [] removedIds = new long[last - first + 1];
+            for (int i = first; i <= last; i++) {
+                removedIds[i - first] = mPlayList.get(i);
             }
-            mPlayListLen -= last - first + 1;
+            mPlayList.remove(first, last);
+            mShuffleOrder.remove(first, last);
+            cancelMetadata(removedIds);
             
             if (gotonext) {
-                if (mPlayListLen == 0) {
+                if (mPlayList.size() == 0) {
                     stop(true);
                     mPlayPos = -1;
                     if (mCursor != null) {
@@ -1187,7 +1743,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
                         mCursor = null;
                     }
                 } else {
-                    if (mPlayPos >= mPlayListLen) {
+                    if (mPlayPos >= mPlayList.size()) {
                         mPlayPos = 0;
                     }
                     boolean wasPlaying = isPlaying();
@@ -1203,6 +1759,24 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         }
     }
     
+    /**
+     * Drops the pending metadata retrieval of removed tracks that are no
+     * longer in the queue.
+     */
+    private void cancelMetadata(long [] removedIds) {
+        long [] ids = new long[removedIds.length];
+        int count = 0;
+        for (int i = 0; i < removedIds.length; i++) {
+            if (!mPlayList.contains(removedIds[i])) {
+                ids[count++] = removedIds[i];
+            }
+        }
+
+        long [] cancelled = new long[count];
+        System.arraycopy(ids, 0, cancelled, 0, count);
+        MetadataRetriever.cancel(cancelled);
+    }
+    
     /**
      * Removes all instances of the track with the given id
      * from the playlist.
@@ -1212,11 +1786,10 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     public int removeTrack(long id) {
         int numremoved = 0;
         synchronized (this) {
-            for (int i = 0; i < mPlayListLen; i++) {
-                if (mPlayList[i] == id) {
-                    numremoved += removeTracksInternal(i, i);
-                    i--;
-                }
+            // from the back, so that the remaining positions stay valid
+            int [] positions = mPlayList.positionsOf(id);
+            for (int i = positions.length - 1; i >= 0; i--) {
+                numremoved += removeTracksInternal(positions[i], positions[i]);
             }
         }
         if (numremoved > 0) {
@@ -1227,10 +1800,16 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     
     public void setShuffleMode(int shufflemode) {
         synchronized(this) {
-            if (mShuffleMode == shufflemode && mPlayListLen > 0) {
+            if (mShuffleMode == shufflemode && mPlayList.size() > 0) {
                 return;
             }
             mShuffleMode = shufflemode;
+            mStateVersion++;
+            mShuffleOrder.setEnabled(mShuffleMode == SHUFFLE_ON);
+            if (mShuffleMode == SHUFFLE_ON) {
+                mShuffleOrder.reshuffle(mPlayPos);
+            }
+            invalidateUpcoming();
             saveSettings();
         }
     }
@@ -1241,6 +1820,8 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     public void setRepeatMode(int repeatmode) {
         synchronized(this) {
             mRepeatMode = repeatmode;
+            mStateVersion++;
+            invalidateUpcoming();
             saveSettings();
         }
     }
@@ -1280,7 +1861,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     public long getMediaId() {
         synchronized (this) {
             if (mPlayPos >= 0 && mPlayer.isInitialized()) {
-                return mPlayList[mPlayPos];
+                return mPlayList.get(mPlayPos);
             }
         }
         return -1;
@@ -1293,7 +1874,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     public long getAudioId() {
         synchronized (this) {
             if (mPlayPos >= 0 && mPlayer.isInitialized()) {
-                return mPlayList[mPlayPos];
+                return mPlayList.get(mPlayPos);
             }
         }
         return -1;
@@ -1324,7 +1905,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
 
     public String getTrackNumber() {
     	synchronized (this) {
-    		return ((mPlayPos + 1) + " / " + mPlayListLen);
+    		return ((mPlayPos + 1) + " / " + mPlayList.size());
     	}
     }
     
@@ -1374,6 +1955,37 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     	}
     }
     
+    /**
+     * Returns everything a client shows about the current track in one
+     * call, the cursor is read once under the lock.
+     */
+    public PlaybackSnapshot getPlaybackSnapshot() {
+        synchronized (this) {
+            PlaybackSnapshot snapshot = new PlaybackSnapshot();
+            snapshot.mVersion = mStateVersion;
+            snapshot.mAudioId = getAudioId();
+            snapshot.mQueuePosition = mPlayPos;
+            snapshot.mQueueLength = mPlayList.size();
+            snapshot.mPath = mFileToPlay;
+            if (mCursor != null) {
+                snapshot.mMediaUri = mCursor.getString(mCursor.getColumnIndexOrThrow(Media.MediaColumns.URI));
+                snapshot.mTrackName = mCursor.getString(mCursor.getColumnIndexOrThrow(Media.MediaColumns.TITLE));
+                snapshot.mArtistName = mCursor.getString(mCursor.getColumnIndexOrThrow(Media.MediaColumns.ARTIST));
+                snapshot.mAlbumName = mCursor.getString(mCursor.getColumnIndexOrThrow(Media.MediaColumns.ALBUM));
+            }
+            snapshot.mPlaying = mIsSupposedToBePlaying;
+            snapshot.mStreaming = mIsStreaming;
+            snapshot.mDuration = duration();
+            snapshot.mPosition = position();
+            snapshot.mCompleteFileAvailable = mDownloadManager.isCompleteFileAvailable();
+            snapshot.mCompleteFileDuration = mDownloadManager.getLength();
+            snapshot.mPercentDownloaded = mDownloadManager.getPercentDownloaded();
+            snapshot.mShuffleMode = mShuffleMode;
+            snapshot.mRepeatMode = mRepeatMode;
+            return snapshot;
+        }
+    }
+    
     public boolean isStreaming() {
         synchronized (this) {    	
         	return mIsStreaming;
@@ -1434,7 +2046,13 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
             	if (pos > mPlayer.duration()) pos = mPlayer.duration();
         	//}
             
-            return mPlayer.seek(pos);
+            long result = mPlayer.seek(pos);
+            // the progress updates follow the new position
+            mCallbackHandler.sendEmptyMessage(DISPATCH_PROGRESS);
+            // the next track may have to be opened sooner
+            mMediaplayerHandler.removeMessages(PREPARE_NEXT);
+            mMediaplayerHandler.sendEmptyMessage(PREPARE_NEXT);
+            return result;
         }
         return -1;
     }
@@ -1506,6 +2124,9 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
         public long [] getQueue() {
             return mService.get().getQueue();
         }
+        public int getQueueVersion() {
+            return mService.get().getQueueVersion();
+        }
         public void moveQueueItem(int from, int to) {
             mService.get().moveQueueItem(from, to);
         }
@@ -1563,6 +2184,15 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
 		public double getPercentDownloaded() throws RemoteException {
 			return mService.get().getPercentDownloaded();
 		}
+		public PlaybackSnapshot getPlaybackSnapshot() throws RemoteException {
+			return mService.get().getPlaybackSnapshot();
+		}
+		public void registerCallback(IPlaybackCallback callback, int progressInterval) throws RemoteException {
+			mService.get().registerCallback(callback, progressInterval);
+		}
+		public void unregisterCallback(IPlaybackCallback callback) throws RemoteException {
+			mService.get().unregisterCallback(callback);
+		}
     }
     
     private final IBinder mBinder = new ServiceStub(this);
@@ -1614,6 +2244,9 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
 	 * Called when connectivity to the network is restored.
 	 */
 	public void onConnectivityRestored() {
+		// streams that are waiting to reconnect don't need to wait any longer
+		mStreamProxy.onConnectivityRestored();
+		
 		if (mPausedByConnectivityReceiver) {
 			mPausedByConnectivityReceiver = false;
 			play();
@@ -1626,11 +2259,15 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
      * @return boolean True if the currently playing file is a video, false otherwise
      */
     private boolean playingVideo() {
+    	return isVideo(mFileToPlay);
+    }
+    
+    private static boolean isVideo(String path) {
     	String fileExtention = null;
     	
     	try {
-    	    if (this.mFileToPlay.length() > 4) {
-    		    fileExtention = this.mFileToPlay.substring(this.mFileToPlay.length() - 4, this.mFileToPlay.length());
+    	    if (path.length() > 4) {
+    		    fileExtention = path.substring(path.length() - 4, path.length());
     	        if (fileExtention.equalsIgnoreCase(".3gp") || fileExtention.equalsIgnoreCase(".mp4")) {
     	    	    return true;
     	        }
@@ -1651,7 +2288,7 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
     		return;
     	}
     	
-    	long id = mPlayList[mPlayPos];
+    	long id = mPlayList.get(mPlayPos);
     	
         cursor = getContentResolver().query(
                 Media.MediaColumns.CONTENT_URI,
@@ -1729,8 +2366,8 @@ public class MediaPlaybackService extends Service implements OnSharedPreferenceC
             stop(true);
             mOpenFailedCounter++;
             
-            if (mPlayListLen > 1) {
-            	if (mOpenFailedCounter == mPlayListLen) {
+            if (mPlayList.size() > 1) {
+            	if (mOpenFailedCounter == mPlayList.size()) {
             		mOpenFailedCounter = 0;
             	} else {
             		mDelayedPlaybackHandler.sendEmptyMessageDelayed(0, 2500);
@@ -0,0 +1,555 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The ids of the tracks in the play queue. The queue is an implicit treap,
+ * a randomized balanced tree ordered by position, so reading, inserting,
+ * removing and moving a track take O(log n) and inserting or removing m
+ * tracks at once takes O(m + log n). The positions of an id are found
+ * through a hash index without scanning the queue.
+ * <p>
+ * Nodes live in parallel arrays and are referred to by their index, which
+ * keeps a queue of tens of thousands of tracks free of per-track objects.
+ * The class is not thread safe.
+ */
+class PlayQueue {
+
+	private static final int NIL = -1;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Random mRandom = new Random();
+
+	// the tree, indexed by node
+	private long [] mValue;
+	private int [] mPriority;
+	private int [] mLeft;
+	private int [] mRight;
+	private int [] mParent;
+	private int [] mSize;
+
+	// the nodes holding the same id form a list, the first node of every
+	// list is in mIndex, an open addressing hash table keyed by id
+	private int [] mNextSame;
+	private int [] mPreviousSame;
+	private int [] mIndex;
+	private int mIndexCount = 0;
+
+	private int mRoot = NIL;
+	private int mFree = NIL;
+	private int mAllocated = 0;
+
+	// what toArray() returned, until the queue changes
+	private long [] mSnapshot = null;
+
+	// grows with every change
+	private int mVersion = 0;
+
+	PlayQueue() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @return the number of tracks in the queue.
+	 */
+	int size() {
+		return size(mRoot);
+	}
+
+	/**
+	 * @return the id of the track at a position.
+	 */
+	long get(int position) {
+		return mValue[nodeAt(position)];
+	}
+
+	/**
+	 * Inserts tracks so that the first of them ends up at position.
+	 */
+	void insert(int position, long [] ids) {
+		if (position < 0 || position > size()) {
+			throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+		}
+
+		if (ids.length == 0) {
+			return;
+		}
+
+		int tree = build(ids);
+		int [] parts = split(mRoot, position);
+		mRoot = merge(merge(parts[0], tree), parts[1]);
+		mParent[mRoot] = NIL;
+		mSnapshot = null;
+		mVersion++;
+	}
+
+	/**
+	 * Removes the tracks from first to last, both inclusive.
+	 */
+	void remove(int first, int last) {
+		if (first < 0 || last >= size() || first > last) {
+			throw new IndexOutOfBoundsException("first " + first + ", last " + last + ", size " + size());
+		}
+
+		int [] tail = split(mRoot, last + 1);
+		int [] head = split(tail[0], first);
+		release(head[1]);
+		mRoot = merge(head[0], tail[1]);
+
+		if (mRoot != NIL) {
+			mParent[mRoot] = NIL;
+		}
+
+		mSnapshot = null;
+		mVersion++;
+	}
+
+	/**
+	 * Moves the track at from to the position to, the tracks in between
+	 * shift by one.
+	 */
+	void move(int from, int to) {
+		if (from < 0 || from >= size() || to < 0 || to >= size()) {
+			throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", size " + size());
+		}
+
+		if (from == to) {
+			return;
+		}
+
+		// detach the node and insert it again, it keeps its index entry
+		int [] tail = split(mRoot, from + 1);
+		int [] head = split(tail[0], from);
+		int node = head[1];
+		int rest = merge(head[0], tail[1]);
+
+		int [] parts = split(rest, to);
+		mRoot = merge(merge(parts[0], node), parts[1]);
+		mParent[mRoot] = NIL;
+		mSnapshot = null;
+		mVersion++;
+	}
+
+	void clear() {
+		release(mRoot);
+		mRoot = NIL;
+		mSnapshot = null;
+		mVersion++;
+	}
+
+	/**
+	 * @return a number that changes whenever the queue changes, so that a
+	 * client can tell whether the queue was edited without copying it.
+	 */
+	int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return the positions of an id in ascending order, empty if it is not
+	 * in the queue.
+	 */
+	int [] positionsOf(long id) {
+		int count = 0;
+
+		for (int node = findIndex(id); node != NIL; node = mNextSame[node]) {
+			count++;
+		}
+
+		int [] positions = new int[count];
+		int i = 0;
+
+		for (int node = findIndex(id); node != NIL; node = mNextSame[node]) {
+			positions[i++] = positionOf(node);
+		}
+
+		Arrays.sort(positions);
+		return positions;
+	}
+
+	boolean contains(long id) {
+		return findIndex(id) != NIL;
+	}
+
+	/**
+	 * @return the ids in queue order. The array is shared until the queue
+	 * changes and must not be modified.
+	 */
+	long [] toArray() {
+		if (mSnapshot == null) {
+			long [] ids = new long[size()];
+			int [] stack = new int[64];
+			int depth = 0;
+			int node = mRoot;
+			int i = 0;
+
+			while (node != NIL || depth > 0) {
+				while (node != NIL) {
+					if (depth == stack.length) {
+						int [] grown = new int[depth * 2];
+						System.arraycopy(stack, 0, grown, 0, depth);
+						stack = grown;
+					}
+					stack[depth++] = node;
+					node = mLeft[node];
+				}
+
+				node = stack[--depth];
+				ids[i++] = mValue[node];
+				node = mRight[node];
+			}
+
+			mSnapshot = ids;
+		}
+
+		return mSnapshot;
+	}
+
+	private int size(int node) {
+		return node == NIL ? 0 : mSize[node];
+	}
+
+	private void update(int node) {
+		mSize[node] = 1 + size(mLeft[node]) + size(mRight[node]);
+	}
+
+	private void setLeft(int node, int child) {
+		mLeft[node] = child;
+		if (child != NIL) {
+			mParent[child] = node;
+		}
+	}
+
+	private void setRight(int node, int child) {
+		mRight[node] = child;
+		if (child != NIL) {
+			mParent[child] = node;
+		}
+	}
+
+	private int nodeAt(int position) {
+		if (position < 0 || position >= size()) {
+			throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+		}
+
+		int node = mRoot;
+
+		while (true) {
+			int leftSize = size(mLeft[node]);
+
+			if (position < leftSize) {
+				node = mLeft[node];
+			} else if (position == leftSize) {
+				return node;
+			} else {
+				position -= leftSize + 1;
+				node = mRight[node];
+			}
+		}
+	}
+
+	private int positionOf(int node) {
+		int position = size(mLeft[node]);
+
+		while (mParent[node] != NIL) {
+			int parent = mParent[node];
+
+			if (mRight[parent] == node) {
+				position += size(mLeft[parent]) + 1;
+			}
+
+			node = parent;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Splits a tree into its first count nodes and the rest, the roots of
+	 * both parts are returned.
+	 */
+	private int [] split(int node, int count) {
+		if (node == NIL) {
+			return new int [] { NIL, NIL };
+		}
+
+		mParent[node] = NIL;
+		int leftSize = size(mLeft[node]);
+
+		if (count <= leftSize) {
+			int [] parts = split(mLeft[node], count);
+			setLeft(node, parts[1]);
+			update(node);
+			parts[1] = node;
+			return parts;
+		} else {
+			int [] parts = split(mRight[node], count - leftSize - 1);
+			setRight(node, parts[0]);
+			update(node);
+			parts[0] = node;
+			return parts;
+		}
+	}
+
+	private int merge(int left, int right) {
+		if (left == NIL) {
+			return right;
+		}
+
+		if (right == NIL) {
+			return left;
+		}
+
+		if (mPriority[left] > mPriority[right]) {
+			setRight(left, merge(mRight[left], right));
+			update(left);
+			return left;
+		} else {
+			setLeft(right, merge(left, mLeft[right]));
+			update(right);
+			return right;
+		}
+	}
+
+	/**
+	 * Builds a tree of ids in O(n), the right spine of the tree built so far
+	 * is kept on a stack.
+	 */
+	private int build(long [] ids) {
+		int [] spine = new int[ids.length];
+		int depth = 0;
+
+		for (int i = 0; i < ids.length; i++) {
+			int node = newNode(ids[i]);
+			int last = NIL;
+
+			while (depth > 0 && mPriority[spine[depth - 1]] < mPriority[node]) {
+				last = spine[--depth];
+				update(last);
+			}
+
+			setLeft(node, last);
+
+			if (depth > 0) {
+				setRight(spine[depth - 1], node);
+			}
+
+			spine[depth++] = node;
+		}
+
+		while (depth > 0) {
+			update(spine[--depth]);
+		}
+
+		int root = spine[0];
+		mParent[root] = NIL;
+		return root;
+	}
+
+	private int newNode(long id) {
+		if (mFree == NIL) {
+			allocate(mAllocated * 2);
+		}
+
+		int node = mFree;
+		mFree = mRight[node];
+
+		mValue[node] = id;
+		mPriority[node] = mRandom.nextInt();
+		mLeft[node] = NIL;
+		mRight[node] = NIL;
+		mParent[node] = NIL;
+		mSize[node] = 1;
+		addToIndex(node);
+		return node;
+	}
+
+	/**
+	 * Returns the nodes of a tree to the free list.
+	 */
+	private void release(int root) {
+		if (root == NIL) {
+			return;
+		}
+
+		int [] stack = new int[64];
+		int depth = 0;
+		stack[depth++] = root;
+
+		while (depth > 0) {
+			int node = stack[--depth];
+
+			if (depth + 2 > stack.length) {
+				int [] grown = new int[stack.length * 2];
+				System.arraycopy(stack, 0, grown, 0, depth);
+				stack = grown;
+			}
+
+			if (mLeft[node] != NIL) {
+				stack[depth++] = mLeft[node];
+			}
+
+			if (mRight[node] != NIL) {
+				stack[depth++] = mRight[node];
+			}
+
+			removeFromIndex(node);
+			mLeft[node] = NIL;
+			mParent[node] = NIL;
+			mRight[node] = mFree;
+			mFree = node;
+		}
+	}
+
+	private void allocate(int capacity) {
+		int old = mAllocated;
+
+		mValue = grow(mValue, capacity);
+		mPriority = grow(mPriority, capacity);
+		mLeft = grow(mLeft, capacity);
+		mRight = grow(mRight, capacity);
+		mParent = grow(mParent, capacity);
+		mSize = grow(mSize, capacity);
+		mNextSame = grow(mNextSame, capacity);
+		mPreviousSame = grow(mPreviousSame, capacity);
+
+		// the new nodes form the free list
+		for (int node = capacity - 1; node >= old; node--) {
+			mRight[node] = mFree;
+			mFree = node;
+		}
+
+		mAllocated = capacity;
+	}
+
+	private static long [] grow(long [] array, int capacity) {
+		long [] grown = new long[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, grown, 0, array.length);
+		}
+		return grown;
+	}
+
+	private static int [] grow(int [] array, int capacity) {
+		int [] grown = new int[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, grown, 0, array.length);
+		}
+		return grown;
+	}
+
+	// the id index
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private int slotOf(long id) {
+		int mask = mIndex.length - 1;
+		int slot = hash(id) & mask;
+
+		while (mIndex[slot] != NIL && mValue[mIndex[slot]] != id) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * @return the first node holding an id, or NIL.
+	 */
+	private int findIndex(long id) {
+		return mIndex == null ? NIL : mIndex[slotOf(id)];
+	}
+
+	private void addToIndex(int node) {
+		if (mIndex == null || (mIndexCount + 1) * 2 > mIndex.length) {
+			rehash(mIndex == null ? INITIAL_CAPACITY : mIndex.length * 2);
+		}
+
+		int slot = slotOf(mValue[node]);
+		int head = mIndex[slot];
+
+		mPreviousSame[node] = NIL;
+		mNextSame[node] = head;
+
+		if (head != NIL) {
+			mPreviousSame[head] = node;
+		} else {
+			mIndexCount++;
+		}
+
+		mIndex[slot] = node;
+	}
+
+	private void removeFromIndex(int node) {
+		int previous = mPreviousSame[node];
+		int next = mNextSame[node];
+
+		if (next != NIL) {
+			mPreviousSame[next] = previous;
+		}
+
+		if (previous != NIL) {
+			mNextSame[previous] = next;
+			return;
+		}
+
+		int slot = slotOf(mValue[node]);
+
+		if (next != NIL) {
+			mIndex[slot] = next;
+			return;
+		}
+
+		// the id is gone, shift back the entries that probed past its slot
+		int mask = mIndex.length - 1;
+		mIndex[slot] = NIL;
+		mIndexCount--;
+
+		for (int i = (slot + 1) & mask; mIndex[i] != NIL; i = (i + 1) & mask) {
+			int head = mIndex[i];
+			int home = hash(mValue[head]) & mask;
+
+			// move the entry unless its home lies cyclically in (slot, i]
+			if (slot <= i ? (home <= slot || home > i) : (home <= slot && home > i)) {
+				mIndex[slot] = head;
+				mIndex[i] = NIL;
+				slot = i;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		int [] old = mIndex;
+		mIndex = new int[capacity];
+		Arrays.fill(mIndex, NIL);
+
+		if (old != null) {
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] != NIL) {
+					mIndex[slotOf(mValue[old[i]])] = old[i];
+				}
+			}
+		}
+	}
+}
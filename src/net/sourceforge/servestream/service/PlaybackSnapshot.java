@@ -0,0 +1,201 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The state of the playback service as one object, so that a client
+ * refreshes its views with a single binder call instead of one per value.
+ * <p>
+ * The version grows whenever the track, its metadata, the play state or the
+ * play modes change. The position and the download progress are always
+ * current but do not change the version, so a client can skip redrawing the
+ * track information while the version stays the same.
+ */
+public class PlaybackSnapshot implements Parcelable {
+
+	long mVersion = 0;
+	long mAudioId = -1;
+	int mQueuePosition = -1;
+	int mQueueLength = 0;
+	String mPath = null;
+	String mMediaUri = null;
+	String mTrackName = null;
+	String mArtistName = null;
+	String mAlbumName = null;
+	boolean mPlaying = false;
+	boolean mStreaming = false;
+	long mDuration = -1;
+	long mPosition = -1;
+	boolean mCompleteFileAvailable = false;
+	long mCompleteFileDuration = 0;
+	double mPercentDownloaded = 0;
+	int mShuffleMode = MediaPlaybackService.SHUFFLE_NONE;
+	int mRepeatMode = MediaPlaybackService.REPEAT_NONE;
+
+	PlaybackSnapshot() {
+
+	}
+
+	private PlaybackSnapshot(Parcel in) {
+		mVersion = in.readLong();
+		mAudioId = in.readLong();
+		mQueuePosition = in.readInt();
+		mQueueLength = in.readInt();
+		mPath = in.readString();
+		mMediaUri = in.readString();
+		mTrackName = in.readString();
+		mArtistName = in.readString();
+		mAlbumName = in.readString();
+		mPlaying = in.readInt() != 0;
+		mStreaming = in.readInt() != 0;
+		mDuration = in.readLong();
+		mPosition = in.readLong();
+		mCompleteFileAvailable = in.readInt() != 0;
+		mCompleteFileDuration = in.readLong();
+		mPercentDownloaded = in.readDouble();
+		mShuffleMode = in.readInt();
+		mRepeatMode = in.readInt();
+	}
+
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return the id of the current track, or -1 if no track is open.
+	 */
+	public long getAudioId() {
+		return mAudioId;
+	}
+
+	public int getQueuePosition() {
+		return mQueuePosition;
+	}
+
+	public int getQueueLength() {
+		return mQueueLength;
+	}
+
+	/**
+	 * @return the "position / length" text shown for the current track.
+	 */
+	public String getTrackNumber() {
+		return (mQueuePosition + 1) + " / " + mQueueLength;
+	}
+
+	public String getPath() {
+		return mPath;
+	}
+
+	public String getMediaUri() {
+		return mMediaUri;
+	}
+
+	public String getTrackName() {
+		return mTrackName;
+	}
+
+	public String getArtistName() {
+		return mArtistName;
+	}
+
+	public String getAlbumName() {
+		return mAlbumName;
+	}
+
+	public boolean isPlaying() {
+		return mPlaying;
+	}
+
+	public boolean isStreaming() {
+		return mStreaming;
+	}
+
+	/**
+	 * @return the duration reported by the player in milliseconds, or -1.
+	 */
+	public long getDuration() {
+		return mDuration;
+	}
+
+	/**
+	 * @return the playback position in milliseconds, or -1.
+	 */
+	public long getPosition() {
+		return mPosition;
+	}
+
+	public boolean isCompleteFileAvailable() {
+		return mCompleteFileAvailable;
+	}
+
+	public long getCompleteFileDuration() {
+		return mCompleteFileDuration;
+	}
+
+	public double getPercentDownloaded() {
+		return mPercentDownloaded;
+	}
+
+	public int getShuffleMode() {
+		return mShuffleMode;
+	}
+
+	public int getRepeatMode() {
+		return mRepeatMode;
+	}
+
+	public int describeContents() {
+		return 0;
+	}
+
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeLong(mVersion);
+		dest.writeLong(mAudioId);
+		dest.writeInt(mQueuePosition);
+		dest.writeInt(mQueueLength);
+		dest.writeString(mPath);
+		dest.writeString(mMediaUri);
+		dest.writeString(mTrackName);
+		dest.writeString(mArtistName);
+		dest.writeString(mAlbumName);
+		dest.writeInt(mPlaying ? 1 : 0);
+		dest.writeInt(mStreaming ? 1 : 0);
+		dest.writeLong(mDuration);
+		dest.writeLong(mPosition);
+		dest.writeInt(mCompleteFileAvailable ? 1 : 0);
+		dest.writeLong(mCompleteFileDuration);
+		dest.writeDouble(mPercentDownloaded);
+		dest.writeInt(mShuffleMode);
+		dest.writeInt(mRepeatMode);
+	}
+
+	public static final Parcelable.Creator<PlaybackSnapshot> CREATOR = new
+	Parcelable.Creator<PlaybackSnapshot>() {
+	    public PlaybackSnapshot createFromParcel(Parcel in) {
+	    	return new PlaybackSnapshot(in);
+	    }
+
+	    public PlaybackSnapshot[] newArray(int size) {
+	    	return new PlaybackSnapshot[size];
+	    }
+	};
+}
@@ -0,0 +1,302 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Process;
+import android.util.Log;
+
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * Downloads the tracks that play next into the download cache while the
+ * current one plays, so that the next track change starts from disk. The
+ * prefetcher runs on a background priority thread, waits while the current
+ * track is still downloading, is limited to a fixed rate and does nothing
+ * while the network is metered.
+ */
+class Prefetcher implements Runnable {
+	private static final String TAG = Prefetcher.class.getName();
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	// 1 Mbit/s, leaves most of a typical connection to everything else
+	private static final int MAX_BYTES_PER_SECOND = 128 * 1024;
+
+	private static final long METERED_CHECK_INTERVAL = 5000;
+
+	private final DownloadCache mCache;
+	private final OnPrefetchListener mListener;
+
+	// guarded by this
+	private final List<String> mPending = new ArrayList<String>();
+	private long mMeteredCheckTime = 0;
+	private boolean mMetered = false;
+	private String mCurrent = null;
+	private HttpResponse mResponse = null;
+	private DownloadProgress mForeground = null;
+	private Thread mThread = null;
+	private boolean mStopped = false;
+
+	/**
+	 * Tells the prefetcher whether it may use the network and learns about
+	 * the tracks it cached.
+	 */
+	interface OnPrefetchListener {
+
+		/**
+		 * @return true if the active network is billed by volume.
+		 */
+		boolean isNetworkMetered();
+
+		/**
+		 * Called on the prefetch thread once a track is in the cache.
+		 */
+		void onPrefetched(String uri);
+	}
+
+	Prefetcher(DownloadCache cache, OnPrefetchListener listener) {
+		mCache = cache;
+		mListener = listener;
+	}
+
+	/**
+	 * Replaces the tracks to prefetch. A track that is prefetched but no
+	 * longer wanted is abandoned.
+	 *
+	 * @param uris The tracks in the order they play.
+	 */
+	synchronized void schedule(List<String> uris) {
+		mPending.clear();
+		mPending.addAll(uris);
+
+		if (mCurrent != null && !uris.contains(mCurrent)) {
+			abort();
+		}
+
+		if (mThread == null && !mStopped && !mPending.isEmpty()) {
+			mThread = new Thread(this);
+			mThread.setName(TAG);
+			mThread.start();
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Makes the prefetcher wait until a download the player is waiting for
+	 * has ended.
+	 */
+	synchronized void setForeground(DownloadProgress progress) {
+		mForeground = progress;
+	}
+
+	synchronized void stop() {
+		mStopped = true;
+		mPending.clear();
+		abort();
+		notifyAll();
+	}
+
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+		String uri;
+
+		while ((uri = takeNext()) != null) {
+			try {
+				prefetch(uri);
+			} catch (IOException e) {
+				Log.v(TAG, "could not prefetch " + uri + ": " + e.getMessage());
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				synchronized (this) {
+					mCurrent = null;
+					mResponse = null;
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (mThread == Thread.currentThread()) {
+				mThread = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the next track that is not cached yet, or null once the
+	 * prefetcher was stopped or nothing is left to do, the thread then ends.
+	 */
+	private synchronized String takeNext() {
+		while (!mStopped && !mPending.isEmpty()) {
+			String uri = mPending.remove(0);
+
+			if (mCache.get(uri) == null) {
+				mCurrent = uri;
+				return uri;
+			}
+		}
+
+		mThread = null;
+		return null;
+	}
+
+	private void prefetch(String uri) throws IOException, InterruptedException {
+		waitUntilAllowed(uri);
+
+		HttpRequest request = new HttpRequest(new URL(uri));
+		request.setBackground(true);
+		HttpResponse response = HttpConnectionPool.getInstance().execute(request);
+
+		synchronized (this) {
+			if (!uri.equals(mCurrent)) {
+				response.disconnect();
+				return;
+			}
+
+			mResponse = response;
+		}
+
+		File file = mCache.getFile(uri);
+		File tempFile = new File(file.getPath() + ".prefetch");
+		FileOutputStream out = null;
+		boolean complete = false;
+
+		try {
+			long length = response.getContentLength();
+
+			// live streams and huge files would only push tracks out of the cache
+			if (response.getStatusCode() != HttpURLConnection.HTTP_OK
+					|| length <= 0 || length > mCache.getMaxSize() / 4) {
+				Log.v(TAG, "not prefetching " + uri);
+				response.disconnect();
+				return;
+			}
+
+			Log.v(TAG, "prefetching " + uri);
+
+			InputStream in = response.getInputStream();
+			out = new FileOutputStream(tempFile);
+			byte [] buffer = new byte[BUFFER_SIZE];
+			long start = System.currentTimeMillis();
+			long total = 0;
+			int count;
+
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+				total += count;
+
+				throttle(uri, start, total);
+			}
+
+			out.close();
+			complete = total == length;
+		} finally {
+			Utils.closeOutputStream(out);
+			Utils.closeHttpResponse(response);
+
+			if (!complete) {
+				Utils.deleteFile(tempFile);
+			}
+		}
+
+		if (complete && mCache.get(uri) == null && tempFile.renameTo(file)
+				&& mCache.put(uri, response.getHeader("etag"), response.getHeader("last-modified"))) {
+			mListener.onPrefetched(uri);
+		}
+
+		Utils.deleteFile(tempFile);
+	}
+
+	/**
+	 * Blocks while the player is waiting for a download or the network is
+	 * metered.
+	 */
+	private void waitUntilAllowed(String uri) throws IOException, InterruptedException {
+		while (true) {
+			DownloadProgress foreground;
+
+			synchronized (this) {
+				if (!uri.equals(mCurrent)) {
+					throw new IOException("prefetch abandoned");
+				}
+
+				foreground = mForeground;
+			}
+
+			if (foreground != null && !foreground.isFinished()) {
+				foreground.await(Long.MAX_VALUE, METERED_CHECK_INTERVAL);
+			} else if (isNetworkMetered()) {
+				synchronized (this) {
+					wait(METERED_CHECK_INTERVAL);
+				}
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Keeps the average rate below the limit and pauses for the player.
+	 */
+	private void throttle(String uri, long start, long total) throws IOException, InterruptedException {
+		long elapsed = System.currentTimeMillis() - start;
+		long delay = total * 1000 / MAX_BYTES_PER_SECOND - elapsed;
+
+		if (delay > 0) {
+			synchronized (this) {
+				wait(delay);
+			}
+		}
+
+		waitUntilAllowed(uri);
+	}
+
+	private synchronized boolean isNetworkMetered() {
+		long now = System.currentTimeMillis();
+
+		if (now - mMeteredCheckTime >= METERED_CHECK_INTERVAL) {
+			mMeteredCheckTime = now;
+			mMetered = mListener.isNetworkMetered();
+		}
+
+		return mMetered;
+	}
+
+	private void abort() {
+		mCurrent = null;
+
+		if (mResponse != null) {
+			mResponse.disconnect();
+			mResponse = null;
+		}
+	}
+}
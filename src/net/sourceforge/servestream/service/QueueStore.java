@@ -0,0 +1,291 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * Saves the play queue, the shuffle order and the playback position to a
+ * compact binary file so that a restarted service continues where it left
+ * off without rebuilding the queue. Saves are coalesced and the snapshot is
+ * taken and written on a background thread once per burst, the file is
+ * memory mapped when it is read back.
+ * <p>
+ * The ids are stored as zigzag encoded differences to the previous id, all
+ * other numbers as unsigned varints, so a queue of ids that were added
+ * together takes about one byte per track plus its shuffle order.
+ */
+class QueueStore {
+	private static final String TAG = QueueStore.class.getName();
+
+	private static final String FILE_NAME = "queue.dat";
+	private static final int VERSION = 1;
+
+	// coalesces the saves of e.g. a burst of queue edits
+	private static final long SAVE_DELAY = 2000;
+
+	private final File mFile;
+	private final Source mSource;
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+
+	// guarded by this
+	private boolean mPending = false;
+
+	private final Runnable mWriter = new Runnable() {
+		public void run() {
+			boolean pending;
+
+			synchronized (QueueStore.this) {
+				pending = mPending;
+				mPending = false;
+			}
+
+			if (pending) {
+				Snapshot snapshot = mSource.takeSnapshot();
+
+				if (snapshot != null) {
+					write(snapshot);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Provides the state to save, called on the background thread or, from
+	 * {@link QueueStore#close()}, on the thread that closes the store.
+	 */
+	interface Source {
+		/**
+		 * @return a snapshot that is not modified afterwards, or null.
+		 */
+		Snapshot takeSnapshot();
+	}
+
+	/**
+	 * The state that is saved.
+	 */
+	static class Snapshot {
+		long [] mIds;
+		int [] mShuffleOrder;
+		int mShufflePlayed;
+		int [] mShuffleHistory;
+		int mPlayPos;
+		long mSeekPosition;
+	}
+
+	/**
+	 * @param directory The directory the file is kept in.
+	 * @param source Where the state is taken from when it is written.
+	 */
+	QueueStore(File directory, Source source) {
+		mFile = new File(directory, FILE_NAME);
+		mSource = source;
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * Saves the state once no further save was requested for a while, the
+	 * snapshot is only taken then.
+	 */
+	synchronized void save() {
+		mPending = true;
+		mHandler.removeCallbacks(mWriter);
+		mHandler.postDelayed(mWriter, SAVE_DELAY);
+	}
+
+	/**
+	 * Takes and writes a pending snapshot right away on the calling thread
+	 * and stops the background thread.
+	 */
+	void close() {
+		mHandler.removeCallbacks(mWriter);
+		mWriter.run();
+		mThread.quit();
+	}
+
+	/**
+	 * @return the saved snapshot, or null if there is none or it can not be
+	 * read.
+	 */
+	Snapshot load() {
+		if (!mFile.exists()) {
+			return null;
+		}
+
+		FileInputStream in = null;
+
+		try {
+			in = new FileInputStream(mFile);
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != VERSION) {
+				return null;
+			}
+
+			Snapshot snapshot = new Snapshot();
+			int count = readCount(buffer);
+
+			snapshot.mIds = new long[count];
+			long id = 0;
+
+			for (int i = 0; i < count; i++) {
+				long delta = readVarLong(buffer);
+				id += (delta >>> 1) ^ -(delta & 1);
+				snapshot.mIds[i] = id;
+			}
+
+			snapshot.mPlayPos = (int) readVarLong(buffer) - 1;
+			snapshot.mSeekPosition = readVarLong(buffer);
+			snapshot.mShufflePlayed = (int) readVarLong(buffer);
+			snapshot.mShuffleOrder = readInts(buffer);
+			snapshot.mShuffleHistory = readInts(buffer);
+
+			return snapshot;
+		} catch (IOException e) {
+			Log.v(TAG, "could not read the queue: " + e.getMessage());
+		} catch (BufferUnderflowException e) {
+			Log.v(TAG, "the saved queue is truncated");
+		} finally {
+			Utils.closeInputStream(in);
+		}
+
+		return null;
+	}
+
+	private synchronized void write(Snapshot snapshot) {
+		long start = System.currentTimeMillis();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(snapshot.mIds.length * 4 + 64);
+
+		bytes.write(VERSION >>> 24);
+		bytes.write(VERSION >>> 16);
+		bytes.write(VERSION >>> 8);
+		bytes.write(VERSION);
+
+		writeVarLong(bytes, snapshot.mIds.length);
+		long previous = 0;
+
+		for (int i = 0; i < snapshot.mIds.length; i++) {
+			long delta = snapshot.mIds[i] - previous;
+			writeVarLong(bytes, (delta << 1) ^ (delta >> 63));
+			previous = snapshot.mIds[i];
+		}
+
+		writeVarLong(bytes, snapshot.mPlayPos + 1);
+		writeVarLong(bytes, Math.max(0, snapshot.mSeekPosition));
+		writeVarLong(bytes, snapshot.mShufflePlayed);
+		writeInts(bytes, snapshot.mShuffleOrder);
+		writeInts(bytes, snapshot.mShuffleHistory);
+
+		File tempFile = new File(mFile.getPath() + ".tmp");
+		FileOutputStream out = null;
+
+		try {
+			out = new FileOutputStream(tempFile);
+			bytes.writeTo(out);
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(mFile)) {
+				Log.v(TAG, "could not write the queue");
+			}
+		} catch (IOException e) {
+			Log.v(TAG, "could not write the queue: " + e.getMessage());
+		} finally {
+			Utils.closeOutputStream(out);
+			Utils.deleteFile(tempFile);
+		}
+
+		Log.v(TAG, "saved " + snapshot.mIds.length + " tracks in " + bytes.size() + " bytes, "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static void writeInts(ByteArrayOutputStream out, int [] values) {
+		writeVarLong(out, values.length);
+
+		for (int i = 0; i < values.length; i++) {
+			writeVarLong(out, values[i]);
+		}
+	}
+
+	private static int [] readInts(ByteBuffer in) throws IOException {
+		int [] values = new int[readCount(in)];
+
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (int) readVarLong(in);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Reads a length and checks it against the bytes left, so that a
+	 * damaged file can not make us allocate a huge array.
+	 */
+	private static int readCount(ByteBuffer in) throws IOException {
+		long count = readVarLong(in);
+
+		if (count < 0 || count > in.remaining()) {
+			throw new IOException("bad length " + count);
+		}
+
+		return (int) count;
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+
+		out.write((int) value);
+	}
+
+	private static long readVarLong(ByteBuffer in) throws IOException {
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("bad varint");
+	}
+}
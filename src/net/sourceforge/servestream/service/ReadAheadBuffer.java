@@ -0,0 +1,171 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * A bounded ring buffer between the thread that reads a stream from the
+ * network and the thread that serves it to the media player. The writer
+ * blocks while the buffer is full and the reader blocks while it is empty,
+ * so the network read-ahead never exceeds the capacity.
+ */
+class ReadAheadBuffer {
+
+	private final byte [] mBuffer;
+	private int mReadPosition = 0;
+	private int mCount = 0;
+	private long mTotalWritten = 0;
+	private long mTotalRead = 0;
+	private int mUnderrunCount = 0;
+
+	private boolean mFinished = false;
+	private boolean mClosed = false;
+	private IOException mError = null;
+
+	ReadAheadBuffer(int capacity) {
+		mBuffer = new byte[capacity];
+	}
+
+	/**
+	 * Copies bytes into the buffer, waiting for free space as needed.
+	 *
+	 * @throws IOException if the reader closed the buffer.
+	 */
+	synchronized void write(byte [] buffer, int offset, int count) throws IOException {
+		while (count > 0) {
+			while (mCount == mBuffer.length && !mClosed) {
+				waitForChange();
+			}
+
+			if (mClosed) {
+				throw new IOException("read-ahead buffer closed");
+			}
+
+			int writePosition = (mReadPosition + mCount) % mBuffer.length;
+			int length = Math.min(count, Math.min(mBuffer.length - mCount,
+					mBuffer.length - writePosition));
+
+			System.arraycopy(buffer, offset, mBuffer, writePosition, length);
+			mCount += length;
+			mTotalWritten += length;
+			offset += length;
+			count -= length;
+
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Copies buffered bytes out, waiting until at least one is available.
+	 *
+	 * @return the number of bytes read, or -1 once the writer finished and
+	 * the buffer is empty.
+	 * @throws IOException if the writer failed, after the buffered bytes
+	 * have been read.
+	 */
+	synchronized int read(byte [] buffer, int offset, int count) throws IOException {
+		if (mCount == 0 && mTotalRead > 0 && !mFinished && mError == null && !mClosed) {
+			// the player caught up with the network after playback started
+			mUnderrunCount++;
+		}
+
+		while (mCount == 0 && !mFinished && mError == null && !mClosed) {
+			waitForChange();
+		}
+
+		if (mCount == 0) {
+			if (mError != null) {
+				throw mError;
+			}
+
+			return -1;
+		}
+
+		int length = Math.min(count, Math.min(mCount, mBuffer.length - mReadPosition));
+
+		System.arraycopy(mBuffer, mReadPosition, buffer, offset, length);
+		mReadPosition = (mReadPosition + length) % mBuffer.length;
+		mCount -= length;
+		mTotalRead += length;
+
+		notifyAll();
+		return length;
+	}
+
+	/**
+	 * @return the number of bytes that can be read without blocking.
+	 */
+	synchronized int available() {
+		return mCount;
+	}
+
+	/**
+	 * @return the number of bytes written since the buffer was created.
+	 */
+	synchronized long getTotalWritten() {
+		return mTotalWritten;
+	}
+
+	/**
+	 * @return how many times the reader found the buffer empty after the
+	 * first byte was read, i.e. the number of rebuffering events.
+	 */
+	synchronized int getUnderrunCount() {
+		return mUnderrunCount;
+	}
+
+	/**
+	 * Called by the writer at the end of the stream.
+	 */
+	synchronized void finish() {
+		mFinished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the writer if the stream failed, the reader sees the error
+	 * once it has consumed the buffered bytes.
+	 */
+	synchronized void fail(IOException error) {
+		mError = error;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the reader when it no longer needs the stream, wakes up a
+	 * blocked writer.
+	 */
+	synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+
+	synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	private void waitForChange() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
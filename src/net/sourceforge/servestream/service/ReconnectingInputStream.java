@@ -0,0 +1,458 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import android.util.Log;
+
+import net.sourceforge.servestream.media.FrameSync;
+import net.sourceforge.servestream.media.IcyInputStream;
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * The body of an upstream response that survives dropped connections. When
+ * the connection fails or a live stream ends, the request is repeated with
+ * an increasing delay: files resume where they left off with a Range
+ * request, live streams are joined again at the next MP3/AAC frame. The
+ * reader only sees an error once every attempt failed.
+ * <p>
+ * A stream is only taken to be live if the server sends SHOUTcast/Icecast
+ * headers. The body of any other response ends at its end: a clean end of
+ * stream is passed on, and only a read error, e.g. a timeout or a body
+ * shorter than its Content-Length, is resumed.
+ */
+class ReconnectingInputStream extends InputStream {
+	private static final String TAG = ReconnectingInputStream.class.getName();
+
+	private static final int MAX_RECONNECT_ATTEMPTS = 8;
+	private static final long INITIAL_BACKOFF = 500;
+	private static final long MAX_BACKOFF = 8000;
+	private static final int RESYNC_BUFFER_SIZE = 16 * 1024;
+	private static final int MIN_PROGRESS = 64 * 1024;
+
+	private final HttpRequest mRequest;
+	private final IcyInputStream.OnMetadataListener mListener;
+
+	// the byte range the player asked for
+	private long mRangeStart = 0;
+	private String mRangeEnd = "";
+	private boolean mResumable = true;
+
+	private volatile HttpResponse mResponse = null;
+	private InputStream mBody = null;
+	private boolean mLive = false;
+	private boolean mInBand = false;
+	private long mPosition = 0;
+
+	// data read while resynchronizing that was not returned yet
+	private byte [] mPending = null;
+	private int mPendingOffset = 0;
+	private int mPendingCount = 0;
+
+	private final byte [] mSingleByte = new byte[1];
+	private final Object mWaitLock = new Object();
+	private volatile boolean mClosed = false;
+	private boolean mRetryNow = false;
+
+	private int mReconnectCount = 0;
+	private long mReconnectPosition = 0;
+	private int mFailedAttempts = 0;
+	private long mGapMillis = 0;
+
+	/**
+	 * @param request The request to send, including the Range header of the
+	 * player if any.
+	 * @param listener Receives the ICY metadata blocks of the stream.
+	 */
+	ReconnectingInputStream(HttpRequest request, IcyInputStream.OnMetadataListener listener) {
+		mRequest = request;
+		mListener = listener;
+
+		String range = request.getHeaders().get("Range");
+
+		if (range != null) {
+			parseRange(range);
+		}
+	}
+
+	/**
+	 * Sends the initial request.
+	 *
+	 * @return the response, its body must be read through this stream.
+	 */
+	HttpResponse connect() throws IOException {
+		HttpResponse response = HttpConnectionPool.getInstance().execute(new HttpRequest(mRequest));
+		setResponse(response);
+
+		mLive = isLive(response);
+		mBody = demux(response);
+
+		return response;
+	}
+
+	/**
+	 * @return true if the stream carries ICY metadata that is stripped.
+	 */
+	boolean isInBand() {
+		return mInBand;
+	}
+
+	int getReconnectCount() {
+		return mReconnectCount;
+	}
+
+	/**
+	 * @return the time in milliseconds the stream spent reconnecting.
+	 */
+	long getGapMillis() {
+		return mGapMillis;
+	}
+
+	/**
+	 * Skips the remaining delay if the stream is waiting to reconnect, e.g.
+	 * because the network just became available again.
+	 */
+	void retryNow() {
+		synchronized (mWaitLock) {
+			mRetryNow = true;
+			mWaitLock.notifyAll();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(mSingleByte, 0, 1) == -1 ? -1 : mSingleByte[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte [] buffer, int offset, int count) throws IOException {
+		while (true) {
+			if (mClosed) {
+				throw new IOException("stream closed");
+			}
+
+			if (mPendingCount > 0) {
+				int length = Math.min(count, mPendingCount);
+				System.arraycopy(mPending, mPendingOffset, buffer, offset, length);
+				mPendingOffset += length;
+				mPendingCount -= length;
+				mPosition += length;
+				return length;
+			}
+
+			IOException failure;
+
+			try {
+				int read = mBody.read(buffer, offset, count);
+
+				if (read != -1) {
+					mPosition += read;
+					return read;
+				}
+
+				if (!mLive) {
+					// a body that was cut short fails with an IOException, this
+					// is its end and the connection can be reused
+					Utils.closeHttpResponse(mResponse);
+					mResponse = null;
+					return -1;
+				}
+
+				// a live stream never ends, the server dropped us
+				failure = new EOFException("live stream ended");
+			} catch (IOException e) {
+				if (mClosed || !(mLive || mResumable)) {
+					throw e;
+				}
+
+				failure = e;
+			}
+
+			reconnect(failure);
+		}
+	}
+
+	/**
+	 * Closes the upstream connection, may be called from any thread.
+	 */
+	@Override
+	public void close() {
+		mClosed = true;
+
+		synchronized (mWaitLock) {
+			mWaitLock.notifyAll();
+		}
+
+		disconnect();
+	}
+
+	private void reconnect(IOException cause) throws IOException {
+		long failedAt = System.currentTimeMillis();
+
+		// a connection that fails again right after a reconnect counts as
+		// a failed attempt, so a server that keeps dropping us is given up on
+		if (mReconnectCount > 0 && mPosition - mReconnectPosition < MIN_PROGRESS) {
+			mFailedAttempts++;
+		} else {
+			mFailedAttempts = 0;
+		}
+
+		Log.v(TAG, "upstream failed at " + mPosition + ", reconnecting: " + cause.getMessage());
+		disconnect();
+
+		while (mFailedAttempts < MAX_RECONNECT_ATTEMPTS) {
+			// the first attempt is made right away, most drops are short
+			if (mFailedAttempts > 0) {
+				waitToRetry(Math.min(INITIAL_BACKOFF << (mFailedAttempts - 1), MAX_BACKOFF));
+			}
+
+			if (mClosed) {
+				throw new IOException("stream closed");
+			}
+
+			try {
+				reopen();
+
+				mReconnectCount++;
+				mReconnectPosition = mPosition;
+				mGapMillis += System.currentTimeMillis() - failedAt;
+				Log.v(TAG, "reconnected after " + (System.currentTimeMillis() - failedAt) + " ms");
+				return;
+			} catch (IOException e) {
+				Log.v(TAG, "reconnect attempt failed: " + e.getMessage());
+				cause = e;
+				disconnect();
+				mFailedAttempts++;
+			}
+		}
+
+		throw cause;
+	}
+
+	private void reopen() throws IOException {
+		HttpRequest request = new HttpRequest(mRequest);
+		long resumeAt = mRangeStart + mPosition;
+
+		if (!mLive && resumeAt > 0) {
+			request.setHeader("Range", "bytes=" + resumeAt + "-" + mRangeEnd);
+		}
+
+		HttpResponse response = HttpConnectionPool.getInstance().execute(request);
+		setResponse(response);
+
+		if (response.getStatusCode() >= 400) {
+			throw new IOException("HTTP " + response.getStatusCode() + " " + response.getStatusMessage());
+		}
+
+		long skip = 0;
+
+		if (!mLive && resumeAt > 0) {
+			if (response.getStatusCode() == 206) {
+				if (getRangeStart(response.getHeader("content-range")) != resumeAt) {
+					throw new IOException("unexpected range: " + response.getHeader("content-range"));
+				}
+			} else {
+				// the server ignored the Range header, read up to where we were
+				skip = resumeAt;
+			}
+		}
+
+		mBody = demux(response);
+
+		if (skip > 0) {
+			skipFully(mBody, skip);
+		}
+
+		if (mLive) {
+			resync();
+		}
+	}
+
+	/**
+	 * Reads ahead until the first complete MP3 or AAC frame so the decoder
+	 * does not see the tail of a frame from the middle of the new stream.
+	 * Streams in other formats are passed through unchanged.
+	 */
+	private void resync() throws IOException {
+		if (mPending == null) {
+			mPending = new byte[RESYNC_BUFFER_SIZE];
+		}
+
+		int count = 0;
+
+		while (count < mPending.length) {
+			int read = mBody.read(mPending, count, mPending.length - count);
+
+			if (read == -1) {
+				throw new EOFException("stream ended while resynchronizing");
+			}
+
+			count += read;
+
+			int frame = FrameSync.findFrame(mPending, 0, count);
+
+			if (frame != -1) {
+				mPendingOffset = frame;
+				mPendingCount = count - frame;
+				return;
+			}
+		}
+
+		mPendingOffset = 0;
+		mPendingCount = count;
+	}
+
+	/**
+	 * @return true if the response is a SHOUTcast/Icecast stream. A response
+	 * without a length is not enough, HTTP/1.0 servers leave it out of files
+	 * too.
+	 */
+	private static boolean isLive(HttpResponse response) {
+		if ("ICY".equalsIgnoreCase(response.getProtocol())) {
+			return true;
+		}
+
+		for (String name : response.getHeaderFields().keySet()) {
+			if (name != null && (name.startsWith("icy-") || name.startsWith("ice-"))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private InputStream demux(HttpResponse response) {
+		String metaInt = response.getHeader("icy-metaint");
+
+		if (metaInt != null) {
+			try {
+				int metadataInterval = Integer.parseInt(metaInt.trim());
+
+				if (metadataInterval > 0) {
+					mInBand = true;
+					return new IcyInputStream(response.getInputStream(), metadataInterval, mListener);
+				}
+			} catch (NumberFormatException e) {
+				Log.v(TAG, "invalid icy-metaint header: " + metaInt);
+			}
+		}
+
+		return response.getInputStream();
+	}
+
+	private void setResponse(HttpResponse response) throws IOException {
+		mResponse = response;
+
+		// close() may have been called while the request was sent
+		if (mClosed) {
+			response.disconnect();
+			throw new IOException("stream closed");
+		}
+	}
+
+	private void disconnect() {
+		HttpResponse response = mResponse;
+
+		if (response != null) {
+			response.disconnect();
+		}
+	}
+
+	private void waitToRetry(long millis) throws IOException {
+		long deadline = System.currentTimeMillis() + millis;
+
+		synchronized (mWaitLock) {
+			try {
+				long remaining = millis;
+
+				while (!mRetryNow && !mClosed && remaining > 0) {
+					mWaitLock.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+
+			mRetryNow = false;
+		}
+	}
+
+	/**
+	 * Parses "bytes=start-" or "bytes=start-end".
+	 */
+	private void parseRange(String range) {
+		int equals = range.indexOf('=');
+		int dash = range.indexOf('-');
+
+		if (equals == -1 || dash < equals || range.indexOf(',') != -1) {
+			mResumable = false;
+			return;
+		}
+
+		try {
+			mRangeStart = Long.parseLong(range.substring(equals + 1, dash).trim());
+			mRangeEnd = range.substring(dash + 1).trim();
+		} catch (NumberFormatException e) {
+			// e.g. a suffix range "bytes=-500"
+			mResumable = false;
+		}
+	}
+
+	/**
+	 * @return the first byte of a "bytes start-end/length" header, or -1.
+	 */
+	private static long getRangeStart(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+
+		int start = contentRange.indexOf(' ');
+		int dash = contentRange.indexOf('-');
+
+		if (dash <= start) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(contentRange.substring(start + 1, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		byte [] buffer = new byte[8192];
+
+		while (count > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+
+			if (read == -1) {
+				throw new EOFException("stream ended while skipping");
+			}
+
+			count -= read;
+		}
+	}
+}
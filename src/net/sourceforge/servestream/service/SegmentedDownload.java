@@ -0,0 +1,434 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * Downloads a file of known length over several connections at once. The
+ * file is split into fixed size chunks that are fetched with Range requests
+ * and written in place into a pre-allocated file. Idle connections always
+ * take the first missing chunk at or after the playhead, so the data the
+ * player needs next is never queued behind the rest of the file.
+ */
+class SegmentedDownload {
+	private static final String TAG = SegmentedDownload.class.getName();
+
+	static final int CHUNK_SIZE = 512 * 1024;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_RETRIES = 3;
+
+	private final URL mURL;
+	private final long mLength;
+	private File mFile;
+	private final int mConnections;
+	private final String mContentType;
+	private final DownloadProgress mProgress;
+
+	private RandomAccessFile mRandomAccessFile = null;
+	private FileChannel mChannel = null;
+
+	// guarded by this
+	private final long [] mChunkProgress;
+	private final boolean [] mChunkTaken;
+	private int mCompleteChunks = 0;
+	private int mFirstIncompleteChunk = 0;
+	private long mPlayhead = 0;
+	private boolean mCancelled = false;
+	private int mStallCount = 0;
+	private IOException mError = null;
+	private final List<HttpResponse> mResponses = new ArrayList<HttpResponse>();
+
+	/**
+	 * @param url The file to download.
+	 * @param length The length of the file.
+	 * @param contentType The content type reported by the server.
+	 * @param file The file to write to.
+	 * @param connections The number of concurrent connections.
+	 * @param progress Is advanced as the start of the file fills up.
+	 */
+	SegmentedDownload(URL url, long length, String contentType, File file, int connections,
+			DownloadProgress progress) {
+		mURL = url;
+		mLength = length;
+		mContentType = contentType;
+		mFile = file;
+		mConnections = connections;
+		mProgress = progress;
+
+		int chunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		mChunkProgress = new long[chunks];
+		mChunkTaken = new boolean[chunks];
+	}
+
+	/**
+	 * @return the file the data is written to, it moves once the download
+	 * is complete.
+	 */
+	synchronized File getFile() {
+		return mFile;
+	}
+
+	long getLength() {
+		return mLength;
+	}
+
+	String getContentType() {
+		return mContentType;
+	}
+
+	/**
+	 * Downloads the file, blocking until it is complete.
+	 *
+	 * @throws IOException if a chunk could not be downloaded or the download
+	 * was cancelled.
+	 */
+	void run() throws IOException {
+		mRandomAccessFile = new RandomAccessFile(getFile(), "rw");
+
+		try {
+			mRandomAccessFile.setLength(mLength);
+			mChannel = mRandomAccessFile.getChannel();
+
+			Thread [] workers = new Thread[mConnections];
+
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Thread(new Worker());
+				workers[i].setName("SegmentedDownload " + i);
+				workers[i].start();
+			}
+
+			for (int i = 0; i < workers.length; i++) {
+				try {
+					workers[i].join();
+				} catch (InterruptedException e) {
+					cancel();
+					throw new InterruptedIOException();
+				}
+			}
+
+			synchronized (this) {
+				if (mError != null) {
+					throw mError;
+				}
+
+				if (mCancelled) {
+					throw new InterruptedIOException("download cancelled");
+				}
+			}
+
+			mChannel.force(false);
+		} finally {
+			mRandomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Stops every connection, readers blocked in {@link #waitForData(long)}
+	 * fail.
+	 */
+	void cancel() {
+		List<HttpResponse> responses;
+
+		synchronized (this) {
+			mCancelled = true;
+			responses = new ArrayList<HttpResponse>(mResponses);
+			notifyAll();
+		}
+
+		for (int i = 0; i < responses.size(); i++) {
+			responses.get(i).disconnect();
+		}
+	}
+
+	synchronized boolean isComplete() {
+		return mCompleteChunks == mChunkProgress.length;
+	}
+
+	/**
+	 * Moves the completed file. Readers that already opened it keep reading
+	 * from it, readers that open it from now on use the new location.
+	 *
+	 * @return true if the file was moved.
+	 */
+	synchronized boolean moveTo(File file) {
+		if (!Utils.moveFile(mFile, file)) {
+			return false;
+		}
+
+		mFile = file;
+		return true;
+	}
+
+	/**
+	 * Moves the playhead, chunks from this position on are downloaded next.
+	 */
+	synchronized void setPlayhead(long position) {
+		mPlayhead = position;
+	}
+
+	/**
+	 * @return the number of bytes downloaded without a gap from position.
+	 */
+	synchronized long getAvailable(long position) {
+		long available = 0;
+
+		for (int chunk = (int) (position / CHUNK_SIZE); chunk < mChunkProgress.length; chunk++) {
+			long chunkStart = (long) chunk * CHUNK_SIZE;
+			long end = chunkStart + mChunkProgress[chunk];
+
+			if (end <= position) {
+				break;
+			}
+
+			available = end - position;
+
+			if (mChunkProgress[chunk] < getChunkLength(chunk)) {
+				break;
+			}
+		}
+
+		return available;
+	}
+
+	/**
+	 * Waits until data is available at a position. The playhead follows the
+	 * caller, so this is what the player reads next.
+	 *
+	 * @return the number of bytes that can be read from the file at
+	 * position, or 0 at the end of the file.
+	 */
+	synchronized long waitForData(long position) throws IOException {
+		if (position >= mLength) {
+			return 0;
+		}
+
+		mPlayhead = position;
+
+		long available = getAvailable(position);
+
+		if (available == 0) {
+			mStallCount++;
+		}
+
+		while (available == 0) {
+			if (mError != null) {
+				throw mError;
+			}
+
+			if (mCancelled) {
+				throw new IOException("download cancelled");
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+
+			available = getAvailable(position);
+		}
+
+		return available;
+	}
+
+	/**
+	 * @return how often a reader had to wait for data.
+	 */
+	synchronized int getStallCount() {
+		return mStallCount;
+	}
+
+	private long getChunkLength(int chunk) {
+		return Math.min(CHUNK_SIZE, mLength - (long) chunk * CHUNK_SIZE);
+	}
+
+	/**
+	 * @return the first chunk nobody is working on at or after the
+	 * playhead, then from the start of the file, or -1 if none is left.
+	 */
+	private synchronized int takeChunk() {
+		if (mCancelled || mError != null) {
+			return -1;
+		}
+
+		int first = (int) Math.min(mPlayhead / CHUNK_SIZE, mChunkTaken.length - 1);
+
+		for (int i = 0; i < mChunkTaken.length; i++) {
+			int chunk = (first + i) % mChunkTaken.length;
+
+			if (!mChunkTaken[chunk]) {
+				mChunkTaken[chunk] = true;
+				return chunk;
+			}
+		}
+
+		return -1;
+	}
+
+	private synchronized void addProgress(int chunk, int count) {
+		mChunkProgress[chunk] += count;
+
+		if (mChunkProgress[chunk] == getChunkLength(chunk)) {
+			mCompleteChunks++;
+		}
+
+		if (chunk == mFirstIncompleteChunk) {
+			while (mFirstIncompleteChunk < mChunkProgress.length
+					&& mChunkProgress[mFirstIncompleteChunk] == getChunkLength(mFirstIncompleteChunk)) {
+				mFirstIncompleteChunk++;
+			}
+
+			long position = (long) mFirstIncompleteChunk * CHUNK_SIZE;
+
+			if (mFirstIncompleteChunk < mChunkProgress.length) {
+				position += mChunkProgress[mFirstIncompleteChunk];
+			}
+
+			mProgress.setPosition(Math.min(position, mLength));
+		}
+
+		notifyAll();
+	}
+
+	private synchronized void releaseChunk(int chunk) {
+		mChunkTaken[chunk] = false;
+	}
+
+	private synchronized void fail(IOException e) {
+		if (mError == null) {
+			mError = e;
+		}
+
+		notifyAll();
+	}
+
+	private synchronized boolean register(HttpResponse response) {
+		if (mCancelled) {
+			return false;
+		}
+
+		mResponses.add(response);
+		return true;
+	}
+
+	private synchronized void unregister(HttpResponse response) {
+		mResponses.remove(response);
+	}
+
+	/**
+	 * Downloads chunks over one connection until none are left.
+	 */
+	private class Worker implements Runnable {
+
+		private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		public void run() {
+			int retries = 0;
+			int chunk;
+
+			while ((chunk = takeChunk()) != -1) {
+				try {
+					downloadChunk(chunk);
+					retries = 0;
+				} catch (IOException e) {
+					releaseChunk(chunk);
+
+					if (++retries > MAX_RETRIES) {
+						Log.e(TAG, "giving up on chunk " + chunk + ": " + e.getMessage());
+						fail(e);
+						return;
+					}
+
+					Log.v(TAG, "retrying chunk " + chunk + ": " + e.getMessage());
+				}
+			}
+		}
+
+		private void downloadChunk(int chunk) throws IOException {
+			long start;
+			long end = (long) chunk * CHUNK_SIZE + getChunkLength(chunk) - 1;
+
+			synchronized (SegmentedDownload.this) {
+				// resumes a chunk a previous attempt got partly through
+				start = (long) chunk * CHUNK_SIZE + mChunkProgress[chunk];
+			}
+
+			if (start > end) {
+				return;
+			}
+
+			HttpRequest request = new HttpRequest(mURL);
+			request.setHeader("Range", "bytes=" + start + "-" + end);
+
+			HttpResponse response = HttpConnectionPool.getInstance().execute(request);
+
+			if (!register(response)) {
+				response.disconnect();
+				throw new IOException("download cancelled");
+			}
+
+			try {
+				if (response.getStatusCode() != 206) {
+					throw new IOException("server does not support ranges, status: "
+							+ response.getStatusCode());
+				}
+
+				InputStream in = response.getInputStream();
+				long position = start;
+				int count;
+
+				while (position <= end
+						&& (count = in.read(mBuffer.array(), 0, (int) Math.min(BUFFER_SIZE, end - position + 1))) != -1) {
+					mBuffer.clear();
+					mBuffer.limit(count);
+
+					while (mBuffer.hasRemaining()) {
+						mChannel.write(mBuffer, position + mBuffer.position());
+					}
+
+					position += count;
+					addProgress(chunk, count);
+				}
+
+				if (position <= end) {
+					throw new IOException("chunk " + chunk + " ended early");
+				}
+			} finally {
+				unregister(response);
+				response.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,494 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The order in which the tracks of the queue play while shuffling. The
+ * order is a permutation of the queue positions: the tracks played in the
+ * current cycle come first, the ones still to play follow in a random
+ * order, so every track plays once per cycle and picking the next one takes
+ * O(1). Tracks added to the queue are shuffled in among the unplayed ones.
+ * <p>
+ * The positions moved away from are kept in a bounded history for
+ * {@link #previous(int)}. While shuffle is off the order is not kept up to
+ * date, so that changes to the queue cost nothing here; it is rebuilt once
+ * shuffle is turned on again. While it is on, appending tracks and removing
+ * them from the end of the queue take O(count) and moving a track takes
+ * O(distance), but inserting or removing tracks elsewhere renumbers every
+ * later position and takes O(n). The class is not thread safe.
+ */
+class ShuffleOrder {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Random mRandom = new Random();
+
+	// mOrder[i] is the position that plays i-th, mSlot is the inverse
+	private int [] mOrder = new int[INITIAL_CAPACITY];
+	private int [] mSlot = new int[INITIAL_CAPACITY];
+	private int mSize = 0;
+
+	// mOrder[0] to mOrder[mPlayed - 1] were played in this cycle
+	private int mPlayed = 0;
+
+	// while disabled only mSize follows the queue, mStale is set once it
+	// changed and mOrder and mSlot are garbage then
+	private boolean mEnabled = true;
+	private boolean mStale = false;
+
+	// a ring buffer, the oldest entries are overwritten
+	private final int [] mHistory;
+	private int mHistoryStart = 0;
+	private int mHistoryCount = 0;
+
+	/**
+	 * @param historySize The number of tracks {@link #previous(int)} can go
+	 * back.
+	 */
+	ShuffleOrder(int historySize) {
+		mHistory = new int[historySize];
+	}
+
+	/**
+	 * Empties the order and the history, e.g. because the queue was
+	 * replaced.
+	 */
+	void clear() {
+		mSize = 0;
+		mPlayed = 0;
+		mStale = false;
+		clearHistory();
+	}
+
+	/**
+	 * Starts or stops following the changes to the queue. When enabled
+	 * after the queue changed, every track is shuffled again.
+	 */
+	void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+
+		if (enabled && mStale) {
+			mStale = false;
+			mPlayed = 0;
+
+			for (int i = 0; i < mSize; i++) {
+				mOrder[i] = i;
+				mSlot[i] = i;
+			}
+
+			shuffle();
+		}
+	}
+
+	void clearHistory() {
+		mHistoryStart = 0;
+		mHistoryCount = 0;
+	}
+
+	/**
+	 * Starts a new cycle in which every track except the current one is
+	 * still to play.
+	 *
+	 * @param current The position of the current track, or -1.
+	 */
+	void reshuffle(int current) {
+		mPlayed = 0;
+		shuffle();
+		setCurrent(current);
+	}
+
+	/**
+	 * Counts a track as played in this cycle, called for every track that
+	 * starts, however it was picked.
+	 */
+	void setCurrent(int position) {
+		if (mStale || position < 0 || position >= mSize) {
+			return;
+		}
+
+		if (mSlot[position] >= mPlayed) {
+			swap(mSlot[position], mPlayed);
+			mPlayed++;
+		}
+	}
+
+	/**
+	 * Picks the track after the current one and remembers the current one
+	 * in the history.
+	 *
+	 * @param current The position of the current track, or -1.
+	 * @param repeat Whether a new cycle starts once every track was played.
+	 * @return the position of the next track, or -1 if the cycle is over.
+	 */
+	int next(int current, boolean repeat) {
+		if (mPlayed == mSize) {
+			if (!repeat || mSize == 0) {
+				return -1;
+			}
+
+			newCycle(current);
+		}
+
+		if (current >= 0) {
+			addToHistory(current);
+		}
+
+		return mOrder[mPlayed++];
+	}
+
+	/**
+	 * Goes back to the track played before the current one. The current
+	 * track becomes the next one again, so going back and forth replays the
+	 * same tracks.
+	 *
+	 * @param current The position of the current track, or -1.
+	 * @return the position of the previous track, or -1 if the history is
+	 * empty.
+	 */
+	int previous(int current) {
+		if (mHistoryCount == 0) {
+			return -1;
+		}
+
+		mHistoryCount--;
+		int position = mHistory[(mHistoryStart + mHistoryCount) % mHistory.length];
+
+		if (current >= 0 && current < mSize && mSlot[current] < mPlayed) {
+			swap(mSlot[current], mPlayed - 1);
+			mPlayed--;
+		}
+
+		return position;
+	}
+
+	/**
+	 * @param current The position of the current track, or -1.
+	 * @param count The maximum number of tracks.
+	 * @param repeat Whether a new cycle starts once every track was played.
+	 * @return the positions that {@link #next(int, boolean)} returns next,
+	 * up to the end of the cycle.
+	 */
+	int [] upcoming(int current, int count, boolean repeat) {
+		if (mPlayed == mSize && repeat && mSize > 1) {
+			// pick the next cycle now so that it can be prepared
+			newCycle(current);
+		}
+
+		int found = 0;
+		int max = Math.min(count, mSize - mPlayed);
+
+		while (found < max && mOrder[mPlayed + found] != current) {
+			found++;
+		}
+
+		int [] positions = new int[found];
+		System.arraycopy(mOrder, mPlayed, positions, 0, found);
+		return positions;
+	}
+
+	/**
+	 * Adds count tracks that were inserted into the queue at position.
+	 */
+	void insert(int position, int count) {
+		ensureCapacity(mSize + count);
+
+		if (!mEnabled) {
+			markStale(mSize + count);
+			return;
+		}
+
+		if (position < mSize) {
+			for (int i = 0; i < mSize; i++) {
+				if (mOrder[i] >= position) {
+					mOrder[i] += count;
+				}
+			}
+
+			System.arraycopy(mSlot, position, mSlot, position + count, mSize - position);
+
+			for (int i = 0; i < mHistoryCount; i++) {
+				int index = (mHistoryStart + i) % mHistory.length;
+				if (mHistory[index] >= position) {
+					mHistory[index] += count;
+				}
+			}
+		}
+
+		// the inside-out form of Fisher-Yates, restricted to the unplayed tracks
+		for (int i = 0; i < count; i++) {
+			int slot = mSize++;
+			mOrder[slot] = position + i;
+			mSlot[position + i] = slot;
+			swap(slot, mPlayed + mRandom.nextInt(slot - mPlayed + 1));
+		}
+	}
+
+	/**
+	 * Drops the tracks that were removed from the queue, from first to last
+	 * inclusive.
+	 */
+	void remove(int first, int last) {
+		int count = last - first + 1;
+
+		if (!mEnabled) {
+			markStale(mSize - count);
+			return;
+		}
+
+		if (last == mSize - 1) {
+			// no position follows the removed ones, so none is renumbered and
+			// each removed slot is filled by swapping, which keeps the
+			// unplayed tracks in a random order
+			for (int position = last; position >= first; position--) {
+				int slot = mSlot[position];
+
+				if (slot < mPlayed) {
+					swap(slot, mPlayed - 1);
+					mPlayed--;
+					slot = mPlayed;
+				}
+
+				swap(slot, mSize - 1);
+				mSize--;
+			}
+		} else {
+			int size = 0;
+			int played = mPlayed;
+
+			for (int i = 0; i < mSize; i++) {
+				int position = mOrder[i];
+
+				if (position >= first && position <= last) {
+					if (i < mPlayed) {
+						played--;
+					}
+				} else {
+					mOrder[size++] = position > last ? position - count : position;
+				}
+			}
+
+			mSize = size;
+			mPlayed = played;
+			updateSlots();
+		}
+
+		int historyCount = 0;
+
+		for (int i = 0; i < mHistoryCount; i++) {
+			int position = mHistory[(mHistoryStart + i) % mHistory.length];
+
+			if (position < first || position > last) {
+				mHistory[(mHistoryStart + historyCount++) % mHistory.length] =
+						position > last ? position - count : position;
+			}
+		}
+
+		mHistoryCount = historyCount;
+	}
+
+	/**
+	 * Follows a track that was moved in the queue from one position to
+	 * another. Only the positions in between change, they are found through
+	 * mSlot.
+	 */
+	void move(int from, int to) {
+		if (!mEnabled) {
+			markStale(mSize);
+			return;
+		}
+
+		int slot = mSlot[from];
+
+		if (from < to) {
+			for (int position = from + 1; position <= to; position++) {
+				mOrder[mSlot[position]] = position - 1;
+			}
+
+			System.arraycopy(mSlot, from + 1, mSlot, from, to - from);
+		} else {
+			for (int position = to; position < from; position++) {
+				mOrder[mSlot[position]] = position + 1;
+			}
+
+			System.arraycopy(mSlot, to, mSlot, to + 1, from - to);
+		}
+
+		mOrder[slot] = to;
+		mSlot[to] = slot;
+
+		for (int i = 0; i < mHistoryCount; i++) {
+			int index = (mHistoryStart + i) % mHistory.length;
+			mHistory[index] = moved(mHistory[index], from, to);
+		}
+	}
+
+	/**
+	 * @return a copy of the play order, the first {@link #getPlayedCount()}
+	 * positions were played in this cycle.
+	 */
+	int [] getOrder() {
+		if (mStale) {
+			// restore() shuffles from scratch
+			return new int[0];
+		}
+
+		int [] order = new int[mSize];
+		System.arraycopy(mOrder, 0, order, 0, mSize);
+		return order;
+	}
+
+	int getPlayedCount() {
+		return mPlayed;
+	}
+
+	/**
+	 * @return a copy of the history, the oldest entry first.
+	 */
+	int [] getHistory() {
+		int [] history = new int[mHistoryCount];
+
+		for (int i = 0; i < mHistoryCount; i++) {
+			history[i] = mHistory[(mHistoryStart + i) % mHistory.length];
+		}
+
+		return history;
+	}
+
+	/**
+	 * Replaces the order with one saved from {@link #getOrder()},
+	 * {@link #getPlayedCount()} and {@link #getHistory()}. If it does not
+	 * fit a queue of the given size, the queue is shuffled from scratch.
+	 */
+	void restore(int size, int [] order, int played, int [] history) {
+		clear();
+		ensureCapacity(size);
+
+		boolean valid = order.length == size && played >= 0 && played <= size;
+
+		Arrays.fill(mSlot, 0, size, -1);
+
+		for (int i = 0; valid && i < size; i++) {
+			int position = order[i];
+			valid = position >= 0 && position < size && mSlot[position] == -1;
+
+			if (valid) {
+				mOrder[i] = position;
+				mSlot[position] = i;
+			}
+		}
+
+		if (!valid) {
+			insert(0, size);
+			return;
+		}
+
+		mSize = size;
+		mPlayed = played;
+
+		for (int i = 0; i < history.length; i++) {
+			if (history[i] >= 0 && history[i] < size) {
+				addToHistory(history[i]);
+			}
+		}
+	}
+
+	private static int moved(int position, int from, int to) {
+		if (position == from) {
+			return to;
+		} else if (from < to && position > from && position <= to) {
+			return position - 1;
+		} else if (to < from && position >= to && position < from) {
+			return position + 1;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Shuffles every track again, avoiding the current one as the first.
+	 */
+	private void newCycle(int current) {
+		mPlayed = 0;
+		shuffle();
+
+		if (mSize > 1 && mOrder[0] == current) {
+			swap(0, 1 + mRandom.nextInt(mSize - 1));
+		}
+	}
+
+	/**
+	 * Fisher-Yates over the tracks not played in this cycle.
+	 */
+	private void shuffle() {
+		for (int i = mSize - 1; i > mPlayed; i--) {
+			swap(i, mPlayed + mRandom.nextInt(i - mPlayed + 1));
+		}
+	}
+
+	private void swap(int i, int j) {
+		int position = mOrder[i];
+		mOrder[i] = mOrder[j];
+		mOrder[j] = position;
+		mSlot[mOrder[i]] = i;
+		mSlot[mOrder[j]] = j;
+	}
+
+	private void markStale(int size) {
+		mSize = size;
+		mPlayed = 0;
+		mStale = true;
+		clearHistory();
+	}
+
+	private void updateSlots() {
+		for (int i = 0; i < mSize; i++) {
+			mSlot[mOrder[i]] = i;
+		}
+	}
+
+	private void addToHistory(int position) {
+		if (mHistory.length == 0) {
+			return;
+		}
+
+		if (mHistoryCount == mHistory.length) {
+			mHistoryStart = (mHistoryStart + 1) % mHistory.length;
+			mHistoryCount--;
+		}
+
+		mHistory[(mHistoryStart + mHistoryCount) % mHistory.length] = position;
+		mHistoryCount++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= mOrder.length) {
+			return;
+		}
+
+		int length = Math.max(capacity, mOrder.length * 2);
+		int [] order = new int[length];
+		int [] slot = new int[length];
+		System.arraycopy(mOrder, 0, order, 0, mSize);
+		System.arraycopy(mSlot, 0, slot, 0, mSize);
+		mOrder = order;
+		mSlot = slot;
+	}
+}
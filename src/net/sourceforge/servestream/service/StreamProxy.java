@@ -0,0 +1,678 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.net.Uri;
+import android.util.Log;
+
+import net.sourceforge.servestream.bean.UriBean;
+import net.sourceforge.servestream.media.IcyInputStream;
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
+import net.sourceforge.servestream.transport.TransportFactory;
+import net.sourceforge.servestream.utils.Utils;
+
+/**
+ * A HTTP server bound to the loopback interface that the media player
+ * streams from instead of the remote server. The proxy owns the upstream
+ * connection, reads ahead into a {@link ReadAheadBuffer}, strips ICY
+ * metadata blocks (handing them to {@link net.sourceforge.servestream.media.SHOUTcastMetadata})
+ * and forwards byte range requests. Other apps can connect to the loopback
+ * port too, so every proxy URL carries a random token that changes each time
+ * the proxy starts and requests without it are refused.
+ */
+public class StreamProxy implements Runnable {
+	private static final String TAG = StreamProxy.class.getName();
+
+	private static final int READ_AHEAD_BUFFER_SIZE = 256 * 1024;
+	private static final int BUFFER_SIZE = 8192;
+	private static final int TOKEN_LENGTH = 16;
+
+	private final MediaPlaybackService mMediaPlaybackService;
+	private ServerSocket mServerSocket = null;
+	private Thread mThread = null;
+	private String mToken = null;
+
+	private final Map<Long, String> mSources = new HashMap<Long, String>();
+	private final Map<Long, SegmentedDownload> mDownloads = new HashMap<Long, SegmentedDownload>();
+	private final List<ClientHandler> mClients = new ArrayList<ClientHandler>();
+
+	// statistics of the closed streams, guarded by mClients
+	private int mReconnectCount = 0;
+	private long mGapMillis = 0;
+	private int mRebufferCount = 0;
+
+	public StreamProxy(MediaPlaybackService mediaPlaybackService) {
+		mMediaPlaybackService = mediaPlaybackService;
+	}
+
+	/**
+	 * Binds the server socket to a free loopback port and starts accepting
+	 * connections. If the socket cannot be bound the proxy stays disabled
+	 * and {@link #getProxyUrl(long, String)} returns null.
+	 */
+	public synchronized void start() {
+		if (mServerSocket != null) {
+			return;
+		}
+
+		try {
+			mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		} catch (IOException e) {
+			Log.e(TAG, "unable to start stream proxy", e);
+			mServerSocket = null;
+			return;
+		}
+
+		mToken = createToken();
+		mThread = new Thread(this);
+		mThread.setName("StreamProxy");
+		mThread.setDaemon(true);
+		mThread.start();
+
+		Log.v(TAG, "stream proxy listening on port " + mServerSocket.getLocalPort());
+	}
+
+	/**
+	 * Stops accepting connections and closes every active stream.
+	 */
+	public synchronized void stop() {
+		if (mServerSocket == null) {
+			return;
+		}
+
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+		}
+
+		mServerSocket = null;
+		mThread = null;
+		mToken = null;
+
+		List<ClientHandler> clients;
+		synchronized (mClients) {
+			clients = new ArrayList<ClientHandler>(mClients);
+		}
+
+		for (int i = 0; i < clients.size(); i++) {
+			clients.get(i).close();
+		}
+	}
+
+	/**
+	 * Lets every stream that is waiting to reconnect try again right away.
+	 */
+	public void onConnectivityRestored() {
+		synchronized (mClients) {
+			for (int i = 0; i < mClients.size(); i++) {
+				mClients.get(i).retryNow();
+			}
+		}
+	}
+
+	/**
+	 * @return how often upstream connections were reestablished.
+	 */
+	public int getReconnectCount() {
+		synchronized (mClients) {
+			return mReconnectCount;
+		}
+	}
+
+	/**
+	 * @return the total time in milliseconds spent reconnecting.
+	 */
+	public long getGapMillis() {
+		synchronized (mClients) {
+			return mGapMillis;
+		}
+	}
+
+	/**
+	 * @return how often the player drained the read-ahead buffer.
+	 */
+	public int getRebufferCount() {
+		synchronized (mClients) {
+			return mRebufferCount;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (mClients) {
+			return "StreamProxy[reconnects=" + mReconnectCount + ", gap=" + mGapMillis
+					+ "ms, rebuffers=" + mRebufferCount + "]";
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return mServerSocket != null;
+	}
+
+	/**
+	 * Registers a remote stream with the proxy.
+	 *
+	 * @param id The id of the track.
+	 * @param uri The remote URI of the track.
+	 * @return the loopback URL the media player should open, or null if the
+	 * proxy is not running or cannot handle the URI.
+	 */
+	public String getProxyUrl(long id, String uri) {
+		ServerSocket serverSocket;
+		String token;
+
+		synchronized (this) {
+			serverSocket = mServerSocket;
+			token = mToken;
+		}
+
+		if (serverSocket == null || uri == null) {
+			return null;
+		}
+
+		Uri parsedUri = TransportFactory.getUri(uri);
+
+		if (parsedUri == null || parsedUri.getScheme() == null ||
+				!(parsedUri.getScheme().equalsIgnoreCase("http") ||
+				parsedUri.getScheme().equalsIgnoreCase("https"))) {
+			return null;
+		}
+
+		synchronized (mSources) {
+			mSources.put(id, uri);
+			mDownloads.remove(id);
+		}
+
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + token + "/" + id;
+	}
+
+	/**
+	 * Registers a file that is being downloaded by a {@link SegmentedDownload}.
+	 * The player reads it through the proxy, which waits for every byte to
+	 * be downloaded before serving it.
+	 *
+	 * @param id The id of the track.
+	 * @param download The download of the track.
+	 * @return the loopback URL the media player should open, or null if the
+	 * proxy is not running.
+	 */
+	String getProxyUrl(long id, SegmentedDownload download) {
+		ServerSocket serverSocket;
+		String token;
+
+		synchronized (this) {
+			serverSocket = mServerSocket;
+			token = mToken;
+		}
+
+		if (serverSocket == null) {
+			return null;
+		}
+
+		synchronized (mSources) {
+			mDownloads.put(id, download);
+			mSources.remove(id);
+		}
+
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + token + "/" + id;
+	}
+
+	/**
+	 * Unregisters a download, e.g. because it was cancelled.
+	 */
+	void removeDownload(long id, SegmentedDownload download) {
+		synchronized (mSources) {
+			if (mDownloads.get(id) == download) {
+				mDownloads.remove(id);
+			}
+		}
+	}
+
+	public void run() {
+		ServerSocket serverSocket;
+
+		synchronized (this) {
+			serverSocket = mServerSocket;
+		}
+
+		while (serverSocket != null && !serverSocket.isClosed()) {
+			try {
+				Socket client = serverSocket.accept();
+				ClientHandler handler = new ClientHandler(client);
+
+				synchronized (mClients) {
+					mClients.add(handler);
+				}
+
+				Thread thread = new Thread(handler);
+				thread.setName("StreamProxy client");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					Log.e(TAG, "error accepting connection", e);
+				}
+			}
+		}
+
+		Log.v(TAG, "stream proxy stopped");
+	}
+
+	private static String createToken() {
+		byte [] random = new byte[TOKEN_LENGTH];
+		new SecureRandom().nextBytes(random);
+
+		StringBuilder token = new StringBuilder(TOKEN_LENGTH * 2);
+
+		for (int i = 0; i < random.length; i++) {
+			token.append(Character.forDigit((random[i] >> 4) & 0x0f, 16));
+			token.append(Character.forDigit(random[i] & 0x0f, 16));
+		}
+
+		return token.toString();
+	}
+
+	/**
+	 * @return true if a proxy URL path starts with the token of this session.
+	 */
+	private boolean isAuthorized(String path) {
+		String token;
+
+		synchronized (this) {
+			token = mToken;
+		}
+
+		int end = path.indexOf('/', 1);
+
+		if (token == null || !path.startsWith("/") || end == -1) {
+			return false;
+		}
+
+		// compared in constant time so the token can not be guessed byte by byte
+		return MessageDigest.isEqual(token.getBytes(), path.substring(1, end).getBytes());
+	}
+
+	/**
+	 * @return the id encoded in a proxy URL path, or -1.
+	 */
+	private static long parseId(String path) {
+		try {
+			return Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private String getSource(long id) {
+		synchronized (mSources) {
+			return mSources.get(id);
+		}
+	}
+
+	private SegmentedDownload getDownload(long id) {
+		synchronized (mSources) {
+			return mDownloads.get(id);
+		}
+	}
+
+	private HttpRequest createRequest(String uri) {
+		Uri parsedUri = TransportFactory.getUri(uri);
+		UriBean uriBean = TransportFactory.getTransport(parsedUri.getScheme()).createUri(parsedUri);
+
+		HttpRequest request = new HttpRequest(uriBean.getScrubbedURL());
+
+		if (uriBean.getUsername() != null && uriBean.getPassword() != null) {
+			request.setCredentials(uriBean.getUsername(), uriBean.getPassword());
+		}
+
+		return request;
+	}
+
+	/**
+	 * Serves a single request of the media player.
+	 */
+	private class ClientHandler implements Runnable, IcyInputStream.OnMetadataListener {
+
+		private final Socket mClient;
+		private long mId = -1;
+		private boolean mInBand = false;
+		private volatile ReconnectingInputStream mStream = null;
+		private volatile ReadAheadBuffer mBuffer = null;
+
+		public ClientHandler(Socket client) {
+			mClient = client;
+		}
+
+		public void run() {
+			try {
+				InputStream in = new BufferedInputStream(mClient.getInputStream(), BUFFER_SIZE);
+				OutputStream out = new BufferedOutputStream(mClient.getOutputStream(), BUFFER_SIZE);
+
+				String [] requestLine = HttpConnectionPool.readLine(in).split(" ");
+				String range = null;
+				String line;
+
+				while ((line = HttpConnectionPool.readLine(in)).length() > 0) {
+					if (line.regionMatches(true, 0, "range:", 0, 6)) {
+						range = line.substring(6).trim();
+					}
+				}
+
+				if (requestLine.length < 2) {
+					writeStatus(out, 400, "Bad Request");
+					return;
+				}
+
+				if (!isAuthorized(requestLine[1])) {
+					Log.v(TAG, "refusing a request without the proxy token");
+					writeStatus(out, 403, "Forbidden");
+					return;
+				}
+
+				mId = parseId(requestLine[1]);
+				boolean head = requestLine[0].equals(HttpRequest.HEAD);
+				SegmentedDownload download = getDownload(mId);
+
+				if (download != null) {
+					serveDownload(out, download, range, head);
+					return;
+				}
+
+				String uri = getSource(mId);
+
+				if (uri == null) {
+					writeStatus(out, 404, "Not Found");
+					return;
+				}
+
+				HttpRequest request = createRequest(uri);
+				request.setHeader("Icy-MetaData", "1");
+
+				if (head) {
+					request.setMethod(HttpRequest.HEAD);
+				}
+
+				if (range != null) {
+					request.setHeader("Range", range);
+				}
+
+				mStream = new ReconnectingInputStream(request, this);
+				HttpResponse response = mStream.connect();
+
+				if (response.getStatusCode() >= 400) {
+					writeStatus(out, response.getStatusCode(), response.getStatusMessage());
+					return;
+				}
+
+				if (mStream.isInBand()) {
+					mInBand = true;
+					mMediaPlaybackService.getSHOUTcastMetadata().setInBandSource(mId);
+				}
+
+				writeHeaders(out, response);
+
+				if (head) {
+					return;
+				}
+
+				mBuffer = new ReadAheadBuffer(READ_AHEAD_BUFFER_SIZE);
+				startReadAhead(mStream, mBuffer);
+
+				byte [] buffer = new byte[BUFFER_SIZE];
+				int count;
+
+				while ((count = mBuffer.read(buffer, 0, buffer.length)) != -1) {
+					out.write(buffer, 0, count);
+
+					if (mBuffer.available() == 0) {
+						out.flush();
+					}
+				}
+
+				out.flush();
+			} catch (SocketException e) {
+				// the media player closed the connection, e.g. on seek or stop
+				Log.v(TAG, "client disconnected: " + e.getMessage());
+			} catch (IOException e) {
+				Log.v(TAG, "error serving stream: " + e.getMessage());
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Serves a file that is still being downloaded, each read waits for
+		 * the data to arrive. Range requests are answered from the file.
+		 */
+		private void serveDownload(OutputStream out, SegmentedDownload download, String range,
+				boolean head) throws IOException {
+			long length = download.getLength();
+			long start = 0;
+			long end = length - 1;
+
+			int dash = range != null ? range.indexOf('-') : -1;
+
+			// only "bytes=start-" and "bytes=start-end" are supported
+			if (range != null && range.startsWith("bytes=") && dash > 6 && range.indexOf(',') == -1) {
+				try {
+					start = Long.parseLong(range.substring(6, dash).trim());
+
+					if (dash + 1 < range.length()) {
+						end = Math.min(end, Long.parseLong(range.substring(dash + 1).trim()));
+					}
+				} catch (NumberFormatException e) {
+					start = 0;
+					end = length - 1;
+					range = null;
+				}
+			} else {
+				range = null;
+			}
+
+			if (start > end) {
+				writeStatus(out, 416, "Requested Range Not Satisfiable");
+				return;
+			}
+
+			StringBuilder headers = new StringBuilder();
+
+			if (range != null) {
+				headers.append("HTTP/1.1 206 Partial Content\r\n");
+				appendHeader(headers, "Content-Range", "bytes " + start + "-" + end + "/" + length);
+			} else {
+				headers.append("HTTP/1.1 200 OK\r\n");
+			}
+
+			appendHeader(headers, "Content-Type", download.getContentType());
+			appendHeader(headers, "Content-Length", String.valueOf(end - start + 1));
+			appendHeader(headers, "Accept-Ranges", "bytes");
+			headers.append("Connection: close\r\n\r\n");
+
+			out.write(headers.toString().getBytes("ISO-8859-1"));
+			out.flush();
+
+			if (head) {
+				return;
+			}
+
+			RandomAccessFile file = new RandomAccessFile(download.getFile(), "r");
+
+			try {
+				byte [] buffer = new byte[BUFFER_SIZE];
+				long position = start;
+				long available;
+
+				while (position <= end && (available = download.waitForData(position)) > 0) {
+					file.seek(position);
+
+					int count = file.read(buffer, 0,
+							(int) Math.min(Math.min(buffer.length, available), end - position + 1));
+
+					if (count == -1) {
+						break;
+					}
+
+					out.write(buffer, 0, count);
+					position += count;
+
+					// don't hold back data the player may be waiting for
+					if (count == available) {
+						out.flush();
+					}
+				}
+
+				out.flush();
+			} finally {
+				file.close();
+			}
+		}
+
+		/**
+		 * Reads the upstream body into the read-ahead buffer on a separate
+		 * thread so the network is read while the player is busy decoding.
+		 */
+		private void startReadAhead(final InputStream stream, final ReadAheadBuffer buffer) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					byte [] data = new byte[BUFFER_SIZE];
+					int count;
+
+					try {
+						while ((count = stream.read(data, 0, data.length)) != -1) {
+							buffer.write(data, 0, count);
+						}
+
+						buffer.finish();
+					} catch (IOException e) {
+						buffer.fail(e);
+					}
+				}
+			});
+			thread.setName("StreamProxy read-ahead");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Wakes the stream up if it is waiting to reconnect.
+		 */
+		public void retryNow() {
+			ReconnectingInputStream stream = mStream;
+
+			if (stream != null) {
+				stream.retryNow();
+			}
+		}
+
+		public void onMetadata(byte [] buffer, int offset, int length) {
+			mMediaPlaybackService.getSHOUTcastMetadata().onInBandMetadata(mId, buffer, offset, length);
+		}
+
+		/**
+		 * Answers with the upstream status and only the headers the player
+		 * needs, SHOUTcast "ICY 200 OK" responses become plain HTTP.
+		 */
+		private void writeHeaders(OutputStream out, HttpResponse response) throws IOException {
+			StringBuilder headers = new StringBuilder();
+
+			int statusCode = response.getStatusCode() == 206 ? 206 : 200;
+			headers.append("HTTP/1.1 ").append(statusCode)
+				.append(statusCode == 206 ? " Partial Content" : " OK").append("\r\n");
+
+			appendHeader(headers, "Content-Type", response.getContentType());
+
+			// the length of an ICY stream no longer matches once the
+			// metadata is stripped, but such streams never send one
+			if (!mInBand) {
+				appendHeader(headers, "Content-Length", response.getHeader("content-length"));
+				appendHeader(headers, "Content-Range", response.getHeader("content-range"));
+				appendHeader(headers, "Accept-Ranges", response.getHeader("accept-ranges"));
+			}
+
+			headers.append("Connection: close\r\n\r\n");
+
+			out.write(headers.toString().getBytes("ISO-8859-1"));
+			out.flush();
+		}
+
+		private void appendHeader(StringBuilder headers, String name, String value) {
+			if (value != null) {
+				headers.append(name).append(": ").append(value).append("\r\n");
+			}
+		}
+
+		private void writeStatus(OutputStream out, int statusCode, String statusMessage) throws IOException {
+			String status = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
+					"Content-Length: 0\r\n" +
+					"Connection: close\r\n\r\n";
+
+			out.write(status.getBytes("ISO-8859-1"));
+			out.flush();
+		}
+
+		public synchronized void close() {
+			if (mBuffer != null) {
+				mBuffer.close();
+			}
+
+			// a body read completely was already returned to the pool,
+			// otherwise the read-ahead thread may still be blocked reading
+			// from the socket
+			if (mStream != null) {
+				mStream.close();
+			}
+
+			Utils.closeSocket(mClient);
+
+			if (mInBand) {
+				mMediaPlaybackService.getSHOUTcastMetadata().clearInBandSource(mId);
+				mInBand = false;
+			}
+
+			synchronized (mClients) {
+				if (mClients.remove(this) && mStream != null) {
+					mReconnectCount += mStream.getReconnectCount();
+					mGapMillis += mStream.getGapMillis();
+
+					if (mBuffer != null) {
+						mRebufferCount += mBuffer.getUnderrunCount();
+					}
+				}
+			}
+		}
+	}
+}
@@ -20,10 +20,7 @@ package net.sourceforge.servestream.transport;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.Authenticator;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.PasswordAuthentication;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.Map;
@@ -39,7 +36,7 @@ public class HTTP extends AbsTransport {
 	private static final String PROTOCOL = "http";
 	private static final int DEFAULT_PORT = 80;
 	
-	private HttpURLConnection conn = null;
+	private HttpResponse mResponse = null;
 	private InputStream is = null;
 	private int mResponseCode = -1;
 	private String mContentType = null;
@@ -154,43 +151,28 @@ public class HTTP extends AbsTransport {
 	
 	@Override
 	public void connect() throws IOException {
-		URL url = null;
+		HttpRequest request = new HttpRequest(uri.getScrubbedURL());
+
+		if (uri.getUsername() != null && uri.getPassword() != null) {
+			request.setCredentials(uri.getUsername(), uri.getPassword());
+		}
 
-    	final String username = uri.getUsername();
-    	final String password = uri.getPassword();
-    		
-    	if (username != null && password != null) {
-    		Authenticator.setDefault(new Authenticator() {
-    			protected PasswordAuthentication getPasswordAuthentication() {
-    				return new PasswordAuthentication(username, password.toCharArray()); 
-    			};
-    		});
-        	
-    		url = uri.getScrubbedURL();
-    	} else {
-    		url = uri.getURL();
-    	}
+		mResponse = HttpConnectionPool.getInstance().execute(request);
+		mResponseCode = mResponse.getStatusCode();
+
+		if (mResponseCode >= 400) {
+			mResponse.close();
+			throw new IOException("Server returned HTTP response code: " + mResponseCode);
+		}
 
-    	conn = (HttpURLConnection) url.openConnection();        	
-    	conn.setConnectTimeout(6000);
-    	conn.setReadTimeout(6000);
-	    conn.setRequestMethod("GET");
-    	conn.setRequestProperty("User-Agent", "ServeStream");
-    		
-	    mResponseCode = conn.getResponseCode();
-		    
-	    if (mResponseCode == -1) {
-	        mResponseCode = HttpURLConnection.HTTP_OK;
-	    }
-	        
-	    mContentType = conn.getContentType();
-	    is = conn.getInputStream();
+		mContentType = mResponse.getContentType();
+		is = mResponse.getInputStream();
 	}
 
 	@Override
 	public void close() {
 		Utils.closeInputStream(is);
-		Utils.closeHttpConnection(conn);		
+		Utils.closeHttpResponse(mResponse);
 	}
 
 	@Override
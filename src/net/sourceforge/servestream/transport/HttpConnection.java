@@ -0,0 +1,178 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A single socket to a HTTP or HTTPS server that can be handed out by the
+ * {@link HttpConnectionPool} for several consecutive requests.
+ */
+class HttpConnection {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String mKey;
+	private final Socket mSocket;
+	private final InputStream mInputStream;
+	private final OutputStream mOutputStream;
+
+	private long mIdleSince = 0;
+	private long mKeepAliveMillis = 0;
+	private int mRequestCount = 0;
+	private boolean mBackground = false;
+
+	private HttpConnection(String key, Socket socket) throws IOException {
+		mKey = key;
+		mSocket = socket;
+		mInputStream = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+		mOutputStream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a new socket to the specified host.
+	 */
+	static HttpConnection open(String key, String protocol, String host, int port,
+			int connectTimeout) throws IOException {
+		Socket socket = new Socket();
+
+		try {
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setTcpNoDelay(true);
+
+			if (protocol.equalsIgnoreCase("https")) {
+				SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+				SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+				sslSocket.startHandshake();
+
+				if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+					sslSocket.close();
+					throw new IOException("Hostname '" + host + "' was not verified");
+				}
+
+				socket = sslSocket;
+			}
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+			throw e;
+		}
+
+		return new HttpConnection(key, socket);
+	}
+
+	String getKey() {
+		return mKey;
+	}
+
+	InputStream getInputStream() {
+		return mInputStream;
+	}
+
+	OutputStream getOutputStream() {
+		return mOutputStream;
+	}
+
+	void setReadTimeout(int readTimeout) throws IOException {
+		mSocket.setSoTimeout(readTimeout);
+	}
+
+	void setIdle(long now, long keepAliveMillis) {
+		mIdleSince = now;
+		mKeepAliveMillis = keepAliveMillis;
+	}
+
+	long getExpiryTime() {
+		return mIdleSince + mKeepAliveMillis;
+	}
+
+	/**
+	 * @param background true while the connection carries a background
+	 * request.
+	 */
+	void setBackground(boolean background) {
+		mBackground = background;
+	}
+
+	boolean isBackground() {
+		return mBackground;
+	}
+
+	void incrementRequestCount() {
+		mRequestCount++;
+	}
+
+	/**
+	 * @return true if this socket has already carried at least one request.
+	 */
+	boolean isRecycled() {
+		return mRequestCount > 1;
+	}
+
+	/**
+	 * Checks whether the server closed the connection while it was idle
+	 * in the pool. This peeks a single byte with a very short timeout, a
+	 * healthy idle connection has nothing to read.
+	 */
+	boolean isStale() {
+		if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+			return true;
+		}
+
+		int readTimeout = 0;
+		try {
+			readTimeout = mSocket.getSoTimeout();
+			mSocket.setSoTimeout(1);
+			mInputStream.mark(1);
+			mInputStream.read();
+			mInputStream.reset();
+			// either the server closed the socket or it sent data we
+			// never asked for, neither connection can be reused
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return true;
+		} finally {
+			try {
+				mSocket.setSoTimeout(readTimeout);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	void close() {
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,758 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A process wide HTTP client that keeps connections to recently used hosts
+ * alive so that consecutive requests (stream probes, metadata polls, range
+ * resumes, directory listings) do not pay for a new TCP connection and TLS
+ * handshake every time.
+ */
+public class HttpConnectionPool {
+
+	/**
+	 * The maximum number of sockets, in use or idle, the pool will have open
+	 * at any time.
+	 */
+	private static final int MAX_CONNECTIONS = 16;
+
+	/**
+	 * The maximum number of sockets background requests may have in use, the
+	 * rest is kept for playback.
+	 */
+	private static final int MAX_BACKGROUND_CONNECTIONS = 12;
+
+	/**
+	 * The longest status or header line that is accepted.
+	 */
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	/**
+	 * The maximum number of idle sockets kept per host.
+	 */
+	private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+
+	/**
+	 * How long an idle socket is kept before it is evicted, unless the server
+	 * asks for less.
+	 */
+	private static final long KEEP_ALIVE_DURATION = 30000;
+
+	private static final int MAX_REDIRECTS = 5;
+
+	private static HttpConnectionPool sInstance = null;
+
+	private final Object mLock = new Object();
+	private final Map<String, LinkedList<HttpConnection>> mIdleConnections =
+			new HashMap<String, LinkedList<HttpConnection>>();
+	private int mIdleCount = 0;
+	private int mActiveCount = 0;
+	private int mBackgroundCount = 0;
+	private Thread mCleanupThread = null;
+
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+	private long mEvictionCount = 0;
+
+	HttpConnectionPool() {
+
+	}
+
+	public static synchronized HttpConnectionPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new HttpConnectionPool();
+		}
+
+		return sInstance;
+	}
+
+	/**
+	 * Executes a request, following redirects and answering Basic or Digest
+	 * authentication challenges. The returned response must be closed.
+	 *
+	 * @param request The request to execute.
+	 * @return the response.
+	 * @throws IOException if the request could not be executed.
+	 */
+	public HttpResponse execute(HttpRequest request) throws IOException {
+		URL url = request.getURL();
+		String authorization = null;
+		boolean sendCredentials = true;
+		boolean triedDigest = false;
+
+		if (request.hasCredentials()) {
+			authorization = basicAuthorization(request.getUsername(), request.getPassword());
+		}
+
+		for (int redirects = 0; ; ) {
+			HttpResponse response = executeOnce(request, url, authorization);
+			int statusCode = response.getStatusCode();
+
+			if (statusCode == 401 && request.hasCredentials() && sendCredentials && !triedDigest) {
+				String challenge = response.getHeader("www-authenticate");
+
+				if (challenge != null && challenge.regionMatches(true, 0, "Digest", 0, 6)) {
+					response.close();
+					authorization = digestAuthorization(request, url, challenge);
+					triedDigest = true;
+					continue;
+				}
+			}
+
+			if (request.getFollowRedirects() && (statusCode == 301 || statusCode == 302
+					|| statusCode == 303 || statusCode == 307)) {
+				String location = response.getHeader("location");
+
+				if (location != null && redirects < MAX_REDIRECTS) {
+					URL redirect;
+
+					try {
+						redirect = new URL(url, location);
+					} catch (MalformedURLException e) {
+						return response;
+					}
+
+					if (redirect.getProtocol().equalsIgnoreCase("http")
+							|| redirect.getProtocol().equalsIgnoreCase("https")) {
+						response.close();
+
+						// credentials are only sent to the host they were meant for
+						// and never over plain http once the request went over https
+						if (!redirect.getHost().equalsIgnoreCase(url.getHost())
+								|| (url.getProtocol().equalsIgnoreCase("https")
+										&& redirect.getProtocol().equalsIgnoreCase("http"))) {
+							authorization = null;
+							sendCredentials = false;
+						}
+
+						url = redirect;
+						redirects++;
+						continue;
+					}
+				}
+			}
+
+			return response;
+		}
+	}
+
+	private HttpResponse executeOnce(HttpRequest request, URL url, String authorization)
+			throws IOException {
+		boolean forceNew = false;
+
+		while (true) {
+			HttpConnection connection = acquire(url, request.getConnectTimeout(), forceNew,
+					request.isBackground());
+
+			try {
+				connection.setReadTimeout(request.getReadTimeout());
+				writeRequest(connection.getOutputStream(), request, url, authorization);
+				return readResponse(connection, url, request.getMethod());
+			} catch (IOException e) {
+				discard(connection);
+
+				// a kept alive connection may have been closed by the server
+				// just before we used it, retry once on a new socket
+				if (connection.isRecycled() && !forceNew) {
+					forceNew = true;
+					continue;
+				}
+
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of requests that were sent over a pooled connection.
+	 */
+	public long getHitCount() {
+		synchronized (mLock) {
+			return mHitCount;
+		}
+	}
+
+	/**
+	 * @return the number of requests that had to open a new connection.
+	 */
+	public long getMissCount() {
+		synchronized (mLock) {
+			return mMissCount;
+		}
+	}
+
+	/**
+	 * @return the number of idle connections closed because they expired or
+	 * the pool was full.
+	 */
+	public long getEvictionCount() {
+		synchronized (mLock) {
+			return mEvictionCount;
+		}
+	}
+
+	public int getIdleConnectionCount() {
+		synchronized (mLock) {
+			return mIdleCount;
+		}
+	}
+
+	public int getActiveConnectionCount() {
+		synchronized (mLock) {
+			return mActiveCount;
+		}
+	}
+
+	/**
+	 * Closes every idle connection.
+	 */
+	public void evictAll() {
+		List<HttpConnection> evicted = new LinkedList<HttpConnection>();
+
+		synchronized (mLock) {
+			for (LinkedList<HttpConnection> connections : mIdleConnections.values()) {
+				evicted.addAll(connections);
+			}
+			mIdleConnections.clear();
+			mEvictionCount += mIdleCount;
+			mIdleCount = 0;
+			mLock.notifyAll();
+		}
+
+		closeAll(evicted);
+	}
+
+	@Override
+	public String toString() {
+		synchronized (mLock) {
+			return "HttpConnectionPool[hits=" + mHitCount
+					+ ", misses=" + mMissCount
+					+ ", evictions=" + mEvictionCount
+					+ ", active=" + mActiveCount
+					+ ", idle=" + mIdleCount + "]";
+		}
+	}
+
+	private HttpConnection acquire(URL url, int connectTimeout, boolean forceNew,
+			boolean background) throws IOException {
+		String protocol = url.getProtocol().toLowerCase();
+		String host = url.getHost();
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		String key = protocol + "://" + host.toLowerCase() + ":" + port;
+		List<HttpConnection> evicted = new LinkedList<HttpConnection>();
+		long deadline = System.currentTimeMillis() + connectTimeout;
+
+		while (true) {
+			HttpConnection candidate = null;
+
+			try {
+				synchronized (mLock) {
+					while (true) {
+						evictExpiredLocked(System.currentTimeMillis(), evicted);
+
+						LinkedList<HttpConnection> connections = mIdleConnections.get(key);
+						boolean allowed = !background || mBackgroundCount < MAX_BACKGROUND_CONNECTIONS;
+
+						if (allowed && !forceNew && connections != null && connections.size() > 0) {
+							candidate = connections.removeFirst();
+							mIdleCount--;
+							mActiveCount++;
+							candidate.setBackground(background);
+							if (background) {
+								mBackgroundCount++;
+							}
+							break;
+						}
+
+						if (allowed && mActiveCount + mIdleCount >= MAX_CONNECTIONS) {
+							evictEldestLocked(evicted);
+						}
+
+						if (allowed && mActiveCount + mIdleCount < MAX_CONNECTIONS) {
+							mActiveCount++;
+							mMissCount++;
+							if (background) {
+								mBackgroundCount++;
+							}
+							break;
+						}
+
+						long wait = deadline - System.currentTimeMillis();
+
+						if (wait <= 0) {
+							throw new IOException("Too many open connections");
+						}
+
+						try {
+							mLock.wait(wait);
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted while waiting for a connection");
+						}
+					}
+				}
+			} finally {
+				closeAll(evicted);
+				evicted.clear();
+			}
+
+			if (candidate == null) {
+				// a slot for a new connection was reserved
+				break;
+			}
+
+			// the staleness check blocks for a moment on the socket, so it is
+			// done outside the lock where it holds up no other request
+			if (!candidate.isStale()) {
+				synchronized (mLock) {
+					mHitCount++;
+				}
+				candidate.incrementRequestCount();
+				return candidate;
+			}
+
+			synchronized (mLock) {
+				releaseLocked(candidate);
+				mEvictionCount++;
+				mLock.notifyAll();
+			}
+
+			candidate.close();
+		}
+
+		try {
+			HttpConnection connection = HttpConnection.open(key, protocol, host, port, connectTimeout);
+			connection.incrementRequestCount();
+			connection.setBackground(background);
+			return connection;
+		} catch (IOException e) {
+			synchronized (mLock) {
+				mActiveCount--;
+				if (background) {
+					mBackgroundCount--;
+				}
+				mLock.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a connection whose response has been fully read to the pool.
+	 */
+	void recycle(HttpConnection connection, long keepAliveMillis) {
+		List<HttpConnection> evicted = new LinkedList<HttpConnection>();
+
+		synchronized (mLock) {
+			releaseLocked(connection);
+
+			if (keepAliveMillis <= 0) {
+				evicted.add(connection);
+			} else {
+				LinkedList<HttpConnection> connections = mIdleConnections.get(connection.getKey());
+
+				if (connections == null) {
+					connections = new LinkedList<HttpConnection>();
+					mIdleConnections.put(connection.getKey(), connections);
+				}
+
+				connection.setIdle(System.currentTimeMillis(), keepAliveMillis);
+				connections.addFirst(connection);
+				mIdleCount++;
+
+				if (connections.size() > MAX_IDLE_CONNECTIONS_PER_HOST) {
+					evicted.add(connections.removeLast());
+					mIdleCount--;
+					mEvictionCount++;
+				}
+
+				startCleanupThreadLocked();
+			}
+
+			mLock.notifyAll();
+		}
+
+		closeAll(evicted);
+	}
+
+	/**
+	 * Closes a connection that can not be reused.
+	 */
+	void discard(HttpConnection connection) {
+		synchronized (mLock) {
+			releaseLocked(connection);
+			mLock.notifyAll();
+		}
+
+		connection.close();
+	}
+
+	private void releaseLocked(HttpConnection connection) {
+		mActiveCount--;
+
+		if (connection.isBackground()) {
+			mBackgroundCount--;
+			connection.setBackground(false);
+		}
+	}
+
+	/**
+	 * Removes expired idle connections.
+	 *
+	 * @return the time the next idle connection expires or -1 if the pool is
+	 * empty.
+	 */
+	private long evictExpiredLocked(long now, List<HttpConnection> evicted) {
+		long nextExpiry = -1;
+
+		Iterator<LinkedList<HttpConnection>> i = mIdleConnections.values().iterator();
+
+		while (i.hasNext()) {
+			LinkedList<HttpConnection> connections = i.next();
+			Iterator<HttpConnection> j = connections.iterator();
+
+			while (j.hasNext()) {
+				HttpConnection connection = j.next();
+
+				if (connection.getExpiryTime() <= now) {
+					j.remove();
+					evicted.add(connection);
+					mIdleCount--;
+					mEvictionCount++;
+				} else if (nextExpiry == -1 || connection.getExpiryTime() < nextExpiry) {
+					nextExpiry = connection.getExpiryTime();
+				}
+			}
+
+			if (connections.size() == 0) {
+				i.remove();
+			}
+		}
+
+		return nextExpiry;
+	}
+
+	private void evictEldestLocked(List<HttpConnection> evicted) {
+		LinkedList<HttpConnection> eldestList = null;
+
+		for (LinkedList<HttpConnection> connections : mIdleConnections.values()) {
+			if (connections.size() > 0 && (eldestList == null
+					|| connections.getLast().getExpiryTime() < eldestList.getLast().getExpiryTime())) {
+				eldestList = connections;
+			}
+		}
+
+		if (eldestList != null) {
+			evicted.add(eldestList.removeLast());
+			mIdleCount--;
+			mEvictionCount++;
+		}
+	}
+
+	private void startCleanupThreadLocked() {
+		if (mCleanupThread != null) {
+			return;
+		}
+
+		mCleanupThread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					List<HttpConnection> evicted = new LinkedList<HttpConnection>();
+
+					synchronized (mLock) {
+						long now = System.currentTimeMillis();
+						long nextExpiry = evictExpiredLocked(now, evicted);
+
+						if (nextExpiry == -1) {
+							mCleanupThread = null;
+							mLock.notifyAll();
+						} else if (evicted.size() == 0) {
+							try {
+								mLock.wait(nextExpiry - now);
+							} catch (InterruptedException e) {
+								mCleanupThread = null;
+								return;
+							}
+						}
+					}
+
+					closeAll(evicted);
+
+					synchronized (mLock) {
+						if (mCleanupThread == null) {
+							return;
+						}
+					}
+				}
+			}
+		}, "HttpConnectionPool cleanup");
+		mCleanupThread.setDaemon(true);
+		mCleanupThread.start();
+	}
+
+	private static void closeAll(List<HttpConnection> connections) {
+		for (HttpConnection connection : connections) {
+			connection.close();
+		}
+	}
+
+	private static void writeRequest(OutputStream out, HttpRequest request, URL url,
+			String authorization) throws IOException {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(request.getMethod())
+			.append(' ')
+			.append(getRequestPath(url))
+			.append(" HTTP/1.1\r\n");
+
+		sb.append("Host: ").append(url.getHost());
+		if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+			sb.append(':').append(url.getPort());
+		}
+		sb.append("\r\n");
+
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			sb.append(header.getKey())
+				.append(": ")
+				.append(header.getValue())
+				.append("\r\n");
+		}
+
+		if (authorization != null) {
+			sb.append("Authorization: ").append(authorization).append("\r\n");
+		}
+
+		sb.append("\r\n");
+
+		out.write(sb.toString().getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private HttpResponse readResponse(HttpConnection connection, URL url, String method)
+			throws IOException {
+		InputStream in = connection.getInputStream();
+		String statusLine;
+		int statusCode;
+
+		// skip any informational responses
+		do {
+			statusLine = readLine(in);
+
+			int start = statusLine.indexOf(' ');
+			if (start == -1) {
+				throw new IOException("Unexpected status line: " + statusLine);
+			}
+
+			int end = statusLine.indexOf(' ', start + 1);
+			if (end == -1) {
+				end = statusLine.length();
+			}
+
+			try {
+				statusCode = Integer.parseInt(statusLine.substring(start + 1, end));
+			} catch (NumberFormatException e) {
+				throw new IOException("Unexpected status line: " + statusLine);
+			}
+
+			if (statusCode == 100) {
+				while (readLine(in).length() > 0) {
+				}
+			}
+		} while (statusCode == 100);
+
+		Map<String, List<String>> headers = HttpResponse.newHeaderMap();
+		String line;
+
+		while ((line = readLine(in)).length() > 0) {
+			int index = line.indexOf(':');
+
+			if (index > 0) {
+				HttpResponse.addHeader(headers, line.substring(0, index).trim(), line.substring(index + 1).trim());
+			}
+		}
+
+		int protocolEnd = statusLine.indexOf(' ');
+		int messageStart = statusLine.indexOf(' ', protocolEnd + 1);
+		String protocol = statusLine.substring(0, protocolEnd);
+		String statusMessage = messageStart == -1 ? "" : statusLine.substring(messageStart + 1);
+
+		return new HttpResponse(this, connection, url, method, protocol, statusCode,
+				statusMessage, headers, KEEP_ALIVE_DURATION);
+	}
+
+	/**
+	 * Reads a CRLF or LF terminated line of ISO-8859-1 text.
+	 *
+	 * @throws IOException if the line is longer than MAX_LINE_LENGTH, so that
+	 * a broken server can not make us buffer without end.
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int b;
+
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				if (line.size() == 0) {
+					throw new IOException("unexpected end of stream");
+				}
+				break;
+			}
+
+			if (b != '\r') {
+				if (line.size() >= MAX_LINE_LENGTH) {
+					throw new IOException("line too long");
+				}
+				line.write(b);
+			}
+		}
+
+		return line.toString("ISO-8859-1");
+	}
+
+	private static String getRequestPath(URL url) {
+		String path = url.getFile();
+
+		if (path == null || path.length() == 0) {
+			return "/";
+		}
+
+		return path.replace(" ", "%20");
+	}
+
+	private static String basicAuthorization(String username, String password) {
+		try {
+			return "Basic " + base64((username + ":" + password).getBytes("ISO-8859-1"));
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	private static String digestAuthorization(HttpRequest request, URL url, String challenge) {
+		Map<String, String> params = new HashMap<String, String>();
+		String [] parts = challenge.substring(6).split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
+
+		for (int i = 0; i < parts.length; i++) {
+			int index = parts[i].indexOf('=');
+
+			if (index != -1) {
+				String value = parts[i].substring(index + 1).trim();
+				if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+					value = value.substring(1, value.length() - 1);
+				}
+				params.put(parts[i].substring(0, index).trim().toLowerCase(), value);
+			}
+		}
+
+		String realm = params.get("realm");
+		String nonce = params.get("nonce");
+		String qop = params.get("qop");
+		String opaque = params.get("opaque");
+		String uri = getRequestPath(url);
+
+		if (realm == null || nonce == null) {
+			return null;
+		}
+
+		String ha1 = md5(request.getUsername() + ":" + realm + ":" + request.getPassword());
+		String ha2 = md5(request.getMethod() + ":" + uri);
+		String nc = "00000001";
+		String cnonce = Long.toHexString(new Random().nextLong());
+		String response;
+
+		boolean auth = qop != null && qop.indexOf("auth") != -1;
+
+		if (auth) {
+			response = md5(ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2);
+		} else {
+			response = md5(ha1 + ":" + nonce + ":" + ha2);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Digest username=\"").append(request.getUsername())
+			.append("\", realm=\"").append(realm)
+			.append("\", nonce=\"").append(nonce)
+			.append("\", uri=\"").append(uri)
+			.append("\", response=\"").append(response).append('"');
+
+		if (auth) {
+			sb.append(", qop=auth, nc=").append(nc)
+				.append(", cnonce=\"").append(cnonce).append('"');
+		}
+
+		if (opaque != null) {
+			sb.append(", opaque=\"").append(opaque).append('"');
+		}
+
+		return sb.toString();
+	}
+
+	private static String md5(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte [] hash = digest.digest(value.getBytes("ISO-8859-1"));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+
+			for (int i = 0; i < hash.length; i++) {
+				sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(hash[i] & 0xf, 16));
+			}
+
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return "";
+		} catch (UnsupportedEncodingException e) {
+			return "";
+		}
+	}
+
+	private static final char [] BASE64 =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	// kept here so the pool has no Android dependencies
+	private static String base64(byte [] data) {
+		StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+
+		for (int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+			if (i + 1 < data.length) b |= (data[i + 1] & 0xff) << 8;
+			if (i + 2 < data.length) b |= data[i + 2] & 0xff;
+
+			sb.append(BASE64[(b >> 18) & 0x3f]);
+			sb.append(BASE64[(b >> 12) & 0x3f]);
+			sb.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3f] : '=');
+			sb.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+		}
+
+		return sb.toString();
+	}
+}
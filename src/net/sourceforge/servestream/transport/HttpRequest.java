@@ -0,0 +1,158 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.transport;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Describes a single HTTP request to be executed by the
+ * {@link HttpConnectionPool}.
+ */
+public class HttpRequest {
+
+	public static final String GET = "GET";
+	public static final String HEAD = "HEAD";
+
+	private static final int DEFAULT_TIMEOUT = 6000;
+	private static final String USER_AGENT = "ServeStream";
+
+	private URL mURL;
+	private String mMethod = GET;
+	private Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+	private String mUsername = null;
+	private String mPassword = null;
+	private int mConnectTimeout = DEFAULT_TIMEOUT;
+	private int mReadTimeout = DEFAULT_TIMEOUT;
+	private boolean mFollowRedirects = true;
+	private boolean mBackground = false;
+
+	public HttpRequest(URL url) {
+		mURL = url;
+		mHeaders.put("User-Agent", USER_AGENT);
+
+		String userInfo = url.getUserInfo();
+
+		if (userInfo != null) {
+			String [] authInfo = userInfo.split("\\:");
+
+			if (authInfo.length == 2) {
+				setCredentials(authInfo[0], authInfo[1]);
+			}
+		}
+	}
+
+	/**
+	 * Creates a copy of another request, e.g. to repeat it with different
+	 * headers.
+	 */
+	public HttpRequest(HttpRequest request) {
+		mURL = request.mURL;
+		mMethod = request.mMethod;
+		mHeaders.putAll(request.mHeaders);
+		mUsername = request.mUsername;
+		mPassword = request.mPassword;
+		mConnectTimeout = request.mConnectTimeout;
+		mReadTimeout = request.mReadTimeout;
+		mFollowRedirects = request.mFollowRedirects;
+		mBackground = request.mBackground;
+	}
+
+	public URL getURL() {
+		return mURL;
+	}
+
+	public void setMethod(String method) {
+		mMethod = method;
+	}
+
+	public String getMethod() {
+		return mMethod;
+	}
+
+	/**
+	 * Sets a request header, replacing any previous value. A null value
+	 * removes the header.
+	 */
+	public void setHeader(String name, String value) {
+		if (value == null) {
+			mHeaders.remove(name);
+		} else {
+			mHeaders.put(name, value);
+		}
+	}
+
+	public Map<String, String> getHeaders() {
+		return mHeaders;
+	}
+
+	public void setCredentials(String username, String password) {
+		mUsername = username;
+		mPassword = password;
+	}
+
+	public String getUsername() {
+		return mUsername;
+	}
+
+	public String getPassword() {
+		return mPassword;
+	}
+
+	public boolean hasCredentials() {
+		return mUsername != null && mPassword != null;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		mConnectTimeout = connectTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return mConnectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		mReadTimeout = readTimeout;
+	}
+
+	public int getReadTimeout() {
+		return mReadTimeout;
+	}
+
+	public void setFollowRedirects(boolean followRedirects) {
+		mFollowRedirects = followRedirects;
+	}
+
+	public boolean getFollowRedirects() {
+		return mFollowRedirects;
+	}
+
+	/**
+	 * Marks a request that nobody is listening to yet, e.g. a metadata probe
+	 * or a prefetch. The pool keeps some connections free of such requests
+	 * so that they can not starve playback.
+	 */
+	public void setBackground(boolean background) {
+		mBackground = background;
+	}
+
+	public boolean isBackground() {
+		return mBackground;
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The status, headers and body of a response returned by the
+ * {@link HttpConnectionPool}. A response must always be closed, closing
+ * a response whose body has been read completely returns the underlying
+ * connection to the pool.
+ */
+public class HttpResponse {
+
+	/**
+	 * Bodies with at most this many unread bytes are drained on close so the
+	 * connection can still be reused.
+	 */
+	private static final int MAX_DRAIN_SIZE = 16 * 1024;
+
+	private final HttpConnectionPool mPool;
+	private HttpConnection mConnection;
+	private final URL mURL;
+	private final String mProtocol;
+	private final int mStatusCode;
+	private final String mStatusMessage;
+	private final Map<String, List<String>> mHeaders;
+	private final boolean mKeepAlive;
+	private final long mKeepAliveMillis;
+	private BodyInputStream mBody;
+
+	HttpResponse(HttpConnectionPool pool, HttpConnection connection, URL url, String method,
+			String protocol, int statusCode, String statusMessage,
+			Map<String, List<String>> headers, long defaultKeepAliveMillis) {
+		mPool = pool;
+		mConnection = connection;
+		mURL = url;
+		mProtocol = protocol;
+		mStatusCode = statusCode;
+		mStatusMessage = statusMessage;
+		mHeaders = headers;
+		mKeepAlive = isKeepAlive(protocol, getHeader("connection"));
+		mKeepAliveMillis = parseKeepAlive(getHeader("keep-alive"), defaultKeepAliveMillis);
+
+		InputStream in = connection.getInputStream();
+
+		if (method.equals(HttpRequest.HEAD) || (statusCode >= 100 && statusCode < 200)
+				|| statusCode == 204 || statusCode == 304) {
+			mBody = new FixedLengthInputStream(in, 0);
+		} else if ("chunked".equalsIgnoreCase(getHeader("transfer-encoding"))) {
+			mBody = new ChunkedInputStream(in);
+		} else if (getContentLength() != -1) {
+			mBody = new FixedLengthInputStream(in, getContentLength());
+		} else {
+			mBody = new UnknownLengthInputStream(in);
+		}
+	}
+
+	/**
+	 * @return the URL this response was finally received from, after
+	 * following any redirects.
+	 */
+	public URL getURL() {
+		return mURL;
+	}
+
+	/**
+	 * @return the protocol of the status line, e.g. "HTTP/1.1" or "ICY".
+	 */
+	public String getProtocol() {
+		return mProtocol;
+	}
+
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	public String getStatusMessage() {
+		return mStatusMessage;
+	}
+
+	/**
+	 * @return the first value of the named header, or null. Header names
+	 * are case insensitive.
+	 */
+	public String getHeader(String name) {
+		List<String> values = mHeaders.get(name.toLowerCase(Locale.US));
+
+		if (values == null || values.size() == 0) {
+			return null;
+		}
+
+		return values.get(0);
+	}
+
+	/**
+	 * @return all headers keyed by their lower case names.
+	 */
+	public Map<String, List<String>> getHeaderFields() {
+		return Collections.unmodifiableMap(mHeaders);
+	}
+
+	public String getContentType() {
+		return getHeader("content-type");
+	}
+
+	/**
+	 * @return the value of the Content-Length header, or -1 if absent.
+	 */
+	public long getContentLength() {
+		String contentLength = getHeader("content-length");
+
+		if (contentLength == null) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the total length of the file from the Content-Range header
+	 * of a partial response, or -1.
+	 */
+	public long getInstanceLength() {
+		String contentRange = getHeader("content-range");
+
+		if (contentRange == null || contentRange.indexOf('/') == -1) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public InputStream getInputStream() {
+		return mBody;
+	}
+
+	/**
+	 * Releases the connection. If the body was consumed (or is small enough
+	 * to be drained) and the server allows it, the connection is kept alive
+	 * in the pool, otherwise it is closed.
+	 */
+	public void close() {
+		HttpConnection connection;
+
+		synchronized (this) {
+			if (mConnection == null) {
+				return;
+			}
+
+			connection = mConnection;
+			mConnection = null;
+		}
+
+		if (mKeepAlive && mBody.drain()) {
+			mPool.recycle(connection, mKeepAliveMillis);
+		} else {
+			mPool.discard(connection);
+		}
+
+		mBody.mClosed = true;
+	}
+
+	/**
+	 * Closes the connection without trying to reuse it. Unlike
+	 * {@link #close()} this never reads from the socket, so it is safe to
+	 * call while another thread is blocked reading the body.
+	 */
+	public void disconnect() {
+		HttpConnection connection;
+
+		synchronized (this) {
+			if (mConnection == null) {
+				return;
+			}
+
+			connection = mConnection;
+			mConnection = null;
+		}
+
+		mBody.mClosed = true;
+		mPool.discard(connection);
+	}
+
+	static Map<String, List<String>> newHeaderMap() {
+		return new LinkedHashMap<String, List<String>>();
+	}
+
+	static void addHeader(Map<String, List<String>> headers, String name, String value) {
+		String key = name.toLowerCase(Locale.US);
+		List<String> values = headers.get(key);
+
+		if (values == null) {
+			values = new ArrayList<String>(1);
+			headers.put(key, values);
+		}
+
+		values.add(value);
+	}
+
+	private static boolean isKeepAlive(String protocol, String connection) {
+		if (connection != null && connection.equalsIgnoreCase("close")) {
+			return false;
+		}
+
+		if (protocol.equals("HTTP/1.1")) {
+			return true;
+		}
+
+		return protocol.equals("HTTP/1.0") && connection != null
+				&& connection.equalsIgnoreCase("keep-alive");
+	}
+
+	/**
+	 * Honors the "timeout" parameter of a Keep-Alive header if the server
+	 * keeps connections open for less time than our default.
+	 */
+	private static long parseKeepAlive(String keepAlive, long defaultKeepAliveMillis) {
+		if (keepAlive == null) {
+			return defaultKeepAliveMillis;
+		}
+
+		String [] params = keepAlive.split(",");
+
+		for (int i = 0; i < params.length; i++) {
+			String param = params[i].trim();
+
+			if (param.regionMatches(true, 0, "timeout=", 0, 8)) {
+				try {
+					long timeout = Long.parseLong(param.substring(8).trim()) * 1000;
+					return Math.min(timeout, defaultKeepAliveMillis);
+				} catch (NumberFormatException e) {
+					break;
+				}
+			}
+		}
+
+		return defaultKeepAliveMillis;
+	}
+
+	private abstract class BodyInputStream extends InputStream {
+
+		protected final InputStream mIn;
+		private final byte [] mSingleByte = new byte[1];
+		volatile boolean mClosed = false;
+
+		BodyInputStream(InputStream in) {
+			mIn = in;
+		}
+
+		protected void checkNotClosed() throws IOException {
+			if (mClosed) {
+				throw new IOException("stream closed");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int count = read(mSingleByte, 0, 1);
+			return count == -1 ? -1 : mSingleByte[0] & 0xff;
+		}
+
+		/**
+		 * Reads and discards the rest of the body if it is short.
+		 *
+		 * @return true if the body was fully consumed.
+		 */
+		abstract boolean drain();
+
+		@Override
+		public void close() {
+			HttpResponse.this.close();
+		}
+	}
+
+	private class FixedLengthInputStream extends BodyInputStream {
+
+		private long mRemaining;
+
+		FixedLengthInputStream(InputStream in, long length) {
+			super(in);
+			mRemaining = length;
+		}
+
+		@Override
+		public int read(byte [] buffer, int offset, int count) throws IOException {
+			checkNotClosed();
+
+			if (mRemaining == 0) {
+				return -1;
+			}
+
+			int read = mIn.read(buffer, offset, (int) Math.min(count, mRemaining));
+
+			if (read == -1) {
+				throw new IOException("unexpected end of stream");
+			}
+
+			mRemaining -= read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			checkNotClosed();
+			return (int) Math.min(mIn.available(), mRemaining);
+		}
+
+		@Override
+		boolean drain() {
+			if (mClosed || mRemaining > MAX_DRAIN_SIZE) {
+				return mRemaining == 0;
+			}
+
+			try {
+				byte [] buffer = new byte[(int) Math.max(1, mRemaining)];
+
+				while (mRemaining > 0) {
+					if (read(buffer, 0, buffer.length) == -1) {
+						return false;
+					}
+				}
+			} catch (IOException e) {
+				return false;
+			}
+
+			return true;
+		}
+	}
+
+	private class ChunkedInputStream extends BodyInputStream {
+
+		private long mChunkRemaining = -1;
+		private boolean mEndOfBody = false;
+		private int mDrained = 0;
+
+		ChunkedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte [] buffer, int offset, int count) throws IOException {
+			checkNotClosed();
+
+			if (mEndOfBody) {
+				return -1;
+			}
+
+			if (mChunkRemaining <= 0) {
+				readChunkSize();
+
+				if (mEndOfBody) {
+					return -1;
+				}
+			}
+
+			int read = mIn.read(buffer, offset, (int) Math.min(count, mChunkRemaining));
+
+			if (read == -1) {
+				throw new IOException("unexpected end of stream");
+			}
+
+			mChunkRemaining -= read;
+			mDrained += read;
+			return read;
+		}
+
+		private void readChunkSize() throws IOException {
+			// the CRLF that terminates the previous chunk
+			if (mChunkRemaining == 0) {
+				HttpConnectionPool.readLine(mIn);
+			}
+
+			String line = HttpConnectionPool.readLine(mIn);
+			int index = line.indexOf(';');
+
+			if (index != -1) {
+				line = line.substring(0, index);
+			}
+
+			try {
+				mChunkRemaining = Long.parseLong(line.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid chunk size: " + line);
+			}
+
+			if (mChunkRemaining == 0) {
+				// skip the trailers
+				while (HttpConnectionPool.readLine(mIn).length() > 0) {
+				}
+				mEndOfBody = true;
+			}
+		}
+
+		@Override
+		boolean drain() {
+			if (mClosed) {
+				return mEndOfBody;
+			}
+
+			try {
+				byte [] buffer = new byte[4096];
+				mDrained = 0;
+
+				while (!mEndOfBody && mDrained <= MAX_DRAIN_SIZE) {
+					read(buffer, 0, buffer.length);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+
+			return mEndOfBody;
+		}
+	}
+
+	private class UnknownLengthInputStream extends BodyInputStream {
+
+		UnknownLengthInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte [] buffer, int offset, int count) throws IOException {
+			checkNotClosed();
+			return mIn.read(buffer, offset, count);
+		}
+
+		@Override
+		public int available() throws IOException {
+			checkNotClosed();
+			return mIn.available();
+		}
+
+		@Override
+		boolean drain() {
+			// the body ends when the server closes the socket
+			return false;
+		}
+	}
+}
@@ -18,17 +18,22 @@
 package net.sourceforge.servestream.utils;
 
 import net.sourceforge.servestream.bean.UriBean;
+import net.sourceforge.servestream.service.IMediaPlaybackService;
+import net.sourceforge.servestream.service.MediaPlaybackService;
 import net.sourceforge.servestream.transport.AbsTransport;
 import net.sourceforge.servestream.transport.TransportFactory;
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.RemoteException;
 
 /**
  * Asynchronous task that prepares a MusicRetriever. This asynchronous task essentially calls
  * {@link MusicRetriever#prepare()} on a {@link MusicRetriever}, which may take some time to
  * run. Upon finishing, it notifies the indicated {@MusicRetrieverPreparedListener}.
+ * Playlists are handed to the listener as soon as their first entry is parsed,
+ * the remaining entries are appended to the queue while they arrive.
  */
-public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
+public class DetermineActionTask extends AsyncTask<Void, long [], Void> {
     
 	public static final String URL_ACTION_UNDETERMINED = "undetermined";
 	public static final String URL_ACTION_BROWSE = "browse";
@@ -39,12 +44,20 @@ public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
 	private MusicRetrieverPreparedListener mListener;
 	
 	private String mAction;
-	private long[] mList;
+	private long[] mList = new long[0];
+	
+	// set once the first entries were handed to the listener
+	private boolean mPrepared = false;
+	private long mFirstId = -1;
+	private int mQueueLength = 0;
+	// the version of the queue after the last append, -1 before the first
+	private int mQueueVersion = -1;
 
     public DetermineActionTask(Context context,
     		UriBean uri,
             MusicRetrieverPreparedListener listener) {
-    	mContext = context;
+    	// the task may outlive the activity while the rest of a playlist loads
+    	mContext = context.getApplicationContext();
 		mUri = uri;
         mListener = listener;
     }
@@ -68,7 +81,13 @@ public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
 				mAction = URL_ACTION_BROWSE;
 			} else {
 				mAction = URL_ACTION_PLAY;
-				mList = MusicUtils.getFilesInPlaylist(mContext, getUri().getScrubbedUri().toString(), transport.getContentType(), transport.getConnection());
+				MusicUtils.getFilesInPlaylist(mContext, getUri().getScrubbedUri().toString(), transport.getContentType(), transport.getConnection(),
+						new StreamingPlaylist.OnEntriesAddedListener() {
+					
+					public void onEntriesAdded(long[] list) {
+						publishProgress(list);
+					}
+				});
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -78,9 +97,74 @@ public class DetermineActionTask extends AsyncTask<Void, Void, Void> {
 		}
 	}
 	
+    @Override
+    protected void onProgressUpdate(long []... values) {
+    	if (isCancelled()) {
+    		return;
+    	}
+    	
+    	for (long [] list : values) {
+    		if (!mPrepared) {
+    			// start playing while the rest of the playlist is parsed
+    			mPrepared = true;
+    			mFirstId = list[0];
+    			mQueueLength = list.length;
+    			mListener.onMusicRetrieverPrepared(URL_ACTION_PLAY, mUri, list);
+    			// the activity must not be kept while the rest loads
+    			mListener = null;
+    		} else {
+    			appendToQueue(list);
+    		}
+    	}
+    }
+    
     @Override
     protected void onPostExecute(Void result) {
-        mListener.onMusicRetrieverPrepared(mAction, mUri, mList);
+    	if (!mPrepared) {
+    		mListener.onMusicRetrieverPrepared(mAction, mUri, mList);
+    	}
+    }
+    
+    /**
+     * Appends entries to the queue the first entries were played in. Once
+     * the user replaced or edited that queue the entries are dropped.
+     */
+    private void appendToQueue(long [] list) {
+    	IMediaPlaybackService service = MusicUtils.sService;
+    	
+    	if (service == null || mQueueLength < 0) {
+    		return;
+    	}
+    	
+    	try {
+    		if (mQueueVersion == -1) {
+    			// the queue holds only the first entries yet, so it is cheap
+    			// to make sure once that the listener played them
+    			long [] queue = service.getQueue();
+    			
+    			if (queue.length != mQueueLength || queue[0] != mFirstId) {
+    				mQueueLength = -1;
+    				return;
+    			}
+    		} else if (service.getQueueVersion() != mQueueVersion) {
+    			mQueueLength = -1;
+    			return;
+    		}
+    		
+    		service.enqueue(list, MediaPlaybackService.LAST);
+    		mQueueLength += list.length;
+    		mQueueVersion = service.getQueueVersion();
+    	} catch (RemoteException e) {
+    		mQueueLength = -1;
+    	}
+    }
+    
+    /**
+     * @return true if the listener was already told what to do, the task
+     * may still be appending entries to the queue.
+     */
+    public boolean isPrepared() {
+    	return mPrepared;
     }
 	
     /**
@@ -27,13 +27,11 @@ import java.util.Formatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 import org.xml.sax.SAXException;
 
 import net.sourceforge.jplaylistparser.exception.JPlaylistParserException;
 import net.sourceforge.jplaylistparser.parser.AutoDetectParser;
-import net.sourceforge.jplaylistparser.playlist.Playlist;
 import net.sourceforge.jplaylistparser.playlist.PlaylistEntry;
 import net.sourceforge.servestream.R;
 import net.sourceforge.servestream.activity.MediaPlaybackActivity;
@@ -41,16 +39,21 @@ import net.sourceforge.servestream.bean.UriBean;
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.service.IMediaPlaybackService;
 import net.sourceforge.servestream.service.MediaPlaybackService;
+import net.sourceforge.servestream.service.PlaybackSnapshot;
 import net.sourceforge.servestream.transport.AbsTransport;
 import net.sourceforge.servestream.transport.TransportFactory;
 import android.app.Activity;
 import android.app.Service;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.net.Uri;
@@ -336,12 +339,13 @@ public class MusicUtils {
             return;
         }
         try {
-            if (true && MusicUtils.sService != null && MusicUtils.sService.getAudioId() != -1) {
+            PlaybackSnapshot snapshot = MusicUtils.sService != null ? MusicUtils.sService.getPlaybackSnapshot() : null;
+            if (snapshot != null && snapshot.getAudioId() != -1) {
                 TextView title = (TextView) nowPlayingView.findViewById(R.id.title);
                 TextView artist = (TextView) nowPlayingView.findViewById(R.id.artist);
                 
-                CharSequence trackName = sService.getTrackName();
-            	CharSequence artistName = sService.getArtistName();
+                CharSequence trackName = snapshot.getTrackName();
+            	CharSequence artistName = snapshot.getArtistName();
                 
                 if (trackName == null || trackName.equals(Media.UNKNOWN_STRING)) {
             		title.setText(R.string.widget_one_track_info_unavailable);
@@ -350,7 +354,7 @@ public class MusicUtils {
             	}
             		
             	if (artistName == null || artistName.equals(Media.UNKNOWN_STRING)) {
-            		artistName = sService.getMediaUri();
+            		artistName = snapshot.getMediaUri();
             	}
                 
             	artist.setText(artistName);
@@ -372,127 +376,132 @@ public class MusicUtils {
     private final static long [] sEmptyList = new long[0];
     
     public static long [] getFilesInPlaylist(Context context, String uri, String contentType, InputStream is) {
+    	final List<long []> batches = new ArrayList<long []>();
+    	
+    	int count = getFilesInPlaylist(context, uri, contentType, is, new StreamingPlaylist.OnEntriesAddedListener() {
+    		
+			public void onEntriesAdded(long[] list) {
+				batches.add(list);
+			}
+		});
+    	
+    	long [] list = new long[count];
+    	int length = 0;
+    	
+    	for (long [] batch : batches) {
+    		System.arraycopy(batch, 0, list, length, batch.length);
+    		length += batch.length;
+    	}
+    	
+    	if (length < count) {
+    		long [] added = new long[length];
+    		System.arraycopy(list, 0, added, 0, length);
+    		list = added;
+    	}
+    	
+    	return list;
+    }
+    
+    /**
+     * Parses a playlist and adds its entries to the media provider while
+     * it is read, the listener gets their ids batch by batch. If the uri
+     * is not a playlist it is added as the only entry.
+     * 
+     * @return the number of entries.
+     */
+    public static int getFilesInPlaylist(Context context, String uri, String contentType, InputStream is,
+    		StreamingPlaylist.OnEntriesAddedListener listener) {
     	
     	if (uri == null) {
-    		return sEmptyList;
+    		return 0;
     	}
     	
         AutoDetectParser parser = new AutoDetectParser(); // Should auto-detect!
-        Playlist playlist = new Playlist();
+        StreamingPlaylist playlist = new StreamingPlaylist(context, listener);
+        boolean parsed = true;
         
         try {
 			parser.parse(uri, contentType, is, playlist);
 		} catch (IOException e) {
-			playlist = null;
+			parsed = false;
 		} catch (SAXException e) {
-			playlist = null;
+			parsed = false;
 		} catch (JPlaylistParserException e) {
-			playlist = null;
+			parsed = false;
 		} finally {
 			Utils.closeInputStream(is);
 		}
 			
-		if (playlist == null) {
-			playlist = new Playlist();
+		if (!parsed && playlist.getEntryCount() == 0) {
 			PlaylistEntry playlistEntry = new PlaylistEntry();
 			playlistEntry.set(PlaylistEntry.URI, uri);
 			playlistEntry.set(PlaylistEntry.TRACK, "1");
 			playlist.add(playlistEntry);
 		}
+		
+		playlist.finish();
     	
-        return addFilesToMediaStore(context, playlist);
+        return playlist.getEntryCount();
     }
     
-    private static long [] addFilesToMediaStore(Context context, Playlist playlist) {
-    	if (playlist == null || playlist.getPlaylistEntries().size() == 0) {
-    		return sEmptyList;
-    	}	
+    static ContentValues getContentValues(PlaylistEntry playlistEntry) {
+    	String uri = null;
     	
-    	List<ContentValues> contentValues = new ArrayList<ContentValues>();
+    	try {
+    		uri = URLDecoder.decode(playlistEntry.get(PlaylistEntry.URI), "UTF-8");
+    	} catch (UnsupportedEncodingException ex) {
+    		ex.printStackTrace();
+    		uri = playlistEntry.get(PlaylistEntry.URI);
+    	}
     	
-    	ContentResolver contentResolver = context.getContentResolver();
+    	ContentValues value = new ContentValues();
+    	value.put(Media.MediaColumns.URI, uri);
     	
-    	Map<String, Integer> uriList = retrieveAllRows(context);
+    	if (playlistEntry.get(PlaylistEntry.PLAYLIST_METADATA) != null) {
+    		value.put(Media.MediaColumns.TITLE, playlistEntry.get(PlaylistEntry.PLAYLIST_METADATA));
+    	}
     	
-    	long [] list = new long[playlist.getPlaylistEntries().size()];
+    	return value;
+    }
+    
+    /**
+     * Adds the uris that are not stored yet to the media provider.
+     * 
+     * @return the ids of all entries, in the same order.
+     */
+    static long [] addToMediaStore(Context context, List<ContentValues> values) {
+    	if (values.size() == 0) {
+    		return sEmptyList;
+    	}
     	
-    	// process the returned media files
-    	for (int i = 0; i < playlist.getPlaylistEntries().size(); i++) {
-    		long id = -1;
+    	ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
     	
-    		String uri = null;
-    		
-        	try {
-        		uri = URLDecoder.decode(playlist.getPlaylistEntries().get(i).get(PlaylistEntry.URI), "UTF-8");
-    		} catch (UnsupportedEncodingException ex) {
-    			ex.printStackTrace();
-    			uri = playlist.getPlaylistEntries().get(i).get(PlaylistEntry.URI);
-    		}
-    		
-    		if (uriList.get(uri) != null) {
-    			id = uriList.get(uri);
-        		list[i] = id;
-    		} else {    			
-    			// the item doesn't exist, lets put it into the list to be inserted
-    			ContentValues value = new ContentValues();
-        		value.put(Media.MediaColumns.URI, uri);
-        		
-        		if (playlist.getPlaylistEntries().get(i).get(PlaylistEntry.PLAYLIST_METADATA) != null) {
-        			value.put(Media.MediaColumns.TITLE, playlist.getPlaylistEntries().get(i).get(PlaylistEntry.PLAYLIST_METADATA));
-        		}
-
-        		contentValues.add(value);
-    		}
+    	// the provider inserts the uris it does not know yet and returns the
+    	// row of every entry, all in one transaction
+    	for (int i = 0; i < values.size(); i++) {
+    		operations.add(ContentProviderOperation.newInsert(Media.MediaColumns.CONTENT_URI)
+    				.withValues(values.get(i))
+    				.build());
     	}
     	
-    	if (contentValues.size() > 0) {
-    		ContentValues [] values = new ContentValues[contentValues.size()];
-    		values = contentValues.toArray(values);
-    		
-    		int numInserted = contentResolver.bulkInsert(Media.MediaColumns.CONTENT_URI, values);
+    	ContentProviderResult [] results;
     	
-    		if (numInserted > 0) {
-    			/*uriList = retrieveAllRows(context);
-    		
-    			for (int i = 0; i < mediaFiles.size(); i++) {
-    				if (uriList.get(mediaFiles.get(i).getUrl()) != null) {
-    					int id = uriList.get(mediaFiles.get(i).getUrl());
-    					list[i] = id;
-    				}
-    			}*/
-    			list = addFilesToMediaStore(context, playlist);
-    		}
+    	try {
+    		results = context.getContentResolver().applyBatch(Media.AUTHORITY, operations);
+    	} catch (RemoteException ex) {
+    		ex.printStackTrace();
+    		return sEmptyList;
+    	} catch (OperationApplicationException ex) {
+    		ex.printStackTrace();
+    		return sEmptyList;
     	}
     	
-    	return list;
-    }
-    
-    private static Map<String, Integer> retrieveAllRows(Context context) {
-    	Map<String, Integer> list = new HashMap<String, Integer>();
+    	long [] list = new long[results.length];
     	
-		// Form an array specifying which columns to return. 
-		String [] projection = new String [] { Media.MediaColumns._ID, Media.MediaColumns.URI };
-
-		// Get the base URI for the Media Files table in the Media content provider.
-		Uri mediaFile =  Media.MediaColumns.CONTENT_URI;
+    	for (int i = 0; i < results.length; i++) {
+    		list[i] = ContentUris.parseId(results[i].uri);
+    	}
     	
-		// Make the query.
-		Cursor cursor = context.getContentResolver().query(mediaFile, 
-				projection,
-				null,
-				null,
-				null);    	
-	
-		while (cursor.moveToNext()) {
-			int uriColumn = cursor.getColumnIndex(Media.MediaColumns.URI);
-			int idColumn = cursor.getColumnIndex(Media.MediaColumns._ID);
-			String uri = cursor.getString(uriColumn);
-			int id = cursor.getInt(idColumn);
-			list.put(uri, id);
-		}
-
-		cursor.close();
-		
-		return list;
+    	return list;
     }
 }
@@ -50,8 +50,22 @@ public final class PreferenceConstants {
 	
 	public static final String AUTOSAVE = "autosave";
 	
+	public static final String GAPLESS_PLAYBACK = "gapless";
+	
 	public static final String PROGRESSIVE_DOWNLOAD = "progressivedownload";
 	
+	public static final String SEGMENTED_DOWNLOAD = "segmenteddownload";
+	
+	public static final String BUFFER_SECONDS = "bufferseconds";
+	
+	public static final String NO_REBUFFER_PROBABILITY = "norebufferprobability";
+	
+	public static final String CACHE_SIZE = "cachesize";
+	
+	public static final String PREFETCH_TRACKS = "prefetch";
+	
+	public static final String STREAM_PROXY = "streamproxy";
+	
 	public static final String WAKELOCK = "wakelock";
 	
 	public static final String WIFI_LOCK = "wifilock";
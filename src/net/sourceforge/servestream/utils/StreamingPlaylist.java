@@ -0,0 +1,102 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sourceforge.jplaylistparser.playlist.Playlist;
+import net.sourceforge.jplaylistparser.playlist.PlaylistEntry;
+import android.content.ContentValues;
+import android.content.Context;
+
+/**
+ * A playlist that writes its entries to the media provider while the parser
+ * is still reading them. The first entry is written on its own so that it
+ * can be played right away, the following ones in batches that grow up to
+ * {@link #MAX_BATCH_SIZE}. The entries are not kept in memory, so
+ * {@link #getPlaylistEntries()} stays empty.
+ */
+public class StreamingPlaylist extends Playlist {
+
+	private static final int MIN_BATCH_SIZE = 64;
+	private static final int MAX_BATCH_SIZE = 1024;
+
+	private final Context mContext;
+	private final OnEntriesAddedListener mListener;
+
+	private final List<ContentValues> mPending = new ArrayList<ContentValues>();
+	private int mBatchSize = 1;
+	private int mEntryCount = 0;
+
+	/**
+	 * Receives the ids of the entries once they are in the media provider.
+	 */
+	public interface OnEntriesAddedListener {
+
+		/**
+		 * Called on the parsing thread, in playlist order.
+		 *
+		 * @param list The ids of the next entries.
+		 */
+		public void onEntriesAdded(long [] list);
+	}
+
+	public StreamingPlaylist(Context context, OnEntriesAddedListener listener) {
+		mContext = context;
+		mListener = listener;
+	}
+
+	@Override
+	public void add(PlaylistEntry playlistEntry) {
+		mPending.add(MusicUtils.getContentValues(playlistEntry));
+		mEntryCount++;
+
+		if (mPending.size() >= mBatchSize) {
+			flush();
+			mBatchSize = Math.min(Math.max(mBatchSize * 2, MIN_BATCH_SIZE), MAX_BATCH_SIZE);
+		}
+	}
+
+	/**
+	 * Writes the entries that are still pending, called once parsing ended.
+	 */
+	public void finish() {
+		flush();
+	}
+
+	/**
+	 * @return the number of entries added so far.
+	 */
+	public int getEntryCount() {
+		return mEntryCount;
+	}
+
+	private void flush() {
+		if (mPending.isEmpty()) {
+			return;
+		}
+
+		long [] list = MusicUtils.addToMediaStore(mContext, mPending);
+		mPending.clear();
+
+		if (list.length > 0) {
+			mListener.onEntriesAdded(list);
+		}
+	}
+}
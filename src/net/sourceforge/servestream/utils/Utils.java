@@ -24,7 +24,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+import net.sourceforge.servestream.transport.HttpResponse;
 
 import android.os.Environment;
 
@@ -70,27 +76,68 @@ public class Utils {
         return false;
     }
     
-    public static void copyFile(File fromFile, File toFile) {
-    	InputStream in = null;
-    	OutputStream out = null;
+    /**
+     * Moves a file. It is renamed if possible, which is atomic and leaves
+     * open file descriptors valid, and only copied if that fails.
+     * 
+     * @return true if the file was moved.
+     */
+    public static boolean moveFile(File fromFile, File toFile) {
+    	if (fromFile == null || toFile == null) {
+    		return false;
+    	}
+    	
+    	if (fromFile.renameTo(toFile)) {
+    		return true;
+    	}
+    	
+    	if (!copyFile(fromFile, toFile)) {
+    		return false;
+    	}
+    	
+    	deleteFile(fromFile);
+    	return true;
+    }
+    
+    /**
+     * Copies a file through a temporary file that is renamed when the copy
+     * is complete. The data is transferred channel to channel, without
+     * passing through a buffer in the VM.
+     * 
+     * @return true if the file was copied.
+     */
+    public static boolean copyFile(File fromFile, File toFile) {
+    	FileInputStream in = null;
+    	FileOutputStream out = null;
+    	boolean success = false;
     	
     	if (fromFile == null || toFile == null)
-    		return;
+    		return false;
     	
     	File tempFile = new File(toFile.getPath() + ".tmp");
     
     	try {
-    		
     		in = new FileInputStream(fromFile);
     		out = new FileOutputStream(tempFile);
-
-    		byte[] buf = new byte[1024];
-    		int len;
-    		while ((len = in.read(buf)) != -1){
-    			out.write(buf, 0, len);
+    		
+    		FileChannel source = in.getChannel();
+    		FileChannel destination = out.getChannel();
+    		long size = source.size();
+    		long position = 0;
+    		
+    		while (position < size) {
+    			long count = source.transferTo(position, size - position, destination);
+    			
+    			if (count <= 0) {
+    				// the source file was truncated while it was copied
+    				break;
+    			}
+    			
+    			position += count;
     		}
+    		
     		out.close();
-            tempFile.renameTo(toFile);    		
+            success = position == size && tempFile.renameTo(toFile);
     	} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
@@ -98,6 +145,8 @@ public class Utils {
     		Utils.closeOutputStream(out);
     		deleteFile(tempFile);
     	}
+    	
+    	return success;
     }
 	
     /**
@@ -177,6 +226,58 @@ public class Utils {
 		int lastWindowsPos = filename.lastIndexOf('\\');
 		return Math.max(lastUnixPos, lastWindowsPos);
 	}
+
+	/**
+	 * Lowercases the scheme and host, drops the default port and the
+	 * fragment so that equivalent URIs share one entry.
+	 */
+	public static String normalizeUri(String uri) {
+		try {
+			URI parsed = new URI(uri).normalize();
+			String scheme = parsed.getScheme();
+			String host = parsed.getHost();
+
+			if (scheme == null || host == null) {
+				return uri;
+			}
+
+			scheme = scheme.toLowerCase(Locale.US);
+			int port = parsed.getPort();
+
+			if ((port == 80 && scheme.equals("http")) || (port == 443 && scheme.equals("https"))) {
+				port = -1;
+			}
+
+			String path = parsed.getRawPath();
+
+			if (path == null || path.length() == 0) {
+				path = "/";
+			}
+
+			StringBuilder normalized = new StringBuilder();
+			normalized.append(scheme).append("://");
+
+			if (parsed.getRawUserInfo() != null) {
+				normalized.append(parsed.getRawUserInfo()).append('@');
+			}
+
+			normalized.append(host.toLowerCase(Locale.US));
+
+			if (port != -1) {
+				normalized.append(':').append(port);
+			}
+
+			normalized.append(path);
+
+			if (parsed.getRawQuery() != null) {
+				normalized.append('?').append(parsed.getRawQuery());
+			}
+
+			return normalized.toString();
+		} catch (URISyntaxException e) {
+			return uri;
+		}
+	}
     
     /**
 	 * Closes a BufferedReader
@@ -195,17 +296,33 @@ public class Utils {
     }
     
 	/**
-	 * Closes a HttpURLConnection
+	 * Closes a HttpResponse, returning its connection to the pool if possible
 	 * 
-	 * @param conn A HttpURLConnection to close
+	 * @param response A HttpResponse to close
 	 */
-    public static void closeHttpConnection(HttpURLConnection conn) {
-    	if (conn == null)
+    public static void closeHttpResponse(HttpResponse response) {
+    	if (response == null)
     		return;
     	
-    	conn.disconnect();
+    	response.close();
     }
 
+	/**
+	 * Closes a Socket
+	 * 
+	 * @param socket A Socket to close
+	 */
+    public static void closeSocket(Socket socket) {
+    	if (socket == null)
+    		return;
+    	
+    	try {
+    		socket.close();
+		} catch (IOException e) {
+			
+		}
+    }
+    
 	/**
 	 * Closes a OutputStream
 	 * 
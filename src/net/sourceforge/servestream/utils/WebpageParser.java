@@ -22,12 +22,12 @@ import java.util.List;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.URL;
 
-import javax.net.ssl.HttpsURLConnection;
-
 import net.sourceforge.servestream.bean.UriBean;
+import net.sourceforge.servestream.transport.HttpConnectionPool;
+import net.sourceforge.servestream.transport.HttpRequest;
+import net.sourceforge.servestream.transport.HttpResponse;
 import net.sourceforge.servestream.transport.TransportFactory;
 
 import org.jsoup.Jsoup;
@@ -39,7 +39,7 @@ import android.net.Uri;
 public class WebpageParser {
 	//private static final String TAG = WebpageParser.class.getName();
 	
-	private static final String REQUEST_METHOD = "GET";
+	private static final String REQUEST_METHOD = HttpRequest.GET;
 	
 	private URL mURL = null;
 	private List<UriBean> mParsedLinks = null;
@@ -54,7 +54,7 @@ public class WebpageParser {
     
     public void parse() {
         int linkCount = 0;
-		HttpURLConnection conn = null;
+		HttpResponse response = null;
         StringBuffer html = new StringBuffer();
         String line = null;
         BufferedReader reader = null;
@@ -65,20 +65,12 @@ public class WebpageParser {
         		return;
         	}
         	
-    		if (mURL.getProtocol().equalsIgnoreCase("http")) {
-    			conn = (HttpURLConnection) mURL.openConnection();
-    		} else if (mURL.getProtocol().equalsIgnoreCase("https")) {
-    			conn = (HttpsURLConnection) mURL.openConnection();        		
-    		}
-    	
-    		conn.setRequestProperty("User-Agent", "ServeStream");
-    		conn.setConnectTimeout(6000);
-    		conn.setReadTimeout(6000);
-		    conn.setRequestMethod(REQUEST_METHOD);
+    		HttpRequest request = new HttpRequest(mURL);
+		    request.setMethod(REQUEST_METHOD);
 		    
 		    // Start the query
-		    reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-		    conn.connect();
+		    response = HttpConnectionPool.getInstance().execute(request);
+		    reader = new BufferedReader(new InputStreamReader(response.getInputStream()));
 		    
 		    while ((line = reader.readLine()) != null) {
 		    	html = html.append(line);
@@ -107,7 +99,7 @@ public class WebpageParser {
         } catch (Exception ex) {
         } finally {
         	Utils.closeBufferedReader(reader);
-        	Utils.closeHttpConnection(conn);
+        	Utils.closeHttpResponse(response);
         }
     }
     
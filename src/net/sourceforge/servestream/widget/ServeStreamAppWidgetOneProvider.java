@@ -22,6 +22,7 @@ import net.sourceforge.servestream.activity.MediaPlaybackActivity;
 import net.sourceforge.servestream.activity.URLListActivity;
 import net.sourceforge.servestream.provider.Media;
 import net.sourceforge.servestream.service.MediaPlaybackService;
+import net.sourceforge.servestream.service.PlaybackSnapshot;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
@@ -125,8 +126,10 @@ public class ServeStreamAppWidgetOneProvider extends AppWidgetProvider {
             
             linkButtons(service, views, false /* not playing */);
         } else {
-        	CharSequence trackName = service.getTrackName();
-        	CharSequence artistName = service.getArtistName();
+        	// one lock for the whole update, the widget runs in the service's process
+        	PlaybackSnapshot snapshot = service.getPlaybackSnapshot();
+        	CharSequence trackName = snapshot.getTrackName();
+        	CharSequence artistName = snapshot.getArtistName();
         	//CharSequence errorState = null;
         
         	if (trackName == null || trackName.equals(Media.UNKNOWN_STRING)) {
@@ -134,7 +137,7 @@ public class ServeStreamAppWidgetOneProvider extends AppWidgetProvider {
         	}
         		
         	if (artistName == null || artistName.equals(Media.UNKNOWN_STRING)) {
-        		artistName = service.getMediaUri();
+        		artistName = snapshot.getMediaUri();
         	}
         	
         	// Show media info
@@ -143,7 +146,7 @@ public class ServeStreamAppWidgetOneProvider extends AppWidgetProvider {
         	views.setTextViewText(R.id.artist, artistName);
         	
             // Set correct drawable for pause state
-            final boolean playing = service.isPlaying();
+            final boolean playing = snapshot.isPlaying();
             if (playing) {
                 views.setImageViewResource(R.id.control_play, R.drawable.ic_appwidget_music_pause);
             } else {
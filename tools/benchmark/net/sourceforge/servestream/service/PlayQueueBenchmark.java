@@ -0,0 +1,261 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.service;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares {@link PlayQueue} with the plain long[] the service used to keep
+ * the queue in, on queues of growing size. PlayQueue has no Android
+ * dependencies, so this runs on a desktop JVM from the project directory:
+ * <pre>
+ * mkdir -p bin/benchmark
+ * javac -d bin/benchmark src/net/sourceforge/servestream/service/PlayQueue.java \
+ *     tools/benchmark/net/sourceforge/servestream/service/PlayQueueBenchmark.java
+ * java -cp bin/benchmark net.sourceforge.servestream.service.PlayQueueBenchmark
+ * </pre>
+ * Every round moves, inserts and removes a track at random positions and
+ * reads one, the lookups search the positions of an id. Both queues are
+ * given the same operations and their contents are compared at the end.
+ */
+public class PlayQueueBenchmark {
+
+	private static final int [] SIZES = { 1000, 10000, 50000, 200000 };
+	private static final int ROUNDS = 20000;
+	private static final int LOOKUPS = 2000;
+	private static final int WARMUP_RUNS = 2;
+
+	public static void main(String [] args) {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			run(SIZES[1], false);
+		}
+
+		System.out.println("tracks     rounds: treap    array     lookups: treap    array");
+
+		for (int i = 0; i < SIZES.length; i++) {
+			run(SIZES[i], true);
+		}
+	}
+
+	private static void run(int size, boolean print) {
+		long [] ids = new long[size];
+
+		for (int i = 0; i < size; i++) {
+			ids[i] = i;
+		}
+
+		PlayQueue queue = new PlayQueue();
+		queue.insert(0, ids);
+
+		ArrayQueue array = new ArrayQueue();
+		array.insert(0, ids);
+
+		long treapRounds = rounds(queue, null, size);
+		long arrayRounds = rounds(null, array, size);
+		long treapLookups = lookups(queue, null, size);
+		long arrayLookups = lookups(null, array, size);
+
+		if (!Arrays.equals(queue.toArray(), array.toArray())) {
+			throw new IllegalStateException("the queues differ");
+		}
+
+		if (print) {
+			System.out.println(pad(String.valueOf(size), 11)
+					+ pad(millis(treapRounds), 17) + pad(millis(arrayRounds), 10)
+					+ pad(millis(treapLookups), 18) + millis(arrayLookups));
+		}
+	}
+
+	/**
+	 * @return the nanoseconds the rounds took on whichever queue is given.
+	 */
+	private static long rounds(PlayQueue queue, ArrayQueue array, int size) {
+		// the same seed gives both queues the same operations
+		Random random = new Random(size);
+		long checksum = 0;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < ROUNDS; i++) {
+			int from = random.nextInt(size);
+			int to = random.nextInt(size);
+			int insertAt = random.nextInt(size + 1);
+			int removeAt = random.nextInt(size + 1);
+			int readAt = random.nextInt(size);
+			long id = size + i;
+
+			if (queue != null) {
+				queue.move(from, to);
+				queue.insert(insertAt, new long [] { id });
+				queue.remove(removeAt, removeAt);
+				checksum += queue.get(readAt);
+			} else {
+				array.move(from, to);
+				array.insert(insertAt, new long [] { id });
+				array.remove(removeAt, removeAt);
+				checksum += array.get(readAt);
+			}
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		// keeps the reads from being optimized away
+		if (checksum == Long.MIN_VALUE) {
+			System.out.println(checksum);
+		}
+
+		return elapsed;
+	}
+
+	private static long lookups(PlayQueue queue, ArrayQueue array, int size) {
+		Random random = new Random(size);
+		long found = 0;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < LOOKUPS; i++) {
+			long id = random.nextInt(size);
+			found += queue != null ? queue.positionsOf(id).length : array.positionsOf(id).length;
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		if (found == Long.MIN_VALUE) {
+			System.out.println(found);
+		}
+
+		return elapsed;
+	}
+
+	private static String millis(long nanos) {
+		return (nanos / 1000000) + " ms";
+	}
+
+	private static String pad(String value, int width) {
+		StringBuilder padded = new StringBuilder(value);
+
+		while (padded.length() < width) {
+			padded.append(' ');
+		}
+
+		return padded.toString();
+	}
+
+	/**
+	 * The queue as the service kept it before PlayQueue: a long[] grown to
+	 * twice the needed size, with the tail shifted by hand on every change
+	 * and ids found by scanning.
+	 */
+	private static class ArrayQueue {
+
+		private long [] mPlayList = null;
+		private int mPlayListLen = 0;
+
+		long get(int position) {
+			return mPlayList[position];
+		}
+
+		void insert(int position, long [] list) {
+			int addlen = list.length;
+			ensurePlayListCapacity(mPlayListLen + addlen);
+
+			if (position > mPlayListLen) {
+				position = mPlayListLen;
+			}
+
+			// move part of list after insertion point
+			int tailsize = mPlayListLen - position;
+			for (int i = tailsize; i > 0; i--) {
+				mPlayList[position + i + addlen - 1] = mPlayList[position + i - 1];
+			}
+
+			// copy list into playlist
+			for (int i = 0; i < addlen; i++) {
+				mPlayList[position + i] = list[i];
+			}
+			mPlayListLen += addlen;
+		}
+
+		void remove(int first, int last) {
+			if (last >= mPlayListLen) {
+				last = mPlayListLen - 1;
+			}
+
+			int num = last - first + 1;
+			for (int i = first; i + num < mPlayListLen; i++) {
+				mPlayList[i] = mPlayList[i + num];
+			}
+			mPlayListLen -= num;
+		}
+
+		void move(int index1, int index2) {
+			if (index1 < index2) {
+				long tmp = mPlayList[index1];
+				for (int i = index1; i < index2; i++) {
+					mPlayList[i] = mPlayList[i + 1];
+				}
+				mPlayList[index2] = tmp;
+			} else if (index2 < index1) {
+				long tmp = mPlayList[index1];
+				for (int i = index1; i > index2; i--) {
+					mPlayList[i] = mPlayList[i - 1];
+				}
+				mPlayList[index2] = tmp;
+			}
+		}
+
+		int [] positionsOf(long id) {
+			int count = 0;
+
+			for (int i = 0; i < mPlayListLen; i++) {
+				if (mPlayList[i] == id) {
+					count++;
+				}
+			}
+
+			int [] positions = new int[count];
+
+			for (int i = 0, j = 0; i < mPlayListLen; i++) {
+				if (mPlayList[i] == id) {
+					positions[j++] = i;
+				}
+			}
+
+			return positions;
+		}
+
+		long [] toArray() {
+			long [] list = new long[mPlayListLen];
+			System.arraycopy(mPlayList, 0, list, 0, mPlayListLen);
+			return list;
+		}
+
+		private void ensurePlayListCapacity(int size) {
+			if (mPlayList == null || size > mPlayList.length) {
+				// reallocate at 2x requested size so we don't
+				// need to grow and copy the array for every
+				// insert
+				long [] newlist = new long[size * 2];
+				int len = mPlayList != null ? mPlayList.length : mPlayListLen;
+				for (int i = 0; i < len; i++) {
+					newlist[i] = mPlayList[i];
+				}
+				mPlayList = newlist;
+			}
+		}
+	}
+}
@@ -0,0 +1,508 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds small files in every format {@link TagReader} supports, so that
+ * {@link TagReaderTest} and {@link TagReaderFuzz} need no binary fixtures.
+ * The audio is silence or zeros, only the headers the reader looks at are
+ * real.
+ */
+class TagReaderFixtures {
+
+	static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	static final Charset UTF_16 = Charset.forName("UTF-16");
+
+	// MPEG 1 layer III, 128 kbit/s, 44.1 kHz, stereo, 417 bytes per frame
+	static final int MP3_HEADER = 0xfffb9000;
+	static final int MP3_FRAME_SIZE = 417;
+
+	/**
+	 * @return every well formed fixture by name.
+	 */
+	static Map<String, byte []> all() {
+		Map<String, byte []> fixtures = new LinkedHashMap<String, byte []>();
+		fixtures.put("id3v2.2", id3v22());
+		fixtures.put("id3v2.3", id3v23());
+		fixtures.put("id3v2.3 extended header", id3v23ExtendedHeader());
+		fixtures.put("id3v2.4", id3v24());
+		fixtures.put("id3v1", id3v1Only());
+		fixtures.put("flac", flac());
+		fixtures.put("ogg vorbis", oggVorbis());
+		fixtures.put("ogg opus", oggOpus());
+		fixtures.put("mp4", mp4());
+		return fixtures;
+	}
+
+	/**
+	 * An ID3v2.2 tag with Latin-1 frames before 96 CBR frames.
+	 */
+	static byte [] id3v22() {
+		Writer frames = new Writer();
+		id3v22Frame(frames, "TT2", text(0, "Title 22"));
+		id3v22Frame(frames, "TP1", text(0, "Artist 22"));
+		id3v22Frame(frames, "TAL", text(0, "Album 22"));
+
+		Writer file = new Writer();
+		id3v2Header(file, 2, 0, frames.size());
+		file.bytes(frames.toByteArray());
+		mp3Frames(file, 96, -1);
+		return file.toByteArray();
+	}
+
+	/**
+	 * An ID3v2.3 tag with a UTF-16 title and padding, CBR frames and an
+	 * ID3v1.1 tag whose title must lose against the ID3v2 one.
+	 */
+	static byte [] id3v23() {
+		Writer frames = new Writer();
+		id3v23Frame(frames, "TIT2", text(1, "T\u00eftle \u00dcTF16"));
+		id3v23Frame(frames, "TPE1", text(0, "Artist 23"));
+		id3v23Frame(frames, "TALB", text(3, "Album 23"));
+		id3v23Frame(frames, "TRCK", text(0, "7"));
+		frames.zeros(100);
+
+		Writer file = new Writer();
+		id3v2Header(file, 3, 0, frames.size());
+		file.bytes(frames.toByteArray());
+		mp3Frames(file, 96, -1);
+		id3v1(file, "V1 Title", "V1 Artist", "V1 Album", "1999", 5);
+		return file.toByteArray();
+	}
+
+	/**
+	 * An ID3v2.3 tag with a 6 byte extended header, whose size does not
+	 * count itself.
+	 */
+	static byte [] id3v23ExtendedHeader() {
+		Writer frames = new Writer();
+		frames.int32(6);
+		frames.zeros(6);
+		id3v23Frame(frames, "TIT2", text(0, "Extended"));
+
+		Writer file = new Writer();
+		id3v2Header(file, 3, 0x40, frames.size());
+		file.bytes(frames.toByteArray());
+		mp3Frames(file, 10, -1);
+		return file.toByteArray();
+	}
+
+	/**
+	 * An ID3v2.4 tag with synchsafe frame sizes, an unsynchronised frame
+	 * and a Xing frame counting 10000 frames.
+	 */
+	static byte [] id3v24() {
+		Writer frames = new Writer();
+		id3v24Frame(frames, "TIT2", text(3, "Four"), 0);
+		id3v24Frame(frames, "TPE1", text(3, "Art4"), 0);
+		id3v24Frame(frames, "TDRC", text(3, "2012"), 0);
+		id3v24Frame(frames, "TLEN", text(3, "999"), 0);
+		// A 0xff B, the 0xff is followed by a 0x00 once unsynchronised
+		id3v24Frame(frames, "TALB", new byte [] { 0, 'A', (byte) 0xff, 0, 'B' }, 0x0002);
+
+		Writer file = new Writer();
+		id3v2Header(file, 4, 0, frames.size());
+		file.bytes(frames.toByteArray());
+		mp3Frames(file, 50, 10000);
+		return file.toByteArray();
+	}
+
+	/**
+	 * 100 CBR frames followed by an ID3v1.1 tag.
+	 */
+	static byte [] id3v1Only() {
+		Writer file = new Writer();
+		mp3Frames(file, 100, -1);
+		id3v1(file, "V1 Title", "V1 Artist", "V1 Album", "1999", 5);
+		return file.toByteArray();
+	}
+
+	/**
+	 * A FLAC file of 200 seconds at 44.1 kHz with a Vorbis comment.
+	 */
+	static byte [] flac() {
+		int sampleRate = 44100;
+		long samples = 44100L * 200;
+
+		Writer streamInfo = new Writer();
+		streamInfo.zeros(10);
+		streamInfo.int8(sampleRate >>> 12);
+		streamInfo.int8(sampleRate >>> 4);
+		streamInfo.int8(((sampleRate & 0x0f) << 4) | 0x02);
+		streamInfo.int8(0xf0 | (int) ((samples >>> 32) & 0x0f));
+		streamInfo.int32((int) samples);
+		streamInfo.zeros(16);
+
+		byte [] comment = vorbisComment("reference libFLAC", "TITLE=Flac Title",
+				"artist=Flac Artist", "TRACKNUMBER=3");
+
+		Writer file = new Writer();
+		file.ascii("fLaC");
+		file.int8(0);
+		file.int24(streamInfo.size());
+		file.bytes(streamInfo.toByteArray());
+		file.int8(0x80 | 4);
+		file.int24(comment.length);
+		file.bytes(comment);
+		file.zeros(20000);
+		return file.toByteArray();
+	}
+
+	/**
+	 * An Ogg Vorbis file of 123 seconds at 48 kHz whose comment header spans
+	 * two pages.
+	 */
+	static byte [] oggVorbis() {
+		Writer identification = new Writer();
+		identification.int8(1);
+		identification.ascii("vorbis");
+		identification.int32le(0);
+		identification.int8(2);
+		identification.int32le(48000);
+		identification.zeros(12);
+		identification.int8(1);
+
+		Writer comment = new Writer();
+		comment.int8(3);
+		comment.ascii("vorbis");
+		String [] fields = new String[12];
+		fields[0] = "TITLE=Ogg Title";
+		fields[1] = "ARTIST=Ogg Artist";
+		for (int i = 2; i < fields.length; i++) {
+			fields[i] = "PADDING=" + repeat('x', 200);
+		}
+		comment.bytes(vorbisComment("Xiph.Org libVorbis", fields));
+		comment.int8(1);
+
+		byte [] packet = comment.toByteArray();
+		int split = 255 * 4;
+		byte [] first = new byte[split];
+		byte [] second = new byte[packet.length - split];
+		System.arraycopy(packet, 0, first, 0, first.length);
+		System.arraycopy(packet, split, second, 0, second.length);
+
+		Writer file = new Writer();
+		oggPage(file, 7, 0, 0, 0x02, identification.toByteArray(), true);
+		oggPage(file, 7, 1, 0, 0, first, false);
+		oggPage(file, 7, 2, 0, 0x01, second, true);
+		file.zeros(20000);
+		oggPage(file, 7, 3, 48000L * 123, 0x04, new byte[100], true);
+		return file.toByteArray();
+	}
+
+	/**
+	 * An Ogg Opus file of 10 seconds with a pre-skip of 312 samples.
+	 */
+	static byte [] oggOpus() {
+		Writer head = new Writer();
+		head.ascii("OpusHead");
+		head.int8(1);
+		head.int8(2);
+		head.int16le(312);
+		head.int32le(44100);
+		head.zeros(3);
+
+		Writer tags = new Writer();
+		tags.ascii("OpusTags");
+		tags.bytes(vorbisComment("libopus", "title=Opus Title", "ALBUM=Opus Album"));
+
+		Writer file = new Writer();
+		oggPage(file, 9, 0, 0, 0x02, head.toByteArray(), true);
+		oggPage(file, 9, 1, 0, 0, tags.toByteArray(), true);
+		file.zeros(20000);
+		oggPage(file, 9, 2, 48000L * 10 + 312, 0x04, new byte[100], true);
+		return file.toByteArray();
+	}
+
+	/**
+	 * An MP4 file of 185 seconds with its moov atom after the media data.
+	 */
+	static byte [] mp4() {
+		Writer mvhd = new Writer();
+		mvhd.int32(0);
+		mvhd.int32(0);
+		mvhd.int32(0);
+		mvhd.int32(1000);
+		mvhd.int32(185000);
+		mvhd.zeros(80);
+
+		Writer trkn = new Writer();
+		trkn.int16(0);
+		trkn.int16(3);
+		trkn.int16(10);
+		trkn.int16(0);
+
+		Writer ilst = new Writer();
+		ilst.bytes(atom("\u00a9nam", mp4Data(1, "Mp4 Title".getBytes(UTF_8))));
+		ilst.bytes(atom("\u00a9ART", mp4Data(1, "Mp4 Artist".getBytes(UTF_8))));
+		ilst.bytes(atom("trkn", mp4Data(0, trkn.toByteArray())));
+
+		Writer meta = new Writer();
+		meta.int32(0);
+		meta.bytes(atom("hdlr", new byte[25]));
+		meta.bytes(atom("ilst", ilst.toByteArray()));
+
+		Writer moov = new Writer();
+		moov.bytes(atom("mvhd", mvhd.toByteArray()));
+		moov.bytes(atom("udta", atom("meta", meta.toByteArray())));
+
+		Writer ftyp = new Writer();
+		ftyp.ascii("M4A ");
+		ftyp.int32(0);
+
+		Writer file = new Writer();
+		file.bytes(atom("ftyp", ftyp.toByteArray()));
+		file.bytes(atom("mdat", new byte[30000]));
+		file.bytes(atom("moov", moov.toByteArray()));
+		return file.toByteArray();
+	}
+
+	/*
+	 * Building blocks
+	 */
+
+	static void id3v2Header(Writer out, int version, int flags, int size) {
+		out.ascii("ID3");
+		out.int8(version);
+		out.int8(0);
+		out.int8(flags);
+		out.synchsafe(size);
+	}
+
+	static void id3v22Frame(Writer out, String id, byte [] body) {
+		out.ascii(id);
+		out.int24(body.length);
+		out.bytes(body);
+	}
+
+	static void id3v23Frame(Writer out, String id, byte [] body) {
+		out.ascii(id);
+		out.int32(body.length);
+		out.int16(0);
+		out.bytes(body);
+	}
+
+	static void id3v24Frame(Writer out, String id, byte [] body, int flags) {
+		out.ascii(id);
+		out.synchsafe(body.length);
+		out.int16(flags);
+		out.bytes(body);
+	}
+
+	/**
+	 * @return the body of a text frame in the given ID3v2 encoding.
+	 */
+	static byte [] text(int encoding, String value) {
+		Charset charset = encoding == 1 ? UTF_16 : (encoding == 3 ? UTF_8 : ISO_8859_1);
+		byte [] bytes = value.getBytes(charset);
+		byte [] body = new byte[bytes.length + 1];
+		body[0] = (byte) encoding;
+		System.arraycopy(bytes, 0, body, 1, bytes.length);
+		return body;
+	}
+
+	static void id3v1(Writer out, String title, String artist, String album, String year, int track) {
+		out.ascii("TAG");
+		out.padded(title, 30);
+		out.padded(artist, 30);
+		out.padded(album, 30);
+		out.padded(year, 4);
+		out.padded("comment", 28);
+		out.int8(0);
+		out.int8(track);
+		out.int8(12);
+	}
+
+	/**
+	 * Writes CBR frames, the first one carries a Xing header if xingFrames
+	 * is not -1.
+	 */
+	static void mp3Frames(Writer out, int count, int xingFrames) {
+		for (int i = 0; i < count; i++) {
+			byte [] frame = new byte[MP3_FRAME_SIZE];
+			frame[0] = (byte) (MP3_HEADER >>> 24);
+			frame[1] = (byte) (MP3_HEADER >>> 16);
+			frame[2] = (byte) (MP3_HEADER >>> 8);
+			frame[3] = (byte) MP3_HEADER;
+
+			if (i == 0 && xingFrames != -1) {
+				// after 32 bytes of side information in a stereo MPEG 1 frame
+				Writer xing = new Writer();
+				xing.ascii("Xing");
+				xing.int32(1);
+				xing.int32(xingFrames);
+				byte [] bytes = xing.toByteArray();
+				System.arraycopy(bytes, 0, frame, 4 + 32, bytes.length);
+			}
+
+			out.bytes(frame);
+		}
+	}
+
+	static byte [] vorbisComment(String vendor, String... fields) {
+		Writer out = new Writer();
+		byte [] vendorBytes = vendor.getBytes(UTF_8);
+		out.int32le(vendorBytes.length);
+		out.bytes(vendorBytes);
+		out.int32le(fields.length);
+
+		for (int i = 0; i < fields.length; i++) {
+			byte [] field = fields[i].getBytes(UTF_8);
+			out.int32le(field.length);
+			out.bytes(field);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes a page holding one packet or, if complete is false, the start
+	 * of one. The CRC is left 0, the reader does not check it.
+	 */
+	static void oggPage(Writer out, int serial, int sequence, long granule, int flags,
+			byte [] data, boolean complete) {
+		Writer lacing = new Writer();
+		int remaining = data.length;
+
+		while (remaining >= 255) {
+			lacing.int8(255);
+			remaining -= 255;
+		}
+
+		if (complete) {
+			lacing.int8(remaining);
+		}
+
+		out.ascii("OggS");
+		out.int8(0);
+		out.int8(flags);
+		out.int32le((int) granule);
+		out.int32le((int) (granule >>> 32));
+		out.int32le(serial);
+		out.int32le(sequence);
+		out.int32le(0);
+		out.int8(lacing.size());
+		out.bytes(lacing.toByteArray());
+		out.bytes(data);
+	}
+
+	static byte [] atom(String type, byte [] body) {
+		Writer out = new Writer();
+		out.int32(8 + body.length);
+		out.ascii(type);
+		out.bytes(body);
+		return out.toByteArray();
+	}
+
+	static byte [] mp4Data(int type, byte [] value) {
+		Writer out = new Writer();
+		out.int32(type);
+		out.int32(0);
+		out.bytes(value);
+		return atom("data", out.toByteArray());
+	}
+
+	static String repeat(char c, int count) {
+		StringBuilder sb = new StringBuilder(count);
+
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Appends big and little endian numbers and text to a byte array.
+	 */
+	static class Writer {
+
+		private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+		void int8(int value) {
+			mOut.write(value);
+		}
+
+		void int16(int value) {
+			int8(value >>> 8);
+			int8(value);
+		}
+
+		void int24(int value) {
+			int8(value >>> 16);
+			int16(value);
+		}
+
+		void int32(int value) {
+			int16(value >>> 16);
+			int16(value);
+		}
+
+		void int16le(int value) {
+			int8(value);
+			int8(value >>> 8);
+		}
+
+		void int32le(int value) {
+			int16le(value);
+			int16le(value >>> 16);
+		}
+
+		void synchsafe(int value) {
+			int8((value >>> 21) & 0x7f);
+			int8((value >>> 14) & 0x7f);
+			int8((value >>> 7) & 0x7f);
+			int8(value & 0x7f);
+		}
+
+		void ascii(String value) {
+			// Latin-1 also maps the copyright sign of the MP4 atom types to 0xa9
+			bytes(value.getBytes(ISO_8859_1));
+		}
+
+		void padded(String value, int length) {
+			byte [] bytes = value.getBytes(ISO_8859_1);
+			mOut.write(bytes, 0, Math.min(bytes.length, length));
+			zeros(length - bytes.length);
+		}
+
+		void zeros(int count) {
+			for (int i = 0; i < count; i++) {
+				mOut.write(0);
+			}
+		}
+
+		void bytes(byte [] bytes) {
+			mOut.write(bytes, 0, bytes.length);
+		}
+
+		int size() {
+			return mOut.size();
+		}
+
+		byte [] toByteArray() {
+			return mOut.toByteArray();
+		}
+	}
+}
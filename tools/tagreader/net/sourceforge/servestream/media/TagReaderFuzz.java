@@ -0,0 +1,133 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Feeds {@link TagReader} randomly damaged copies of the fixtures of
+ * {@link TagReaderFixtures} and reports every exception, then times a read
+ * of each fixture. Besides flipping bytes it writes sizes close to the int
+ * limits at aligned offsets, since those are the values that overflow
+ * offset arithmetic. Built like {@link TagReaderTest}, run with an optional
+ * seed and number of rounds per fixture:
+ * <pre>
+ * java -cp bin/tagreader net.sourceforge.servestream.media.TagReaderFuzz 1 20000
+ * </pre>
+ * The exit status is 1 if the reader threw.
+ */
+public class TagReaderFuzz {
+
+	private static final int [] EXTREME_VALUES = {
+		0x7fffffff, 0x7ffffff8, 0x7ffffff0, 0x80000000, 0xffffffff, 0x0fffffff, 0x7f7f7f7f
+	};
+
+	private static final int MAX_REPORTED = 10;
+	private static final int TIMED_READS = 20000;
+
+	public static void main(String [] args) {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		Random random = new Random(seed);
+		int failures = 0;
+
+		for (Map.Entry<String, byte []> fixture : TagReaderFixtures.all().entrySet()) {
+			byte [] original = fixture.getValue();
+
+			for (int i = 0; i < rounds; i++) {
+				byte [] data = original.clone();
+				mutate(data, random);
+
+				// sometimes only part of the file was fetched
+				int headLength = random.nextInt(4) == 0 ? random.nextInt(data.length + 1) : data.length;
+				long length = random.nextInt(8) == 0 ? -1 : data.length;
+
+				try {
+					new TagReader().read(ByteBuffer.wrap(data, 0, headLength), ByteBuffer.allocate(0), length);
+				} catch (RuntimeException e) {
+					if (failures++ < MAX_REPORTED) {
+						System.out.println(fixture.getKey() + " round " + i + ":");
+						e.printStackTrace(System.out);
+					}
+				}
+			}
+		}
+
+		System.out.println("seed " + seed + ", " + rounds + " rounds per fixture, " + failures + " failed");
+
+		time();
+
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Damages a few bytes, most often near the start where the headers are.
+	 */
+	private static void mutate(byte [] data, Random random) {
+		int count = 1 + random.nextInt(8);
+
+		for (int i = 0; i < count; i++) {
+			int limit = random.nextBoolean() ? Math.min(data.length, 1024) : data.length;
+			int offset = random.nextInt(limit);
+
+			if (random.nextInt(4) == 0 && offset + 4 <= data.length) {
+				int value = EXTREME_VALUES[random.nextInt(EXTREME_VALUES.length)];
+
+				if (random.nextBoolean()) {
+					value = Integer.reverseBytes(value);
+				}
+
+				data[offset] = (byte) (value >>> 24);
+				data[offset + 1] = (byte) (value >>> 16);
+				data[offset + 2] = (byte) (value >>> 8);
+				data[offset + 3] = (byte) value;
+			} else {
+				data[offset] = (byte) random.nextInt(256);
+			}
+		}
+	}
+
+	private static void time() {
+		TagReader reader = new TagReader();
+
+		for (Map.Entry<String, byte []> fixture : TagReaderFixtures.all().entrySet()) {
+			byte [] data = fixture.getValue();
+			ByteBuffer head = ByteBuffer.wrap(data);
+			ByteBuffer tail = ByteBuffer.allocate(0);
+
+			// warm up
+			for (int i = 0; i < TIMED_READS; i++) {
+				reader.read(head, tail, data.length);
+			}
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < TIMED_READS; i++) {
+				reader.read(head, tail, data.length);
+			}
+
+			long micros = (System.nanoTime() - start) / TIMED_READS / 1000;
+			System.out.println(fixture.getKey() + ": " + micros + " us per read");
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * ServeStream: A HTTP stream browser/player for Android
+ * Copyright 2012 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.servestream.media;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import net.sourceforge.servestream.media.TagReaderFixtures.Writer;
+
+/**
+ * Checks {@link TagReader} against the fixtures of {@link TagReaderFixtures}
+ * and against damaged and truncated tags, which must never throw. TagReader
+ * only uses the constants of MediaMetadataRetriever, so the Android classes
+ * are needed to compile but not to run this on a desktop JVM from the
+ * project directory:
+ * <pre>
+ * mkdir -p bin/tagreader
+ * javac -d bin/tagreader -cp $ANDROID_HOME/platforms/android-8/android.jar \
+ *     src/net/sourceforge/servestream/media/TagReader.java \
+ *     src/net/sourceforge/servestream/media/MediaMetadataRetriever.java \
+ *     tools/tagreader/net/sourceforge/servestream/media/*.java
+ * java -cp bin/tagreader net.sourceforge.servestream.media.TagReaderTest
+ * </pre>
+ * The exit status is 1 if a check failed.
+ */
+public class TagReaderTest {
+
+	private static final String TITLE = MediaMetadataRetriever.METADATA_KEY_TITLE;
+	private static final String ARTIST = MediaMetadataRetriever.METADATA_KEY_ARTIST;
+	private static final String ALBUM = MediaMetadataRetriever.METADATA_KEY_ALBUM;
+	private static final String TRACK = MediaMetadataRetriever.METADATA_KEY_TRACK;
+	private static final String DATE = MediaMetadataRetriever.METADATA_KEY_DATE;
+	private static final String DURATION = MediaMetadataRetriever.METADATA_KEY_DURATION;
+
+	// how much of the head and the tail MetadataProbe fetches, roughly
+	private static final int HEAD_SIZE = 4096;
+	private static final int TAIL_SIZE = 1024;
+
+	private static int sChecks = 0;
+	private static int sFailures = 0;
+
+	public static void main(String [] args) {
+		testId3v22();
+		testId3v23();
+		testId3v23ExtendedHeader();
+		testId3v24();
+		testId3v1();
+		testFlac();
+		testOggVorbis();
+		testOggOpus();
+		testMp4();
+		testUnsupported();
+		testMalformed();
+		testTruncated();
+
+		System.out.println(sChecks + " checks, " + sFailures + " failed");
+
+		if (sFailures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void testId3v22() {
+		TagReader reader = read(TagReaderFixtures.id3v22());
+		check("id3v2.2 title", "Title 22", reader.extractMetadata(TITLE));
+		check("id3v2.2 artist", "Artist 22", reader.extractMetadata(ARTIST));
+		check("id3v2.2 album", "Album 22", reader.extractMetadata(ALBUM));
+		// 96 frames of 417 bytes at 128 kbit/s
+		check("id3v2.2 duration", "2502", reader.extractMetadata(DURATION));
+	}
+
+	private static void testId3v23() {
+		TagReader reader = read(TagReaderFixtures.id3v23());
+		check("id3v2.3 utf-16 title", "T\u00eftle \u00dcTF16", reader.extractMetadata(TITLE));
+		check("id3v2.3 artist", "Artist 23", reader.extractMetadata(ARTIST));
+		check("id3v2.3 utf-8 album", "Album 23", reader.extractMetadata(ALBUM));
+		check("id3v2.3 track", "7", reader.extractMetadata(TRACK));
+		// only in the ID3v1 tag
+		check("id3v2.3 id3v1 date", "1999", reader.extractMetadata(DATE));
+		// the ID3v1 tag does not count as audio
+		check("id3v2.3 duration", "2502", reader.extractMetadata(DURATION));
+
+		// the ID3v1 tag in the tail
+		reader = readSplit(TagReaderFixtures.id3v23());
+		check("id3v2.3 split title", "T\u00eftle \u00dcTF16", reader.extractMetadata(TITLE));
+		check("id3v2.3 split date", "1999", reader.extractMetadata(DATE));
+	}
+
+	private static void testId3v23ExtendedHeader() {
+		TagReader reader = read(TagReaderFixtures.id3v23ExtendedHeader());
+		check("extended header title", "Extended", reader.extractMetadata(TITLE));
+	}
+
+	private static void testId3v24() {
+		TagReader reader = read(TagReaderFixtures.id3v24());
+		check("id3v2.4 title", "Four", reader.extractMetadata(TITLE));
+		check("id3v2.4 artist", "Art4", reader.extractMetadata(ARTIST));
+		check("id3v2.4 date", "2012", reader.extractMetadata(DATE));
+		check("id3v2.4 unsynchronised album", "A\u00ffB", reader.extractMetadata(ALBUM));
+		// the Xing frame count wins over TLEN, 10000 * 1152 / 44100
+		check("id3v2.4 xing duration", "261224", reader.extractMetadata(DURATION));
+	}
+
+	private static void testId3v1() {
+		TagReader reader = readSplit(TagReaderFixtures.id3v1Only());
+		check("id3v1 title", "V1 Title", reader.extractMetadata(TITLE));
+		check("id3v1 artist", "V1 Artist", reader.extractMetadata(ARTIST));
+		check("id3v1 album", "V1 Album", reader.extractMetadata(ALBUM));
+		check("id3v1 date", "1999", reader.extractMetadata(DATE));
+		check("id3v1.1 track", "5", reader.extractMetadata(TRACK));
+		check("id3v1 duration", "2606", reader.extractMetadata(DURATION));
+	}
+
+	private static void testFlac() {
+		TagReader reader = read(TagReaderFixtures.flac());
+		check("flac title", "Flac Title", reader.extractMetadata(TITLE));
+		check("flac lower case field", "Flac Artist", reader.extractMetadata(ARTIST));
+		check("flac track", "3", reader.extractMetadata(TRACK));
+		check("flac duration", "200000", reader.extractMetadata(DURATION));
+	}
+
+	private static void testOggVorbis() {
+		// the comment header spans pages, the last page is in the tail
+		TagReader reader = readSplit(TagReaderFixtures.oggVorbis());
+		check("ogg title", "Ogg Title", reader.extractMetadata(TITLE));
+		check("ogg artist", "Ogg Artist", reader.extractMetadata(ARTIST));
+		check("ogg duration", "123000", reader.extractMetadata(DURATION));
+	}
+
+	private static void testOggOpus() {
+		TagReader reader = readSplit(TagReaderFixtures.oggOpus());
+		check("opus title", "Opus Title", reader.extractMetadata(TITLE));
+		check("opus album", "Opus Album", reader.extractMetadata(ALBUM));
+		check("opus duration without pre-skip", "10000", reader.extractMetadata(DURATION));
+	}
+
+	private static void testMp4() {
+		TagReader reader = read(TagReaderFixtures.mp4());
+		check("mp4 title", "Mp4 Title", reader.extractMetadata(TITLE));
+		check("mp4 artist", "Mp4 Artist", reader.extractMetadata(ARTIST));
+		check("mp4 track", "3", reader.extractMetadata(TRACK));
+		check("mp4 duration", "185000", reader.extractMetadata(DURATION));
+
+		// the moov atom after the media data is in the tail
+		reader = readSplit(TagReaderFixtures.mp4());
+		check("mp4 split title", "Mp4 Title", reader.extractMetadata(TITLE));
+		check("mp4 split duration", "185000", reader.extractMetadata(DURATION));
+	}
+
+	private static void testUnsupported() {
+		byte [] wav = new byte[1000];
+		System.arraycopy("RIFF".getBytes(TagReaderFixtures.ISO_8859_1), 0, wav, 0, 4);
+
+		TagReader reader = new TagReader();
+		check("wav is left to the retriever", false,
+				reader.read(ByteBuffer.wrap(wav), ByteBuffer.allocate(0), wav.length));
+	}
+
+	/**
+	 * Sizes that point far past the end of the data, chosen so that adding
+	 * them to an offset overflows an int.
+	 */
+	private static void testMalformed() {
+		// an ID3v2.3 extended header of 0x7ffffff8 bytes
+		Writer frames = new Writer();
+		frames.int32(0x7ffffff8);
+		TagReaderFixtures.id3v23Frame(frames, "TIT2", TagReaderFixtures.text(0, "abcd"));
+		Writer file = new Writer();
+		TagReaderFixtures.id3v2Header(file, 3, 0x40, frames.size());
+		file.bytes(frames.toByteArray());
+		checkNoThrow("id3v2.3 huge extended header", file.toByteArray());
+
+		// an ID3v2.4 extended header past the tag
+		frames = new Writer();
+		frames.synchsafe(0x0fffffff);
+		frames.zeros(20);
+		file = new Writer();
+		TagReaderFixtures.id3v2Header(file, 4, 0x40, frames.size());
+		file.bytes(frames.toByteArray());
+		checkNoThrow("id3v2.4 huge extended header", file.toByteArray());
+
+		// an ID3v2.3 frame of 0x7ffffff0 bytes
+		frames = new Writer();
+		frames.ascii("TIT2");
+		frames.int32(0x7ffffff0);
+		frames.int16(0);
+		frames.zeros(20);
+		file = new Writer();
+		TagReaderFixtures.id3v2Header(file, 3, 0, frames.size());
+		file.bytes(frames.toByteArray());
+		checkNoThrow("id3v2.3 huge frame", file.toByteArray());
+
+		// an ID3v2 tag larger than the file, with unsynchronisation
+		file = new Writer();
+		TagReaderFixtures.id3v2Header(file, 3, 0x80, 0x0fffffff);
+		TagReaderFixtures.id3v23Frame(file, "TIT2", TagReaderFixtures.text(0, "cut"));
+		checkNoThrow("id3v2 tag past the end", file.toByteArray());
+
+		// a text frame that is only the encoding byte, and UTF-16 without
+		// a terminator and of odd length
+		frames = new Writer();
+		TagReaderFixtures.id3v23Frame(frames, "TIT2", new byte [] { 1 });
+		TagReaderFixtures.id3v23Frame(frames, "TPE1", new byte [] { 1, (byte) 0xff, (byte) 0xfe, 'a' });
+		file = new Writer();
+		TagReaderFixtures.id3v2Header(file, 3, 0, frames.size());
+		file.bytes(frames.toByteArray());
+		checkNoThrow("id3v2 short text frames", file.toByteArray());
+
+		// an MP4 moov child of 0x7ffffffc bytes followed by garbage
+		Writer moov = new Writer();
+		moov.int32(0x7ffffffc);
+		moov.ascii("udta");
+		moov.int32(0x7ffffffc);
+		moov.ascii("xxxx");
+		file = new Writer();
+		file.bytes(TagReaderFixtures.atom("ftyp", new byte[8]));
+		file.bytes(TagReaderFixtures.atom("moov", moov.toByteArray()));
+		checkNoThrow("mp4 huge moov child", file.toByteArray());
+
+		// an MP4 64 bit atom size that is negative
+		file = new Writer();
+		file.bytes(TagReaderFixtures.atom("ftyp", new byte[8]));
+		file.int32(1);
+		file.ascii("mdat");
+		file.int32(0x80000000);
+		file.int32(0);
+		checkNoThrow("mp4 negative 64 bit size", file.toByteArray());
+
+		// a FLAC Vorbis comment whose vendor length is Integer.MAX_VALUE - 12
+		file = new Writer();
+		file.ascii("fLaC");
+		file.int8(0x80 | 4);
+		file.int24(20);
+		file.int32le(Integer.MAX_VALUE - 12);
+		file.zeros(16);
+		checkNoThrow("flac huge vendor length", file.toByteArray());
+
+		// a Vorbis comment claiming 0xffffffff fields of 0x7fffffff bytes
+		Writer comment = new Writer();
+		comment.int32le(0);
+		comment.int32le(0xffffffff);
+		comment.int32le(0x7fffffff);
+		comment.ascii("TITLE=x");
+		file = new Writer();
+		file.ascii("fLaC");
+		file.int8(0x80 | 4);
+		file.int24(comment.size());
+		file.bytes(comment.toByteArray());
+		checkNoThrow("flac huge field count", file.toByteArray());
+
+		// an Ogg page whose lacing values run past the data
+		file = new Writer();
+		TagReaderFixtures.oggPage(file, 1, 0, 0, 0x02, new byte[255 * 3], false);
+		byte [] ogg = file.toByteArray();
+		byte [] cut = new byte[ogg.length - 500];
+		System.arraycopy(ogg, 0, cut, 0, cut.length);
+		checkNoThrow("ogg lacing past the end", cut);
+	}
+
+	/**
+	 * Every fixture cut off after every length, once with the real length
+	 * of the file and once as if the cut off part were the whole file.
+	 */
+	private static void testTruncated() {
+		for (Map.Entry<String, byte []> fixture : TagReaderFixtures.all().entrySet()) {
+			byte [] data = fixture.getValue();
+			String failure = null;
+
+			for (int length = 0; length <= Math.min(data.length, HEAD_SIZE) && failure == null; length++) {
+				ByteBuffer head = ByteBuffer.wrap(data, 0, length);
+
+				try {
+					new TagReader().read(head, ByteBuffer.allocate(0), data.length);
+					new TagReader().read(head, ByteBuffer.allocate(0), length);
+					new TagReader().read(head, ByteBuffer.allocate(0), -1);
+				} catch (RuntimeException e) {
+					failure = "cut after " + length + " bytes: " + e;
+				}
+			}
+
+			check(fixture.getKey() + " truncated", null, failure);
+		}
+	}
+
+	/*
+	 * Helpers
+	 */
+
+	private static TagReader read(byte [] data) {
+		TagReader reader = new TagReader();
+		check("supported", true, reader.read(ByteBuffer.wrap(data), ByteBuffer.allocate(0), data.length));
+		return reader;
+	}
+
+	/**
+	 * Reads a file as MetadataProbe fetches it, the head and the tail apart.
+	 */
+	private static TagReader readSplit(byte [] data) {
+		int tailSize = Math.min(TAIL_SIZE, data.length - HEAD_SIZE);
+		ByteBuffer head = ByteBuffer.wrap(data, 0, HEAD_SIZE);
+		ByteBuffer tail = ByteBuffer.wrap(data, data.length - tailSize, tailSize);
+
+		TagReader reader = new TagReader();
+		check("supported", true, reader.read(head, tail, data.length));
+		return reader;
+	}
+
+	private static void checkNoThrow(String name, byte [] data) {
+		String failure = null;
+
+		try {
+			new TagReader().read(ByteBuffer.wrap(data), ByteBuffer.allocate(0), data.length);
+			new TagReader().read(ByteBuffer.wrap(data), ByteBuffer.allocate(0), -1);
+		} catch (RuntimeException e) {
+			failure = e.toString();
+		}
+
+		check(name, null, failure);
+	}
+
+	private static void check(String name, Object expected, Object actual) {
+		sChecks++;
+
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			sFailures++;
+			System.out.println("FAILED " + name + ": expected " + expected + " but was " + actual);
+		}
+	}
+}